@@ -0,0 +1,72 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The entry point of the benchmarks jar.  Accepts the standard JMH command
+ * line options, except that unless a result format and file are given on
+ * the command line the results are written as JSON to
+ * 'mckoiddb-benchmarks.json' in the current directory.  The JSON results of
+ * two runs can be compared to find regressions between builds or to compare
+ * the configuration options of the store.
+ *
+ * @author Tobias Downer
+ */
+
+public class BenchmarkRunner {
+
+  /**
+   * The default file the results are written to.
+   */
+  public static final String DEFAULT_RESULT_FILE = "mckoiddb-benchmarks.json";
+
+  /**
+   * Runs the benchmarks.
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd_options = new CommandLineOptions(args);
+
+    if (cmd_options.shouldHelp()) {
+      cmd_options.showHelp();
+      return;
+    }
+
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd_options);
+    if (!cmd_options.getResultFormat().hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if (!cmd_options.getResult().hasValue()) {
+      builder.result(DEFAULT_RESULT_FILE);
+    }
+
+    Runner runner = new Runner(builder.build());
+    if (cmd_options.shouldList()) {
+      runner.list();
+    }
+    else {
+      runner.run();
+    }
+  }
+
+}
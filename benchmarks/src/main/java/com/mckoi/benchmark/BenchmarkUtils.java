@@ -0,0 +1,84 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.debug.DefaultDebugLogger;
+import com.mckoi.store.LoggingBufferManager;
+import com.mckoi.store.StoreDataAccessorType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Static utility methods shared by the benchmarks.
+ *
+ * @author Tobias Downer
+ */
+
+final class BenchmarkUtils {
+
+  /**
+   * The page size used by the buffer managers created by the benchmarks.
+   */
+  static final int PAGE_SIZE = 8 * 1024;
+
+  /**
+   * Creates a new empty directory in the system temporary directory.
+   */
+  static File createTempDirectory(String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+
+  /**
+   * Deletes the given directory and everything in it.
+   */
+  static void deleteDirectory(File dir) {
+    if (dir == null) {
+      return;
+    }
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) {
+          deleteDirectory(f);
+        }
+        else {
+          f.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Creates and starts a LoggingBufferManager that stores its resources and
+   * journals in the given directory.
+   */
+  static LoggingBufferManager startBufferManager(File dir, int max_pages,
+                      StoreDataAccessorType accessor_type) throws IOException {
+    // Only report errors
+    DefaultDebugLogger debug = new DefaultDebugLogger();
+    debug.setDebugLevel(1000000);
+    LoggingBufferManager buffer_manager = new LoggingBufferManager(
+                  dir, dir, false, max_pages, PAGE_SIZE, "koi",
+                  512 * 1024 * 1024, accessor_type, debug, true);
+    buffer_manager.start();
+    return buffer_manager;
+  }
+
+}
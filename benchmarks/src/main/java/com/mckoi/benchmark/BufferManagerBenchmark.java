@@ -0,0 +1,140 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.store.AreaWriter;
+import com.mckoi.store.JournalledFileStore;
+import com.mckoi.store.LoggingBufferManager;
+import com.mckoi.store.StoreDataAccessorType;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reads through the LoggingBufferManager page cache.  In the 'hit'
+ * case the page cache is large enough to hold every page that is read, and
+ * in the 'miss' case it holds a small fraction of them so most reads must
+ * load a page from the file.  The accessor type parameter compares the
+ * StoreDataAccessor implementations on the miss path.
+ *
+ * @author Tobias Downer
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferManagerBenchmark {
+
+  /**
+   * The number of areas that are read.  Each area fills most of a page, so
+   * this is roughly the number of pages read.
+   */
+  private static final int AREA_COUNT = 4096;
+
+  /**
+   * The size of each area.
+   */
+  private static final int AREA_SIZE = BenchmarkUtils.PAGE_SIZE - 64;
+
+  /**
+   * Either 'hit' or 'miss'.
+   */
+  @Param({ "hit", "miss" })
+  public String cache;
+
+  /**
+   * The StoreDataAccessorType of the file slices.
+   */
+  @Param({ "IO", "MAPPED", "CHANNEL" })
+  public String accessor_type;
+
+  private File dir;
+  private LoggingBufferManager buffer_manager;
+  private JournalledFileStore store;
+
+  private long[] areas;
+  private Random random;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, InterruptedException {
+    int max_pages;
+    if (cache.equals("hit")) {
+      max_pages = AREA_COUNT * 2;
+    }
+    else if (cache.equals("miss")) {
+      max_pages = AREA_COUNT / 64;
+    }
+    else {
+      throw new IllegalArgumentException("Unknown cache: " + cache);
+    }
+
+    dir = BenchmarkUtils.createTempDirectory("mckoi_bm_bench");
+    buffer_manager = BenchmarkUtils.startBufferManager(dir, max_pages,
+                                 StoreDataAccessorType.valueOf(accessor_type));
+    store = new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    byte[] buf = new byte[AREA_SIZE];
+    new Random(1).nextBytes(buf);
+    random = new Random(2);
+
+    areas = new long[AREA_COUNT];
+    for (int i = 0; i < AREA_COUNT; ++i) {
+      AreaWriter writer = store.createArea(AREA_SIZE);
+      writer.put(buf, 0, AREA_SIZE);
+      writer.finish();
+      areas[i] = writer.getID();
+    }
+    // Write the pages to the files
+    store.checkPoint();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    store.close();
+    buffer_manager.stop();
+    BenchmarkUtils.deleteDirectory(dir);
+  }
+
+  /**
+   * Reads a long value from a random area.
+   */
+  @Benchmark
+  public long randomRead() throws IOException {
+    long id = areas[random.nextInt(AREA_COUNT)];
+    return store.getArea(id).getLong();
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.data.DataFile;
+import com.mckoi.data.Key;
+import com.mckoi.data.KeyObjectTransaction;
+import com.mckoi.data.LocalFileSystemDatabase;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sequential and random puts and gets on a DataFile of a
+ * TreeSystemTransaction over a LocalFileSystemDatabase.  The data file read
+ * and overwritten by the benchmarks is committed to the database before the
+ * trial starts, and each iteration runs in a new transaction that is
+ * disposed at the end of the iteration.
+ *
+ * @author Tobias Downer
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataFileBenchmark {
+
+  /**
+   * The key of the data file that is read and overwritten.
+   */
+  private static final Key DATA_KEY = new Key((short) 0, 0, 1);
+
+  /**
+   * The key of the data file that is appended to.
+   */
+  private static final Key APPEND_KEY = new Key((short) 0, 0, 2);
+
+  /**
+   * The number of long values in the committed data file.
+   */
+  @Param({ "1000000" })
+  public int record_count;
+
+  /**
+   * The maximum number of pages in the page cache of the database.
+   */
+  @Param({ "1024" })
+  public int max_page_count;
+
+  private File dir;
+  private LocalFileSystemDatabase database;
+
+  private KeyObjectTransaction transaction;
+  private DataFile data_file;
+  private DataFile append_file;
+
+  private Random random;
+  private long sequential_pos;
+  private long append_value;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    dir = BenchmarkUtils.createTempDirectory("mckoi_datafile_bench");
+    database = new LocalFileSystemDatabase(dir);
+    database.setMaxPageCount(max_page_count);
+    database.start();
+
+    KeyObjectTransaction t = database.createTransaction();
+    DataFile df = t.getDataFile(DATA_KEY, 'w');
+    for (int i = 0; i < record_count; ++i) {
+      df.putLong(i);
+    }
+    database.publish(t);
+    database.dispose(t);
+    database.checkPoint();
+
+    random = new Random(1);
+  }
+
+  @Setup(Level.Iteration)
+  public void beginTransaction() {
+    transaction = database.createTransaction();
+    data_file = transaction.getDataFile(DATA_KEY, 'w');
+    append_file = transaction.getDataFile(APPEND_KEY, 'w');
+    sequential_pos = 0;
+  }
+
+  @TearDown(Level.Iteration)
+  public void disposeTransaction() {
+    database.dispose(transaction);
+    transaction = null;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    database.stop();
+    BenchmarkUtils.deleteDirectory(dir);
+  }
+
+  /**
+   * Appends a long value to the end of a data file.
+   */
+  @Benchmark
+  public void sequentialPut() {
+    append_file.putLong(append_value);
+    ++append_value;
+  }
+
+  /**
+   * Overwrites a long value at a random position in the data file.
+   */
+  @Benchmark
+  public void randomPut() {
+    data_file.position(((long) random.nextInt(record_count)) * 8);
+    data_file.putLong(append_value);
+    ++append_value;
+  }
+
+  /**
+   * Reads the long values of the data file in order.
+   */
+  @Benchmark
+  public long sequentialGet() {
+    if (sequential_pos >= ((long) record_count) * 8) {
+      sequential_pos = 0;
+    }
+    data_file.position(sequential_pos);
+    sequential_pos += 8;
+    return data_file.getLong();
+  }
+
+  /**
+   * Reads a long value from a random position in the data file.
+   */
+  @Benchmark
+  public long randomGet() {
+    data_file.position(((long) random.nextInt(record_count)) * 8);
+    return data_file.getLong();
+  }
+
+}
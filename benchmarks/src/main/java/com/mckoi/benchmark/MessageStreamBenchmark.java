@@ -0,0 +1,131 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.network.MessageStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization of a MessageStream to and from its network
+ * form.  The message dictionaries are primed before the benchmark, so the
+ * measurement is of a connection in its steady state where message names
+ * are sent as codes.
+ *
+ * @author Tobias Downer
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStreamBenchmark {
+
+  /**
+   * The number of messages in the stream.
+   */
+  @Param({ "1", "32" })
+  public int message_count;
+
+  /**
+   * The size of the byte[] payload of each message.
+   */
+  @Param({ "0", "4096" })
+  public int payload_size;
+
+  private MessageStream message_stream;
+  private HashMap<String, String> write_dictionary;
+  private HashMap<String, String> read_dictionary;
+
+  private ByteArrayOutputStream bout;
+  private byte[] encoded;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random r = new Random(1);
+    byte[] payload = new byte[payload_size];
+    r.nextBytes(payload);
+
+    message_stream = new MessageStream(message_count * 8);
+    for (int i = 0; i < message_count; ++i) {
+      message_stream.addMessage("writeToBlock");
+      message_stream.addLong(r.nextLong());
+      message_stream.addInteger(i);
+      message_stream.addString("block" + i);
+      message_stream.addLongArray(new long[] { r.nextLong(), r.nextLong() });
+      message_stream.addBuf(payload);
+      message_stream.closeMessage();
+    }
+
+    write_dictionary = new HashMap();
+    read_dictionary = new HashMap();
+    bout = new ByteArrayOutputStream();
+
+    // The first write defines the message names in the dictionaries
+    message_stream.writeTo(new DataOutputStream(bout), write_dictionary);
+    MessageStream.readFrom(new DataInputStream(
+              new ByteArrayInputStream(bout.toByteArray())), read_dictionary);
+
+    bout.reset();
+    message_stream.writeTo(new DataOutputStream(bout), write_dictionary);
+    encoded = bout.toByteArray();
+  }
+
+  /**
+   * Serializes the message stream.
+   */
+  @Benchmark
+  public int write() throws IOException {
+    bout.reset();
+    DataOutputStream dout = new DataOutputStream(bout);
+    message_stream.writeTo(dout, write_dictionary);
+    dout.flush();
+    return bout.size();
+  }
+
+  /**
+   * Deserializes the message stream.
+   */
+  @Benchmark
+  public MessageStream read() throws IOException {
+    DataInputStream din =
+                  new DataInputStream(new ByteArrayInputStream(encoded));
+    return MessageStream.readFrom(din, read_dictionary);
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.data.ByteArray;
+import com.mckoi.data.JavaByteArray;
+import com.mckoi.data.Key;
+import com.mckoi.data.KeyObjectTransaction;
+import com.mckoi.data.OrderedSetData;
+import com.mckoi.data.StoreBackedTreeSystem;
+import com.mckoi.store.HeapStore;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures inserts and lookups on an OrderedSetData.  The set is stored in
+ * a StoreBackedTreeSystem over a HeapStore so the benchmark measures the
+ * set and tree code without file IO.
+ *
+ * @author Tobias Downer
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderedSetDataBenchmark {
+
+  /**
+   * The key of the data file of the set that is read.
+   */
+  private static final Key LOOKUP_KEY = new Key((short) 0, 0, 1);
+
+  /**
+   * The key of the data file of the set that is inserted into.
+   */
+  private static final Key INSERT_KEY = new Key((short) 0, 0, 2);
+
+  /**
+   * The number of values in the committed set.
+   */
+  @Param({ "100000" })
+  public int set_size;
+
+  /**
+   * The size in bytes of each value.
+   */
+  @Param({ "16", "128" })
+  public int value_size;
+
+  private StoreBackedTreeSystem tree_system;
+
+  private KeyObjectTransaction transaction;
+  private OrderedSetData lookup_set;
+  private OrderedSetData insert_set;
+
+  private ByteArray[] values;
+  private Random random;
+
+  /**
+   * Returns a new random value.
+   */
+  private ByteArray randomValue(Random r) {
+    byte[] buf = new byte[value_size];
+    r.nextBytes(buf);
+    return new JavaByteArray(buf);
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    tree_system = new StoreBackedTreeSystem(new HeapStore(),
+                                  16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+
+    Random r = new Random(1);
+    values = new ByteArray[set_size];
+    KeyObjectTransaction t = tree_system.createTransaction();
+    OrderedSetData set = new OrderedSetData(t.getDataFile(LOOKUP_KEY, 'w'));
+    for (int i = 0; i < set_size; ++i) {
+      values[i] = randomValue(r);
+      set.add(values[i]);
+    }
+    tree_system.commit(t);
+    tree_system.dispose(t);
+    tree_system.checkPoint();
+
+    random = new Random(2);
+  }
+
+  @Setup(Level.Iteration)
+  public void beginTransaction() {
+    transaction = tree_system.createTransaction();
+    lookup_set = new OrderedSetData(transaction.getDataFile(LOOKUP_KEY, 'r'));
+    insert_set = new OrderedSetData(transaction.getDataFile(INSERT_KEY, 'w'));
+  }
+
+  @TearDown(Level.Iteration)
+  public void disposeTransaction() {
+    tree_system.dispose(transaction);
+    transaction = null;
+  }
+
+  /**
+   * Inserts a random value.
+   */
+  @Benchmark
+  public boolean insert() {
+    return insert_set.add(randomValue(random));
+  }
+
+  /**
+   * Looks up a random value that is in the set.
+   */
+  @Benchmark
+  public boolean lookup() {
+    return lookup_set.contains(values[random.nextInt(set_size)]);
+  }
+
+}
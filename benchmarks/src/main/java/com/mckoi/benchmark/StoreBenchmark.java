@@ -0,0 +1,156 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.benchmark;
+
+import com.mckoi.store.Area;
+import com.mckoi.store.AreaWriter;
+import com.mckoi.store.HeapStore;
+import com.mckoi.store.JournalledFileStore;
+import com.mckoi.store.LoggingBufferManager;
+import com.mckoi.store.Store;
+import com.mckoi.store.StoreDataAccessorType;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the area create, read and delete operations of a HeapStore and
+ * a JournalledFileStore.
+ *
+ * @author Tobias Downer
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+  /**
+   * The number of areas created before the read benchmark.
+   */
+  private static final int READ_AREA_COUNT = 4096;
+
+  /**
+   * Either 'heap' or 'journalled'.
+   */
+  @Param({ "heap", "journalled" })
+  public String store_type;
+
+  /**
+   * The size of the areas created and read.
+   */
+  @Param({ "64", "1024", "16384" })
+  public int area_size;
+
+  private File dir;
+  private LoggingBufferManager buffer_manager;
+  private Store store;
+
+  private byte[] buf;
+  private long[] read_areas;
+  private Random random;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    if (store_type.equals("heap")) {
+      store = new HeapStore();
+    }
+    else if (store_type.equals("journalled")) {
+      dir = BenchmarkUtils.createTempDirectory("mckoi_store_bench");
+      buffer_manager = BenchmarkUtils.startBufferManager(
+                                     dir, 1024, StoreDataAccessorType.IO);
+      JournalledFileStore file_store =
+                       new JournalledFileStore("data", buffer_manager, false);
+      file_store.open();
+      store = file_store;
+    }
+    else {
+      throw new IllegalArgumentException("Unknown store type: " + store_type);
+    }
+
+    buf = new byte[area_size];
+    new Random(1).nextBytes(buf);
+    random = new Random(2);
+
+    // The areas for the read benchmark
+    read_areas = new long[READ_AREA_COUNT];
+    for (int i = 0; i < READ_AREA_COUNT; ++i) {
+      AreaWriter writer = store.createArea(area_size);
+      writer.put(buf, 0, area_size);
+      writer.finish();
+      read_areas[i] = writer.getID();
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void checkPoint() throws IOException, InterruptedException {
+    // Keeps the journals from growing over the trial
+    store.checkPoint();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (buffer_manager != null) {
+      ((JournalledFileStore) store).close();
+      buffer_manager.stop();
+      BenchmarkUtils.deleteDirectory(dir);
+    }
+  }
+
+  /**
+   * Creates an area, fills it and deletes it.
+   */
+  @Benchmark
+  public long createDelete() throws IOException {
+    AreaWriter writer = store.createArea(area_size);
+    writer.put(buf, 0, area_size);
+    writer.finish();
+    long id = writer.getID();
+    store.deleteArea(id);
+    return id;
+  }
+
+  /**
+   * Reads the content of a random existing area.
+   */
+  @Benchmark
+  public byte read() throws IOException {
+    long id = read_areas[random.nextInt(READ_AREA_COUNT)];
+    Area area = store.getArea(id);
+    area.get(buf, 0, area_size);
+    return buf[area_size - 1];
+  }
+
+}
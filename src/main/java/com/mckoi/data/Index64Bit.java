@@ -233,5 +233,38 @@ public interface Index64Bit {
    * change then the result of this function is undefined.
    */
   boolean containsSortKey(long ref);
-  
+
+  /**
+   * Inserts all the 64-bit values from the given iterator at their ordered
+   * positions in the index where the order is the ascending collation of the
+   * 64-bit values.  The values returned by the iterator must be in ascending
+   * order.  This has the same result as calling 'insertSortKey' for each
+   * value, but the index is changed in a single pass.
+   * <p>
+   * The correct operation of this function depends on the index maintaining
+   * a consistent order through its lifetime.  If the collation characteristics
+   * change then the result of this function is undefined.
+   *
+   * @param values an iterator over the ascending 64-bit values to insert into
+   *   the index.
+   */
+  void insertAllSorted(Iterator64Bit values);
+
+  /**
+   * Removes all the 64-bit values from the given iterator from the index where
+   * the order is the ascending collation of the 64-bit values.  The values
+   * returned by the iterator must be in ascending order.  This has the same
+   * result as calling 'removeSortKey' for each value, but the index is changed
+   * in a single pass.  Generates an exception if a value is not found in the
+   * index, in which case the index is not changed.
+   * <p>
+   * The correct operation of this function depends on the index maintaining
+   * a consistent order through its lifetime.  If the collation characteristics
+   * change then the result of this function is undefined.
+   *
+   * @param values an iterator over the ascending 64-bit values to remove from
+   *   the index.
+   */
+  void removeAllSorted(Iterator64Bit values);
+
 }
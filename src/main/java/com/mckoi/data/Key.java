@@ -123,6 +123,58 @@ public final class Key extends AbstractKey {
     return super.compareTo(ob);
   }
 
+  /**
+   * Compares two keys given by their encoded values (see 'encodedValue')
+   * without creating the Key objects.  Returns the same result as
+   * 'compareTo'.
+   */
+  static int compareEncoded(long a_v1, long a_v2, long b_v1, long b_v2) {
+    final short a_type = (short) (a_v1 >> 32);
+    final short b_type = (short) (b_v1 >> 32);
+    // Handle the special case head and tail keys,
+    if (a_type == 0x07F80 || b_type == 0x07F80) {
+      if (a_v1 == b_v1 && a_v2 == b_v2) {
+        return 0;
+      }
+      if (a_type == 0x07F80) {
+        return (specialKeyOrder(a_v1, a_v2) < 0) ? -1 : 1;
+      }
+      return (specialKeyOrder(b_v1, b_v2) < 0) ? 1 : -1;
+    }
+    // Compare secondary keys
+    final int a_secondary = (int) a_v1;
+    final int b_secondary = (int) b_v1;
+    if (a_secondary != b_secondary) {
+      return (a_secondary < b_secondary) ? -1 : 1;
+    }
+    // Compare types
+    if (a_type != b_type) {
+      return (a_type < b_type) ? -1 : 1;
+    }
+    // Compare primary keys
+    if (a_v2 != b_v2) {
+      return (a_v2 < b_v2) ? -1 : 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns -1 if the encoded special case key is the head key, or 1 if it is
+   * the tail key.
+   */
+  private static int specialKeyOrder(long v1, long v2) {
+    if (v2 == -1) {
+      int secondary = (int) v1;
+      if (secondary == -2) {
+        return -1;
+      }
+      else if (secondary == -1) {
+        return 1;
+      }
+    }
+    throw new RuntimeException("Unknown special case key");
+  }
+
   /**
    * Returns a string representation of the key.
    */
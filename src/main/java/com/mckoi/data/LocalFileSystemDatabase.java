@@ -23,6 +23,7 @@ import com.mckoi.store.AreaWriter;
 import com.mckoi.store.JournalledFileStore;
 import com.mckoi.store.LoggingBufferManager;
 import com.mckoi.store.MutableArea;
+import com.mckoi.store.StoreDataAccessorType;
 import java.io.File;
 import java.io.IOException;
 
@@ -41,7 +42,8 @@ import java.io.IOException;
  * By default, this object operates with conservative cache options allocating
  * 8MB for the page cache (maximum of 1,024 8KB pages).  File rollover is set
  * to 512MB (the maximum size a file will grow to before new data blocks are
- * stored in a new file).
+ * stored in a new file).  Data files are accessed through the standard IO API
+ * by default, but may be memory mapped instead.
  * <p>
  * Node and branch cache size is set to 14MB and 2MB respectively.  In the
  * default configuration, the object may use as much as 30MB of heap on cached
@@ -108,6 +110,53 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
    * buffer manager).
    */
   private int max_page_count;
+
+  /**
+   * The method used to access the data in the database file(s).
+   */
+  private StoreDataAccessorType data_accessor_type;
+
+  /**
+   * True if page content is stored in direct buffers outside the heap.
+   */
+  private boolean direct_page_buffers;
+
+  /**
+   * True if check points do not block writers while pages are flushed.
+   */
+  private boolean fuzzy_check_point;
+
+  /**
+   * The number of threads used to apply the journals when recovering.
+   */
+  private int recovery_thread_count;
+
+  /**
+   * The number of threads used to write nodes out to the store.
+   */
+  private int flush_thread_count;
+
+  /**
+   * True if the nodes of old versions are reclaimed by a background thread.
+   */
+  private boolean background_reclaim;
+
+  /**
+   * The level of the messages written to the debug log.
+   */
+  private int debug_level;
+
+  /**
+   * The time, in microseconds, a check point waits for other check point
+   * requests to join it.
+   */
+  private long group_commit_window;
+
+  /**
+   * The number of pending check point requests that ends the group commit
+   * window early.
+   */
+  private int group_commit_max_batch;
   
   /**
    * The size of a branch node (the maximum number of pointers on a branch
@@ -132,6 +181,11 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
    */
   private long branch_node_cache_size;
 
+  /**
+   * The maximum heap size of leaf nodes stored in the cache.
+   */
+  private long leaf_node_cache_size;
+
   /**
    * Synchronization lock object.
    */
@@ -165,10 +219,20 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
       file_rollover_size = 512 * 1024 * 1024;
       page_size = 8 * 1024;
       max_page_count = 1024;
+      data_accessor_type = StoreDataAccessorType.IO;
+      direct_page_buffers = false;
+      fuzzy_check_point = false;
+      recovery_thread_count = 1;
+      flush_thread_count = 1;
+      background_reclaim = false;
+      debug_level = 1000000;
+      group_commit_window = 0;
+      group_commit_max_batch = 64;
       branch_node_size = 16;
       leaf_node_size = 4010;
       heap_node_cache_size = 14 * 1024 * 1024;
       branch_node_cache_size = 2 * 1024 * 1024;
+      leaf_node_cache_size = 4 * 1024 * 1024;
     }
   }
   
@@ -216,6 +280,210 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
     }
   }
 
+  /**
+   * Sets the method used to access the data in the database file(s).
+   */
+  public void setDataAccessorType(StoreDataAccessorType accessor_type) {
+    synchronized (lock_object) {
+      this.data_accessor_type = accessor_type;
+    }
+  }
+
+  /**
+   * The method used to access the data in the database file(s).  When
+   * StoreDataAccessorType.MAPPED, the files are memory mapped and pages that
+   * are in the OS page cache are read without a system call.  When
+   * StoreDataAccessorType.CHANNEL, reads and writes use positional IO on a
+   * FileChannel and concurrent accesses are not serialized.
+   * <p>
+   * Default is StoreDataAccessorType.IO.
+   */
+  public StoreDataAccessorType getDataAccessorType() {
+    synchronized (lock_object) {
+      return this.data_accessor_type;
+    }
+  }
+
+  /**
+   * Sets whether the page cache stores page content outside the heap.
+   */
+  public void setDirectPageBuffers(boolean status) {
+    synchronized (lock_object) {
+      this.direct_page_buffers = status;
+    }
+  }
+
+  /**
+   * True if the page cache stores page content in pooled direct buffers
+   * outside the Java heap.  This keeps the heap use of the page cache flat
+   * for large maximum page counts.
+   * <p>
+   * Default is false.
+   */
+  public boolean isDirectPageBuffers() {
+    synchronized (lock_object) {
+      return this.direct_page_buffers;
+    }
+  }
+
+  /**
+   * Sets whether check points are fuzzy.
+   */
+  public void setFuzzyCheckPoint(boolean status) {
+    synchronized (lock_object) {
+      this.fuzzy_check_point = status;
+    }
+  }
+
+  /**
+   * True if check points are fuzzy.  A fuzzy check point only blocks writers
+   * while the journal is switched to a new file, and the pages changed before
+   * the check point are flushed to the journal while writers continue.
+   * <p>
+   * Default is false.
+   */
+  public boolean isFuzzyCheckPoint() {
+    synchronized (lock_object) {
+      return this.fuzzy_check_point;
+    }
+  }
+
+  /**
+   * Sets the number of threads used to apply the journals when recovering.
+   */
+  public void setRecoveryThreadCount(int count) {
+    synchronized (lock_object) {
+      this.recovery_thread_count = count;
+    }
+  }
+
+  /**
+   * The number of threads used to apply the journals when the database is
+   * started after it was not stopped cleanly.  When greater than 1, the
+   * journals are scanned and the final content of each changed page is
+   * applied to the data files in parallel.
+   * <p>
+   * Default is 1.
+   */
+  public int getRecoveryThreadCount() {
+    synchronized (lock_object) {
+      return this.recovery_thread_count;
+    }
+  }
+
+  /**
+   * Sets the number of threads used to write nodes out to the store.
+   */
+  public void setFlushThreadCount(int count) {
+    synchronized (lock_object) {
+      this.flush_thread_count = count;
+    }
+  }
+
+  /**
+   * The number of threads used to encode and write the nodes of a tree to
+   * the store when a transaction is flushed or committed.  When greater than
+   * 1, large tree writes are split between a pool of threads.
+   * <p>
+   * Default is 1.
+   */
+  public int getFlushThreadCount() {
+    synchronized (lock_object) {
+      return this.flush_thread_count;
+    }
+  }
+
+  /**
+   * Sets whether the nodes of old versions are reclaimed by a background
+   * thread.
+   */
+  public void setBackgroundReclaim(boolean status) {
+    synchronized (lock_object) {
+      this.background_reclaim = status;
+    }
+  }
+
+  /**
+   * True if the nodes of old versions of the tree are deleted by a background
+   * thread a small batch at a time.  When false, the nodes are deleted by the
+   * thread that commits or disposes the transaction that releases the last
+   * reference to a version.
+   * <p>
+   * Default is false.
+   */
+  public boolean getBackgroundReclaim() {
+    synchronized (lock_object) {
+      return this.background_reclaim;
+    }
+  }
+
+  /**
+   * Sets the level of the messages written to the debug log.
+   */
+  public void setDebugLevel(int level) {
+    synchronized (lock_object) {
+      this.debug_level = level;
+    }
+  }
+
+  /**
+   * The level of the messages written to the debug log (see
+   * com.mckoi.debug.Lvl).  Set this to Lvl.MESSAGE to see the progress of a
+   * journal recovery.
+   * <p>
+   * Default is 1000000 (no messages).
+   */
+  public int getDebugLevel() {
+    synchronized (lock_object) {
+      return this.debug_level;
+    }
+  }
+
+  /**
+   * Sets the group commit window for check points in microseconds.
+   */
+  public void setGroupCommitWindow(long micros) {
+    synchronized (lock_object) {
+      this.group_commit_window = micros;
+    }
+  }
+
+  /**
+   * The time, in microseconds, a check point waits for check point requests
+   * from other threads to join it so that the group is check pointed with a
+   * single journal synch.  Concurrent requests are grouped regardless of this
+   * setting, this only extends the time a group may form.
+   * <p>
+   * Default is 0.
+   */
+  public long getGroupCommitWindow() {
+    synchronized (lock_object) {
+      return this.group_commit_window;
+    }
+  }
+
+  /**
+   * Sets the number of pending check point requests that ends the group
+   * commit window early.
+   */
+  public void setGroupCommitMaxBatch(int max_batch) {
+    synchronized (lock_object) {
+      this.group_commit_max_batch = max_batch;
+    }
+  }
+
+  /**
+   * The number of pending check point requests that ends the group commit
+   * window early.
+   * <p>
+   * Default is 64.
+   */
+  public int getGroupCommitMaxBatch() {
+    synchronized (lock_object) {
+      return this.group_commit_max_batch;
+    }
+  }
+
   /**
    * Sets the file rollover size in bytes.
    */
@@ -323,6 +591,27 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
     }
   }
 
+  /**
+   * Sets the size of the cache for storing the content of leaf nodes.  If 0,
+   * leaf nodes are not cached and are always read through the store.
+   */
+  public void setLeafNodeCacheSize(long leaf_node_cache_size) {
+    synchronized (lock_object) {
+      this.leaf_node_cache_size = leaf_node_cache_size;
+    }
+  }
+
+  /**
+   * The maximum heap size of leaf nodes stored in the cache.
+   * <p>
+   * Default is 4MB = (4 * 1024 * 1024).
+   */
+  public long getLeafNodeCacheSize() {
+    synchronized (lock_object) {
+      return this.leaf_node_cache_size;
+    }
+  }
+
   // ---------- Operation ----------
   
 //  /**
@@ -374,10 +663,15 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
       String db_file_name = "data";
 
       debug = new DefaultDebugLogger();
-      debug.setDebugLevel(1000000);
+      debug.setDebugLevel(debug_level);
       buffer_manager = new LoggingBufferManager(
             path, path, false, max_page_count, page_size, file_ext,
-            file_rollover_size, debug, true);
+            file_rollover_size, data_accessor_type, debug, true);
+      buffer_manager.setDirectPageBuffers(direct_page_buffers);
+      buffer_manager.setFuzzyCheckPoint(fuzzy_check_point);
+      buffer_manager.setRecoveryThreadCount(recovery_thread_count);
+      buffer_manager.setGroupCommit(group_commit_window,
+                                    group_commit_max_batch);
       buffer_manager.start();
 
       // The backing store
@@ -398,7 +692,8 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
         // Create a tree store inside the file store,
         tree_store = new StoreBackedTreeSystem(
                                file_store, branch_node_size, leaf_node_size,
-                               heap_node_cache_size, branch_node_cache_size);
+                               heap_node_cache_size, branch_node_cache_size,
+                               leaf_node_cache_size);
         // Create the tree and returns a pointer to the tree,
         long tree_pointer = tree_store.create();
 
@@ -434,7 +729,8 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
         tree_store =
             new StoreBackedTreeSystem(
                            file_store, IBRANCH_NODE_SIZE, ILEAF_NODE_SIZE,
-                           heap_node_cache_size, branch_node_cache_size);
+                           heap_node_cache_size, branch_node_cache_size,
+                           leaf_node_cache_size);
         // Initialize the tree
         tree_store.init(tree_pointer);
 
@@ -443,6 +739,9 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
         throw new IOException("Data is corrupt, invalid magic value in store");
       }
 
+      tree_store.setFlushThreadCount(flush_thread_count);
+      tree_store.setBackgroundReclaim(background_reclaim);
+
       // Set the point of the tree store
       tree_store.checkPoint();
 
@@ -464,6 +763,11 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
         return;
       }
 
+      // Stop the reclaimer thread before the store is closed. Any nodes
+      // still waiting to be reclaimed are reclaimed when the database is
+      // next started.
+      database_ob.setBackgroundReclaim(false);
+
       // Check point before we stop
       checkPoint();
 
@@ -475,6 +779,9 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
       buffer_manager = null;
       file_store = null;
       
+      // Stop the flush threads
+      database_ob.setFlushThreadCount(1);
+
       // Clear the internal state
       database_ob = null;
       database_started = false;
@@ -491,6 +798,31 @@ public final class LocalFileSystemDatabase implements KeyObjectDatabase {
     return database_ob;
   }
 
+  /**
+   * Returns the number of check points requested since the database was
+   * started.
+   */
+  public long getCheckPointRequestCount() {
+    return buffer_manager.getCheckPointRequestCount();
+  }
+
+  /**
+   * Returns the number of check points performed since the database was
+   * started.  Check point requests made concurrently are grouped into a
+   * single check point, so this may be lower than the number of requests.
+   */
+  public long getCheckPointCount() {
+    return buffer_manager.getCheckPointCount();
+  }
+
+  /**
+   * Returns the largest number of check point requests that were grouped
+   * into a single check point.
+   */
+  public long getCheckPointMaxBatchSize() {
+    return buffer_manager.getCheckPointMaxBatchSize();
+  }
+
   /**
    * Generates a diagnostic graph object of the entire database state.
    */
@@ -51,6 +51,14 @@ public final class NodeReference extends Integer128Bit {
     return ((int) (ref[0] >> 60)) & 0x0F;
   }
 
+  /**
+   * Returns true if the node reference with the given high 64 bits references
+   * a node held in memory.
+   */
+  static boolean isInMemory(long high_long) {
+    return (((int) (high_long >> 60)) & 0x0F) == 1;
+  }
+
   /**
    * Returns true if the referenced node is held in memory.
    */
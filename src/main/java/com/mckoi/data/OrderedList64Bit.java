@@ -559,13 +559,441 @@ public class OrderedList64Bit implements Index64Bit {
   public boolean containsSortKey(long ref) {
     return searchFirst(new Long(ref), KEY_COMPARATOR) >= 0;
   }
-  
 
- 
-  
-  
+  /**
+   * {@inheritDoc}
+   */
+  public void insertAllSorted(Iterator64Bit values) {
+    mergeInsert(values, false);
+  }
+
+  /**
+   * Inserts all the values in the given array at their ordered positions in
+   * the list where the order is the ascending collation of the 64-bit values.
+   * The values in the array must be in ascending order.
+   */
+  public void insertAllSorted(long[] values) {
+    mergeInsert(new ArrayIterator(values), false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void removeAllSorted(Iterator64Bit values) {
+    mergeRemove(values, true);
+  }
+
+  /**
+   * Removes all the values in the given array from the list where the order is
+   * the ascending collation of the 64-bit values.  The values in the array
+   * must be in ascending order.  Generates an exception if a value is not
+   * found in the list, in which case the list is not changed.
+   */
+  public void removeAllSorted(long[] values) {
+    mergeRemove(new ArrayIterator(values), true);
+  }
+
+  /**
+   * Inserts the values in the given index that are not in this list, so this
+   * list becomes the union of the two lists.  Both lists must be ordered by
+   * the ascending collation of the 64-bit values.  The given index is not
+   * changed.  Returns the number of values inserted.
+   */
+  public long union(Index64Bit index) {
+    return mergeInsert(index.iterator(), true);
+  }
+
+  /**
+   * Removes all the values in the given index from this list, so this list
+   * becomes the difference of the two lists.  Values in the given index that
+   * are not in this list are ignored.  Both lists must be ordered by the
+   * ascending collation of the 64-bit values.  The given index is not
+   * changed.  Returns the number of values removed.
+   */
+  public long difference(Index64Bit index) {
+    return mergeRemove(index.iterator(), false);
+  }
+
+  // ----- Bulk sorted operations -----
+  //
+  // The bulk operations merge a sorted sequence of values with the list in a
+  // single pass. An insert grows the list to its final size and merges from
+  // the end, so each value after the first insert position is moved once. A
+  // remove compacts the values forward, and closes the gap at the end with a
+  // single shift. The values are checked before the list is changed, so an
+  // operation that generates an exception leaves the list as it was.
+
+  /**
+   * The maximum number of values moved at a time by the bulk operations.
+   */
+  private static final int MOVE_CHUNK_SIZE = 1024;
+
+  /**
+   * Moves 'count' values in the list from position 'from' to position 'to'.
+   * The source and destination may overlap.
+   */
+  private void moveValues(long from, long to, long count, long[] buf) {
+    if (from == to) {
+      return;
+    }
+    long done = 0;
+    while (done < count) {
+      int sz = (int) Math.min(buf.length, count - done);
+      // When moving the values up, copy from the end so values that haven't
+      // been read yet are not overwritten.
+      long offset = (to > from) ? (count - done - sz) : done;
+      data.position((from + offset) * 8);
+      for (int i = 0; i < sz; ++i) {
+        buf[i] = data.getLong();
+      }
+      data.position((to + offset) * 8);
+      for (int i = 0; i < sz; ++i) {
+        data.putLong(buf[i]);
+      }
+      done += sz;
+    }
+  }
+
+  /**
+   * Returns the number of values in the list before 'end' that are less than
+   * the given value, or less or equal to the value if 'inclusive' is true.
+   * The search gallops backwards from 'end', so it is fast when the result
+   * is close to 'end'.
+   */
+  private long countBefore(long v, long end, boolean inclusive) {
+    // Gallop back until a value before the position is found,
+    long high = end;
+    long step = 1;
+    long low;
+    while (true) {
+      low = high - step;
+      if (low < 0) {
+        low = 0;
+        break;
+      }
+      data.position(low * 8);
+      long lv = data.getLong();
+      if (lv < v || (inclusive && lv == v)) {
+        low = low + 1;
+        break;
+      }
+      high = low;
+      step = step << 1;
+    }
+    // Bisect the range,
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      data.position(mid * 8);
+      long mv = data.getLong();
+      if (mv < v || (inclusive && mv == v)) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the position of the first value in the list from 'start' that is
+   * greater or equal to the given value, or size if there are none.  The
+   * search gallops forwards from 'start'.
+   */
+  private long findFrom(long v, long start, long sz) {
+    // Gallop forward until a value after the position is found,
+    long low = start;
+    long step = 1;
+    long high;
+    while (true) {
+      high = low + step - 1;
+      if (high >= sz) {
+        high = sz;
+        break;
+      }
+      data.position(high * 8);
+      if (data.getLong() >= v) {
+        break;
+      }
+      low = high + 1;
+      step = step << 1;
+    }
+    // Bisect the range,
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      data.position(mid * 8);
+      if (data.getLong() < v) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Generates an exception if the values from the iterator are not in
+   * ascending order.
+   */
+  private static void checkSorted(Iterator64Bit values) {
+    boolean first = true;
+    long last = 0;
+    values.position(-1);
+    while (values.hasNext()) {
+      long v = values.next();
+      if (!first && v < last) {
+        throw new RuntimeException("Values are not sorted.");
+      }
+      first = false;
+      last = v;
+    }
+  }
+
+  /**
+   * Generates an exception if the values from the iterator are not in
+   * ascending order, or if the list doesn't contain a matching value for
+   * each value from the iterator.  A value repeated by the iterator must be
+   * repeated as many times in the list.
+   */
+  private void checkRemoveValues(Iterator64Bit values) {
+    final long sz = size();
+    long low = 0;
+    long repeat = 0;
+    boolean first = true;
+    long last = 0;
+    values.position(-1);
+    while (values.hasNext()) {
+      long v = values.next();
+      if (!first && v < last) {
+        throw new RuntimeException("Values are not sorted.");
+      }
+      if (!first && v == last) {
+        ++repeat;
+      }
+      else {
+        low = findFrom(v, low, sz);
+        repeat = 0;
+      }
+      first = false;
+      last = v;
+      if (low + repeat >= sz || get(low + repeat) != v) {
+        throw new RuntimeException(
+                            "Value '" + v + "' was not found in the set.");
+      }
+    }
+  }
+
+  /**
+   * Returns the number of distinct values from the iterator that are not in
+   * the list.  Generates an exception if the values are not in ascending
+   * order.
+   */
+  private long countNewValues(Iterator64Bit values) {
+    final long sz = size();
+    long count = 0;
+    long low = 0;
+    boolean first = true;
+    long last = 0;
+    values.position(-1);
+    while (values.hasNext()) {
+      long v = values.next();
+      if (!first && v == last) {
+        continue;
+      }
+      if (!first && v < last) {
+        throw new RuntimeException("Values are not sorted.");
+      }
+      first = false;
+      last = v;
+      low = findFrom(v, low, sz);
+      if (low >= sz || get(low) != v) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Inserts the ascending values from the iterator into the list.  If
+   * 'unique' is true, values already in the list and repeated values are not
+   * inserted.  Returns the number of values inserted.
+   */
+  private long mergeInsert(Iterator64Bit values, boolean unique) {
+    // If immutable then generate an exception
+    if (immutable_source) {
+      throw new RuntimeException("Source is immutable.");
+    }
+
+    // Check the values before the list is changed,
+    final long insert_count;
+    if (unique) {
+      insert_count = countNewValues(values);
+    }
+    else {
+      checkSorted(values);
+      insert_count = values.size();
+    }
+    if (insert_count == 0) {
+      return 0;
+    }
+
+    // Grow the list to its final size,
+    final long sz = size();
+    data.setSize((sz + insert_count) * 8);
+
+    long[] buf = new long[(int) Math.min(MOVE_CHUNK_SIZE, sz + 1)];
+    // The values in the list before 'i' are not moved yet, and the positions
+    // from 'w' to the end are written.
+    long i = sz;
+    long w = sz + insert_count;
+    boolean first = true;
+    long last = 0;
+    values.position(values.size());
+    while (w > i && values.hasPrevious()) {
+      long v = values.previous();
+
+      // Move up the values in the list that are greater than the value,
+      long j = countBefore(v, i, true);
+      boolean found = (j > 0 && get(j - 1) == v);
+      moveValues(j, w - (i - j), i - j, buf);
+      w -= (i - j);
+      i = j;
+
+      // Write the value,
+      if (!unique ||
+          ((first || v != last) && !found)) {
+        --w;
+        data.position(w * 8);
+        data.putLong(v);
+      }
+      first = false;
+      last = v;
+    }
+
+    return insert_count;
+  }
+
+  /**
+   * Removes the ascending values from the iterator from the list.  If 'strict'
+   * is true, each value removes one matching value from the list and an
+   * exception is generated if a value isn't found.  Otherwise, each value
+   * removes all matching values from the list and values not found are
+   * ignored.  Generates an exception if the values are not in ascending
+   * order.  Returns the number of values removed.
+   */
+  private long mergeRemove(Iterator64Bit values, boolean strict) {
+    // If immutable then generate an exception
+    if (immutable_source) {
+      throw new RuntimeException("Source is immutable.");
+    }
+
+    // Check the values before the list is changed,
+    if (strict) {
+      checkRemoveValues(values);
+    }
+    else {
+      checkSorted(values);
+    }
+
+    final long sz = size();
+    long[] buf = new long[(int) Math.min(MOVE_CHUNK_SIZE, sz + 1)];
+    // The values in the list before 'r' are processed, and the positions
+    // before 'w' are written.
+    long r = 0;
+    long w = 0;
+    values.position(-1);
+    while (values.hasNext()) {
+      long v = values.next();
+
+      // Move down the values in the list that are less than the value,
+      long j = findFrom(v, r, sz);
+      boolean found = (j < sz && get(j) == v);
+      moveValues(r, w, j - r, buf);
+      w += (j - r);
+      r = j;
+
+      // Skip the matching values,
+      if (found) {
+        ++r;
+        if (!strict) {
+          while (r < sz && get(r) == v) {
+            ++r;
+          }
+        }
+      }
+    }
+
+    // Close the gap,
+    if (r > w) {
+      data.position(r * 8);
+      data.shift(-((r - w) * 8));
+    }
+    return r - w;
+  }
+
   // ----- Inner classes -----
 
+  /**
+   * An immutable Iterator64Bit over a long[] array.
+   */
+  private static class ArrayIterator implements Iterator64Bit {
+
+    /**
+     * The array of values.
+     */
+    private final long[] arr;
+
+    /**
+     * The current position.
+     */
+    private long p;
+
+    ArrayIterator(long[] arr) {
+      this.arr = arr;
+      this.p = -1;
+    }
+
+    public long size() {
+      return arr.length;
+    }
+
+    public void position(long p) {
+      this.p = p;
+    }
+
+    public long position() {
+      return p;
+    }
+
+    public boolean hasNext() {
+      return (p + 1 < arr.length);
+    }
+
+    public long next() {
+      ++p;
+      return arr[(int) p];
+    }
+
+    public boolean hasPrevious() {
+      return (p > 0);
+    }
+
+    public long previous() {
+      --p;
+      return arr[(int) p];
+    }
+
+    public Iterator64Bit copy() {
+      return new ArrayIterator(arr);
+    }
+
+    public long remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
   /**
    * An iterator against a range of values in this ordered set.
    */
@@ -56,6 +56,13 @@ import java.util.concurrent.atomic.AtomicLong;
  * of strings. This meta information is intended to help identify
  * DataFile structures that are formatted by this object.
  * <p>
+ * Sets are written in an indexed format where the magic value is followed by
+ * the number of elements in the set, and a sparse index of the positions of
+ * every few records is stored after the records (see OrderedSetIndex). A
+ * search uses the index to land directly on record boundaries. Sets
+ * written in the original format without an index are still readable, and
+ * are converted to the indexed format the first time they are changed.
+ * <p>
  * This provides an iterator implementation for traversing the set, however it
  * should be noted that when an OrderedSetData object is mutated (items
  * added/removed/updated) any existing iterators created by the object are
@@ -63,9 +70,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>
  * This object implements java.lang.SortedSet&lt;ByteArray&gt;.
  * <p>
- * <b>PERFORMANCE</b>: While the data string search and iteration functions
- * are efficient, the size() query requires a full scan of all the data in
- * file to compute.
+ * <b>PERFORMANCE</b>: The size() query of an indexed set is a low
+ * complexity query. The size() query of a set in the original format
+ * requires a full scan of all the data in the file to compute.
  *
  * @author Tobias Downer
  */
@@ -78,6 +85,11 @@ public class OrderedSetData extends AbstractSet<ByteArray>
    */
   private static final long OSS_MAGIC = 0x0BE0220F;
 
+  /**
+   * The magic value for the indexed file format.
+   */
+  private static final long OSS_INDEXED_MAGIC = 0x0BE0221F;
+
   /**
    * A static Comparator object that compares the data string values using the
    * default Java string compare call.
@@ -110,6 +122,16 @@ public class OrderedSetData extends AbstractSet<ByteArray>
    */
   private final Comparator<ByteArray> array_comparator;
 
+  /**
+   * The element count and offset index of the data file.
+   */
+  private final OrderedSetIndex index;
+
+  /**
+   * True if the data file is in the indexed format.
+   */
+  private boolean indexed = false;
+
   /**
    * The position of the first element in the list.
    */
@@ -187,6 +209,12 @@ public class OrderedSetData extends AbstractSet<ByteArray>
 
     this.data = data;
     this.array_comparator = (collator != null) ? collator : LEXI_COLLATOR;
+    this.index = new OrderedSetIndex(data) {
+      @Override
+      long recordEnd(long pos, long end) {
+        return scanForEndPosition(pos, pos, end);
+      }
+    };
     // This constructor has unlimited bounds.
     this.upper_bound = u_bound;
     this.lower_bound = l_bound;
@@ -279,16 +307,31 @@ public class OrderedSetData extends AbstractSet<ByteArray>
       // Read the size
       final long sz = data.size();
 
-      // The empty states,
+      // Read the format and the bounds of the records,
+      long records_start;
+      long records_end;
       if (sz < 8) {
-        start_pos = 0;
-        end_pos = 0;
-        start_element_endpos = -1;
-        end_element_startpos = -1;
+        indexed = false;
+        records_start = 0;
+        records_end = 0;
+      }
+      else {
+        data.position(0);
+        indexed = (data.getLong() == OSS_INDEXED_MAGIC);
+        if (indexed) {
+          records_start = OrderedSetIndex.HEADER_SIZE;
+          records_end = index.getRecordsEnd();
+        }
+        else {
+          records_start = 8;
+          records_end = sz;
+        }
       }
-      else if (sz == 8) {
-        start_pos = 8;
-        end_pos = 8;
+
+      // The empty state,
+      if (records_start == records_end) {
+        start_pos = records_start;
+        end_pos = records_end;
         start_element_endpos = -1;
         end_element_startpos = -1;
       }
@@ -297,30 +340,28 @@ public class OrderedSetData extends AbstractSet<ByteArray>
 
         // If there is no lower bound we use start of the list
         if (lower_bound == null) {
-          start_pos = 8;
+          start_pos = records_start;
           start_element_endpos = -1;
         }
         // If there is a lower bound we search for the string and use it
         else {
-          boolean found = searchFor(0, lower_bound, 8, sz);
+          boolean found = searchFor(lower_bound, records_start, records_end);
           start_pos = data.position();
-          if (found) {
-            start_element_endpos = found_item.end_pos;
-          }
+          start_element_endpos = found ? found_item.end_pos : -1;
         }
 
         // If there is no upper bound we use end of the list
         if (upper_bound == null) {
-          end_pos = sz;
+          end_pos = records_end;
           end_element_startpos = -1;
         }
         // Otherwise there is an upper bound so search for the string and use it
         else {
-          boolean found = searchFor(0, upper_bound, 8, sz);
+          searchFor(upper_bound, records_start, records_end);
           end_pos = data.position();
-          if (found) {
-            end_element_startpos = found_item.start_pos;
-          }
+          // The upper bound is not in the subset, so the start of the last
+          // element is not known
+          end_element_startpos = -1;
         }
       }
 
@@ -452,9 +493,18 @@ public class OrderedSetData extends AbstractSet<ByteArray>
     this.start_element_endpos = -1;
     this.end_element_startpos = -1;
 
+    // Update the index,
+    boolean now_empty;
+    if (indexed) {
+      now_empty = (index.recordRemoved(ba_start_pos, -str_remove_size) == 0);
+    }
+    else {
+      now_empty = (this.start_pos == 8 && this.end_pos == 8);
+    }
+
     // If this removal leaves the set empty, we delete the file and update the
     // internal state as necessary.
-    if (this.start_pos == 8 && this.end_pos == 8) {
+    if (now_empty) {
       data.delete();
       this.start_pos = 0;
       this.end_pos = 0;
@@ -462,6 +512,40 @@ public class OrderedSetData extends AbstractSet<ByteArray>
 
   }
 
+  /**
+   * Converts a set in the original format to the indexed format. This scans
+   * the whole set once to build the index.
+   */
+  private void convertToIndexed() {
+    // Tell the root set that any child subsets may be dirty
+    makeDirty();
+
+    // Make room for the larger header and write it,
+    data.position(8);
+    data.shift(OrderedSetIndex.HEADER_SIZE - 8);
+    data.position(0);
+    data.putLong(OSS_INDEXED_MAGIC);
+    data.putLong(0);
+    data.putLong(0);
+    // Scan the records and build the index,
+    index.rebuild();
+
+    // Force the internal state of this set to be updated,
+    this.root_state_dirty = true;
+    updateInternalState();
+  }
+
+  /**
+   * Updates the internal state and converts the set to the indexed format if
+   * necessary. Called before the set is changed.
+   */
+  private void updateInternalStateForWrite() {
+    updateInternalState();
+    if (!indexed && data.size() >= 8) {
+      convertToIndexed();
+    }
+  }
+
   /**
    * Inserts a string into the data file at the current position the DataFile
    * object is at.
@@ -487,15 +571,15 @@ public class OrderedSetData extends AbstractSet<ByteArray>
     this.start_element_endpos = -1;
     this.end_element_startpos = -1;
 
-    // If the set is empty, we insert the magic value to the start of the
-    // data file and update the internal vars as appropriate
+    // If the set is empty, we insert the header to the start of the data file
+    // and update the internal vars as appropriate
     if (data.size() < 8) {
-      data.setSize(8);
-      data.position(0);
-      data.putLong(OSS_MAGIC);
-      this.start_pos = 8;
-      this.end_pos = 8;
+      index.create(OSS_INDEXED_MAGIC);
+      this.indexed = true;
+      this.start_pos = OrderedSetIndex.HEADER_SIZE;
+      this.end_pos = OrderedSetIndex.HEADER_SIZE;
     }
+    final long insert_pos = data.position();
 
     // Encode the value,
     int len = value.length();
@@ -540,6 +624,11 @@ public class OrderedSetData extends AbstractSet<ByteArray>
     // Adjust end_pos
     end_pos = end_pos + (act_len + 4);
 
+    // Update the index,
+    if (indexed) {
+      index.recordInserted(insert_pos, act_len + 4);
+    }
+
 //    System.out.println("---");
 //    data.position(0);
 //    long sz = data.size();
@@ -850,7 +939,91 @@ public class OrderedSetData extends AbstractSet<ByteArray>
    * a new item in the set in correct ordered position.
    */
   private boolean searchFor(final ByteArray value) {
-    return searchFor(0, value, this.start_pos, this.end_pos);
+    return searchFor(value, this.start_pos, this.end_pos);
+  }
+
+  /**
+   * Search for the given value in this set data between the start and end
+   * position, using the index if the set is indexed. The state of 'found_item'
+   * and the position in 'data' are the same as 'searchFor(ByteArray)'.
+   */
+  private boolean searchFor(final ByteArray value,
+                            final long start, final long end) {
+    if (indexed) {
+      return searchIndexed(value, start, end);
+    }
+    return searchFor(0, value, start, end);
+  }
+
+  /**
+   * Search for the value in an indexed set. A binary search over the restart
+   * records in the index finds the block the value is in, and the records
+   * in the block are then searched. The result is bounded by the given start
+   * and end positions.
+   */
+  private boolean searchIndexed(final ByteArray value,
+                                final long start, final long end) {
+
+    // If start is end, the list is empty,
+    if (start == end) {
+      data.position(start);
+      found_item = null;
+      return false;
+    }
+
+    final long records_end = index.getRecordsEnd();
+    final int entry_count = index.getEntryCount();
+    DataSectionByteArray item = null;
+    long pos = OrderedSetIndex.HEADER_SIZE;
+
+    // Find the last block with a restart record less or equal to the value,
+    int low = 0;
+    int high = entry_count - 1;
+    int block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long p = index.getEntryOffset(records_end, mid);
+      DataSectionByteArray restart_value =
+                                new DataSectionByteArray(p, records_end, p);
+      int v = array_comparator.compare(value, restart_value);
+      if (v == 0) {
+        item = restart_value;
+        pos = p;
+        break;
+      }
+      else if (v < 0) {
+        high = mid - 1;
+      }
+      else {
+        block = mid;
+        low = mid + 1;
+      }
+    }
+
+    // Search the records in the block,
+    if (item == null && block != -1) {
+      long block_end = (block + 1 < entry_count) ?
+                index.getEntryOffset(records_end, block + 1) : records_end;
+      pos = index.getEntryOffset(records_end, block);
+      if (searchFor(0, value, pos, block_end)) {
+        item = found_item;
+      }
+      pos = data.position();
+    }
+
+    // Bound the result,
+    if (pos < start) {
+      pos = start;
+      item = null;
+    }
+    else if (pos >= end) {
+      pos = end;
+      item = null;
+    }
+
+    data.position(pos);
+    found_item = item;
+    return item != null;
   }
 
   // ----------- Implemented from AbstractSet<String> ------------
@@ -859,15 +1032,21 @@ public class OrderedSetData extends AbstractSet<ByteArray>
    * Returns the total number of elements in the set or Integer.MAX_VALUE if
    * the set contains Integer.MAX_VALUE or more values.
    * <p>
-   * <b>PERFORMANCE</b>: This operation will scan the entire set to
-   * determine the number of elements. Avoid using this operation to scale
-   * for large sets.
+   * <b>PERFORMANCE</b>: For an indexed set this reads the element count
+   * from the header, and a subset counts the whole blocks from the index and
+   * scans only the blocks at its bounds. For a set in the original format
+   * this operation will scan the entire set to determine the number of
+   * elements.
    * <p>
-   * Performance is O(n)
+   * Performance is O(1) for an indexed set, and O(n) otherwise.
    */
   @Override
   public int size() {
     updateInternalState();
+    if (indexed) {
+      long count = index.countRecords(this.start_pos, this.end_pos);
+      return (int) Math.min(count, Integer.MAX_VALUE);
+    }
     long p = this.start_pos;
     long end = this.end_pos;
     int count = 0;
@@ -948,7 +1127,7 @@ public class OrderedSetData extends AbstractSet<ByteArray>
       throw new IllegalArgumentException("value >= upper_bound");
     }
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
@@ -994,7 +1173,7 @@ public class OrderedSetData extends AbstractSet<ByteArray>
       throw new IllegalArgumentException("value >= upper_bound");
     }
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
@@ -1047,7 +1226,7 @@ public class OrderedSetData extends AbstractSet<ByteArray>
       throw new IllegalArgumentException("value >= upper_bound");
     }
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
@@ -1090,7 +1269,7 @@ public class OrderedSetData extends AbstractSet<ByteArray>
 //    System.out.println("remove: " + value);
 
     if (value == null) throw new NullPointerException();
-    updateInternalState();
+    updateInternalStateForWrite();
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
     boolean found = searchFor((ByteArray) value);
@@ -1110,7 +1289,7 @@ public class OrderedSetData extends AbstractSet<ByteArray>
 
 //    System.out.println("clear");
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
 //    // Tell the root set that any child subsets may be dirty
 //    if (root_set != this) {
@@ -1131,8 +1310,18 @@ public class OrderedSetData extends AbstractSet<ByteArray>
     data.shift(to_clear);
     this.end_pos = this.start_pos;
 
+    // Rebuild the index over the records that are left,
+    boolean now_empty;
+    if (indexed) {
+      index.rebuild();
+      now_empty = (index.getCount() == 0);
+    }
+    else {
+      now_empty = (this.start_pos == 8 && this.end_pos == 8);
+    }
+
     // If it's completely empty, we delete the file,
-    if (this.start_pos == 8 && this.end_pos == 8) {
+    if (now_empty) {
       data.delete();
       this.start_pos = 0;
       this.end_pos = 0;
@@ -1264,8 +1453,23 @@ public class OrderedSetData extends AbstractSet<ByteArray>
     // If we know the start position of the last element,
     long found_start;
     if (end_element_startpos < 0) {
-      end_element_startpos =
-                         scanForStartPosition(end_pos - 2, start_pos, end_pos);
+      if (indexed) {
+        // Scan forward from the restart record of the last block,
+        int i = index.findEntry(end_pos - 2);
+        long p = Math.max(index.getEntryOffset(i), start_pos);
+        while (true) {
+          long e = scanForEndPosition(p, p, end_pos);
+          if (e >= end_pos) {
+            break;
+          }
+          p = e;
+        }
+        end_element_startpos = p;
+      }
+      else {
+        end_element_startpos =
+                         scanForStartPosition(end_pos - 4, start_pos, end_pos);
+      }
     }
     found_start = end_element_startpos;
 
@@ -0,0 +1,425 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The element count and sparse offset index of the indexed format of the
+ * ordered set structures (OrderedSetData and OrderedSetString). An indexed
+ * set DataFile is laid out as follows;
+ * <pre>
+ *   magic (long), element count (long), index entry count (long),
+ *   shift entry (long), shift (long),
+ *   records ...,
+ *   index entries ...
+ * </pre>
+ * Each index entry is the position of a restart record (long) followed by
+ * the number of records in the block that starts at the restart record
+ * (int). The first index entry always points to the first record, and the
+ * entries are ordered by position. A full rebuild places a restart record
+ * every BLOCK_SIZE records. As records are inserted and removed, blocks are
+ * split when they grow past twice that size and merged with the next block
+ * when they shrink.
+ * <p>
+ * A record inserted or removed moves the restart records of all the blocks
+ * after it. Rather than update all those entries, the move is added to the
+ * shift in the header, which applies to the entries from the shift entry to
+ * the end of the index. Only the entries between the shift entry and the
+ * block of the change are updated when the shift entry moves, so a run of
+ * changes in the same part of the set updates few entries.
+ * <p>
+ * Because the index lets a search find the start of a record directly, and
+ * the header stores the element count, the set size is known without a
+ * scan of the data.
+ *
+ * @author Tobias Downer
+ */
+
+abstract class OrderedSetIndex {
+
+  /**
+   * The size of the header of an indexed set.
+   */
+  static final int HEADER_SIZE = 40;
+
+  /**
+   * The size of an index entry.
+   */
+  private static final int ENTRY_SIZE = 12;
+
+  /**
+   * The number of records between restart points when the index is built.
+   */
+  private static final int BLOCK_SIZE = 32;
+
+  /**
+   * The DataFile of the set.
+   */
+  private final DataFile data;
+
+  /**
+   * Constructor.
+   */
+  OrderedSetIndex(DataFile data) {
+    this.data = data;
+  }
+
+  /**
+   * Returns the position after the end of the record that starts at the
+   * given position. 'end' is the end of the area the record is in.
+   */
+  abstract long recordEnd(long pos, long end);
+
+  /**
+   * Writes the header of an empty indexed set with the given magic value to
+   * the data file, and leaves the position at the start of the records.
+   */
+  void create(long magic) {
+    data.setSize(HEADER_SIZE);
+    data.position(0);
+    data.putLong(magic);
+    data.putLong(0);
+    data.putLong(0);
+    data.putLong(0);
+    data.putLong(0);
+  }
+
+  /**
+   * Returns the number of elements in the set.
+   */
+  long getCount() {
+    data.position(8);
+    return data.getLong();
+  }
+
+  /**
+   * Returns the number of entries in the index.
+   */
+  int getEntryCount() {
+    data.position(16);
+    return (int) data.getLong();
+  }
+
+  /**
+   * Returns the position after the last record in the set.
+   */
+  long getRecordsEnd() {
+    return data.size() - ((long) getEntryCount() * ENTRY_SIZE);
+  }
+
+  /**
+   * Returns the position of the restart record of the given index entry.
+   */
+  long getEntryOffset(int i) {
+    return getEntryOffset(getRecordsEnd(), i);
+  }
+
+  /**
+   * Returns the position of the restart record of the given index entry,
+   * where 'records_end' is the value of 'getRecordsEnd()'. This saves reading
+   * the index size when a search reads many entries.
+   */
+  long getEntryOffset(long records_end, int i) {
+    data.position(24);
+    long shift_entry = data.getLong();
+    long shift = data.getLong();
+    data.position(records_end + ((long) i * ENTRY_SIZE));
+    long offset = data.getLong();
+    return (i >= shift_entry) ? offset + shift : offset;
+  }
+
+  private void setCount(long count) {
+    data.position(8);
+    data.putLong(count);
+  }
+
+  private void setEntryCount(int count) {
+    data.position(16);
+    data.putLong(count);
+  }
+
+  private void setShift(long shift_entry, long shift) {
+    data.position(24);
+    data.putLong(shift_entry);
+    data.putLong(shift);
+  }
+
+  /**
+   * Returns the index of the last entry with a restart record at or before
+   * the given position, or -1 if the index is empty.
+   */
+  int findEntry(long pos) {
+    long records_end = getRecordsEnd();
+    int low = 0;
+    int high = getEntryCount() - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (getEntryOffset(records_end, mid) <= pos) {
+        found = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  // ----- Index updates -----
+  //
+  // The index updates change only the entry of the block the record is in,
+  // and insert or remove an entry in place when a block is split or merged.
+  // The restart records after the block are moved by the shift in the
+  // header.
+
+  /**
+   * Adds the given amount to the position of the restart records of the
+   * entries from 'from' to the end of the index. The entries between 'from'
+   * and the current shift entry are updated, and 'from' becomes the shift
+   * entry.
+   */
+  private void addShift(long records_end, int from, long amount) {
+    data.position(24);
+    long shift_entry = data.getLong();
+    long shift = data.getLong();
+    // The entries between the old and new shift entry keep their position,
+    // but the shift that applies to them changes,
+    if (shift != 0) {
+      int low = (int) Math.min(from, shift_entry);
+      int high = (int) Math.max(from, shift_entry);
+      long adjust = (from < shift_entry) ? -shift : shift;
+      for (int i = low; i < high; ++i) {
+        long p = records_end + ((long) i * ENTRY_SIZE);
+        data.position(p);
+        long offset = data.getLong();
+        data.position(p);
+        data.putLong(offset + adjust);
+      }
+    }
+    setShift(from, shift + amount);
+  }
+
+  /**
+   * Returns the record count of the given entry.
+   */
+  private int getRecordCount(long records_end, int i) {
+    data.position(records_end + ((long) i * ENTRY_SIZE) + 8);
+    return data.getInt();
+  }
+
+  private void setRecordCount(long records_end, int i, int count) {
+    data.position(records_end + ((long) i * ENTRY_SIZE) + 8);
+    data.putInt(count);
+  }
+
+  /**
+   * Inserts an entry at the given index of an index with 'n' entries, for
+   * the restart record at the given position with the given record count.
+   */
+  private void insertEntry(long records_end, int n,
+                           int i, long offset, int count) {
+    data.position(24);
+    long shift_entry = data.getLong();
+    long shift = data.getLong();
+    if (i >= shift_entry) {
+      offset -= shift;
+    }
+    else {
+      setShift(shift_entry + 1, shift);
+    }
+    data.position(records_end + ((long) i * ENTRY_SIZE));
+    if (i < n) {
+      data.shift(ENTRY_SIZE);
+    }
+    data.putLong(offset);
+    data.putInt(count);
+    setEntryCount(n + 1);
+  }
+
+  /**
+   * Removes the entry at the given index of an index with 'n' entries.
+   */
+  private void removeEntry(long records_end, int n, int i) {
+    data.position(24);
+    long shift_entry = data.getLong();
+    long shift = data.getLong();
+    if (i < shift_entry) {
+      setShift(shift_entry - 1, shift);
+    }
+    if (i + 1 < n) {
+      data.position(records_end + ((long) (i + 1) * ENTRY_SIZE));
+      data.shift(-ENTRY_SIZE);
+    }
+    else {
+      data.setSize(records_end + ((long) i * ENTRY_SIZE));
+    }
+    setEntryCount(n - 1);
+  }
+
+  /**
+   * Updates the index after a record of the given length was inserted at the
+   * given position. The record data must already be in the file.
+   */
+  void recordInserted(long pos, long len) {
+    data.position(8);
+    long count = data.getLong();
+    int n = (int) data.getLong();
+    setCount(count + 1);
+
+    long records_end = data.size() - ((long) n * ENTRY_SIZE);
+    // The first record in the set,
+    if (n == 0) {
+      setShift(0, 0);
+      insertEntry(records_end, 0, 0, pos, 1);
+      return;
+    }
+    int i = findEntry(pos);
+    // If the record was inserted at the restart position it becomes the new
+    // restart record of the block, so the entry offset does not change.
+    addShift(records_end, i + 1, len);
+    int block_count = getRecordCount(records_end, i) + 1;
+
+    // Split the block if it's too large,
+    if (block_count > BLOCK_SIZE * 2) {
+      long end = (i + 1 < n) ?
+                        getEntryOffset(records_end, i + 1) : records_end;
+      long p = getEntryOffset(records_end, i);
+      for (int r = 0; r < BLOCK_SIZE; ++r) {
+        p = recordEnd(p, end);
+      }
+      setRecordCount(records_end, i, BLOCK_SIZE);
+      insertEntry(records_end, n, i + 1, p, block_count - BLOCK_SIZE);
+    }
+    else {
+      setRecordCount(records_end, i, block_count);
+    }
+  }
+
+  /**
+   * Updates the index after a record of the given length was removed from
+   * the given position. The record data must already be removed from the
+   * file. Returns the number of elements left in the set.
+   */
+  long recordRemoved(long pos, long len) {
+    data.position(8);
+    long count = data.getLong() - 1;
+    int n = (int) data.getLong();
+    setCount(count);
+
+    long records_end = data.size() - ((long) n * ENTRY_SIZE);
+    int i = findEntry(pos);
+    // If the removed record was the restart record of the block then the
+    // next record in the block is now at the same position, so the entry
+    // offset does not change.
+    addShift(records_end, i + 1, -len);
+    int block_count = getRecordCount(records_end, i) - 1;
+    // If the block is empty then remove the entry,
+    if (block_count == 0) {
+      removeEntry(records_end, n, i);
+    }
+    // Merge with the next block if they are both small,
+    else if (i + 1 < n &&
+             block_count + getRecordCount(records_end, i + 1) <= BLOCK_SIZE) {
+      setRecordCount(records_end, i,
+                     block_count + getRecordCount(records_end, i + 1));
+      removeEntry(records_end, n, i + 1);
+    }
+    else {
+      setRecordCount(records_end, i, block_count);
+    }
+    return count;
+  }
+
+  /**
+   * Rebuilds the element count and the index by scanning all the records in
+   * the set. Any existing index entries are discarded.
+   */
+  void rebuild() {
+    long end = getRecordsEnd();
+    data.setSize(end);
+
+    long count = 0;
+    int entry_count = 0;
+    int block_count = 0;
+    long p = HEADER_SIZE;
+    ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+    while (p < end) {
+      if (block_count == 0) {
+        // Write the entry for this restart record with a full block, which
+        // is corrected after the loop if the last block isn't full.
+        entry.putLong(0, p);
+        entry.putInt(8, BLOCK_SIZE);
+        data.position(end + ((long) entry_count * ENTRY_SIZE));
+        data.put(entry.array(), 0, ENTRY_SIZE);
+        ++entry_count;
+      }
+      p = recordEnd(p, end);
+      ++count;
+      block_count = (block_count + 1) % BLOCK_SIZE;
+    }
+    if (block_count != 0) {
+      data.position(end + ((long) (entry_count - 1) * ENTRY_SIZE) + 8);
+      data.putInt(block_count);
+    }
+    setCount(count);
+    setEntryCount(entry_count);
+    setShift(0, 0);
+  }
+
+  /**
+   * Returns the number of records between the given positions, which must be
+   * on record boundaries.
+   */
+  long countRecords(long start, long end) {
+    if (start >= end) {
+      return 0;
+    }
+    long records_end = getRecordsEnd();
+    if (start == HEADER_SIZE && end == records_end) {
+      return getCount();
+    }
+    int n = getEntryCount();
+    long count = 0;
+    int i = findEntry(start);
+    long block_start = getEntryOffset(records_end, i);
+    for (; i < n; ++i) {
+      if (block_start >= end) {
+        break;
+      }
+      long block_end = (i + 1 < n) ?
+                        getEntryOffset(records_end, i + 1) : records_end;
+      if (block_start >= start && block_end <= end) {
+        count += getRecordCount(records_end, i);
+      }
+      else {
+        // Count the records of a block partly in the range,
+        long p = Math.max(block_start, start);
+        long e = Math.min(block_end, end);
+        while (p < e) {
+          ++count;
+          p = recordEnd(p, block_end);
+        }
+      }
+      block_start = block_end;
+    }
+    return count;
+  }
+
+}
@@ -43,11 +43,18 @@ import java.util.SortedSet;
  * of strings.  This meta information is intended to help identify
  * DataFile structures that are formatted by this object.
  * <p>
+ * Sets are written in an indexed format where the magic value is followed by
+ * the number of strings in the set, and a sparse index of the positions of
+ * every few strings is stored after the strings (see OrderedSetIndex).  A
+ * search uses the index to land directly on string boundaries.  Sets
+ * written in the original format without an index are still readable, and
+ * are converted to the indexed format the first time they are changed.
+ * <p>
  * This object implements java.lang.SortedSet&lt;String&gt;.
  * <p>
- * <b>PERFORMANCE</b>: While the string search and iteration functions are
- * efficient, the size() query requires a full scan of all the strings in
- * the set to compute.
+ * <b>PERFORMANCE</b>: The size() query of an indexed set is a low
+ * complexity query.  The size() query of a set in the original format
+ * requires a full scan of all the strings in the set to compute.
  * 
  * @author Tobias Downer
  */
@@ -60,6 +67,11 @@ public class OrderedSetString extends AbstractSet<String>
    */
   private static final long OSS_MAGIC = 0x0BE0110F;
 
+  /**
+   * The magic value for the indexed format of ordered set strings.
+   */
+  private static final long OSS_INDEXED_MAGIC = 0x0BE0111F;
+
 //  private final Object track_ob = new Object();
 
   /**
@@ -87,6 +99,16 @@ public class OrderedSetString extends AbstractSet<String>
    * The Comparator under which the strings in the set are sorted.
    */
   private final Comparator<String> string_collator;
+
+  /**
+   * The element count and offset index of the data file.
+   */
+  private final OrderedSetIndex index;
+
+  /**
+   * True if the data file is in the indexed format.
+   */
+  private boolean indexed = false;
   
   /**
    * The position of the first element in the list.
@@ -146,6 +168,12 @@ public class OrderedSetString extends AbstractSet<String>
 
     this.data = data;
     this.string_collator = (collator != null) ? collator : LEXI_COLLATOR;
+    this.index = new OrderedSetIndex(data) {
+      @Override
+      long recordEnd(long pos, long end) {
+        return stringEndPosition(pos, end);
+      }
+    };
     // This constructor has unlimited bounds.
     this.upper_bound = u_bound;
     this.lower_bound = l_bound;
@@ -226,35 +254,52 @@ public class OrderedSetString extends AbstractSet<String>
       // Read the size
       final long sz = data.size();
 
-      // The empty states,
+      // Read the format and the bounds of the strings,
+      long records_start;
+      long records_end;
       if (sz < 8) {
-        start_pos = 0;
-        end_pos = 0;
+        indexed = false;
+        records_start = 0;
+        records_end = 0;
       }
-      else if (sz == 8) {
-        start_pos = 8;
-        end_pos = 8;
+      else {
+        data.position(0);
+        indexed = (data.getLong() == OSS_INDEXED_MAGIC);
+        if (indexed) {
+          records_start = OrderedSetIndex.HEADER_SIZE;
+          records_end = index.getRecordsEnd();
+        }
+        else {
+          records_start = 8;
+          records_end = sz;
+        }
+      }
+
+      // The empty state,
+      if (records_start == records_end) {
+        start_pos = records_start;
+        end_pos = records_end;
       }
       // The none empty state
       else {
 
         // If there is no lower bound we use start of the list
         if (lower_bound == null) {
-          start_pos = 8;
+          start_pos = records_start;
         }
         // If there is a lower bound we search for the string and use it
         else {
-          searchFor(lower_bound, 8, sz);
+          searchFor(lower_bound, records_start, records_end);
           start_pos = data.position();
         }
 
         // If there is no upper bound we use end of the list
         if (upper_bound == null) {
-          end_pos = sz;
+          end_pos = records_end;
         }
         // Otherwise there is an upper bound so search for the string and use it
         else {
-          searchFor(upper_bound, 8, sz);
+          searchFor(upper_bound, records_start, records_end);
           end_pos = data.position();
         }
       }
@@ -286,6 +331,23 @@ public class OrderedSetString extends AbstractSet<String>
     // Returns the string
     return buf.toString();
   }
+
+  /**
+   * Returns the position after the 0x0FFFF deliminator of the string that
+   * starts at the given position.
+   */
+  private long stringEndPosition(long pos, final long end) {
+    data.position(pos);
+    while (pos < end) {
+      char c = data.getChar();
+      pos = pos + 2;
+      if (c == (char) 0x0FFFF) {
+        return pos;
+      }
+    }
+    // All strings must end with 0x0FFFF.
+    throw new RuntimeException("Set data error.");
+  }
   
   /**
    * Removes the string at the position of the data file object.
@@ -303,16 +365,64 @@ public class OrderedSetString extends AbstractSet<String>
     data.position(found_item_end);
     data.shift(str_remove_size);
     this.end_pos = this.end_pos + str_remove_size;
-    
+
+    // Update the index,
+    boolean now_empty;
+    if (indexed) {
+      now_empty =
+            (index.recordRemoved(found_item_start, -str_remove_size) == 0);
+    }
+    else {
+      now_empty = (this.start_pos == 8 && this.end_pos == 8);
+    }
+
     // If this removal leaves the set empty, we delete the file and update the
     // internal state as necessary.
-    if (this.start_pos == 8 && this.end_pos == 8) {
+    if (now_empty) {
       data.delete();
       this.start_pos = 0;
       this.end_pos = 0;
     }
 
   }
+
+  /**
+   * Converts a set in the original format to the indexed format.  This scans
+   * the whole set once to build the index.
+   */
+  private void convertToIndexed() {
+    // Tell the root set that any child subsets may be dirty
+    if (root_set != this) {
+      root_set.version += 1;
+      root_set.root_state_dirty = true;
+    }
+    version += 1;
+
+    // Make room for the larger header and write it,
+    data.position(8);
+    data.shift(OrderedSetIndex.HEADER_SIZE - 8);
+    data.position(0);
+    data.putLong(OSS_INDEXED_MAGIC);
+    data.putLong(0);
+    data.putLong(0);
+    // Scan the strings and build the index,
+    index.rebuild();
+
+    // Force the internal state of this set to be updated,
+    this.root_state_dirty = true;
+    updateInternalState();
+  }
+
+  /**
+   * Updates the internal state and converts the set to the indexed format if
+   * necessary.  Called before the set is changed.
+   */
+  private void updateInternalStateForWrite() {
+    updateInternalState();
+    if (!indexed && data.size() >= 8) {
+      convertToIndexed();
+    }
+  }
   
   /**
    * Inserts a string into the data file at the current position the DataFile
@@ -334,14 +444,13 @@ public class OrderedSetString extends AbstractSet<String>
     }
     version += 1;
 
-    // If the set is empty, we insert the magic value to the start of the
-    // data file and update the internal vars as appropriate
+    // If the set is empty, we insert the header to the start of the data file
+    // and update the internal vars as appropriate
     if (data.size() < 8) {
-      data.setSize(8);
-      data.position(0);
-      data.putLong(OSS_MAGIC);
-      this.start_pos = 8;
-      this.end_pos = 8;
+      index.create(OSS_INDEXED_MAGIC);
+      this.indexed = true;
+      this.start_pos = OrderedSetIndex.HEADER_SIZE;
+      this.end_pos = OrderedSetIndex.HEADER_SIZE;
     }
 
     int len = value.length();
@@ -371,6 +480,11 @@ public class OrderedSetString extends AbstractSet<String>
     // Write the string deliminator
     data.putChar((char) 0x0FFFF);
 
+    // Update the index,
+    if (indexed) {
+      index.recordInserted(cur_position, str_insert_size);
+    }
+
   }
   
   /**
@@ -386,8 +500,8 @@ public class OrderedSetString extends AbstractSet<String>
    * @param end the end of the file to search for the string.
    * @return true if the string was found, false otherwise.
    */
-  private boolean searchFor(final String value,
-                            final long start, final long end) {
+  private boolean searchRange(final String value,
+                              final long start, final long end) {
     // If start is end, the list is empty,
     if (start == end) {
       data.position(start);
@@ -453,7 +567,7 @@ public class OrderedSetString extends AbstractSet<String>
         return false;
       }
       // We search the head
-      return searchFor(value, start, str_start);
+      return searchRange(value, start, str_start);
     }
     else if (v > 0) {  // if value > mid_value
       if (last_str) {
@@ -462,7 +576,7 @@ public class OrderedSetString extends AbstractSet<String>
         return false;
       }
       // We search the tail
-      return searchFor(value, str_end, end);
+      return searchRange(value, str_end, end);
     }
     else {  // if value == mid_value
       data.position(str_start);
@@ -473,18 +587,104 @@ public class OrderedSetString extends AbstractSet<String>
     }
   }
 
+  /**
+   * Search for the string value in the DataFile between the start and end
+   * position, using the index if the set is indexed.  When this method
+   * returns, the DataFile is positioned the same as 'searchRange'.
+   */
+  private boolean searchFor(final String value,
+                            final long start, final long end) {
+    if (indexed) {
+      return searchIndexed(value, start, end);
+    }
+    return searchRange(value, start, end);
+  }
+
+  /**
+   * Search for the string value in an indexed set.  A binary search over the
+   * restart strings in the index finds the block the value is in, and the
+   * strings in the block are then searched.  The result is bounded by the
+   * given start and end positions.
+   */
+  private boolean searchIndexed(final String value,
+                                final long start, final long end) {
+    // If start is end, the list is empty,
+    if (start == end) {
+      data.position(start);
+      return false;
+    }
+
+    final long records_end = index.getRecordsEnd();
+    final int entry_count = index.getEntryCount();
+    boolean found = false;
+    long pos = OrderedSetIndex.HEADER_SIZE;
+
+    // Find the last block with a restart string less or equal to the value,
+    int low = 0;
+    int high = entry_count - 1;
+    int block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long p = index.getEntryOffset(records_end, mid);
+      long p_end = stringEndPosition(p, records_end);
+      int v = string_collator.compare(value, stringAtPosition(p, p_end));
+      if (v == 0) {
+        found_item_start = p;
+        found_item_end = p_end;
+        found = true;
+        pos = p;
+        break;
+      }
+      else if (v < 0) {
+        high = mid - 1;
+      }
+      else {
+        block = mid;
+        low = mid + 1;
+      }
+    }
+
+    // Search the strings in the block,
+    if (!found && block != -1) {
+      long block_end = (block + 1 < entry_count) ?
+                index.getEntryOffset(records_end, block + 1) : records_end;
+      pos = index.getEntryOffset(records_end, block);
+      found = searchRange(value, pos, block_end);
+      pos = data.position();
+    }
+
+    // Bound the result,
+    if (pos < start) {
+      pos = start;
+      found = false;
+    }
+    else if (pos >= end) {
+      pos = end;
+      found = false;
+    }
+
+    data.position(pos);
+    return found;
+  }
+
   // ----------- Implemented from AbstractSet<String> ------------
 
   /**
    * Returns the total number of elements in the set or Integer.MAX_VALUE if
    * the set contains more values than Integer.MAX_VALUE.
    * <p>
-   * PERFORMANCE: This operation will scan the entire set to
-   * determine the number of elements, therefore this operation does not
-   * scale with large sets.
+   * PERFORMANCE: For an indexed set this reads the element count from the
+   * header, and a subset counts the whole blocks from the index and scans
+   * only the blocks at its bounds.  For a set in the original format this
+   * operation will scan the entire set to determine the number of elements,
+   * therefore this operation does not scale with large sets.
    */
   public int size() {
     updateInternalState();
+    if (indexed) {
+      long count = index.countRecords(this.start_pos, this.end_pos);
+      return (int) Math.min(count, Integer.MAX_VALUE);
+    }
     // Iterate through the entire data file counting the number of
     // deliminators
     int list_size = 0;
@@ -555,7 +755,7 @@ public class OrderedSetString extends AbstractSet<String>
       throw new IllegalArgumentException("value >= upper_bound");
     }
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
@@ -586,7 +786,7 @@ public class OrderedSetString extends AbstractSet<String>
 //    System.out.println("remove: " + value);
 
     if (value == null) throw new NullPointerException();
-    updateInternalState();
+    updateInternalStateForWrite();
     // Find the index in the list of the value either equal to the given value
     // or the first value in the set comparatively more than the given value.
     boolean found = searchFor((String) value, this.start_pos, this.end_pos);
@@ -605,7 +805,7 @@ public class OrderedSetString extends AbstractSet<String>
 
 //    System.out.println("clear");
 
-    updateInternalState();
+    updateInternalStateForWrite();
 
     // Tell the root set that any child subsets may be dirty
     if (root_set != this) {
@@ -620,8 +820,18 @@ public class OrderedSetString extends AbstractSet<String>
     data.shift(to_clear);
     this.end_pos = this.start_pos;
 
+    // Rebuild the index over the strings that are left,
+    boolean now_empty;
+    if (indexed) {
+      index.rebuild();
+      now_empty = (index.getCount() == 0);
+    }
+    else {
+      now_empty = (this.start_pos == 8 && this.end_pos == 8);
+    }
+
     // If it's completely empty, we delete the file,
-    if (this.start_pos == 8 && this.end_pos == 8) {
+    if (now_empty) {
       data.delete();
       this.start_pos = 0;
       this.end_pos = 0;
@@ -743,13 +953,13 @@ public class OrderedSetString extends AbstractSet<String>
       throw new NoSuchElementException();
     }
 
-    // Get the last entry
+    // Get the last entry, scanning back from the deliminator of the last
+    // string for the deliminator of the string before it
     long p = end_pos - 2;
     while (p > start_pos) {
-      data.position(p);
+      data.position(p - 2);
       char c = data.getChar();
       if (c == (char) 0x0FFFF) {
-        p = p + 2;
         break;
       }
       p = p - 2;
@@ -18,13 +18,17 @@
 package com.mckoi.data;
 
 import com.mckoi.store.*;
-import com.mckoi.util.Cache;
+import com.mckoi.util.ConcurrentWeightedCache;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * An implementation of TreeSystem that is backed by a fully mutable Store
@@ -43,6 +47,11 @@ public class StoreBackedTreeSystem implements TreeSystem {
   private static final short STORE_LEAF_TYPE   = 0x019EC;
   private static final short STORE_BRANCH_TYPE = 0x022EB;
 
+  /**
+   * The logger.
+   */
+  private static final Logger log = Logger.getLogger("com.mckoi.data.Log");
+
 //  /**
 //   * The system key for the file that contains all the atomic state.
 //   */
@@ -55,6 +64,21 @@ public class StoreBackedTreeSystem implements TreeSystem {
    */
   static final boolean PRAGMATIC_CHECKS = false; //true;
 
+  /**
+   * The smallest number of nodes in a tree write that are written in
+   * parallel, and the number of nodes each parallel task writes.
+   */
+  private static final int PARALLEL_WRITE_MIN_NODES = 64;
+  private static final int PARALLEL_WRITE_TASK_NODES = 16;
+
+  /**
+   * The maximum number of nodes deleted by a single reclaim tick, and the
+   * number of nodes waiting to be reclaimed before the threads disposing
+   * versions help the background reclaimer.
+   */
+  private static final int RECLAIM_TICK_NODES = 1024;
+  private static final long RECLAIM_BACKLOG_LIMIT = 256 * 1024;
+
   // ---------- Stop condition handling ----------
   
   /**
@@ -93,7 +117,42 @@ public class StoreBackedTreeSystem implements TreeSystem {
   /**
    * A cache for branches.
    */
-  private final Cache branch_cache;
+  private final NodeCache branch_cache;
+
+  /**
+   * A cache for the content of leaf nodes, or null if leaf nodes are not
+   * cached.
+   */
+  private final NodeCache leaf_cache;
+
+  /**
+   * The pool that nodes are encoded and written on in 'performTreeWrite', or
+   * null if the nodes are written by the calling thread.
+   */
+  private volatile ForkJoinPool flush_pool = null;
+
+  /**
+   * The versions that are no longer referenced and whose deleted nodes are
+   * waiting to be reclaimed, in version order.
+   */
+  private final ArrayList<VersionInfo> reclaim_queue = new ArrayList<>();
+
+  /**
+   * The number of nodes in the reclaim queue waiting to be deleted.
+   */
+  private long reclaim_backlog = 0;
+
+  /**
+   * The total number of nodes and versions reclaimed.
+   */
+  private long reclaimed_node_count = 0;
+  private long reclaimed_version_count = 0;
+
+  /**
+   * The thread that reclaims old versions in the background, or null if old
+   * versions are reclaimed by the thread that disposes them.
+   */
+  private volatile Reclaimer reclaimer = null;
 
 //  /**
 //   * The cache of atomic data elements.
@@ -124,6 +183,11 @@ public class StoreBackedTreeSystem implements TreeSystem {
    * A lock used when a reference count is accessed or updated in a leaf.
    */
   private final Object REFERENCE_COUNT_LOCK = new Object();
+
+  /**
+   * A lock used when the reclaim queue and counters are accessed or updated.
+   */
+  private final Object RECLAIM_LOCK = new Object();
   
 
 
@@ -139,11 +203,14 @@ public class StoreBackedTreeSystem implements TreeSystem {
    *   be allocated for storing temporary nodes per transaction.
    * @param branch_cache_memory the maximum amount of heap space that can
    *   be allocated for storing branch nodes.
+   * @param leaf_cache_memory the maximum amount of heap space that can be
+   *   allocated for storing the content of leaf nodes, or 0 if leaf nodes
+   *   should not be cached.
    */
   public StoreBackedTreeSystem(Store node_store,
                    int max_branch_children, int max_leaf_size,
                    long node_max_cache_memory,
-                   long branch_cache_memory) {
+                   long branch_cache_memory, long leaf_cache_memory) {
 
     this.max_branch_size = max_branch_children;
     this.max_leaf_byte_size = max_leaf_size;
@@ -156,10 +223,22 @@ public class StoreBackedTreeSystem implements TreeSystem {
     // The number of elements in the branch cache
     int branch_cache_elements =
                            (int) (branch_cache_memory / branch_size_estimate);
-    // Find a close prime to this
-    int branch_prime = Cache.closestPrime(branch_cache_elements + 20);
     // Allocate the cache
-    this.branch_cache = new Cache(branch_prime, branch_cache_elements, 20);
+    this.branch_cache = new NodeCache(Math.max(1, branch_cache_memory),
+                                      branch_cache_elements);
+
+    // The leaf cache,
+    if (leaf_cache_memory > 0) {
+      // Estimate the number of leaf nodes in the cache assuming they are
+      // full, to size the frequency sketch.
+      long leaf_size_estimate = max_leaf_size + 12 + 8 + 64 + 64;
+      int leaf_cache_elements =
+                             (int) (leaf_cache_memory / leaf_size_estimate);
+      this.leaf_cache = new NodeCache(leaf_cache_memory, leaf_cache_elements);
+    }
+    else {
+      this.leaf_cache = null;
+    }
 
 //    this.atomic_map = new HashMap(123);
 //    this.atomic_data_updates_list = new ArrayList();
@@ -170,6 +249,66 @@ public class StoreBackedTreeSystem implements TreeSystem {
     }
   }
 
+  /**
+   * Constructs the tree store over the given Store object without a leaf
+   * node cache.  Assumes that the store is initialized and open.
+   */
+  public StoreBackedTreeSystem(Store node_store,
+                   int max_branch_children, int max_leaf_size,
+                   long node_max_cache_memory,
+                   long branch_cache_memory) {
+    this(node_store, max_branch_children, max_leaf_size,
+         node_max_cache_memory, branch_cache_memory, 0);
+  }
+
+  /**
+   * Sets the number of threads used to encode and write nodes out to the
+   * store when a tree is written.  When greater than 1, the areas for the
+   * nodes are allocated in order by the calling thread and then the nodes
+   * are encoded and written to their areas on a fork/join pool.
+   */
+  public void setFlushThreadCount(int count) {
+    ForkJoinPool old_pool = flush_pool;
+    flush_pool = (count > 1) ? new ForkJoinPool(count) : null;
+    if (old_pool != null) {
+      old_pool.shutdown();
+    }
+  }
+
+  /**
+   * Sets whether the nodes of old versions are reclaimed by a background
+   * thread.  When true, disposing a version only queues its nodes and a
+   * thread deletes them a tick at a time.  The disposing thread only
+   * deletes nodes itself if the reclaim backlog becomes too large.  When
+   * false, the thread that disposes a version deletes all its nodes.
+   * <p>
+   * Turning the background reclaimer off waits for the reclaimer thread to
+   * finish its current tick, which must happen before the store is closed.
+   */
+  public void setBackgroundReclaim(boolean status) {
+    Reclaimer old_reclaimer;
+    synchronized (RECLAIM_LOCK) {
+      old_reclaimer = reclaimer;
+      if (status == (old_reclaimer != null)) {
+        return;
+      }
+      if (status) {
+        reclaimer = new Reclaimer();
+        reclaimer.start();
+        return;
+      }
+      reclaimer = null;
+      old_reclaimer.finish();
+      RECLAIM_LOCK.notifyAll();
+    }
+    try {
+      old_reclaimer.join();
+    }
+    catch (InterruptedException e) {
+      throw new Error("Interrupted", e);
+    }
+  }
+
   /**
    * Creates a tree system and returns a reference to the header node of the
    * structure, which does not change.
@@ -501,10 +640,16 @@ public class StoreBackedTreeSystem implements TreeSystem {
 
   /**
    * Checks the 'versions' list to determine if we can free up old versions
-   * that do not have any references to them.
+   * that do not have any references to them.  The versions that can be freed
+   * are added to the reclaim queue.  If the background reclaimer is running
+   * the nodes are deleted by the reclaimer, otherwise the queue is processed
+   * immediately by the calling thread.
    */
   private void disposeOldVersions() throws IOException {
     ArrayList<VersionInfo> dispose_list = new ArrayList<>();
+    // The versions are added to the reclaim queue in the same critical
+    // section they are removed from the version list, so concurrent disposes
+    // can't queue them out of version order.
     synchronized (versions) {
       // size - 1 because we don't want to delete the very last version,
       int sz = versions.size() - 1;
@@ -525,99 +670,165 @@ public class StoreBackedTreeSystem implements TreeSystem {
           found_locked_entry = true;
         }
       }
+
+      // If there are entries to dispose?
+      if (dispose_list.size() > 0) {
+        // Count the nodes deleted by each version and add it to the end of
+        // the reclaim queue. The versions stay in the version list in the
+        // store until all their nodes are deleted.
+        long node_count = 0;
+        for (VersionInfo vinfo : dispose_list) {
+          Area version_area = node_store.getArea(vinfo.version_info_ref);
+          version_area.position(32);
+          node_count += version_area.getInt();
+        }
+        synchronized (RECLAIM_LOCK) {
+          reclaim_queue.addAll(dispose_list);
+          reclaim_backlog += node_count;
+          RECLAIM_LOCK.notifyAll();
+        }
+      }
     }
 
-    // If there are entries to dispose?
-    if (dispose_list.size() > 0) {
-      // We synchronize here to ensure the versions list can't be modified by
-      // a commit operation while we are disposing this.
-      synchronized (this) {
-        // Run within a write lock on the store
-        try {
-          node_store.lockForWrite();
-
-          // First we write out a modified version header minus the versions we
-          // are to delete,
-
-          // Get the current version list
-          MutableArea header_area = node_store.getMutableArea(header_id);
-          header_area.position(8);
-          final long version_list_id = header_area.getLong();
-
-          // Read information from the old version info,
-          Area version_list_area = node_store.getArea(version_list_id);
-          version_list_area.getInt();  // The magic
-          final int version_count = version_list_area.getInt();
-
-          final int new_version_count = version_count - dispose_list.size();
-          // Create a new list,
-          AreaWriter new_version_list =
-                            node_store.createArea(8 + (8 * new_version_count));
-          new_version_list.putInt(0x01433);
-          new_version_list.putInt(new_version_count);
-          // Skip the versions we are deleting,
-          for (int i = 0; i < dispose_list.size(); ++i) {
-            version_list_area.getLong();
-          }
-          // Now copy the list from the new point
-          for (int i = 0; i < new_version_count; ++i) {
-            new_version_list.putLong(version_list_area.getLong());
-          }
-          new_version_list.finish();
-
-          // Write the new area to the header,
-          header_area.position(8);
-          header_area.putLong(new_version_list.getID());
-
-          // Delete the old version list Area,
-          node_store.deleteArea(version_list_id);
-
-          // Dispose the version info,
-          int sz = dispose_list.size();
-          for (int i = 0; i < sz; ++i) {
-            VersionInfo vinfo = (VersionInfo) dispose_list.get(i);
-            long v_ref = vinfo.version_info_ref;
-            Area version_area = node_store.getArea(v_ref);
-            int magic = version_area.getInt();
-            int rev = version_area.getInt();
-            // Check the magic,
-            if (magic != 0x04EA23) {
-              throw new RuntimeException(
-                                "Magic value for version area is incorrect.");
-            }
-            long ver_id = version_area.getLong();
-//            long root_ref = version_area.getLong();
-            long nrn_high = version_area.getLong();
-            long nrn_low = version_area.getLong();
-
-            int node_count = version_area.getInt();
-            // For each node,
-            for (int n = 0; n < node_count; ++n) {
-              // Read the next area
-//              long del_node_ref = version_area.getLong();
-              long drn_high = version_area.getLong();
-              long drn_low = version_area.getLong();
-              NodeReference del_node_ref = new NodeReference(drn_high, drn_low);
-              // Cleanly disposes the node
-              doDisposeNode(del_node_ref);
-//              // This node may be a branch, so remove from the branch cache,
-//              synchronized (branch_cache) {
-//                branch_cache.remove(new Long(del_node_ref));
-//              }
-//              // And delete it
-//              node_store.deleteArea(del_node_ref);
+    Reclaimer reclaimer = this.reclaimer;
+    // If there's no background reclaimer then reclaim everything now,
+    if (reclaimer == null) {
+      while (reclaimTick()) {
+        // Loop until the queue is empty
+      }
+    }
+    // Otherwise, if the reclaimer is falling behind then help it out,
+    else {
+      while (getReclaimBacklog() > RECLAIM_BACKLOG_LIMIT && reclaimTick()) {
+        // Loop until the backlog is below the limit
+      }
+    }
+  }
+
+  /**
+   * Deletes up to RECLAIM_TICK_NODES nodes from the versions at the front of
+   * the reclaim queue.  When all the nodes deleted by a version are
+   * reclaimed, the version is removed from the version list in the store.
+   * Returns true if there is more work in the reclaim queue.
+   * <p>
+   * The node count of a version is reduced in the same store write as the
+   * nodes are deleted, so if the system stops part way through a version
+   * the remaining nodes will be reclaimed when the tree is next initialized.
+   */
+  private boolean reclaimTick() throws IOException {
+    // We synchronize here to ensure the versions list can't be modified by
+    // a commit operation while we are disposing this.
+    synchronized (this) {
+      int budget = RECLAIM_TICK_NODES;
+      // Run within a write lock on the store
+      try {
+        node_store.lockForWrite();
+
+        while (budget > 0) {
+          VersionInfo vinfo;
+          synchronized (RECLAIM_LOCK) {
+            if (reclaim_queue.isEmpty()) {
+              return false;
             }
+            vinfo = reclaim_queue.get(0);
+          }
 
+          long v_ref = vinfo.version_info_ref;
+          MutableArea version_area = node_store.getMutableArea(v_ref);
+          int magic = version_area.getInt();
+          // Check the magic,
+          if (magic != 0x04EA23) {
+            throw new RuntimeException(
+                                "Magic value for version area is incorrect.");
+          }
+          // Skip the rev, the version id and the root node,
+          version_area.position(32);
+          int node_count = version_area.getInt();
+
+          // Dispose the nodes at the end of the list,
+          int dispose_count = Math.min(budget, node_count);
+          int remaining = node_count - dispose_count;
+          // A version that deleted no nodes has no node list to position on
+          if (dispose_count > 0) {
+            version_area.position(36 + (remaining * 16));
+          }
+          for (int n = 0; n < dispose_count; ++n) {
+            long drn_high = version_area.getLong();
+            long drn_low = version_area.getLong();
+            NodeReference del_node_ref = new NodeReference(drn_high, drn_low);
+            // Cleanly disposes the node
+            doDisposeNode(del_node_ref);
+          }
+          // And write the new node count,
+          version_area.position(32);
+          version_area.putInt(remaining);
+          budget -= dispose_count;
+
+          // If all the nodes of this version are disposed, remove it from
+          // the version list,
+          if (remaining == 0) {
+            removeFirstVersion(v_ref);
             // Delete the node header,
             node_store.deleteArea(v_ref);
+          }
 
+          synchronized (RECLAIM_LOCK) {
+            reclaim_backlog -= dispose_count;
+            reclaimed_node_count += dispose_count;
+            if (remaining == 0) {
+              reclaim_queue.remove(0);
+              ++reclaimed_version_count;
+            }
           }
         }
-        finally {
-          node_store.unlockForWrite();
-        }
+      }
+      finally {
+        node_store.unlockForWrite();
       }
     }
+    synchronized (RECLAIM_LOCK) {
+      return !reclaim_queue.isEmpty();
+    }
+  }
+
+  /**
+   * Writes out a modified version list minus the first version, which must
+   * be the version with the given area id.  This must be called under a
+   * write lock on the store.
+   */
+  private void removeFirstVersion(long v_ref) throws IOException {
+    // Get the current version list
+    MutableArea header_area = node_store.getMutableArea(header_id);
+    header_area.position(8);
+    final long version_list_id = header_area.getLong();
+
+    // Read information from the old version info,
+    Area version_list_area = node_store.getArea(version_list_id);
+    version_list_area.getInt();  // The magic
+    final int version_count = version_list_area.getInt();
+    if (version_count < 1 || version_list_area.getLong() != v_ref) {
+      throw new RuntimeException(
+                    "Reclaimed version is not at the front of version list.");
+    }
+
+    final int new_version_count = version_count - 1;
+    // Create a new list,
+    AreaWriter new_version_list =
+                          node_store.createArea(8 + (8 * new_version_count));
+    new_version_list.putInt(0x01433);
+    new_version_list.putInt(new_version_count);
+    // Copy the rest of the list,
+    for (int i = 0; i < new_version_count; ++i) {
+      new_version_list.putLong(version_list_area.getLong());
+    }
+    new_version_list.finish();
+
+    // Write the new area to the header,
+    header_area.position(8);
+    header_area.putLong(new_version_list.getID());
+
+    // Delete the old version list Area,
+    node_store.deleteArea(version_list_id);
   }
 
   /**
@@ -864,6 +1075,57 @@ public class StoreBackedTreeSystem implements TreeSystem {
     }
   }
 
+  /**
+   * Returns the number of leaf node fetches that were served from the leaf
+   * cache.
+   */
+  public long getLeafCacheHits() {
+    if (leaf_cache == null) {
+      return 0;
+    }
+    return leaf_cache.getHitCount();
+  }
+
+  /**
+   * Returns the number of leaf node fetches that were not in the leaf cache
+   * and were read from the store.
+   */
+  public long getLeafCacheMisses() {
+    if (leaf_cache == null) {
+      return 0;
+    }
+    return leaf_cache.getMissCount();
+  }
+
+  /**
+   * Returns the number of nodes of disposed versions that are waiting to be
+   * reclaimed.
+   */
+  public long getReclaimBacklog() {
+    synchronized (RECLAIM_LOCK) {
+      return reclaim_backlog;
+    }
+  }
+
+  /**
+   * Returns the total number of nodes of disposed versions that have been
+   * reclaimed.
+   */
+  public long getReclaimedNodeCount() {
+    synchronized (RECLAIM_LOCK) {
+      return reclaimed_node_count;
+    }
+  }
+
+  /**
+   * Returns the total number of disposed versions that have been reclaimed.
+   */
+  public long getReclaimedVersionCount() {
+    synchronized (RECLAIM_LOCK) {
+      return reclaimed_version_count;
+    }
+  }
+
   /**
    * Outputs debugging status information about the current state of this
    * object.  The information can be generated fast and is used to
@@ -883,6 +1145,16 @@ public class StoreBackedTreeSystem implements TreeSystem {
         out.println(lock_count);
       }
     }
+    out.print("branch_cache.size_estimate = ");
+    out.println(branch_cache.getWeight());
+    if (leaf_cache != null) {
+      out.print("leaf_cache.size_estimate = ");
+      out.println(leaf_cache.getWeight());
+      out.print("leaf_cache.hits = ");
+      out.println(leaf_cache.getHitCount());
+      out.print("leaf_cache.misses = ");
+      out.println(leaf_cache.getMissCount());
+    }
   }
 
   /**
@@ -1115,10 +1387,15 @@ public class StoreBackedTreeSystem implements TreeSystem {
     // We use the 'node_ref' field as the unique cache key,
     final NodeReference cache_key = node_ref;
     TreeBranch branch;
-    synchronized (branch_cache) {
-      branch = (TreeBranch) branch_cache.get(cache_key);
-      if (branch != null) {
-        return branch;
+    branch = (TreeBranch) branch_cache.get(cache_key);
+    if (branch != null) {
+      return branch;
+    }
+    // Is this a leaf node in the leaf cache?
+    if (leaf_cache != null) {
+      TreeLeaf leaf = (TreeLeaf) leaf_cache.get(cache_key);
+      if (leaf != null) {
+        return leaf;
       }
     }
 
@@ -1144,9 +1421,18 @@ public class StoreBackedTreeSystem implements TreeSystem {
 //      Key key = new Key(type, secondary_key, primary_key);
       int leaf_size = in.readInt();
 
-      // Return a leaf that's mapped to the data in the store
       node_area.position(0);
-      return new AreaTreeLeaf(node_ref, leaf_size, node_area);
+      // If there's no leaf cache, return a leaf that's mapped to the data in
+      // the store
+      if (leaf_cache == null) {
+        return new AreaTreeLeaf(node_ref, leaf_size, node_area);
+      }
+      // Otherwise copy the leaf into a heap leaf and put it in the cache,
+      byte[] leaf_buf = new byte[12 + leaf_size];
+      node_area.get(leaf_buf, 0, leaf_buf.length);
+      TreeLeaf leaf = new CachedTreeLeaf(node_ref, leaf_buf);
+      leaf_cache.put(cache_key, leaf);
+      return leaf;
     }
     // Is the node type a branch node?
     else if (node_type == STORE_BRANCH_TYPE) {
@@ -1159,11 +1445,9 @@ public class StoreBackedTreeSystem implements TreeSystem {
       }
       branch = new TreeBranch(node_ref, data_arr, child_data_size);
       // Put this branch in the cache,
-      synchronized (branch_cache) {
-        branch_cache.put(cache_key, branch);
-        // And return the branch
-        return branch;
-      }
+      branch_cache.put(cache_key, branch);
+      // And return the branch
+      return branch;
     }
     else {
       throw new RuntimeException("Unknown node type: " + node_type);
@@ -1197,6 +1481,14 @@ public class StoreBackedTreeSystem implements TreeSystem {
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void readAhead(NodeReference[] node_refs) {
+    // NO-OP: All nodes of a store backed tree system are local
+  }
+
 
 
 
@@ -1329,57 +1621,27 @@ public class StoreBackedTreeSystem implements TreeSystem {
         refs[i] = from64bitStoreAddress(writers[i].getID());
       }
 
-      // Now write out the data,
-      for (int i = 0; i < sz; ++i) {
-        TreeNode node = nodes.get(i);
-        // Is it a branch node?
-        if (node instanceof TreeBranch) {
-          TreeBranch branch = (TreeBranch) node;
-
-          // The number of children
-          int chsz = branch.size();
-          // For each child, if it's a heap node, look up the child id and
-          // reference map in the sequence and set the reference accordingly,
-          for (int o = 0; o < chsz; ++o) {
-            NodeReference child_ref = branch.getChild(o);
-            if (child_ref.isInMemory()) {
-              // The ref is currently on the heap, so adjust accordingly
-              int ref_id = sequence.lookupRef(i, o);
-              branch.setChild(refs[ref_id], o);
-            }
-          }
-          
-          // Write out the branch to the store
-          long[] node_data = branch.getNodeData();
-          int ndsz = branch.getNodeDataSize();
-
-          AreaWriter writer = writers[i];
-          writer.putShort(STORE_BRANCH_TYPE);
-          writer.putShort((short) 1);  // version
-          writer.putInt(ndsz);
-          for (int o = 0; o < ndsz; ++o) {
-            writer.putLong(node_data[o]);
-          }
-          writer.finish();
-
-          // Make this into a branch node and add to the cache,
-          branch = new TreeBranch(refs[i], node_data, ndsz);
-          // Put this branch in the cache,
-          synchronized (branch_cache) {
-            branch_cache.put(refs[i], branch);
+      // Now write out the data. The areas are allocated, so each node can be
+      // encoded and written independently of the others,
+      ForkJoinPool pool = flush_pool;
+      if (pool != null && sz >= PARALLEL_WRITE_MIN_NODES) {
+        try {
+          pool.invoke(new NodeWriteTask(sequence, nodes, refs, writers,
+                                        0, sz));
+        }
+        catch (NodeWriteError e) {
+          // The pool may wrap the exception when it's rethrown on this
+          // thread, so find the IOException,
+          Throwable cause = e.getCause();
+          while (!(cause instanceof IOException)) {
+            cause = cause.getCause();
           }
-
+          throw (IOException) cause;
         }
-        // Otherwise, it must be a leaf node,
-        else {
-          TreeLeaf leaf = (TreeLeaf) node;
-          AreaWriter writer = writers[i];
-          writer.putShort(STORE_LEAF_TYPE);
-          writer.putShort((short) 1);  // version
-          writer.putInt(1);            // reference count
-          writer.putInt(leaf.getSize());
-          leaf.writeDataTo(writer);
-          writer.finish();
+      }
+      else {
+        for (int i = 0; i < sz; ++i) {
+          writeSequenceNode(sequence, nodes, refs, writers, i);
         }
       }
 
@@ -1391,6 +1653,64 @@ public class StoreBackedTreeSystem implements TreeSystem {
     }
   }
 
+  /**
+   * Writes the node at index i of the nodes of a tree write sequence to the
+   * area allocated for it.  Any references to heap nodes in a branch are
+   * replaced with the references allocated for them.
+   */
+  private void writeSequenceNode(TreeWriteSequence sequence,
+                  List<TreeNode> nodes, NodeReference[] refs,
+                  AreaWriter[] writers, int i) throws IOException {
+    TreeNode node = nodes.get(i);
+    // Is it a branch node?
+    if (node instanceof TreeBranch) {
+      TreeBranch branch = (TreeBranch) node;
+
+      // The number of children
+      int chsz = branch.size();
+      // For each child, if it's a heap node, look up the child id and
+      // reference map in the sequence and set the reference accordingly,
+      for (int o = 0; o < chsz; ++o) {
+        NodeReference child_ref = branch.getChild(o);
+        if (child_ref.isInMemory()) {
+          // The ref is currently on the heap, so adjust accordingly
+          int ref_id = sequence.lookupRef(i, o);
+          branch.setChild(refs[ref_id], o);
+        }
+      }
+
+      // Write out the branch to the store
+      long[] node_data = branch.getNodeData();
+      int ndsz = branch.getNodeDataSize();
+
+      AreaWriter writer = writers[i];
+      writer.putShort(STORE_BRANCH_TYPE);
+      writer.putShort((short) 1);  // version
+      writer.putInt(ndsz);
+      for (int o = 0; o < ndsz; ++o) {
+        writer.putLong(node_data[o]);
+      }
+      writer.finish();
+
+      // Make this into a branch node and add to the cache,
+      branch = new TreeBranch(refs[i], node_data, ndsz);
+      // Put this branch in the cache,
+      branch_cache.put(refs[i], branch);
+
+    }
+    // Otherwise, it must be a leaf node,
+    else {
+      TreeLeaf leaf = (TreeLeaf) node;
+      AreaWriter writer = writers[i];
+      writer.putShort(STORE_LEAF_TYPE);
+      writer.putShort((short) 1);  // version
+      writer.putInt(1);            // reference count
+      writer.putInt(leaf.getSize());
+      leaf.writeDataTo(writer);
+      writer.finish();
+    }
+  }
+
   /**
    * Links to a leaf incrementing its reference count.  Called when the
    * tree establishes a new reference to the leaf.
@@ -1491,8 +1811,9 @@ public class StoreBackedTreeSystem implements TreeSystem {
 
     // Delete from the cache because the given ref may be recycled for a new
     // node at some point.
-    synchronized (branch_cache) {
-      branch_cache.remove(ref);
+    branch_cache.remove(ref);
+    if (leaf_cache != null) {
+      leaf_cache.remove(ref);
     }
     // Delete the area
     node_store.deleteArea(to64bitStoreAddress(ref));
@@ -1976,4 +2297,238 @@ public class StoreBackedTreeSystem implements TreeSystem {
 
   }
 
+  /**
+   * An immutable leaf node whose content is copied from the store into a
+   * byte[] array, so it can be kept in the leaf cache.  The array contains
+   * the leaf area including its 12 byte header.
+   */
+  private static class CachedTreeLeaf extends TreeLeaf {
+
+    /**
+     * The byte[] buffer containing the leaf area.
+     */
+    private final byte[] data;
+
+    /**
+     * The node ref of this leaf.
+     */
+    private final NodeReference node_ref;
+
+    /**
+     * Constructor.
+     */
+    public CachedTreeLeaf(NodeReference node_ref, byte[] data) {
+      super();
+      this.node_ref = node_ref;
+      this.data = data;
+    }
+
+    // ---------- Implemented from TreeLeaf ----------
+
+    @Override
+    public NodeReference getReference() {
+      return node_ref;
+    }
+
+    @Override
+    public int getSize() {
+      return data.length - 12;
+    }
+
+    @Override
+    public int getCapacity() {
+      throw new RuntimeException(
+                           "Cached leaf does not have a meaningful capacity.");
+    }
+
+    @Override
+    public byte get(int position) throws IOException {
+      return data[position + 12];
+    }
+
+    @Override
+    public void get(int position, byte[] buf, int off, int len)
+                                                          throws IOException {
+      System.arraycopy(data, position + 12, buf, off, len);
+    }
+
+    @Override
+    public void writeDataTo(AreaWriter writer) throws IOException {
+      writer.put(data, 12, getSize());
+    }
+
+    @Override
+    public void shift(int position, int offset) throws IOException {
+      throw new IOException(
+                     "Write methods not available for immutable cached leaf.");
+    }
+
+    @Override
+    public void put(int position, byte[] buf, int off, int len)
+                                                          throws IOException {
+      throw new IOException(
+                     "Write methods not available for immutable cached leaf.");
+    }
+
+    @Override
+    public void setSize(int size) throws IOException {
+      throw new IOException(
+                     "Write methods not available for immutable cached leaf.");
+    }
+
+    @Override
+    public int getHeapSizeEstimate() {
+      return 8 + data.length + 64;
+    }
+
+  }
+
+  /**
+   * A fork/join task that writes a range of the nodes of a tree write
+   * sequence, splitting the range until it is small.
+   */
+  private class NodeWriteTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TreeWriteSequence sequence;
+    private final List<TreeNode> nodes;
+    private final NodeReference[] refs;
+    private final AreaWriter[] writers;
+    private final int start;
+    private final int end;
+
+    private NodeWriteTask(TreeWriteSequence sequence, List<TreeNode> nodes,
+                          NodeReference[] refs, AreaWriter[] writers,
+                          int start, int end) {
+      this.sequence = sequence;
+      this.nodes = nodes;
+      this.refs = refs;
+      this.writers = writers;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= PARALLEL_WRITE_TASK_NODES) {
+        try {
+          for (int i = start; i < end; ++i) {
+            writeSequenceNode(sequence, nodes, refs, writers, i);
+          }
+        }
+        catch (IOException e) {
+          throw new NodeWriteError(e);
+        }
+      }
+      else {
+        int mid = (start + end) >>> 1;
+        invokeAll(
+              new NodeWriteTask(sequence, nodes, refs, writers, start, mid),
+              new NodeWriteTask(sequence, nodes, refs, writers, mid, end));
+      }
+    }
+
+  }
+
+  /**
+   * Wraps an IOException thrown by a NodeWriteTask.
+   */
+  private static class NodeWriteError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private NodeWriteError(IOException e) {
+      super(e);
+    }
+
+  }
+
+  /**
+   * A thread that reclaims the nodes of disposed versions in the background,
+   * one tick at a time.  The store write lock is released between ticks so
+   * commits and check points are not held up by a large reclaim.
+   */
+  private class Reclaimer extends Thread {
+
+    /**
+     * Set to true when the thread should stop, guarded by RECLAIM_LOCK.
+     */
+    private boolean finished = false;
+
+    private Reclaimer() {
+      super("Mckoi reclaimer");
+      setDaemon(true);
+    }
+
+    /**
+     * Tells the thread to stop after its current tick.  Must be called while
+     * RECLAIM_LOCK is held.
+     */
+    private void finish() {
+      finished = true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          synchronized (RECLAIM_LOCK) {
+            while (!finished && reclaim_queue.isEmpty()) {
+              RECLAIM_LOCK.wait();
+            }
+            if (finished) {
+              return;
+            }
+          }
+          if (critical_stop_error != null) {
+            return;
+          }
+          try {
+            reclaimTick();
+          }
+          catch (RuntimeException e) {
+            // Log the error and keep the thread running.  The tick is retried
+            // after a pause so a persistent error doesn't spin the thread.
+            log.log(Level.SEVERE, "Error reclaiming nodes", e);
+            synchronized (RECLAIM_LOCK) {
+              if (!finished) {
+                RECLAIM_LOCK.wait(1000);
+              }
+            }
+          }
+          Thread.yield();
+        }
+      }
+      catch (InterruptedException e) {
+        // Stop the thread
+      }
+      catch (IOException e) {
+        // The next operation on the tree system reports the critical stop
+        critical_stop_error = new CriticalStopError(e.getMessage(), e);
+      }
+      catch (VirtualMachineError e) {
+        critical_stop_error = new CriticalStopError(e.getMessage(), e);
+      }
+    }
+
+  }
+
+  /**
+   * A cache of tree nodes that is bounded by an estimate of the heap space
+   * used by the nodes stored in it.
+   */
+  private static class NodeCache extends ConcurrentWeightedCache {
+
+    private NodeCache(long max_cache_size, int expected_count) {
+      super(max_cache_size, expected_count);
+    }
+
+    @Override
+    protected long weigh(Object key, Object value) {
+      return ((TreeNode) value).getHeapSizeEstimate() + 64;
+    }
+
+  }
+
 }
@@ -58,6 +58,14 @@ public class TreeBranch implements TreeNode {
    */
   private int children_count;
 
+  /**
+   * A prefix sum of the child leaf element counts, where entry n is the
+   * offset of child n and the last entry is the total.  This is built
+   * lazily by 'childOffsets' and set to null whenever the children of the
+   * branch change.
+   */
+  private volatile long[] child_offsets;
+
   /**
    * Constructs an empty TreeBranch for a heap node.
    */
@@ -118,6 +126,37 @@ public class TreeBranch implements TreeNode {
     return size;
   }
 
+  /**
+   * Invalidates the child offset prefix sum.  Must be called whenever the
+   * children of this branch change.
+   */
+  private void invalidateOffsets() {
+    child_offsets = null;
+  }
+
+  /**
+   * Returns the prefix sum of the child leaf element counts, building it if
+   * necessary.  Immutable branches build this once, so offset lookups on a
+   * cached branch are a binary search.
+   */
+  private long[] childOffsets() {
+    long[] offsets = child_offsets;
+    if (offsets == null) {
+      final int sz = children_count;
+      offsets = new long[sz + 1];
+      long offset = 0;
+      int p = 0;
+      for (int i = 0; i < sz; ++i) {
+        offsets[i] = offset;
+        offset += internalGetChildSize(p);
+        p += 5;
+      }
+      offsets[sz] = offset;
+      child_offsets = offsets;
+    }
+    return offsets;
+  }
+
   /**
    * Returns true if this leaf is mutable (is currently located in memory).
    */
@@ -198,6 +237,7 @@ public class TreeBranch implements TreeNode {
       throw new RuntimeException("Child request out of bounds.");
     }
     children[(child_i * 5) + 2] = count;
+    invalidateOffsets();
   }
 
   /**
@@ -241,6 +281,47 @@ public class TreeBranch implements TreeNode {
     return new NodeReference(children[p], children[p + 1]);
   }
 
+  /**
+   * Returns the high 64 bits of the nth child leaf pointer.  This and
+   * 'getChildLowLong' read the pointer without creating a NodeReference.
+   */
+  public final long getChildHighLong(int n) {
+    if (n >= size()) {
+      throw new RuntimeException("Child request out of bounds.");
+    }
+    return children[n * 5];
+  }
+
+  /**
+   * Returns the low 64 bits of the nth child leaf pointer.
+   */
+  public final long getChildLowLong(int n) {
+    if (n >= size()) {
+      throw new RuntimeException("Child request out of bounds.");
+    }
+    return children[(n * 5) + 1];
+  }
+
+  /**
+   * Returns the encoded value (see Key.encodedValue) of the key before the
+   * given child where n > 0 and 'v' is 1 or 2.
+   */
+  final long getKeyEncodedValue(int n, int v) {
+    if (n >= size()) {
+      throw new RuntimeException("Key request out of bounds.");
+    }
+    return children[(n * 5) - 3 + v];
+  }
+
+  /**
+   * Compares the key value before the given child with the encoded key.
+   */
+  private int compareKeyValue(int n, long key_v1, long key_v2) {
+    final int p = n * 5;
+    return Key.compareEncoded(children[p - 2], children[p - 1],
+                              key_v1, key_v2);
+  }
+
   /**
    * Returns the key value before the given child where n > 0.
    */
@@ -325,6 +406,8 @@ public class TreeBranch implements TreeNode {
     // Set the size of this and the destination node
     children_count = new_child_count;
     dest.children_count = new_child_count;
+    invalidateOffsets();
+    dest.invalidateOffsets();
 
     SELFCHECK();
   }
@@ -349,6 +432,7 @@ public class TreeBranch implements TreeNode {
       children[dest_p - 1] = mid_value.encodedValue(2);
       // Update children_count
       children_count += right.children_count;
+      invalidateOffsets();
 
       SELFCHECK();
       return null;
@@ -374,6 +458,8 @@ public class TreeBranch implements TreeNode {
       children[dest_p - 1] = mid_value.encodedValue(2);
       children_count += count;
       right.children_count -= count;
+      invalidateOffsets();
+      right.invalidateOffsets();
 
       // Return the new midpoint value
       SELFCHECK();
@@ -408,6 +494,8 @@ public class TreeBranch implements TreeNode {
       // Update children_count
       children_count += right.children_count;
       right.children_count = 0;
+      invalidateOffsets();
+      right.invalidateOffsets();
 
       SELFCHECK();
       return null;
@@ -445,6 +533,8 @@ public class TreeBranch implements TreeNode {
         children[dest_p - 1] = mid_value.encodedValue(2);
         children_count += count;
         right.children_count -= count;
+        invalidateOffsets();
+        right.invalidateOffsets();
 
       }
       else {
@@ -468,6 +558,8 @@ public class TreeBranch implements TreeNode {
         // Update children counts
         children_count -= count;
         right.children_count += count;
+        invalidateOffsets();
+        right.invalidateOffsets();
       }
 
       SELFCHECK();
@@ -528,9 +620,33 @@ public class TreeBranch implements TreeNode {
     children[7] = child2_count;
     // Increase the child count.
     children_count += 2;
+    invalidateOffsets();
     SELFCHECK();
   }
   
+  /**
+   * Appends a child pointer and extent to the end of this branch, where the
+   * key is the key value to the left of the child.  The key is ignored if
+   * this branch is empty.  Used when building a tree from the bottom up.
+   */
+  final void append(Key key, NodeReference child, long child_count) {
+    checkMutable();
+    if (isFull()) {
+      throw new RuntimeException("Branch node is full.");
+    }
+    int p = children_count * 5;
+    if (children_count > 0) {
+      children[p - 2] = key.encodedValue(1);
+      children[p - 1] = key.encodedValue(2);
+    }
+    children[p + 0] = child.getHighLong();
+    children[p + 1] = child.getLowLong();
+    children[p + 2] = child_count;
+    ++children_count;
+    invalidateOffsets();
+    SELFCHECK();
+  }
+
   /**
    * Inserts two children pointers and an extent into this branch at the given
    * <b>child</b> position.
@@ -560,6 +676,7 @@ public class TreeBranch implements TreeNode {
     children[p1 + 4] = child2_count;
     // Increase the child count.
     ++children_count;
+    invalidateOffsets();
     SELFCHECK();
   }
 
@@ -578,6 +695,7 @@ public class TreeBranch implements TreeNode {
       System.arraycopy(children, p1, children, p1 - 5, children.length - p1);
     }
     --children_count;
+    invalidateOffsets();
     SELFCHECK();
   }
 
@@ -597,13 +715,7 @@ public class TreeBranch implements TreeNode {
    * within a branch.
    */
   public final long childOffset(int child_i) {
-    long offset = 0;
-    int p = 0;
-    for (;child_i > 0; --child_i) {
-      offset += internalGetChildSize(p); //children[p + 2];
-      p += 5;
-    }
-    return offset;
+    return childOffsets()[child_i];
   }
 
   /**
@@ -615,35 +727,53 @@ public class TreeBranch implements TreeNode {
    */
   public final int childAtOffset(final Key key, final long offset)
                                                            throws IOException {
+    return childAtOffset(key.encodedValue(1), key.encodedValue(2), offset);
+  }
+
+  /**
+   * Same as 'childAtOffset(Key, long)' where the key is given by its encoded
+   * values.
+   */
+  public final int childAtOffset(final long key_v1, final long key_v2,
+                                 final long offset) {
 
     if (offset >= 0) {
-      int sz = size();
-      long left_offset = 0;
-      for (int i = 0; i < sz; ++i) {
-        left_offset += getChildLeafElementCount(i);
+      final int sz = size();
+      final long[] offsets = childOffsets();
+      // Binary search for the first child with a right edge that is at or
+      // after the offset,
+      int low = 0;
+      int high = sz;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (offsets[mid + 1] < offset) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      final int i = low;
+      if (i < sz) {
         // If the relative point must be within this child
-        if (offset < left_offset) {
+        if (offset < offsets[i + 1]) {
           return i;
         }
         // This is a boundary condition, we need to use the key to work out
-        // which child to take
-        else if (offset == left_offset) {
-          // If the end has been reached,
-          if (i == sz - 1) {
+        // which child to take.  If the end has been reached,
+        if (i == sz - 1) {
+          return i;
+        }
+        else {
+          int n = compareKeyValue(i + 1, key_v1, key_v2);
+          // If the key being inserted is less than the new leaf node,
+          if (n > 0) {
+            // Go left,
             return i;
           }
           else {
-            Key key_val = getKeyValue(i + 1);
-            int n = key_val.compareTo(key);
-            // If the key being inserted is less than the new leaf node,
-            if (n > 0) {
-              // Go left,
-              return i;
-            }
-            else {
-              // Otherwise go right
-              return i + 1;
-            }
+            // Otherwise go right
+            return i + 1;
           }
         }
       }
@@ -665,6 +795,13 @@ public class TreeBranch implements TreeNode {
    * found there or not.
    */
   public final int searchFirst(Key key) throws IOException {
+    return searchFirst(key.encodedValue(1), key.encodedValue(2));
+  }
+
+  /**
+   * Same as 'searchFirst(Key)' where the key is given by its encoded values.
+   */
+  public final int searchFirst(final long key_v1, final long key_v2) {
     int low = 1;
     int high = size() - 1;
 
@@ -672,7 +809,7 @@ public class TreeBranch implements TreeNode {
 
       if (high - low <= 2) {
         for (int i = low; i <= high; ++i) {
-          int cmp = getKeyValue(i).compareTo(key);
+          int cmp = compareKeyValue(i, key_v1, key_v2);
           if (cmp > 0) {
             // Value is less than extent so take the left route
             return i - 1;
@@ -688,7 +825,7 @@ public class TreeBranch implements TreeNode {
       }
 
       int mid = (low + high) / 2;
-      int cmp = getKeyValue(mid).compareTo(key);
+      int cmp = compareKeyValue(mid, key_v1, key_v2);
 
       if (cmp < 0) {
         low = mid + 1;
@@ -711,6 +848,13 @@ public class TreeBranch implements TreeNode {
    * found there or not.
    */
   public final int searchLast(Key key) throws IOException {
+    return searchLast(key.encodedValue(1), key.encodedValue(2));
+  }
+
+  /**
+   * Same as 'searchLast(Key)' where the key is given by its encoded values.
+   */
+  public final int searchLast(final long key_v1, final long key_v2) {
 
     int low = 1;
     int high = size() - 1;
@@ -719,7 +863,7 @@ public class TreeBranch implements TreeNode {
 
       if (high - low <= 2) {
         for (int i = high; i >= low; --i) {
-          int cmp = getKeyValue(i).compareTo(key);
+          int cmp = compareKeyValue(i, key_v1, key_v2);
           if (cmp <= 0) {
             return i;
           }
@@ -728,7 +872,7 @@ public class TreeBranch implements TreeNode {
       }
 
       int mid = (low + high) / 2;
-      int cmp = getKeyValue(mid).compareTo(key);
+      int cmp = compareKeyValue(mid, key_v1, key_v2);
 
       if (cmp < 0) {
         low = mid + 1;
@@ -748,8 +892,10 @@ public class TreeBranch implements TreeNode {
    */
   public int getHeapSizeEstimate() {
     // The size of the member variables + byte estimate for heap use for
-    // Java object maintenance.
-    return 8 + 4 + (children.length * 8) + 64;
+    // Java object maintenance.  This includes the child offset prefix sum so
+    // the estimate doesn't change once it's built.
+    int offsets_size = ((((children.length + 2) / 5) + 1) * 8) + 16;
+    return 8 + 4 + (children.length * 8) + offsets_size + 64;
   }
 
 }
@@ -183,11 +183,23 @@ public class TreeNodeHeap {
 
 
   public TreeNode fetchNode(NodeReference pointer) {
-    // Fetches the node out of the heap hash array.
-    int hash_index = calcHashValue(pointer);
+    return fetchNode(pointer.getHighLong(), pointer.getLowLong());
+  }
+
+  /**
+   * Fetches the node with the given high and low 64 bits of its reference
+   * without creating a NodeReference object.
+   */
+  public TreeNode fetchNode(long high_long, long low_long) {
+    // Fetches the node out of the heap hash array. This is the same hash as
+    // 'calcHashValue'.
+    int hash_index = ((int) (low_long & 0x07FFFFFFFL)) % hash.length;
     HashNode hash_node = hash[hash_index];
-    while (hash_node != null &&
-           !hash_node.getReference().equals(pointer)) {
+    while (hash_node != null) {
+      NodeReference ref = hash_node.getReference();
+      if (ref.getLowLong() == low_long && ref.getHighLong() == high_long) {
+        break;
+      }
       hash_node = hash_node.getNextHash();
     }
 
@@ -129,6 +129,13 @@ public interface TreeSystem {
    */
   boolean isNodeAvailableLocally(NodeReference node_ref);
 
+  /**
+   * Hints that the given nodes will be read soon.  The tree system may fetch
+   * the nodes that are not available locally in the background, and may
+   * ignore the hint.  Errors fetching the nodes are not reported.
+   */
+  void readAhead(NodeReference[] node_refs);
+
   // ----- Node mutation -----
 
   /**
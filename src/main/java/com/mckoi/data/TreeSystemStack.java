@@ -51,6 +51,16 @@ class TreeSystemStack {
    * The size of individual stack frames in number of longs.
    */
   private final static int STACK_FRAME_SIZE = 4;
+  /**
+   * The number of leaf nodes after the current leaf that are fetched in the
+   * background when a sequential scan is detected.
+   */
+  private final static int READ_AHEAD_LEAF_COUNT = 16;
+  /**
+   * The number of consecutive moves to the following leaf before a scan is
+   * considered sequential.
+   */
+  private final static int READ_AHEAD_THRESHOLD = 2;
   /**
    * The current leaf node at the end of the stack or null if the stack is
    * empty.
@@ -65,6 +75,17 @@ class TreeSystemStack {
    */
   private int leaf_offset;
 
+  /**
+   * The absolute end position of the last leaf moved to, the number of
+   * consecutive moves to the leaf following the last leaf, the absolute
+   * position that when reached triggers the next read-ahead, and the
+   * absolute end position of the leaves already read ahead.
+   */
+  private long last_leaf_end;
+  private int sequential_leaf_count;
+  private long read_ahead_mark;
+  private long read_ahead_end;
+
   /**
    * Constructs the object.
    */
@@ -75,6 +96,10 @@ class TreeSystemStack {
     this.current_leaf = null;
     this.current_leaf_key = null;
     this.leaf_offset = 0;
+    this.last_leaf_end = -1;
+    this.sequential_leaf_count = 0;
+    this.read_ahead_mark = -1;
+    this.read_ahead_end = -1;
   }
 
   // Pass through methods to tree system transaction,
@@ -83,6 +108,11 @@ class TreeSystemStack {
     return ts.fetchNode(node_ref);
   }
 
+  private TreeNode fetchNode(long high_long, long low_long)
+                                                         throws IOException {
+    return ts.fetchNode(high_long, low_long);
+  }
+
   private TreeNode unfreezeNode(TreeNode node) throws IOException {
     return ts.unfreezeNode(node);
   }
@@ -95,6 +125,14 @@ class TreeSystemStack {
     return ts.isHeapNode(node_ref);
   }
 
+  private boolean isNodeAvailableLocally(NodeReference node_ref) {
+    return ts.getTreeSystem().isNodeAvailableLocally(node_ref);
+  }
+
+  private void readAhead(NodeReference[] node_refs) {
+    ts.readAhead(node_refs);
+  }
+
   private NodeReference writeNode(NodeReference node_ref) throws IOException {
     return ts.writeNode(node_ref);
   }
@@ -149,6 +187,16 @@ class TreeSystemStack {
    */
   private void stackPush(int child_i, long offset,
                          NodeReference node_pointer) {
+    stackPush(child_i, offset,
+              node_pointer.getHighLong(), node_pointer.getLowLong());
+  }
+
+  /**
+   * Pushes an offset/node pointer onto the stack, where the node pointer is
+   * given by its high and low 64 bits.
+   */
+  private void stackPush(int child_i, long offset,
+                         long node_high_long, long node_low_long) {
 
     if (stack_size + STACK_FRAME_SIZE >= stack.length) {
       // Expand the size of the stack.
@@ -160,8 +208,8 @@ class TreeSystemStack {
     }
     stack[stack_size] = child_i;
     stack[stack_size + 1] = offset;
-    stack[stack_size + 2] = node_pointer.getHighLong();
-    stack[stack_size + 3] = node_pointer.getLowLong();
+    stack[stack_size + 2] = node_high_long;
+    stack[stack_size + 3] = node_low_long;
     stack_size += STACK_FRAME_SIZE;
   }
 
@@ -674,6 +722,15 @@ class TreeSystemStack {
       // Set up the current_leaf_key to the default value
       current_leaf_key = Key.HEAD_KEY;
     }
+    // The descent below works with the encoded key and the raw node pointers
+    // to avoid creating Key and NodeReference objects at each level. The key
+    // of the leaf is created once when the leaf is reached.
+    final long key_v1 = key.encodedValue(1);
+    final long key_v2 = key.encodedValue(2);
+    boolean leaf_key_changed = false;
+    long leaf_key_v1 = 0;
+    long leaf_key_v2 = 0;
+
     // Otherwise, we need to setup by querying the BTree.
     while (true) {
       if (stackEmpty()) {
@@ -682,7 +739,8 @@ class TreeSystemStack {
 
       // Pop the last stack frame,
       StackFrame frame = stackPop();
-      final NodeReference node_pointer = frame.getNodeReference();
+      final long node_high = frame.getNodeHighLong();
+      final long node_low = frame.getNodeLowLong();
       final long left_side_offset = frame.getOffset();
       final int node_child_i = frame.getChildI();
 //        final long node_pointer = stackPop();
@@ -692,7 +750,7 @@ class TreeSystemStack {
       final long relative_offset = posit - left_side_offset;
 
       // If the node is not on the heap,
-      if (!isHeapNode(node_pointer)) {
+      if (!NodeReference.isInMemory(node_high)) {
         // The node is not on the heap. We optimize here.
         // If we know the node is going to be a leaf node, we set up a
         // temporary leaf node object with as much information as we know.
@@ -704,8 +762,8 @@ class TreeSystemStack {
 
           // Fetch the parent node,
           frame = stackEnd(0);
-          NodeReference twig_node_pointer = frame.getNodeReference();
-          TreeBranch twig = (TreeBranch) fetchNode(twig_node_pointer);
+          TreeBranch twig = (TreeBranch) fetchNode(
+                         frame.getNodeHighLong(), frame.getNodeLowLong());
           long leaf_size =
                          twig.getChildLeafElementCount((int) node_child_i);
 
@@ -715,48 +773,60 @@ class TreeSystemStack {
 
           // This object holds off fetching the contents of the leaf node
           // unless it's absolutely required.
-          TreeLeaf leaf =
-                      new PlaceholderLeaf(ts, node_pointer, (int) leaf_size);
+          TreeLeaf leaf = new PlaceholderLeaf(ts,
+                  new NodeReference(node_high, node_low), (int) leaf_size);
 
           current_leaf = leaf;
-          stackPush(node_child_i, left_side_offset, node_pointer);
+          stackPush(node_child_i, left_side_offset, node_high, node_low);
           // Set up the leaf offset and return
           leaf_offset = (int) relative_offset;
 
+          if (leaf_key_changed) {
+            current_leaf_key = new Key(leaf_key_v1, leaf_key_v2);
+          }
+          leafChanged(key, left_side_offset, (int) leaf_size);
           return;
         }
       }
 
       // Fetch the node
-      TreeNode node = fetchNode(node_pointer);
+      TreeNode node = fetchNode(node_high, node_low);
       if (node instanceof TreeLeaf) {
         // Node is a leaf node
         TreeLeaf leaf = (TreeLeaf) node;
 
         current_leaf = leaf;
-        stackPush(node_child_i, left_side_offset, node_pointer);
+        stackPush(node_child_i, left_side_offset, node_high, node_low);
         // Set up the leaf offset and return
         leaf_offset = (int) relative_offset;
 
         // Update the tree_height value,
         setTreeHeight(stack_size / STACK_FRAME_SIZE);
 //          tree_height = (stack_size / STACK_FRAME_SIZE);
+
+        if (leaf_key_changed) {
+          current_leaf_key = new Key(leaf_key_v1, leaf_key_v2);
+        }
+        leafChanged(key, left_side_offset, leaf.getSize());
         return;
       }
       else {
         // Node is a branch node
         TreeBranch branch = (TreeBranch) node;
-        int child_i = branch.childAtOffset(key, relative_offset);
+        int child_i = branch.childAtOffset(key_v1, key_v2, relative_offset);
         if (child_i != -1) {
           // Push the current details,
-          stackPush(node_child_i, left_side_offset, node_pointer);
+          stackPush(node_child_i, left_side_offset, node_high, node_low);
           // Found child so push the details
           stackPush(child_i,
                     branch.childOffset(child_i) + left_side_offset,
-                    branch.getChild(child_i));
+                    branch.getChildHighLong(child_i),
+                    branch.getChildLowLong(child_i));
           // Set up the left key
           if (child_i > 0) {
-            current_leaf_key = branch.getKeyValue(child_i);
+            leaf_key_v1 = branch.getKeyEncodedValue(child_i, 1);
+            leaf_key_v2 = branch.getKeyEncodedValue(child_i, 2);
+            leaf_key_changed = true;
           }
         }
       }
@@ -1290,6 +1360,82 @@ class TreeSystemStack {
     stackClear();
     current_leaf = null;
     current_leaf_key = null;
+    // The tree may have changed so positions of the read-ahead state are no
+    // longer valid,
+    last_leaf_end = -1;
+    sequential_leaf_count = 0;
+    read_ahead_mark = -1;
+    read_ahead_end = -1;
+  }
+
+  /**
+   * Called when 'setupForPosition' moves the stack to a new leaf. If the
+   * leaf directly follows the last leaf moved to, and this has happened
+   * enough times in a row, then this is a sequential scan and the leaves
+   * that follow the current leaf in its parent branch are fetched in the
+   * background.
+   */
+  private void leafChanged(Key key, long leaf_start, int leaf_size)
+                                                          throws IOException {
+    if (leaf_start == last_leaf_end) {
+      ++sequential_leaf_count;
+    }
+    else {
+      sequential_leaf_count = 0;
+      read_ahead_mark = -1;
+      read_ahead_end = -1;
+    }
+    last_leaf_end = leaf_start + leaf_size;
+
+    if (sequential_leaf_count < READ_AHEAD_THRESHOLD ||
+        leaf_start < read_ahead_mark ||
+        getFrameCount() < 2) {
+      return;
+    }
+
+    // The branch containing the current leaf,
+    final int child_i = stackEnd(0).getChildI();
+    final TreeBranch twig =
+                   (TreeBranch) fetchNode(stackEnd(1).getNodeReference());
+    final int end = Math.min(twig.size(), child_i + 1 + READ_AHEAD_LEAF_COUNT);
+
+    NodeReference[] refs = new NodeReference[end - (child_i + 1)];
+    int count = 0;
+    long offset = last_leaf_end;
+    read_ahead_mark = -1;
+    for (int i = child_i + 1; i < end; ++i) {
+      // Stop at the end of the key data,
+      if (!key.equals(Key.TAIL_KEY) && !key.equals(twig.getKeyValue(i))) {
+        break;
+      }
+      // Request the next read-ahead when half way through this one,
+      if (i - child_i == (READ_AHEAD_LEAF_COUNT / 2)) {
+        read_ahead_mark = offset;
+      }
+      NodeReference ref = twig.getChild(i);
+      // Leaves before 'read_ahead_end' were requested by the last read-ahead,
+      if (offset >= read_ahead_end &&
+          !isHeapNode(ref) && !isNodeAvailableLocally(ref)) {
+        refs[count] = ref;
+        ++count;
+      }
+      offset += twig.getChildLeafElementCount(i);
+    }
+    // If the read-ahead was cut short, wait until the last leaf read ahead
+    // is reached,
+    if (read_ahead_mark == -1) {
+      read_ahead_mark = offset;
+    }
+    read_ahead_end = offset;
+
+    if (count > 0) {
+      if (count < refs.length) {
+        NodeReference[] new_refs = new NodeReference[count];
+        System.arraycopy(refs, 0, new_refs, 0, count);
+        refs = new_refs;
+      }
+      readAhead(refs);
+    }
   }
 
 
@@ -1396,6 +1542,14 @@ class TreeSystemStack {
       return new NodeReference(stack[off + 2], stack[off + 3]);
     }
 
+    private long getNodeHighLong() {
+      return stack[off + 2];
+    }
+
+    private long getNodeLowLong() {
+      return stack[off + 3];
+    }
+
     private void setNodeReference(NodeReference node_ref) {
       stack[off + 2] = node_ref.getHighLong();
       stack[off + 3] = node_ref.getLowLong();
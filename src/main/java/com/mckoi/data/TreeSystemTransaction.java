@@ -277,6 +277,23 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
     return n;
   }
 
+  /**
+   * Fetches the node with the given high and low 64 bits of its reference.
+   * This does not create a NodeReference object when the node is on the
+   * local node heap.
+   */
+  TreeNode fetchNode(long high_long, long low_long) throws IOException {
+    if (NodeReference.isInMemory(high_long)) {
+      TreeNode n = getNodeHeap().fetchNode(high_long, low_long);
+      if (n == null) {
+        throw new NullPointerException(
+                     new NodeReference(high_long, low_long).toString());
+      }
+      return n;
+    }
+    return fetchNode(new NodeReference(high_long, low_long));
+  }
+
   /**
    * Records all store node creation and deletion by this transaction.  This
    * information is logged so that if this transaction is committed and the
@@ -628,6 +645,14 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
   }
 
 
+  /**
+   * Hints to the tree store that the given nodes will be read soon, so they
+   * can be fetched in the background.  This is used for read-ahead when a
+   * sequential scan is detected.
+   */
+  void readAhead(NodeReference[] node_refs) {
+    tree_store.readAhead(node_refs);
+  }
 
   /**
    * Returns a sparse leaf node that will best fit the given max size and is
@@ -1111,43 +1136,65 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
    * are necessary.
    */
   NodeReference writeNode(final NodeReference ref) throws IOException {
+    return writeNodes(new NodeReference[] { ref })[0];
+  }
+
+  /**
+   * Writes the trees of heap nodes at each of the given references out to the
+   * backing store in a single tree write operation, and deletes the memory
+   * nodes as are necessary.  Returns the reference of each tree written, or
+   * the original reference if it is not a heap node.
+   */
+  private NodeReference[] writeNodes(final NodeReference[] refs)
+                                                           throws IOException {
     // Create the sequence,
     TreeWriteSequence sequence = new TreeWriteSequence();
-    // Create the command sequence to write this tree out,
-    int root_id = populateSequence(ref, sequence);
+    // Create the command sequence to write these trees out,
+    int[] root_ids = new int[refs.length];
+    boolean sequenced = false;
+    for (int i = 0; i < refs.length; ++i) {
+      root_ids[i] = populateSequence(refs[i], sequence);
+      if (root_ids[i] != -1) {
+        sequenced = true;
+      }
+    }
 
-    if (root_id != -1) {
+    NodeReference[] out = refs.clone();
+    if (sequenced) {
       // Write out this sequence,
-      NodeReference[] refs = tree_store.performTreeWrite(sequence);
+      NodeReference[] written = tree_store.performTreeWrite(sequence);
 
       // Update internal structure for each node written,
       List<TreeNode> nodes = sequence.getAllBranchNodes();
       int sz = nodes.size();
       for (int i = 0; i < sz; ++i) {
-        writtenNode(nodes.get(i), refs[i]);
+        writtenNode(nodes.get(i), written[i]);
       }
       int bnodes_sz = sz;
       nodes = sequence.getAllLeafNodes();
       sz = nodes.size();
       for (int i = 0; i < sz; ++i) {
-        writtenNode(nodes.get(i), refs[i + bnodes_sz]);
+        writtenNode(nodes.get(i), written[i + bnodes_sz]);
       }
 
-      // Normalize the pointer,
-      if (root_id >= TreeWriteSequence.BPOINT) {
-        root_id = root_id - TreeWriteSequence.BPOINT;
-      }
-      else {
-        root_id = root_id + bnodes_sz;
+      for (int i = 0; i < refs.length; ++i) {
+        int root_id = root_ids[i];
+        if (root_id != -1) {
+          // Normalize the pointer,
+          if (root_id >= TreeWriteSequence.BPOINT) {
+            root_id = root_id - TreeWriteSequence.BPOINT;
+          }
+          else {
+            root_id = root_id + bnodes_sz;
+          }
+          // The reference to the node written,
+          out[i] = written[root_id];
+        }
       }
-
-      // Return a reference to the node written,
-      return refs[root_id];
-    }
-    else {
-      return ref;
     }
 
+    return out;
+
 //    // If it's not a heap node, return
 //    if (!isHeapNode(ref)) {
 //      return ref;
@@ -1583,7 +1630,12 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
    * modified.
    */
   private long keyEndPosition(Key key) throws IOException {
-    Key left_key = Key.HEAD_KEY;
+    // The search uses the encoded key values and raw node pointers so no
+    // objects are created as the tree is descended.
+    final long key_v1 = key.encodedValue(1);
+    final long key_v2 = key.encodedValue(2);
+    long left_key_v1 = Key.HEAD_KEY.encodedValue(1);
+    long left_key_v2 = Key.HEAD_KEY.encodedValue(2);
     int cur_height = 1;
     long left_offset = 0;
     long node_total_size = -1;
@@ -1599,14 +1651,14 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
       else {
         final TreeBranch branch = (TreeBranch) node;
         // We ask the node for the child sub-tree that will contain this node
-        int child_i = branch.searchLast(key);
+        int child_i = branch.searchLast(key_v1, key_v2);
         // Child will be in this subtree
         final long child_offset = branch.childOffset(child_i);
-        final NodeReference child_node_ref = branch.getChild(child_i);
         node_total_size = branch.getChildLeafElementCount(child_i);
         // Get the left key of the branch if we can
         if (child_i > 0) {
-          left_key = branch.getKeyValue(child_i);
+          left_key_v1 = branch.getKeyEncodedValue(child_i, 1);
+          left_key_v2 = branch.getKeyEncodedValue(child_i, 2);
         }
         // Update left_offset
         left_offset += child_offset;
@@ -1617,7 +1669,8 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
         }
 
         // Otherwise, descend to the child and repeat
-        node = fetchNode(child_node_ref);
+        node = fetchNode(branch.getChildHighLong(child_i),
+                         branch.getChildLowLong(child_i));
         ++cur_height;
       }
     }
@@ -1627,7 +1680,7 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
     // 'node_total_size' will be the size of the node,
 
     // If the key matches,
-    final int c = key.compareTo(left_key);
+    final int c = Key.compareEncoded(key_v1, key_v2, left_key_v1, left_key_v2);
     if (c == 0) {
       return left_offset + node_total_size;
     }
@@ -1658,7 +1711,12 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
    */
   private long[] getDataFileBounds(Key key) throws IOException {
 
-    Key left_key = Key.HEAD_KEY;
+    // The search uses the encoded key values and raw node pointers so no
+    // objects are created as the tree is descended.
+    final long key_v1 = key.encodedValue(1);
+    final long key_v2 = key.encodedValue(2);
+    long left_key_v1 = Key.HEAD_KEY.encodedValue(1);
+    long left_key_v2 = Key.HEAD_KEY.encodedValue(2);
     int cur_height = 1;
     long left_offset = 0;
     long node_total_size = -1;
@@ -1676,13 +1734,14 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
       else {
         final TreeBranch branch = (TreeBranch) node;
         // We ask the node for the child sub-tree that will contain this node
-        child_i = branch.searchLast(key);
+        child_i = branch.searchLast(key_v1, key_v2);
         // Child will be in this subtree
         final long child_offset = branch.childOffset(child_i);
         node_total_size = branch.getChildLeafElementCount(child_i);
         // Get the left key of the branch if we can
         if (child_i > 0) {
-          left_key = branch.getKeyValue(child_i);
+          left_key_v1 = branch.getKeyEncodedValue(child_i, 1);
+          left_key_v2 = branch.getKeyEncodedValue(child_i, 2);
         }
         // Update left_offset
         left_offset += child_offset;
@@ -1694,8 +1753,8 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
         }
 
         // Otherwise, descend to the child and repeat
-        final NodeReference child_node_ref = branch.getChild(child_i);
-        node = fetchNode(child_node_ref);
+        node = fetchNode(branch.getChildHighLong(child_i),
+                         branch.getChildLowLong(child_i));
         ++cur_height;
       }
     }
@@ -1709,7 +1768,7 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
     long end_pos;
 
     // If the key matches,
-    final int c = key.compareTo(left_key);
+    final int c = Key.compareEncoded(key_v1, key_v2, left_key_v1, left_key_v2);
     if (c == 0) {
       end_pos = left_offset + node_total_size;
     }
@@ -1737,8 +1796,9 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
     // which is the start bounds of the key,
     long predicted_start_pos = end_pos - node_total_size;
     for (int i = child_i - 1; i > 0; --i) {
-      Key k = last_branch.getKeyValue(i);
-      if (key.compareTo(k) == 0) {
+      if (Key.compareEncoded(key_v1, key_v2,
+                             last_branch.getKeyEncodedValue(i, 1),
+                             last_branch.getKeyEncodedValue(i, 2)) == 0) {
         // Equal,
         predicted_start_pos = predicted_start_pos -
                                       last_branch.getChildLeafElementCount(i);
@@ -2199,6 +2259,216 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
     read_only = true;
   }
 
+  /**
+   * Loads a key ordered set of data files into this transaction, building
+   * the tree from the bottom up rather than inserting each key through a
+   * DataFile.  Each entry is the key of a DataFile and its content.  The
+   * keys must be in strictly ascending order, entries with no content are
+   * ignored, and this transaction must not contain any data.
+   * <p>
+   * Leaves are packed to the maximum leaf size and branches are filled as
+   * they are built.  Completed nodes are written out to the backing store in
+   * large tree write operations whenever the node heap is half full, so an
+   * import of a large set of data is written sequentially.
+   */
+  public void bulkLoad(Iterator<Map.Entry<Key, byte[]>> entries) {
+    checkCriticalStop();
+    if (read_only) {
+      throw new DataAccessException("Read only transaction.");
+    }
+
+    try {
+
+      // Check the transaction is empty. The only data is the identification
+      // pattern in the head and tail leaves,
+      final NodeReference old_root = getRootNodeRef();
+      final TreeNode root_node = fetchNode(old_root);
+      long tree_size;
+      if (root_node instanceof TreeBranch) {
+        tree_size = ((TreeBranch) root_node).getLeafElementCount();
+      }
+      else {
+        tree_size = ((TreeLeaf) root_node).getSize();
+      }
+      if (tree_size != 8) {
+        throw new DataAccessException(
+                              "Bulk load requires an empty transaction.");
+      }
+
+      final int max_leaf_size = maxLeafByteSize();
+      final int max_branch_size = maxBranchSize();
+      final long flush_threshold = tree_store.getNodeHeapMaxSize() / 2;
+
+      // The nodes of each level of the tree that have not been put into a
+      // branch yet, starting with the leaves.
+      ArrayList<ArrayList<BulkLoadNode>> levels = new ArrayList<>();
+      boolean complete = false;
+      try {
+
+        // The head leaf,
+        TreeLeaf head_leaf = createEmptyLeaf(Key.HEAD_KEY);
+        head_leaf.put(0, new byte[] { 1, 1, 1, 1 }, 0, 4);
+        bulkLoadAdd(levels, 0, new BulkLoadNode(
+                                 Key.HEAD_KEY, head_leaf.getReference(), 4));
+
+        Key last_key = null;
+        while (entries.hasNext()) {
+          Map.Entry<Key, byte[]> entry = entries.next();
+          Key key = entry.getKey();
+          byte[] buf = entry.getValue();
+
+          if (outOfUserDataRange(key)) {
+            throw new IllegalArgumentException(
+                                        "Key is reserved for system data");
+          }
+          if (last_key != null && key.compareTo(last_key) <= 0) {
+            throw new IllegalArgumentException(
+                                        "Keys are not in ascending order");
+          }
+          last_key = key;
+
+          // Pack the content into as few leaves as possible,
+          int pos = 0;
+          while (pos < buf.length) {
+            int len = Math.min(max_leaf_size, buf.length - pos);
+            TreeLeaf leaf = createEmptyLeaf(key);
+            leaf.put(0, buf, pos, len);
+            bulkLoadAdd(levels, 0,
+                        new BulkLoadNode(key, leaf.getReference(), len));
+            pos += len;
+          }
+
+          // Write out the completed nodes if the heap is filling up,
+          if (getNodeHeap().getTotalMemoryUse() >= flush_threshold) {
+            bulkLoadFlush(levels);
+          }
+        }
+
+        // The tail leaf,
+        TreeLeaf tail_leaf = createEmptyLeaf(Key.TAIL_KEY);
+        tail_leaf.put(0, new byte[] { 1, 1, 1, 1 }, 0, 4);
+        bulkLoadAdd(levels, 0, new BulkLoadNode(
+                                 Key.TAIL_KEY, tail_leaf.getReference(), 4));
+
+        // Put the nodes remaining on each level into branches until there is
+        // a single root node,
+        int level = 0;
+        while (true) {
+          ArrayList<BulkLoadNode> nodes = levels.get(level);
+          boolean is_top = (level + 1 == levels.size());
+          int sz = nodes.size();
+          if (is_top && sz == 1) {
+            break;
+          }
+          // If the nodes don't fit in one branch, split them evenly between
+          // two so both are at least half full,
+          if (sz > max_branch_size) {
+            int half = sz / 2;
+            bulkLoadBranch(levels, level, nodes.subList(0, half));
+            bulkLoadBranch(levels, level, nodes.subList(half, sz));
+          }
+          else {
+            bulkLoadBranch(levels, level, nodes);
+          }
+          nodes.clear();
+          ++level;
+        }
+
+        // Dispose the old tree and replace it with the new one,
+        disposeTree(old_root);
+        setRootNodeRef(levels.get(level).get(0).ref);
+        setTreeHeight(level + 1);
+        complete = true;
+      }
+      finally {
+        // If the load failed, dispose all the nodes created,
+        if (!complete) {
+          for (ArrayList<BulkLoadNode> nodes : levels) {
+            for (BulkLoadNode node : nodes) {
+              disposeTree(node.ref);
+            }
+          }
+        }
+      }
+
+      // Everything in the tree changed,
+      ++update_version;
+      lowest_size_changed_key = Key.HEAD_KEY;
+
+      cacheManage();
+
+    }
+    catch (IOException e) {
+      throw handleIOException(e);
+    }
+    catch (VirtualMachineError e) {
+      throw handleVMError(e);
+    }
+  }
+
+  /**
+   * Adds a node to the given level of a bulk load.  When the level has more
+   * nodes than a full branch and half a branch, a full branch is made from
+   * the nodes at the start of the level and added to the level above.  The
+   * nodes left over are always enough to fill at least half a branch.
+   */
+  private void bulkLoadAdd(ArrayList<ArrayList<BulkLoadNode>> levels,
+                           int level, BulkLoadNode node) {
+    if (levels.size() == level) {
+      levels.add(new ArrayList<BulkLoadNode>());
+    }
+    ArrayList<BulkLoadNode> nodes = levels.get(level);
+    nodes.add(node);
+    final int max_branch_size = maxBranchSize();
+    if (nodes.size() >= max_branch_size + (max_branch_size / 2)) {
+      List<BulkLoadNode> full = nodes.subList(0, max_branch_size);
+      bulkLoadBranch(levels, level, full);
+      full.clear();
+    }
+  }
+
+  /**
+   * Makes a heap branch of the given nodes on a level of a bulk load, and
+   * adds it to the level above.
+   */
+  private void bulkLoadBranch(ArrayList<ArrayList<BulkLoadNode>> levels,
+                              int level, List<BulkLoadNode> nodes) {
+    TreeBranch branch = createEmptyBranch();
+    long size = 0;
+    for (BulkLoadNode node : nodes) {
+      branch.append(node.key, node.ref, node.size);
+      size += node.size;
+    }
+    Key left_key = nodes.get(0).key;
+    bulkLoadAdd(levels, level + 1,
+                new BulkLoadNode(left_key, branch.getReference(), size));
+  }
+
+  /**
+   * Writes out all the heap nodes of a bulk load in a single tree write
+   * operation.
+   */
+  private void bulkLoadFlush(ArrayList<ArrayList<BulkLoadNode>> levels)
+                                                           throws IOException {
+    ArrayList<BulkLoadNode> to_write = new ArrayList<>();
+    for (ArrayList<BulkLoadNode> nodes : levels) {
+      for (BulkLoadNode node : nodes) {
+        if (isHeapNode(node.ref)) {
+          to_write.add(node);
+        }
+      }
+    }
+    int sz = to_write.size();
+    NodeReference[] refs = new NodeReference[sz];
+    for (int i = 0; i < sz; ++i) {
+      refs[i] = to_write.get(i).ref;
+    }
+    NodeReference[] written = writeNodes(refs);
+    for (int i = 0; i < sz; ++i) {
+      to_write.get(i).ref = written[i];
+    }
+  }
+
   /**
    * Static function that copies an amount of data from the source DataFile to
    * the target DataFile through a byte buffer.
@@ -3694,6 +3964,23 @@ public class TreeSystemTransaction implements KeyObjectTransaction {
   }
 
 
+  /**
+   * A node built by a bulk load that has not been put into a branch yet.
+   */
+  private static class BulkLoadNode {
+
+    private final Key key;
+    private NodeReference ref;
+    private final long size;
+
+    private BulkLoadNode(Key key, NodeReference ref, long size) {
+      this.key = key;
+      this.ref = ref;
+      this.size = size;
+    }
+
+  }
+
   /**
    * An object that describes the addressable range of a block of data.
    */
@@ -18,7 +18,7 @@
 package com.mckoi.network;
 
 import com.mckoi.data.TreeNode;
-import com.mckoi.util.Cache;
+import com.mckoi.util.ConcurrentWeightedCache;
 import java.util.HashMap;
 import java.util.List;
 
@@ -51,7 +51,7 @@ public class HeapLocalNetworkCache implements LocalNetworkCache {
    * that may be stored.
    */
   public HeapLocalNetworkCache(long max_cache_size) {
-    this.heap_cache = new LocalCache(Cache.closestPrime(12000), max_cache_size);
+    this.heap_cache = new LocalCache(max_cache_size);
     this.s2block_cache = new HashMap(1023);
     this.path_info_map = new HashMap(255);
   }
@@ -67,21 +67,15 @@ public class HeapLocalNetworkCache implements LocalNetworkCache {
   // ---------- Implemented from LocalNetworkCache ----------
   
   public void putNode(DataAddress addr, TreeNode node) {
-    synchronized (heap_cache) {
-      heap_cache.put(addr, node);
-    }
+    heap_cache.put(addr, node);
   }
 
   public TreeNode getNode(DataAddress addr) {
-    synchronized (heap_cache) {
-      return (TreeNode) heap_cache.get(addr);
-    }
+    return (TreeNode) heap_cache.get(addr);
   }
 
   public void deleteNode(DataAddress addr, TreeNode node) {
-    synchronized (heap_cache) {
-      heap_cache.remove(addr);
-    }
+    heap_cache.remove(addr);
   }
 
   public List<BlockServerElement> getServersWithBlock(BlockId block_id) {
@@ -133,65 +127,21 @@ public class HeapLocalNetworkCache implements LocalNetworkCache {
     List<BlockServerElement> block_servers;
   }
 
-  // ISSUE: We have static default values plugged in here. Branch nodes we
-  //   estimate to be 1024 bytes in size, leaf nodes 4096. The actual sizes
-  //   may be very different.
-
-  private static class LocalCache extends Cache {
-
-    /**
-     * An estimate of the size of the cache on the heap, in bytes.
-     */
-    private long size_estimate;
-
-    /**
-     * The maximum size of the local cache in bytes.
-     */
-    private final long max_cache_size;
-    private final long clean_to;
-
-
-    private LocalCache(int size, long max_cache_size) {
-      super(size);
-      size_estimate = 0;
-      this.max_cache_size = max_cache_size;
-      this.clean_to = (long) ((double) max_cache_size * (double) .75);
-    }
-
-    protected void checkClean() {
-      // If we have reached maximum cache size, remove some elements from the
-      // end of the list
-      if (size_estimate >= max_cache_size) {
-        clean();
-      }
-    }
-
-    protected boolean shouldWipeMoreNodes() {
-      return size_estimate >= clean_to;
-    }
-
-    protected void notifyObjectAdded(Object key, Object val) {
-      size_estimate += ((TreeNode) val).getHeapSizeEstimate() + 64;
-//      if (val instanceof TreeBranch) {
-//        size_estimate += 1024;
-//      }
-//      else {
-//        size_estimate += 4096;
-//      }
-    }
+  /**
+   * The node cache, which is bounded by an estimate of the heap space used
+   * by the nodes stored in it.
+   */
+  private static class LocalCache extends ConcurrentWeightedCache {
 
-    protected void notifyObjectRemoved(Object key, Object val) {
-      size_estimate -= ((TreeNode) val).getHeapSizeEstimate() + 64;
-//      if (val instanceof TreeBranch) {
-//        size_estimate -= 1024;
-//      }
-//      else {
-//        size_estimate -= 4096;
-//      }
+    private LocalCache(long max_cache_size) {
+      // The sketch is sized assuming the average node is 1024 bytes
+      super(max_cache_size, (int) Math.min(Integer.MAX_VALUE,
+                                           max_cache_size / 1024));
     }
 
-    protected void notifyAllCleared() {
-      size_estimate = 0;
+    @Override
+    protected long weigh(Object key, Object val) {
+      return ((TreeNode) val).getHeapSizeEstimate() + 64;
     }
 
   }
@@ -19,8 +19,12 @@ package com.mckoi.network;
 
 import com.mckoi.data.NodeReference;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -647,6 +651,111 @@ public class LocalFileSystemBlockServer {
 
   }
 
+  /**
+   * Creates the temporary file a block is received into with the bulk block
+   * transfer protocol. Generates an exception if the block is already stored
+   * on this server or is currently being received.
+   */
+  File startBlockReceive(BlockId block_id, int file_type) {
+    String tmpext;
+    if (file_type == 1) {
+      tmpext = ".tmpc1";
+    }
+    else if (file_type == 2) {
+      tmpext = ".tmpc2";
+    }
+    else {
+      throw new RuntimeException("Unknown file_type: " + file_type);
+    }
+
+    // Make sure this process is exclusive
+    synchronized (block_upload_lock) {
+      String block_fname = formatFileName(block_id);
+      File f_normal = new File(path, block_fname);
+      File f_compress = new File(path, block_fname + ".mcd");
+      if (f_normal.exists() || f_compress.exists()) {
+        throw new RuntimeException("Block file exists already");
+      }
+      File f = new File(path, block_fname + tmpext);
+      try {
+        if (!f.createNewFile()) {
+          throw new RuntimeException("File exists.");
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException("IO Error: " + e.getMessage());
+      }
+      return f;
+    }
+  }
+
+  /**
+   * Receives the content of a block into the temporary file created by
+   * 'startBlockReceive', reading 'size' bytes from the given channel. The
+   * file channel transfers the bytes into the file itself, so no buffer
+   * is created for each part of the block. The CRC32 checksum of the file is
+   * then compared with the checksum given by the sender, and if it matches
+   * the block is added to this server. The temporary file is deleted if the
+   * block isn't added.
+   */
+  void receiveBlockFile(BlockId block_id, int file_type, File f,
+                        ReadableByteChannel in, long size, long checksum)
+                                                           throws IOException {
+    boolean complete = false;
+    try {
+      RandomAccessFile file = new RandomAccessFile(f, "rw");
+      try {
+        FileChannel ch = file.getChannel();
+        long pos = 0;
+        while (pos < size) {
+          long count = ch.transferFrom(in, pos, size - pos);
+          // The channel reached the end of the stream,
+          if (count <= 0) {
+            throw new EOFException();
+          }
+          pos += count;
+        }
+        // Check the file that was written,
+        if (fileChecksum(ch, size) != checksum) {
+          throw new RuntimeException(
+                        "Checksum mismatch on received block: " + block_id);
+        }
+      }
+      finally {
+        file.close();
+      }
+
+      writeBlockComplete(block_id, file_type);
+      complete = true;
+    }
+    finally {
+      if (!complete) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the CRC32 checksum of the first 'size' bytes of the given file.
+   */
+  static long fileChecksum(FileChannel ch, long size) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buf = new byte[65536];
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    long pos = 0;
+    while (pos < size) {
+      bb.clear();
+      bb.limit((int) Math.min(buf.length, size - pos));
+      int read = ch.read(bb, pos);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      crc.update(buf, 0, read);
+      pos += read;
+    }
+    return crc.getValue();
+  }
+
   /**
    * Creates an availability map for the given array of block ids. For each
    * block id in the list that is managed by this block service, the
@@ -1746,10 +1855,79 @@ public class LocalFileSystemBlockServer {
       this.manager_servers = manager_servers;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Sends the block file to the destination as a sequence of
+     * 'sendBlockPart' messages followed by a 'sendBlockComplete' message.
+     * Returns false if the destination reported an error.
+     */
+    private boolean sendBlockParts(File f, int file_type) throws IOException {
       // Connect to the destination service address,
       MessageProcessor p = connector.connectBlockServer(destination);
+
+      // Push the file over,
+      byte[] buf = new byte[16384];
+      int pos = 0;
+      FileInputStream fin = new FileInputStream(f);
+
+      while (true) {
+        int read = fin.read(buf, 0, buf.length);
+        // Exit if we reached the end of the file,
+        if (read == -1) {
+          break;
+        }
+        MessageStream msg_out = new MessageStream(8);
+        msg_out.addMessage("sendBlockPart");
+        msg_out.addBlockId(block_id);
+        msg_out.addLong(pos);
+        msg_out.addInteger(file_type);
+        msg_out.addBuf(buf);
+        msg_out.addInteger(read);
+        msg_out.closeMessage();
+        // Process the message,
+        ProcessResult msg_in = p.process(msg_out);
+        // Get the input iterator,
+        Iterator<Message> i = msg_in.iterator();
+        while (i.hasNext()) {
+          Message m = i.next();
+          if (m.isError()) {
+            log.log(Level.INFO, "'sendBlockPart' command error: {0}",
+                                m.getErrorMessage());
+//          System.out.println(m.getExternalThrowable().getStackTrace());
+            return false;
+          }
+        }
+
+        pos += read;
+      }
+
+      // Close,
+      fin.close();
+
+      // Send the 'complete' command,
+      MessageStream msg_out = new MessageStream(8);
+      msg_out.addMessage("sendBlockComplete");
+      msg_out.addBlockId(block_id);
+      msg_out.addInteger(file_type);
+      msg_out.closeMessage();
+      // Process the message,
+      ProcessResult msg_in = p.process(msg_out);
+      // Get the input iterator,
+      Iterator<Message> i = msg_in.iterator();
+      while (i.hasNext()) {
+        Message m = i.next();
+        if (m.isError()) {
+          log.log(Level.INFO, "'sendBlockCommand' command error: {0}",
+                              m.getErrorMessage());
+//            System.out.println(m.getExternalThrowable().getStackTrace());
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    @Override
+    public void run() {
       // Get the block file,
       String block_file_name = formatFileName(block_id);
       int file_type = 1;
@@ -1784,67 +1962,30 @@ public class LocalFileSystemBlockServer {
 //          return;
 //        }
 
-        // If the file does exist, push it over,
-        byte[] buf = new byte[16384];
-        int pos = 0;
-        FileInputStream fin = new FileInputStream(f);
-
-        while (true) {
-          int read = fin.read(buf, 0, buf.length);
-          // Exit if we reached the end of the file,
-          if (read == -1) {
-            break;
-          }
-          MessageStream msg_out = new MessageStream(8);
-          msg_out.addMessage("sendBlockPart");
-          msg_out.addBlockId(block_id);
-          msg_out.addLong(pos);
-          msg_out.addInteger(file_type);
-          msg_out.addBuf(buf);
-          msg_out.addInteger(read);
-          msg_out.closeMessage();
-          // Process the message,
-          ProcessResult msg_in = p.process(msg_out);
-          // Get the input iterator,
-          Iterator<Message> i = msg_in.iterator();
+        // Send the file over a bulk transfer connection if the destination
+        // supports it, otherwise send it in parts,
+        ProcessResult transfer_result = null;
+        if (connector instanceof TCPNetworkConnector) {
+          transfer_result = ((TCPNetworkConnector) connector).sendBlockFile(
+                                          destination, block_id, file_type, f);
+        }
+        if (transfer_result != null) {
+          Iterator<Message> i = transfer_result.iterator();
           while (i.hasNext()) {
             Message m = i.next();
             if (m.isError()) {
-              log.log(Level.INFO, "'sendBlockPart' command error: {0}",
+              log.log(Level.INFO, "'receiveBlock' command error: {0}",
                                   m.getErrorMessage());
-//              System.out.println(m.getExternalThrowable().getStackTrace());
               return;
             }
           }
-
-          pos += read;
         }
-
-        // Close,
-        fin.close();
-
-        // Send the 'complete' command,
-        MessageStream msg_out = new MessageStream(8);
-        msg_out.addMessage("sendBlockComplete");
-        msg_out.addBlockId(block_id);
-        msg_out.addInteger(file_type);
-        msg_out.closeMessage();
-        // Process the message,
-        ProcessResult msg_in = p.process(msg_out);
-        // Get the input iterator,
-        Iterator<Message> i = msg_in.iterator();
-        while (i.hasNext()) {
-          Message m = i.next();
-          if (m.isError()) {
-            log.log(Level.INFO, "'sendBlockCommand' command error: {0}",
-                                m.getErrorMessage());
-//            System.out.println(m.getExternalThrowable().getStackTrace());
-            return;
-          }
+        else if (!sendBlockParts(f, file_type)) {
+          return;
         }
 
         // Tell the manager server about this new block mapping,
-        msg_out = new MessageStream(8);
+        MessageStream msg_out = new MessageStream(8);
         msg_out.addMessage("internalAddBlockServerMapping");
         msg_out.addBlockId(block_id);
         msg_out.addLongArray(new long[] { dest_server_sguid });
@@ -1857,9 +1998,9 @@ public class LocalFileSystemBlockServer {
           // Process the message,
           MessageProcessor mp =
                             connector.connectManagerServer(manager_servers[n]);
-          msg_in = mp.process(msg_out);
+          ProcessResult msg_in = mp.process(msg_out);
           // Get the input iterator,
-          i = msg_in.iterator();
+          Iterator<Message> i = msg_in.iterator();
           while (i.hasNext()) {
             Message m = i.next();
             if (m.isError()) {
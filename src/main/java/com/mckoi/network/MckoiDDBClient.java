@@ -75,6 +75,10 @@ public class MckoiDDBClient implements MckoiDDBAccess {
 
   private long maximum_transaction_node_cache_heap_size;
 
+  private int write_quorum = 0;
+
+  private double hedged_read_percentile = 0;
+
 
 //  /**
 //   * Default, constructor.
@@ -137,6 +141,58 @@ public class MckoiDDBClient implements MckoiDDBAccess {
     }
   }
 
+  /**
+   * Returns the number of replicas of each block that must be written for a
+   * write of node data to the network to succeed. 0 means all the replicas
+   * must be written.
+   */
+  public int getWriteQuorum() {
+    return write_quorum;
+  }
+
+  /**
+   * Sets the number of replicas of each block that must be written for a
+   * write of node data to the network to succeed. The default, 0, means all
+   * the replicas must be written. When a write succeeds without writing all
+   * the replicas, the block servers that failed are reported to the manager
+   * servers.
+   */
+  public void setWriteQuorum(int write_quorum) {
+    if (write_quorum < 0) {
+      throw new IllegalArgumentException("Negative write quorum");
+    }
+    this.write_quorum = write_quorum;
+    if (tree_system != null) {
+      tree_system.setWriteQuorum(write_quorum);
+    }
+  }
+
+  /**
+   * Returns the percentile of a block server's recent latency after which a
+   * node read that hasn't been answered is also sent to another block server
+   * with the node. 0 means hedged reads are disabled.
+   */
+  public double getHedgedReadPercentile() {
+    return hedged_read_percentile;
+  }
+
+  /**
+   * Sets the percentile (between 0 and 1, eg. 0.95) of a block server's
+   * recent latency after which a node read that hasn't been answered is also
+   * sent to another block server with the node, and the first reply is used.
+   * This reduces the effect of a slow block server on the read latency at
+   * the cost of some extra requests. The default, 0, disables hedged reads.
+   */
+  public void setHedgedReadPercentile(double percentile) {
+    if (percentile < 0 || percentile >= 1) {
+      throw new IllegalArgumentException("Invalid percentile: " + percentile);
+    }
+    this.hedged_read_percentile = percentile;
+    if (tree_system != null) {
+      tree_system.setHedgedReadPercentile(percentile);
+    }
+  }
+
   /**
    * Returns a NetworkProfile object that allows low level inspection and
    * modification of the MckoiDDB network. Note that the network configuration
@@ -174,6 +230,8 @@ public class MckoiDDBClient implements MckoiDDBAccess {
                       manager_addresses, local_network_cache, service_tracker);
     this.tree_system.setMaximumNodeCacheHeapSize(
                               getMaximumTransactionNodeCacheHeapSize());
+    this.tree_system.setWriteQuorum(write_quorum);
+    this.tree_system.setHedgedReadPercentile(hedged_read_percentile);
   }
 
   /**
@@ -181,6 +239,8 @@ public class MckoiDDBClient implements MckoiDDBAccess {
    */
   void disconnect() {
     if (this.network_connector != null) {
+      // Stop the background read-ahead before the connector is stopped
+      this.tree_system.stop();
       try {
         this.network_connector.stop();
       }
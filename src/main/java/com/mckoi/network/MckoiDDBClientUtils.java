@@ -189,10 +189,16 @@ public class MckoiDDBClientUtils {
             p.getProperty("transaction_cache_size", "14MB").trim();
     String global_node_cache_str =
             p.getProperty("global_cache_size", "32MB").trim();
+    String write_quorum_str =
+            p.getProperty("write_quorum", "0").trim();
+    String hedged_read_percentile_str =
+            p.getProperty("hedged_read_percentile", "0").trim();
 
     int introduced_latency;
     long transaction_node_cache;
     long global_node_cache;
+    int write_quorum;
+    double hedged_read_percentile;
 
     // NOTE: This value is for testing purposes to simulate high latency
     //   network conditions.
@@ -222,6 +228,31 @@ public class MckoiDDBClientUtils {
         "'global_cache_size' property invalid in client configuration.", e);
     }
 
+    // Write quorum,
+    try {
+      write_quorum = Integer.parseInt(write_quorum_str);
+      if (write_quorum < 0) {
+        throw new NumberFormatException("Negative write quorum");
+      }
+    }
+    catch (NumberFormatException e) {
+      throw new RuntimeException(
+        "'write_quorum' property invalid in client configuration.", e);
+    }
+
+    // Hedged read percentile,
+    try {
+      hedged_read_percentile = Double.parseDouble(hedged_read_percentile_str);
+      if (hedged_read_percentile < 0 || hedged_read_percentile >= 1) {
+        throw new NumberFormatException("Percentile out of range");
+      }
+    }
+    catch (NumberFormatException e) {
+      throw new RuntimeException(
+        "'hedged_read_percentile' property invalid in client configuration.",
+        e);
+    }
+
     CacheConfiguration cache_config = new CacheConfiguration();
     cache_config.setGlobalNodeCacheSize(global_node_cache);
 
@@ -250,8 +281,12 @@ public class MckoiDDBClientUtils {
     // Direct client connect
     if (connect_type.equals("direct")) {
 
-      return connectTCP(manager_servers, net_password, out_net_if,
-                        introduced_latency, net_cache, transaction_node_cache);
+      MckoiDDBClient client =
+            connectTCP(manager_servers, net_password, out_net_if,
+                       introduced_latency, net_cache, transaction_node_cache);
+      client.setWriteQuorum(write_quorum);
+      client.setHedgedReadPercentile(hedged_read_percentile);
+      return client;
 
     }
 
@@ -286,9 +321,12 @@ public class MckoiDDBClientUtils {
           "'proxy_host' property invalid in client configuration.", e);
       }
 
-      return connectProxyTCP(phost, pport,
+      MckoiDDBClient client = connectProxyTCP(phost, pport,
                          manager_servers, net_password, introduced_latency,
                          net_cache, transaction_node_cache);
+      client.setWriteQuorum(write_quorum);
+      client.setHedgedReadPercentile(hedged_read_percentile);
+      return client;
 
     }
 
@@ -21,6 +21,8 @@ import com.mckoi.data.NodeReference;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -687,6 +689,124 @@ public class MessageStream implements Iterable<Message>, ProcessResult {
   }
 
 
+  /**
+   * Returns the size of the encoded message stream that starts at the
+   * position of the buffer, or -1 if the buffer doesn't contain the whole
+   * message stream. The position of the buffer is not changed.
+   * <p>
+   * This walks the same format as 'readFrom' but only reads the sizes, so
+   * a non-blocking reader can find the end of a message stream in its buffer
+   * before decoding it. It must be kept consistent with 'readFrom'.
+   */
+  static int scanSize(ByteBuffer buf) {
+    ByteBuffer b = buf.duplicate();
+    try {
+      int message_sz = b.getInt();
+      for (int i = 0; i < message_sz; ++i) {
+        byte type = b.get();
+        if (type == 16 || type == 7) {
+          // Null, Close message
+        }
+        else if (type == 1) {
+          // Open message,
+          int cc = b.get();
+          skip(b, 2);
+          if (cc == 0) {
+            skipUTF(b);
+          }
+        }
+        else if (type == 2) {
+          skip(b, 8);
+        }
+        else if (type == 3) {
+          skip(b, 4);
+        }
+        else if (type == 4) {
+          skip(b, b.getInt());
+        }
+        else if (type == 5) {
+          skipUTF(b);
+        }
+        else if (type == 6) {
+          skip(b, b.getInt() * 8L);
+        }
+        else if (type == 9 || type == 13) {
+          // DataAddress, ServiceAddress
+          skip(b, 20);
+        }
+        else if (type == 10) {
+          skipUTF(b);
+          skipUTF(b);
+          skipUTF(b);
+        }
+        else if (type == 11 || type == 12) {
+          // ServiceAddress array, DataAddress array
+          skip(b, b.getInt() * 20L);
+        }
+        else if (type == 14) {
+          int sz = b.getInt();
+          for (int n = 0; n < sz; ++n) {
+            skipUTF(b);
+          }
+        }
+        else if (type == 15) {
+          skip(b, b.getInt() * 4L);
+        }
+        else if (type == 17) {
+          skip(b, 1);
+          skip(b, b.getInt() * 16L);
+          skip(b, b.getInt());
+        }
+        else if (type == 18) {
+          skip(b, 16);
+        }
+        else if (type == 19) {
+          skip(b, b.getInt() * 16L);
+        }
+        else if (type == 20) {
+          skipUTF(b);
+          skipUTF(b);
+        }
+        else if (type == 21) {
+          int sz = b.getInt();
+          for (int n = 0; n < sz; ++n) {
+            skipUTF(b);
+            skipUTF(b);
+          }
+        }
+        else {
+          throw new RuntimeException("Unknown message type on stream " + type);
+        }
+      }
+      // The end byte,
+      skip(b, 1);
+    }
+    catch (BufferUnderflowException e) {
+      return -1;
+    }
+    return b.position() - buf.position();
+  }
+
+  /**
+   * Moves the position of the buffer forward by the given number of bytes.
+   */
+  private static void skip(ByteBuffer b, long size) {
+    if (size < 0) {
+      throw new RuntimeException("Negative size on stream");
+    }
+    if (size > b.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    b.position(b.position() + (int) size);
+  }
+
+  /**
+   * Moves the position of the buffer past a string encoded by 'writeUTF'.
+   */
+  private static void skipUTF(ByteBuffer b) {
+    skip(b, b.getShort() & 0x0FFFF);
+  }
+
   /**
    * For debugging purposes.
    */
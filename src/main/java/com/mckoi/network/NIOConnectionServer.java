@@ -0,0 +1,891 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.network;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The non-blocking connection handling of the TCPInstanceAdminServer. All the
+ * socket I/O of the connections is done by a small number of selector
+ * threads. The selector threads read the bytes of incoming message streams
+ * into a buffer for each connection, and when a message stream is complete
+ * it's decoded and dispatched to the worker pool of the service it's for.
+ * Idle connections therefore don't use a thread.
+ * <p>
+ * Each service (the administration, block, manager and root services) has a
+ * fixed size worker pool and a limit on the number of its requests that are
+ * queued or being processed. When a connection has a request for a service
+ * that's at its limit, the connection stops reading from its socket until
+ * the service has processed some requests. A connection also stops reading
+ * when too many of its reply bytes are waiting to be sent. In both cases TCP
+ * flow control pushes the backpressure back to the client.
+ * <p>
+ * Connections use the same protocol as the blocking connections, including
+ * the switch to the pipelined protocol. A bulk block transfer is handed to
+ * a thread of its own that receives the file with the channel in blocking
+ * mode.
+ *
+ * @author Tobias Downer
+ */
+
+class NIOConnectionServer {
+
+  /**
+   * The initial size of the input buffer of a connection. The buffer grows
+   * as needed to hold a whole message stream.
+   */
+  private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * The number of reply bytes waiting to be sent on a connection above which
+   * the connection stops reading requests.
+   */
+  private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+  /**
+   * The maximum number of buffers written in one gathering write.
+   */
+  private static final int MAX_WRITE_BUFFERS = 64;
+
+  /**
+   * The connection states.
+   */
+  private static final int STATE_CHALLENGE = 1;
+  private static final int STATE_PASSWORD = 2;
+  private static final int STATE_COMMAND = 3;
+  private static final int STATE_PIPELINED = 4;
+  private static final int STATE_TRANSFER = 5;
+
+  /**
+   * The password string needed to communicate with the server.
+   */
+  private final String password_string;
+
+  /**
+   * The selector threads.
+   */
+  private final SelectorThread[] selector_threads;
+
+  /**
+   * The selector thread the next connection is given to.
+   */
+  private int next_selector = 0;
+
+  /**
+   * The request queues of the services.
+   */
+  private final ServiceQueue admin_queue;
+  private final ServiceQueue block_queue;
+  private final ServiceQueue manager_queue;
+  private final ServiceQueue root_queue;
+
+  /**
+   * Random number generator for the connection challenge.
+   */
+  private final Random random_generator = new Random();
+
+  /**
+   * The logger.
+   */
+  private final static Logger log = Logger.getLogger("com.mckoi.network.Log");
+
+  /**
+   * Constructor.
+   *
+   * @param password_string the network password.
+   * @param selector_count the number of selector threads.
+   * @param worker_count the number of worker threads of each service.
+   * @param queue_limit the maximum number of requests of a service that may
+   *   be queued or being processed at once.
+   */
+  NIOConnectionServer(String password_string,
+               int selector_count, int worker_count, int queue_limit)
+                                                           throws IOException {
+    this.password_string = password_string;
+
+    // The administration commands are rare so the service has a small pool,
+    admin_queue = new ServiceQueue('a', 2, queue_limit);
+    block_queue = new ServiceQueue('b', worker_count, queue_limit);
+    manager_queue = new ServiceQueue('m', worker_count, queue_limit);
+    root_queue = new ServiceQueue('r', worker_count, queue_limit);
+
+    selector_threads = new SelectorThread[selector_count];
+    for (int i = 0; i < selector_count; ++i) {
+      selector_threads[i] = new SelectorThread(i);
+    }
+  }
+
+  /**
+   * Starts the selector threads.
+   */
+  void start() {
+    for (SelectorThread t : selector_threads) {
+      t.start();
+    }
+  }
+
+  /**
+   * Stops the selector threads, closes all the connections and shuts down
+   * the worker pools.
+   */
+  void stop() {
+    for (SelectorThread t : selector_threads) {
+      t.stopSelector();
+    }
+    admin_queue.shutdown();
+    block_queue.shutdown();
+    manager_queue.shutdown();
+    root_queue.shutdown();
+  }
+
+  /**
+   * Adds a connection accepted by the server. The socket of the connection
+   * must have a channel, and the connection processes the messages.
+   */
+  void addConnection(final TCPInstanceAdminServer.Connection connection)
+                                                          throws IOException {
+    final SocketChannel channel = connection.s.getChannel();
+    channel.configureBlocking(false);
+    final SelectorThread selector;
+    synchronized (this) {
+      selector = selector_threads[next_selector];
+      next_selector = (next_selector + 1) % selector_threads.length;
+    }
+    selector.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          NIOConnection c = new NIOConnection(channel, selector, connection);
+          c.key = channel.register(selector.selector, 0, c);
+          c.start();
+        }
+        catch (IOException e) {
+          log.log(Level.SEVERE, "IO Error registering connection", e);
+          try {
+            channel.close();
+          }
+          catch (IOException e2) {
+            // Ignore
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the request queue of the service with the given destination
+   * code, or null if the code isn't a service.
+   */
+  private ServiceQueue getServiceQueue(char destination) {
+    switch (destination) {
+      case 'a':
+        return admin_queue;
+      case 'b':
+        return block_queue;
+      case 'm':
+        return manager_queue;
+      case 'r':
+        return root_queue;
+      default:
+        return null;
+    }
+  }
+
+  // ----- Inner classes -----
+
+  /**
+   * The worker pool and request limit of a service.
+   */
+  private static class ServiceQueue {
+
+    private final char destination;
+    private final ExecutorService worker_pool;
+    private final int queue_limit;
+
+    /**
+     * The number of requests that are queued or being processed.
+     */
+    private int outstanding = 0;
+
+    /**
+     * The connections that stopped reading because the service was at its
+     * limit.
+     */
+    private final ArrayList<NIOConnection> blocked = new ArrayList<>();
+
+    ServiceQueue(char destination, int worker_count, int queue_limit) {
+      this.destination = destination;
+      this.worker_pool = Executors.newFixedThreadPool(worker_count);
+      this.queue_limit = queue_limit;
+    }
+
+    /**
+     * Reserves a place for a request of the given connection. If the service
+     * is at its limit, returns false and the connection is resumed when a
+     * request of the service completes.
+     */
+    synchronized boolean tryAcquire(NIOConnection c) {
+      if (outstanding >= queue_limit) {
+        blocked.add(c);
+        return false;
+      }
+      ++outstanding;
+      return true;
+    }
+
+    /**
+     * Releases the place of a completed request, and resumes the
+     * connections that were waiting for the service.
+     */
+    void release() {
+      ArrayList<NIOConnection> to_resume;
+      synchronized (this) {
+        --outstanding;
+        if (blocked.isEmpty()) {
+          return;
+        }
+        to_resume = new ArrayList<>(blocked);
+        blocked.clear();
+      }
+      for (NIOConnection c : to_resume) {
+        c.resume();
+      }
+    }
+
+    void shutdown() {
+      worker_pool.shutdown();
+    }
+
+  }
+
+  /**
+   * A thread that does the I/O for a set of connections.
+   */
+  private class SelectorThread extends Thread {
+
+    private final Selector selector;
+
+    /**
+     * Tasks to run on this thread.
+     */
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    private volatile boolean stopped = false;
+
+    SelectorThread(int id) throws IOException {
+      super("Mckoi NIO selector " + id);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    /**
+     * Runs the task on this thread.
+     */
+    void post(Runnable task) {
+      synchronized (tasks) {
+        tasks.add(task);
+      }
+      selector.wakeup();
+    }
+
+    void stopSelector() {
+      stopped = true;
+      selector.wakeup();
+    }
+
+    private void runTasks() {
+      while (true) {
+        Runnable task;
+        synchronized (tasks) {
+          task = tasks.poll();
+        }
+        if (task == null) {
+          return;
+        }
+        task.run();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!stopped) {
+          selector.select();
+          runTasks();
+
+          Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+          while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            NIOConnection c = (NIOConnection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                c.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                c.flushOutput();
+              }
+              c.updateInterest();
+            }
+            catch (IOException e) {
+              log.log(Level.FINE, "IO Error during connection input", e);
+              c.close();
+            }
+            // Oops, another exception happened, log it,
+            catch (RuntimeException e) {
+              log.log(Level.SEVERE, "Exception on connection", e);
+              c.close();
+            }
+          }
+        }
+      }
+      catch (IOException e) {
+        log.log(Level.SEVERE, "IO Error on selector", e);
+      }
+      finally {
+        // Close all the connections,
+        for (SelectionKey key : selector.keys()) {
+          ((NIOConnection) key.attachment()).close();
+        }
+        try {
+          selector.close();
+        }
+        catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+
+  }
+
+  /**
+   * The state of a connection. Everything except the output queue is only
+   * accessed by the selector thread of the connection.
+   */
+  private class NIOConnection {
+
+    private final SocketChannel channel;
+    private final SelectorThread selector;
+
+    /**
+     * The server connection that processes the messages.
+     */
+    private final TCPInstanceAdminServer.Connection server_connection;
+    private SelectionKey key;
+
+    private int state;
+    private long challenge;
+    private boolean closed = false;
+
+    /**
+     * The input buffer. Between reads the buffer is ready to be written to
+     * from the channel.
+     */
+    private ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+
+    /**
+     * The message dictionaries. They are the same object until the
+     * connection switches to the pipelined protocol.
+     */
+    private HashMap<String, String> request_dictionary;
+    private HashMap<String, String> reply_dictionary;
+
+    /**
+     * True when a request on a connection that isn't pipelined is being
+     * processed. No other requests are read until it has a reply.
+     */
+    private boolean waiting_reply = false;
+
+    /**
+     * True when the connection is waiting for a service that's at its
+     * limit.
+     */
+    private boolean blocked = false;
+
+    /**
+     * The reply bytes waiting to be sent, and their total size.
+     */
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    private int output_size = 0;
+
+    NIOConnection(SocketChannel channel, SelectorThread selector,
+                  TCPInstanceAdminServer.Connection server_connection) {
+      this.channel = channel;
+      this.selector = selector;
+      this.server_connection = server_connection;
+      this.request_dictionary = new HashMap<>();
+      this.reply_dictionary = request_dictionary;
+    }
+
+    /**
+     * Sends the challenge that starts the handshake.
+     */
+    void start() throws IOException {
+      challenge = random_generator.nextLong();
+      ByteBuffer buf = ByteBuffer.allocate(8);
+      buf.putLong(0, challenge);
+      queueOutput(buf);
+      state = STATE_CHALLENGE;
+      flushOutput();
+      updateInterest();
+    }
+
+    /**
+     * Reads from the channel and processes the complete messages.
+     */
+    void read() throws IOException {
+      int read_count = channel.read(input);
+      if (read_count < 0) {
+        close();
+        return;
+      }
+      processInput();
+    }
+
+    /**
+     * Processes the complete messages in the input buffer.
+     */
+    private void processInput() throws IOException {
+      input.flip();
+      try {
+        while (!closed && processMessage()) {
+          // Loop while messages are processed,
+        }
+      }
+      finally {
+        input.compact();
+      }
+      // If the buffer is full and the connection is reading, the buffer
+      // must grow to hold the message,
+      if (!input.hasRemaining() && !closed && !waiting_reply && !blocked) {
+        ByteBuffer new_input = ByteBuffer.allocate(input.capacity() * 2);
+        input.flip();
+        new_input.put(input);
+        input = new_input;
+      }
+    }
+
+    /**
+     * Processes the message at the start of the input buffer. Returns false
+     * if the input buffer doesn't have a complete message, or the message
+     * can't be processed yet.
+     */
+    private boolean processMessage() throws IOException {
+      int p = input.position();
+      int available = input.remaining();
+
+      if (state == STATE_CHALLENGE) {
+        if (available < 8) {
+          return false;
+        }
+        // Silently close if the value not returned,
+        if (input.getLong() != challenge) {
+          close();
+          return false;
+        }
+        state = STATE_PASSWORD;
+        return true;
+      }
+      else if (state == STATE_PASSWORD) {
+        if (available < 2) {
+          return false;
+        }
+        int sz = input.getShort(p);
+        if (available < 2 + (sz * 2)) {
+          return false;
+        }
+        input.position(p + 2);
+        StringBuilder buf = new StringBuilder(sz);
+        for (int i = 0; i < sz; ++i) {
+          buf.append(input.getChar());
+        }
+        // If it doesn't match, close the connection immediately,
+        if (!buf.toString().equals(password_string)) {
+          log.log(Level.SEVERE, "Client provided bad password");
+          close();
+          return false;
+        }
+        state = STATE_COMMAND;
+        return true;
+      }
+
+      // A command,
+      if (waiting_reply || blocked || available < 2) {
+        return false;
+      }
+      char destination = input.getChar(p);
+      // Exit command,
+      if (destination == 'e') {
+        close();
+        return false;
+      }
+      int header_size = (state == STATE_PIPELINED) ? 6 : 2;
+      if (available < header_size) {
+        return false;
+      }
+      input.position(p + header_size);
+      int message_size = MessageStream.scanSize(input);
+      input.position(p);
+      if (message_size < 0) {
+        return false;
+      }
+
+      ServiceQueue queue = getServiceQueue(destination);
+      // Switch to the pipelined protocol,
+      if (destination == 'p' && state == STATE_COMMAND) {
+        input.position(p + header_size + message_size);
+
+        MessageStream msg_out = new MessageStream(16);
+        msg_out.addMessage("R");
+        msg_out.addLong(TCPNetworkConnector.PIPELINED_PROTOCOL_VERSION);
+        msg_out.closeMessage();
+        queueReply(-1, msg_out);
+
+        // Each direction has its own dictionary from here,
+        request_dictionary = new HashMap<>();
+        reply_dictionary = new HashMap<>();
+        state = STATE_PIPELINED;
+        return true;
+      }
+      // A bulk block transfer,
+      if (destination == 't' && state == STATE_COMMAND) {
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(
+                       input.array(), input.arrayOffset() + p + header_size,
+                       message_size));
+        MessageStream message_stream =
+                               MessageStream.readFrom(din, request_dictionary);
+        input.position(p + header_size + message_size);
+        // The sender waits for a reply before it sends the file,
+        if (input.hasRemaining()) {
+          throw new IOException("Unexpected data in block transfer");
+        }
+        startBlockTransfer(message_stream);
+        return false;
+      }
+      if (queue == null) {
+        throw new IOException("Unknown destination: " + destination);
+      }
+      // Wait if the service is at its limit,
+      if (!queue.tryAcquire(this)) {
+        blocked = true;
+        return false;
+      }
+
+      // Decode the message stream,
+      int request_id = (state == STATE_PIPELINED) ? input.getInt(p + 2) : -1;
+      DataInputStream din = new DataInputStream(new ByteArrayInputStream(
+                     input.array(), input.arrayOffset() + p + header_size,
+                     message_size));
+      MessageStream message_stream;
+      try {
+        message_stream = MessageStream.readFrom(din, request_dictionary);
+      }
+      catch (IOException | RuntimeException e) {
+        queue.release();
+        throw e;
+      }
+      input.position(p + header_size + message_size);
+
+      if (state == STATE_COMMAND) {
+        waiting_reply = true;
+      }
+      dispatch(queue, request_id, message_stream);
+      return true;
+    }
+
+    /**
+     * Removes this connection from the selector and starts a thread that
+     * receives the bulk block transfer. The channel can only be put in
+     * blocking mode once the selector has deregistered the cancelled key,
+     * which happens on its next select, so the thread is started by a task
+     * on the selector thread.
+     */
+    private void startBlockTransfer(final MessageStream message_stream) {
+      state = STATE_TRANSFER;
+      key.cancel();
+      selector.post(new Runnable() {
+        @Override
+        public void run() {
+          Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              runBlockTransfer(message_stream);
+            }
+          }, "Mckoi block transfer");
+          t.setDaemon(true);
+          t.start();
+        }
+      });
+    }
+
+    /**
+     * Receives a bulk block transfer with the channel in blocking mode, and
+     * closes the connection when it's done.
+     */
+    private void runBlockTransfer(MessageStream message_stream) {
+      try {
+        channel.configureBlocking(true);
+        // Write any reply that wasn't completely sent,
+        synchronized (output) {
+          for (ByteBuffer buf : output) {
+            while (buf.hasRemaining()) {
+              channel.write(buf);
+            }
+          }
+          output.clear();
+          output_size = 0;
+        }
+        DataOutputStream dout = new DataOutputStream(
+              new BufferedOutputStream(Channels.newOutputStream(channel), 4000));
+        server_connection.processBlockTransfer(message_stream, channel, dout,
+                                               reply_dictionary);
+      }
+      catch (IOException e) {
+        log.log(Level.FINE, "IO Error during block transfer", e);
+      }
+      catch (RuntimeException e) {
+        log.log(Level.SEVERE, "Exception during block transfer", e);
+      }
+      finally {
+        try {
+          channel.close();
+        }
+        catch (IOException e) {
+          log.log(Level.SEVERE, "IO Error on connection close", e);
+        }
+      }
+    }
+
+    /**
+     * Processes the request on the worker pool of the service, and queues
+     * the reply.
+     */
+    private void dispatch(final ServiceQueue queue, final int request_id,
+                          final MessageStream message_stream) {
+      queue.worker_pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            ProcessResult message_out = server_connection.processMessage(
+                                          queue.destination, message_stream);
+            queueReply(request_id, (MessageStream) message_out);
+          }
+          catch (IOException e) {
+            log.log(Level.FINE, "IO Error writing reply", e);
+            postClose();
+          }
+          // The client can't be sent a reply for this request, so close the
+          // connection,
+          catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Exception on node worker", e);
+            postClose();
+            throw e;
+          }
+          catch (Error e) {
+            log.log(Level.SEVERE, "Error on node worker", e);
+            postClose();
+            throw e;
+          }
+          finally {
+            queue.release();
+          }
+        }
+      });
+    }
+
+    /**
+     * Encodes a reply and queues it to be sent. On a pipelined connection the
+     * reply is preceded by the request id. This may be called by any thread.
+     */
+    private void queueReply(int request_id, MessageStream msg)
+                                                           throws IOException {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+      DataOutputStream dout = new DataOutputStream(bout);
+      // The replies must be queued in the order they are encoded because the
+      // dictionary is stateful.
+      synchronized (output) {
+        if (request_id != -1) {
+          dout.writeInt(request_id);
+        }
+        msg.writeTo(dout, reply_dictionary);
+        dout.flush();
+        queueOutput(ByteBuffer.wrap(bout.toByteArray()));
+      }
+      // Send it from the selector thread,
+      selector.post(new Runnable() {
+        @Override
+        public void run() {
+          if (closed) {
+            return;
+          }
+          try {
+            if (state == STATE_COMMAND) {
+              waiting_reply = false;
+            }
+            flushOutput();
+            processInput();
+            updateInterest();
+          }
+          catch (IOException e) {
+            log.log(Level.FINE, "IO Error writing reply", e);
+            close();
+          }
+          catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Exception on connection", e);
+            close();
+          }
+        }
+      });
+    }
+
+    private void queueOutput(ByteBuffer buf) {
+      synchronized (output) {
+        output.add(buf);
+        output_size += buf.remaining();
+      }
+    }
+
+    /**
+     * Writes as much of the queued output as the channel accepts.
+     */
+    void flushOutput() throws IOException {
+      synchronized (output) {
+        while (!output.isEmpty()) {
+          ByteBuffer[] bufs = new ByteBuffer[
+                                Math.min(output.size(), MAX_WRITE_BUFFERS)];
+          Iterator<ByteBuffer> i = output.iterator();
+          for (int n = 0; n < bufs.length; ++n) {
+            bufs[n] = i.next();
+          }
+          long written = channel.write(bufs);
+          output_size -= written;
+          // Remove the buffers that were written,
+          while (!output.isEmpty() && !output.peek().hasRemaining()) {
+            output.poll();
+          }
+          if (written == 0) {
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Sets the operations the selector waits for on this connection.
+     */
+    void updateInterest() {
+      if (closed || state == STATE_TRANSFER) {
+        return;
+      }
+      int ops = 0;
+      synchronized (output) {
+        if (!output.isEmpty()) {
+          ops |= SelectionKey.OP_WRITE;
+        }
+        if (!waiting_reply && !blocked && output_size < MAX_PENDING_OUTPUT) {
+          ops |= SelectionKey.OP_READ;
+        }
+      }
+      key.interestOps(ops);
+    }
+
+    /**
+     * Called when a service this connection is waiting for has room for
+     * more requests.
+     */
+    void resume() {
+      selector.post(new Runnable() {
+        @Override
+        public void run() {
+          if (closed) {
+            return;
+          }
+          blocked = false;
+          try {
+            processInput();
+            updateInterest();
+          }
+          catch (IOException e) {
+            log.log(Level.FINE, "IO Error during connection input", e);
+            close();
+          }
+          catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Exception on connection", e);
+            close();
+          }
+        }
+      });
+    }
+
+    /**
+     * Closes the connection from the selector thread.
+     */
+    private void postClose() {
+      selector.post(new Runnable() {
+        @Override
+        public void run() {
+          close();
+        }
+      });
+    }
+
+    /**
+     * Closes the connection. Must be called on the selector thread.
+     */
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      }
+      catch (ClosedChannelException e) {
+        // Ignore
+      }
+      catch (IOException e) {
+        log.log(Level.SEVERE, "IO Error on connection close", e);
+      }
+    }
+
+  }
+
+}
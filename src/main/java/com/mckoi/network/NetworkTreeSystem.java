@@ -25,6 +25,16 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -91,6 +101,73 @@ class NetworkTreeSystem implements TreeSystem {
    */
   private long max_transaction_node_heap_size = 32 * 1024 * 1024;
 
+  /**
+   * The number of replicas of a block that must be written for a tree write
+   * to succeed, or 0 if all the replicas must be written.
+   */
+  private volatile int write_quorum = 0;
+
+  /**
+   * The percentile of a block server's recent latency after which a read
+   * that hasn't been answered is also sent to another server with the block,
+   * or 0 if hedged reads are disabled.
+   */
+  private volatile double hedged_read_percentile = 0;
+
+  /**
+   * The executor that sends hedged node reads to the block servers.  A read
+   * that can't be handed to a thread is made on the reading thread without
+   * a hedge.  The threads time out when idle, and the executor is shut down
+   * when the tree system is stopped.
+   */
+  private final ThreadPoolExecutor hedge_executor =
+                    new ThreadPoolExecutor(0, 16, 30, TimeUnit.SECONDS,
+                                new SynchronousQueue<Runnable>(),
+                                new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Mckoi network hedged read");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * The executor that sends node writes to the replicas of a block
+   * concurrently.  A write that can't be queued is processed on the thread
+   * performing the tree write.  The threads time out when idle, and the
+   * executor is shut down when the tree system is stopped.
+   */
+  private final ThreadPoolExecutor write_executor =
+                    new ThreadPoolExecutor(8, 8, 30, TimeUnit.SECONDS,
+                                new ArrayBlockingQueue<Runnable>(64),
+                                new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Mckoi network write");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * The executor that fetches nodes in the background for read-ahead.  The
+   * fetches are only hints, so a request is discarded if the queue is full.
+   * The threads time out when idle, and the executor is shut down when the
+   * tree system is stopped.
+   */
+  private final ThreadPoolExecutor read_ahead_executor =
+                    new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS,
+                                new ArrayBlockingQueue<Runnable>(64),
+                                new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Mckoi network read-ahead");
+      t.setDaemon(true);
+      return t;
+    }
+  }, new ThreadPoolExecutor.DiscardPolicy());
+
 
 
   // ---------- Stop condition handling ----------
@@ -130,6 +207,20 @@ class NetworkTreeSystem implements TreeSystem {
 
     log = Logger.getLogger("com.mckoi.network.Log");
 
+    read_ahead_executor.allowCoreThreadTimeOut(true);
+    write_executor.allowCoreThreadTimeOut(true);
+
+  }
+
+  /**
+   * Stops the background work of this tree system.  Read-ahead requests
+   * that have not started are discarded.  Node writes that are queued are
+   * still sent.
+   */
+  void stop() {
+    read_ahead_executor.shutdownNow();
+    write_executor.shutdown();
+    hedge_executor.shutdown();
   }
 
 
@@ -744,6 +835,37 @@ class NetworkTreeSystem implements TreeSystem {
     max_transaction_node_heap_size = size_in_bytes;
   }
 
+  /**
+   * Sets the number of replicas of each block that must be written for a
+   * tree write to succeed. 0 (the default) means all the replicas must be
+   * written. When a write succeeds without all the replicas, the block
+   * servers that failed are reported to the manager servers.
+   * <p>
+   * The nodes are not written again to the replicas that failed, so these
+   * replicas are missing the nodes until the block is copied to them again.
+   * A write quorum should only be used when the managers replace the
+   * replicas of block servers that are reported as failed.
+   */
+  void setWriteQuorum(int write_quorum) {
+    if (write_quorum < 0) {
+      throw new IllegalArgumentException("Negative write quorum");
+    }
+    this.write_quorum = write_quorum;
+  }
+
+  /**
+   * Sets the percentile (between 0 and 1) of a block server's recent
+   * latency after which a node read that hasn't been answered is also sent
+   * to the next server with the block. The first reply is used. 0 (the
+   * default) disables hedged reads.
+   */
+  void setHedgedReadPercentile(double percentile) {
+    if (percentile < 0 || percentile >= 1) {
+      throw new IllegalArgumentException("Invalid percentile: " + percentile);
+    }
+    this.hedged_read_percentile = percentile;
+  }
+
 
   /**
    * {@inhericDoc}
@@ -1050,6 +1172,349 @@ interface_loop:
     return result_map;
   }
 
+  /**
+   * Returns a copy of the list of block servers ordered by the observed
+   * latency of the servers. Servers without recent latency samples are
+   * ordered first so they are measured, and servers with the same latency
+   * stay in the order of the given list.
+   */
+  private List<BlockServerElement> orderByLatency(
+                                         List<BlockServerElement> servers) {
+    int sz = servers.size();
+    if (sz <= 1) {
+      return servers;
+    }
+    ArrayList<BlockServerElement> ordered = new ArrayList<>(servers);
+    long[] latency = new long[sz];
+    for (int i = 0; i < sz; ++i) {
+      latency[i] = Math.max(0,
+              service_tracker.getLatencyEstimate(servers.get(i).getAddress()));
+    }
+    // Insertion sort (the list is short and the sort must be stable),
+    for (int i = 1; i < sz; ++i) {
+      long l = latency[i];
+      BlockServerElement elem = ordered.get(i);
+      int j = i - 1;
+      while (j >= 0 && latency[j] > l) {
+        latency[j + 1] = latency[j];
+        ordered.set(j + 1, ordered.get(j));
+        --j;
+      }
+      latency[j + 1] = l;
+      ordered.set(j + 1, elem);
+    }
+    return ordered;
+  }
+
+  /**
+   * A 'readFromBlock' request to a block server. The latency of successful
+   * requests is recorded in the service tracker.
+   */
+  private class NodeFetch implements Runnable {
+
+    private final BlockServerElement server;
+    private final MessageStream message_out;
+
+    /**
+     * If not null, the fetch is added to this queue when it completes.
+     */
+    private final LinkedBlockingQueue<NodeFetch> done;
+
+    private ProcessResult result;
+
+    NodeFetch(BlockServerElement server, MessageStream message_out,
+              LinkedBlockingQueue<NodeFetch> done) {
+      this.server = server;
+      this.message_out = message_out;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        long start_time = System.nanoTime();
+        ProcessResult message_in = connector.connectBlockServer(
+                                   server.getAddress()).process(message_out);
+        long latency = System.nanoTime() - start_time;
+        network_comm_count.incrementAndGet();
+        network_fetch_comm_count.incrementAndGet();
+
+        boolean is_error = false;
+        for (Message m : message_in) {
+          if (m.isError()) {
+            is_error = true;
+            break;
+          }
+        }
+        if (!is_error) {
+          service_tracker.recordLatency(server.getAddress(), latency);
+        }
+        result = message_in;
+      }
+      catch (RuntimeException e) {
+        // Turn the exception into an error reply, so a thread waiting for
+        // the fetch isn't left waiting,
+        if (done == null) {
+          throw e;
+        }
+        MessageStream msg_result = new MessageStream(16);
+        msg_result.addMessage("E");
+        msg_result.addExternalThrowable(new ExternalThrowable(e));
+        msg_result.closeMessage();
+        result = msg_result;
+      }
+      finally {
+        if (done != null) {
+          done.add(this);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Decodes the nodes in the reply of a 'readFromBlock' request from the
+   * given block server, adding them to the 'nodes' list and the local cache.
+   * Returns true if the reply was read successfully. Otherwise the failure is
+   * reported and false is returned, and the request should be retried on
+   * another server.
+   */
+  private boolean readNodeReply(ProcessResult message_in,
+                  BlockServerElement server, BlockId block_id,
+                  ArrayList<TreeNode> nodes) {
+
+    // Checksumming objects
+    byte[] checksum_buf = null;
+    CRC32 crc32 = null;
+
+    boolean is_error = false;
+    boolean severe_error = false;
+    boolean crc_error = false;
+    boolean connection_error = false;
+
+    // Turn each none-error message into a node
+    for (Message m : message_in) {
+      if (m.isError()) {
+        // See if this error is a block read error. If it is, we don't
+        // tell the manager server to lock this server out completely.
+        ExternalThrowable error_et = m.getExternalThrowable();
+        boolean is_block_read_error =
+                     error_et.getClassName().equals(
+                                 "com.mckoi.network.BlockReadException");
+
+        // Log the error as a warning
+        log.log(Level.WARNING, "Error in message from block server: {0}\n{1}",
+                new Object[] { m.getErrorMessage(),
+                               error_et.getStackTrace()
+                             });
+
+        // If it's a connection fault,
+        if (isConnectionFailMessage(m)) {
+          connection_error = true;
+        }
+        else if (!is_block_read_error) {
+          // If it's something other than a block read error or
+          // connection failure, we set the severe flag,
+          severe_error = true;
+        }
+        is_error = true;
+      }
+      else if (is_error == false) {
+        // The reply contains the block of data read.
+        NodeSet node_set = (NodeSet) m.param(0);
+
+        DataAddress address = null;
+
+        // Catch any IOExceptions (corrupt zips, etc)
+        try {
+          // Decode the node items into Java node objects,
+          Iterator<NodeItemBinary> item_iterator =
+                                             node_set.getNodeSetItems();
+
+          while (item_iterator.hasNext()) {
+            // Get the node item,
+            NodeItemBinary node_item = item_iterator.next();
+
+            NodeReference node_ref = node_item.getNodeId();
+
+            address = new DataAddress(node_ref);
+            // Wrap around a buffered DataInputStream for reading values
+            // from the store.
+            DataInputStream in =
+                        new DataInputStream(node_item.getInputStream());
+            short node_type = in.readShort();
+
+            TreeNode read_node = null;
+
+            if (crc32 == null) crc32 = new CRC32();
+            crc32.reset();
+
+            // If it's a null node type (not stored)
+            if (node_type == 0) {
+              // Nothing to do here,
+            }
+            // Is the node type a leaf node?
+            else if (node_type == STORE_LEAF_TYPE) {
+              // Read the checksum,
+              in.readShort();  // For future use...
+              int checksum = in.readInt();
+              // Read the size
+              int leaf_size = in.readInt();
+
+              byte[] buf = node_item.asBinary();
+              if (buf == null) {
+                buf = new byte[leaf_size + 12];
+                ByteArrayUtil.setInt(leaf_size, buf, 8);
+                in.readFully(buf, 12, leaf_size);
+              }
+
+              // Check the checksum...
+              crc32.update(buf, 8, leaf_size + 4);
+              int calc_checksum = (int) crc32.getValue();
+              if (checksum != calc_checksum) {
+                // If there's a CRC failure, we reject his node,
+                log.log(Level.WARNING,
+                        "CRC failure on node {0} @ {1}",
+                        new Object[] {
+                              node_ref.toString(),
+                              server.getAddress().displayString()
+                        });
+                is_error = true;
+                crc_error = true;
+                // This causes the read to retry on a different server
+                // with this block id
+              }
+              else {
+                // Create a leaf that's mapped to this data
+                TreeNode leaf = new ByteArrayTreeLeaf(node_ref, buf);
+                read_node = leaf;
+              }
+
+            }
+            // Is the node type a branch node?
+            else if (node_type == STORE_BRANCH_TYPE) {
+              // Read the checksum,
+              in.readShort();  // For future use...
+              int checksum = in.readInt();
+
+              // Check the checksum objects,
+              if (checksum_buf == null) checksum_buf = new byte[8];
+
+              // Note that the entire branch is loaded into memory,
+              int child_data_size = in.readInt();
+              ByteArrayUtil.setInt(child_data_size, checksum_buf, 0);
+              crc32.update(checksum_buf, 0, 4);
+              long[] data_arr = new long[child_data_size];
+              for (int n = 0; n < child_data_size; ++n) {
+                long item = in.readLong();
+                ByteArrayUtil.setLong(item, checksum_buf, 0);
+                crc32.update(checksum_buf, 0, 8);
+                data_arr[n] = item;
+              }
+
+              // The calculated checksum value,
+              int calc_checksum = (int) crc32.getValue();
+              if (checksum != calc_checksum) {
+                // If there's a CRC failure, we reject his node,
+                log.log(Level.WARNING,
+                        "CRC failure on node {0} @ {1}",
+                        new Object[] {
+                              node_ref.toString(),
+                              server.getAddress().displayString()
+                        });
+                is_error = true;
+                crc_error = true;
+                // This causes the read to retry on a different server
+                // with this block id
+              }
+              else {
+                // Create the branch node,
+                TreeBranch branch =
+                        new TreeBranch(node_ref, data_arr, child_data_size);
+                read_node = branch;
+              }
+
+            }
+            else {
+              log.log(Level.SEVERE, "Unknown node {0} type: {1}",
+                      new Object[] { address.toString(), node_type });
+              is_error = true;
+  //                  throw new InvalidDataState(
+  //                          "Unknown node " + address.toString() +
+  //                          " type: " + node_type, address);
+            }
+
+            // Is the node already in the list? If so we don't add it.
+            if (read_node != null && !isInNodeList(node_ref, nodes)) {
+              // Put the read node in the cache and add it to the 'nodes'
+              // list.
+              local_network_cache.putNode(address, read_node);
+              nodes.add(read_node);
+            }
+
+          }  // while (item_iterator.hasNext())
+
+        }
+        catch (IOException e) {
+          // This catches compression errors, as well as any other misc
+          // IO errors.
+          if (address != null) {
+            log.log(Level.SEVERE,
+                    "IO Error reading node {0}", address.toString() );
+          }
+          log.log(Level.SEVERE, e.getMessage(), e);
+          is_error = true;
+        }
+
+      }
+
+    }  // for (Message m : message_in)
+
+    // If there was no error while reading the result, we assume the node
+    // requests were successfully read.
+    if (is_error == false) {
+      return true;
+    }
+    else {
+      // If this is a connection failure, we report the block failure.
+      if (connection_error) {
+        // If this is an error, we need to report the failure to the
+        // manager server,
+        reportBlockServerFailure(server.getAddress());
+        // Remove the block id from the server list cache,
+        local_network_cache.removeServersWithBlock(block_id);
+      }
+      else {
+        String fail_type = "General";
+        if (crc_error) {
+          fail_type = "CRC Failure";
+        }
+        else if (severe_error) {
+          fail_type = "Exception during process";
+        }
+
+        // Report to the first manager the block failure, so it may
+        // investigate and hopefully correct.
+        reportBlockIdCorruption(server.getAddress(), block_id, fail_type);
+
+        // Otherwise, not a severe error (probably a corrupt block on a
+        // server), so shuffle the server list for this block_id so next
+        // time there's less chance of hitting this bad block.
+        List<BlockServerElement> srvs =
+                      local_network_cache.getServersWithBlock(block_id);
+        if (srvs != null) {
+          ArrayList<BlockServerElement> server_list = new ArrayList();
+          server_list.addAll(srvs);
+          Collections.shuffle(server_list);
+          local_network_cache.putServersForBlock(block_id,
+                                            server_list, 15 * 60 * 1000);
+        }
+      }
+      // We will now go retry the query on the next block server,
+    }
+    return false;
+  }
+
   /**
    * {@inhericDoc}
    */
@@ -1126,10 +1591,6 @@ interface_loop:
     // The result nodes list,
     ArrayList<TreeNode> nodes = new ArrayList();
 
-    // Checksumming objects
-    byte[] checksum_buf = null;
-    CRC32 crc32 = null;
-
     // For each unique block list,
     for (ArrayList<NodeReference> blist : unique_block_list) {
       // Make a block server request for each node in the block,
@@ -1148,257 +1609,91 @@ interface_loop:
         throw new RuntimeException("block_id == null");
       }
 
-      // Get the shuffled list of servers the block is stored on,
-      List<BlockServerElement> servers = servers_map.get(block_id);
+      // Order the servers the block is stored on by observed latency,
+      List<BlockServerElement> servers =
+                                 orderByLatency(servers_map.get(block_id));
 
       // Go through the servers one at a time to fetch the block,
       boolean success = false;
-      for (int z = 0; z < servers.size() && !success; ++z) {
+      int z = 0;
+      while (z < servers.size() && !success) {
         BlockServerElement server = servers.get(z);
-//        System.out.println("CHECKING: " + server.getAddress());
-//        System.out.println("  Status: " + server.isStatusUp());
-//        System.out.println("  servers.size() = " + servers.size());
-//        System.out.println("  z = " + z);
+        ++z;
         // If the server is up,
         if (server.isStatusUp()) {
 
-          // Open a connection with the block server,
-          MessageProcessor block_server_proc =
-                       connector.connectBlockServer(server.getAddress());
-          ProcessResult message_in =
-                       block_server_proc.process(block_server_msg);
-          network_comm_count.incrementAndGet();
-          network_fetch_comm_count.incrementAndGet();
-//          System.out.println(network_fetch_comm_count);
-          boolean is_error = false;
-          boolean severe_error = false;
-          boolean crc_error = false;
-          boolean connection_error = false;
-
-          // Turn each none-error message into a node
-          for (Message m : message_in) {
-            if (m.isError()) {
-              // See if this error is a block read error. If it is, we don't
-              // tell the manager server to lock this server out completely.
-              ExternalThrowable error_et = m.getExternalThrowable();
-              boolean is_block_read_error =
-                           error_et.getClassName().equals(
-                                       "com.mckoi.network.BlockReadException");
-
-              // Log the error as a warning
-              log.log(Level.WARNING, "Error in message from block server: {0}\n{1}",
-                      new Object[] { m.getErrorMessage(),
-                                     error_et.getStackTrace()
-                                   });
-
-              // If it's a connection fault,
-              if (isConnectionFailMessage(m)) {
-                connection_error = true;
-              }
-              else if (!is_block_read_error) {
-                // If it's something other than a block read error or
-                // connection failure, we set the severe flag,
-                severe_error = true;
-              }
-              is_error = true;
+          // If hedged reads are enabled, find the next server that's up and
+          // the time to wait for a reply before sending the request to it,
+          long hedge_delay = -1;
+          int hedge_z = z;
+          double percentile = hedged_read_percentile;
+          if (percentile > 0) {
+            while (hedge_z < servers.size() &&
+                   !servers.get(hedge_z).isStatusUp()) {
+              ++hedge_z;
             }
-            else if (is_error == false) {
-              // The reply contains the block of data read.
-              NodeSet node_set = (NodeSet) m.param(0);
-
-              DataAddress address = null;
-
-              // Catch any IOExceptions (corrupt zips, etc)
-              try {
-                // Decode the node items into Java node objects,
-                Iterator<NodeItemBinary> item_iterator =
-                                                   node_set.getNodeSetItems();
-
-                while (item_iterator.hasNext()) {
-                  // Get the node item,
-                  NodeItemBinary node_item = item_iterator.next();
-
-                  NodeReference node_ref = node_item.getNodeId();
-
-                  address = new DataAddress(node_ref);
-                  // Wrap around a buffered DataInputStream for reading values
-                  // from the store.
-                  DataInputStream in =
-                              new DataInputStream(node_item.getInputStream());
-                  short node_type = in.readShort();
-
-                  TreeNode read_node = null;
-
-                  if (crc32 == null) crc32 = new CRC32();
-                  crc32.reset();
-
-                  // If it's a null node type (not stored)
-                  if (node_type == 0) {
-                    // Nothing to do here,
-                  }
-                  // Is the node type a leaf node?
-                  else if (node_type == STORE_LEAF_TYPE) {
-                    // Read the checksum,
-                    in.readShort();  // For future use...
-                    int checksum = in.readInt();
-                    // Read the size
-                    int leaf_size = in.readInt();
-
-                    byte[] buf = node_item.asBinary();
-                    if (buf == null) {
-                      buf = new byte[leaf_size + 12];
-                      ByteArrayUtil.setInt(leaf_size, buf, 8);
-                      in.readFully(buf, 12, leaf_size);
-                    }
-
-                    // Check the checksum...
-                    crc32.update(buf, 8, leaf_size + 4);
-                    int calc_checksum = (int) crc32.getValue();
-                    if (checksum != calc_checksum) {
-                      // If there's a CRC failure, we reject his node,
-                      log.log(Level.WARNING,
-                              "CRC failure on node {0} @ {1}",
-                              new Object[] {
-                                    node_ref.toString(),
-                                    server.getAddress().displayString()
-                              });
-                      is_error = true;
-                      crc_error = true;
-                      // This causes the read to retry on a different server
-                      // with this block id
-                    }
-                    else {
-                      // Create a leaf that's mapped to this data
-                      TreeNode leaf = new ByteArrayTreeLeaf(node_ref, buf);
-                      read_node = leaf;
-                    }
-
-                  }
-                  // Is the node type a branch node?
-                  else if (node_type == STORE_BRANCH_TYPE) {
-                    // Read the checksum,
-                    in.readShort();  // For future use...
-                    int checksum = in.readInt();
-
-                    // Check the checksum objects,
-                    if (checksum_buf == null) checksum_buf = new byte[8];
-
-                    // Note that the entire branch is loaded into memory,
-                    int child_data_size = in.readInt();
-                    ByteArrayUtil.setInt(child_data_size, checksum_buf, 0);
-                    crc32.update(checksum_buf, 0, 4);
-                    long[] data_arr = new long[child_data_size];
-                    for (int n = 0; n < child_data_size; ++n) {
-                      long item = in.readLong();
-                      ByteArrayUtil.setLong(item, checksum_buf, 0);
-                      crc32.update(checksum_buf, 0, 8);
-                      data_arr[n] = item;
-                    }
-
-                    // The calculated checksum value,
-                    int calc_checksum = (int) crc32.getValue();
-                    if (checksum != calc_checksum) {
-                      // If there's a CRC failure, we reject his node,
-                      log.log(Level.WARNING,
-                              "CRC failure on node {0} @ {1}",
-                              new Object[] {
-                                    node_ref.toString(),
-                                    server.getAddress().displayString()
-                              });
-                      is_error = true;
-                      crc_error = true;
-                      // This causes the read to retry on a different server
-                      // with this block id
-                    }
-                    else {
-                      // Create the branch node,
-                      TreeBranch branch =
-                              new TreeBranch(node_ref, data_arr, child_data_size);
-                      read_node = branch;
-                    }
-
-                  }
-                  else {
-                    log.log(Level.SEVERE, "Unknown node {0} type: {1}",
-                            new Object[] { address.toString(), node_type });
-                    is_error = true;
-  //                  throw new InvalidDataState(
-  //                          "Unknown node " + address.toString() +
-  //                          " type: " + node_type, address);
-                  }
-
-                  // Is the node already in the list? If so we don't add it.
-                  if (read_node != null && !isInNodeList(node_ref, nodes)) {
-                    // Put the read node in the cache and add it to the 'nodes'
-                    // list.
-                    local_network_cache.putNode(address, read_node);
-                    nodes.add(read_node);
-                  }
-
-                }  // while (item_iterator.hasNext())
-
-              }
-              catch (IOException e) {
-                // This catches compression errors, as well as any other misc
-                // IO errors.
-                if (address != null) {
-                  log.log(Level.SEVERE,
-                          "IO Error reading node {0}", address.toString() );
-                }
-                log.log(Level.SEVERE, e.getMessage(), e);
-                is_error = true;
-              }
-
+            if (hedge_z < servers.size()) {
+              hedge_delay = service_tracker.getLatencyPercentile(
+                                             server.getAddress(), percentile);
             }
+          }
 
-          }  // for (Message m : message_in)
+          // Send the request to the executor when the read is hedged,
+          LinkedBlockingQueue<NodeFetch> done = null;
+          if (hedge_delay >= 0) {
+            done = new LinkedBlockingQueue<>();
+            try {
+              hedge_executor.execute(
+                                new NodeFetch(server, block_server_msg, done));
+            }
+            catch (RejectedExecutionException e) {
+              done = null;
+            }
+          }
 
-          // If there was no error while reading the result, we assume the node
-          // requests were successfully read.
-          if (is_error == false) {
-            success = true;
+          // Fetch from the server on this thread,
+          if (done == null) {
+            NodeFetch fetch = new NodeFetch(server, block_server_msg, null);
+            fetch.run();
+            success = readNodeReply(fetch.result, server, block_id, nodes);
           }
+          // Otherwise send a hedged request to the next server if this
+          // server hasn't replied within the delay,
           else {
-            // If this is a connection failure, we report the block failure.
-            if (connection_error) {
-              // If this is an error, we need to report the failure to the
-              // manager server,
-              reportBlockServerFailure(server.getAddress());
-              // Remove the block id from the server list cache,
-              local_network_cache.removeServersWithBlock(block_id);
-            }
-            else {
-              String fail_type = "General";
-              if (crc_error) {
-                fail_type = "CRC Failure";
+            try {
+              NodeFetch fetch = done.poll(hedge_delay, TimeUnit.NANOSECONDS);
+              int outstanding = 1;
+              if (fetch == null) {
+                try {
+                  hedge_executor.execute(new NodeFetch(
+                              servers.get(hedge_z), block_server_msg, done));
+                  z = hedge_z + 1;
+                  ++outstanding;
+                }
+                catch (RejectedExecutionException e) {
+                  // Wait for the first server,
+                }
+                fetch = done.take();
               }
-              else if (severe_error) {
-                fail_type = "Exception during process";
-              }
-
-              // Report to the first manager the block failure, so it may
-              // investigate and hopefully correct.
-              reportBlockIdCorruption(server.getAddress(), block_id, fail_type);
-
-              // Otherwise, not a severe error (probably a corrupt block on a
-              // server), so shuffle the server list for this block_id so next
-              // time there's less chance of hitting this bad block.
-              List<BlockServerElement> srvs =
-                            local_network_cache.getServersWithBlock(block_id);
-              if (srvs != null) {
-                ArrayList<BlockServerElement> server_list = new ArrayList();
-                server_list.addAll(srvs);
-                Collections.shuffle(server_list);
-                local_network_cache.putServersForBlock(block_id,
-                                                  server_list, 15 * 60 * 1000);
+              --outstanding;
+              success = readNodeReply(
+                                fetch.result, fetch.server, block_id, nodes);
+              // If the first reply failed, use the other reply,
+              if (!success && outstanding > 0) {
+                fetch = done.take();
+                success = readNodeReply(
+                                fetch.result, fetch.server, block_id, nodes);
               }
             }
-            // We will now go retry the query on the next block server,
+            catch (InterruptedException e) {
+              throw new Error("Interrupted", e);
+            }
           }
 
         }
       }
 
+
       // If the nodes were not successfully read, we generate an exception,
       if (!success) {
         // Remove from the cache,
@@ -1485,6 +1780,25 @@ interface_loop:
     return (local_network_cache.getNode(address) != null);
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void readAhead(final NodeReference[] node_refs) {
+    read_ahead_executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          fetchNode(node_refs);
+        }
+        catch (RuntimeException e) {
+          // Read-ahead is only a hint, so failures are ignored here.  Any
+          // error will be reported when the node is fetched for real.
+        }
+      }
+    });
+  }
+
   /**
    * Returns true if the given reference is in the given node list.
    */
@@ -1677,92 +1991,134 @@ interface_loop:
 
     }
 
-    // A log of successfully processed operations,
-    ArrayList success_process = new ArrayList(64);
-
-    // Now process the streams on the servers,
+    // Send the writes to all the replicas of all the blocks at once, so the
+    // write costs the slowest round trip rather than the sum of them all,
+    ArrayList<ReplicaWrite> writes = new ArrayList<>();
     for (int i = 0; i < ubid_stream.length; ++i) {
-      // The output message,
-      MessageStream message_out = ubid_stream[i];
-      // Get the servers this message needs to be sent to,
       BlockId block_id = unique_blocks.get(i);
-      List<BlockServerElement> block_servers = block_to_server_map.get(block_id);
-      // Format a message for writing this node out,
-      int bssz = block_servers.size();
-      MessageProcessor[] block_server_procs = new MessageProcessor[bssz];
-      // Make the block server connections,
-      for (int o = 0; o < bssz; ++o) {
-        ServiceAddress address = block_servers.get(o).getAddress();
-        block_server_procs[o] = connector.connectBlockServer(address);
-        ProcessResult message_in = block_server_procs[o].process(message_out);
-        network_comm_count.incrementAndGet();
+      for (BlockServerElement block_server :
+                                       block_to_server_map.get(block_id)) {
+        writes.add(new ReplicaWrite(
+                      block_id, block_server.getAddress(), ubid_stream[i]));
+      }
+    }
+    // The first write is processed on this thread,
+    for (int i = 1; i < writes.size(); ++i) {
+      writes.get(i).submit();
+    }
+    if (!writes.isEmpty()) {
+      writes.get(0).process();
+    }
 
-        for (Message m : message_in) {
-          if (m.isError()) {
-            // If this is an error, we need to report the failure to the
-            // manager server,
-            reportBlockServerFailure(address);
-            // Remove the block id from the server list cache,
-            local_network_cache.removeServersWithBlock(block_id);
-
-            // Rollback any server writes already successfully made,
-            for (int p = 0; p < success_process.size(); p += 2) {
-              ServiceAddress blocks_addr = (ServiceAddress) success_process.get(p);
-              MessageStream to_rollback = (MessageStream) success_process.get(p + 1);
-
-              ArrayList<DataAddress> rollback_nodes = new ArrayList(128);
-              for (Message rm : to_rollback) {
-                DataAddress raddr = (DataAddress) rm.param(0);
-                rollback_nodes.add(raddr);
-              }
-              // Create the rollback message,
-              MessageStream rollback_msg = new MessageStream(16);
-              rollback_msg.addMessage("rollbackNodes");
-              rollback_msg.addDataAddressArr(rollback_nodes.toArray(
-                                   new DataAddress[rollback_nodes.size()]));
-              rollback_msg.closeMessage();
-
-              // Send it to the block server,
-              ProcessResult msg_in =
-                      connector.connectBlockServer(blocks_addr).process(
-                                                               rollback_msg);
-              network_comm_count.incrementAndGet();
-              for (Message rbm : msg_in) {
-                // If rollback generated an error we throw the error now
-                // because this likely is a serious network error.
-                if (rbm.isError()) {
-
-                  log.log(Level.SEVERE, "'internalPerformTreeWrite' command failed: {0}",
-                                        m.getErrorMessage());
-                  log.log(Level.SEVERE, m.getExternalThrowable().getStackTrace());
-
-                  throw new NetworkWriteException(
-                        "Write failed (rollback failed): " + rbm.getErrorMessage());
-                }
-              }
+    // Gather the results,
+    int quorum = write_quorum;
+    HashMap<BlockId, Integer> success_counts = new HashMap<>();
+    // A log of successfully processed operations,
+    ArrayList<ReplicaWrite> success_process = new ArrayList<>(writes.size());
+    Message error_message = null;
+    for (ReplicaWrite write : writes) {
+      network_comm_count.incrementAndGet();
+      Message m = write.getError();
+      if (m != null) {
+        // If this is an error, we need to report the failure to the
+        // manager server,
+        reportBlockServerFailure(write.address);
+        // Remove the block id from the server list cache,
+        local_network_cache.removeServersWithBlock(write.block_id);
+        if (error_message == null) {
+          error_message = m;
+        }
+      }
+      else {
+        // If we succeeded without an error, add to the log
+        success_process.add(write);
+        Integer count = success_counts.get(write.block_id);
+        success_counts.put(write.block_id, (count == null) ? 1 : count + 1);
+      }
+    }
 
-            }
+    // The write succeeds if each block was written to all its servers, or to
+    // at least the write quorum of servers,
+    boolean success = true;
+    if (error_message != null) {
+      for (BlockId block_id : unique_blocks) {
+        int server_count = block_to_server_map.get(block_id).size();
+        int required = (quorum == 0) ?
+                                server_count : Math.min(quorum, server_count);
+        Integer count = success_counts.get(block_id);
+        if (count == null || count < required) {
+          success = false;
+          break;
+        }
+      }
+    }
 
-            // Retry,
-            if (try_count > 0) {
-              return internalPerformTreeWrite(sequence, try_count - 1);
-            }
-            // Otherwise we fail the write
-            else {
+    // If the write succeeded without all the replicas, the replicas that
+    // failed are missing the nodes,
+    if (success && error_message != null) {
+      for (ReplicaWrite write : writes) {
+        if (!success_process.contains(write)) {
+          log.log(Level.WARNING,
+                  "Block {0} at {1} is missing nodes from a quorum write",
+                  new Object[] { write.block_id,
+                                 write.address.displayString() });
+        }
+      }
+    }
 
-              log.log(Level.WARNING, "'internalPerformTreeWrite' command failed: {0}",
-                                     m.getErrorMessage());
-              log.log(Level.WARNING, m.getExternalThrowable().getStackTrace());
+    if (!success) {
+      Message m = error_message;
 
-              throw new NetworkWriteException(m.getErrorMessage());
-            }
+      // Rollback any server writes already successfully made,
+      for (ReplicaWrite write : success_process) {
+        ServiceAddress blocks_addr = write.address;
+        MessageStream to_rollback = write.message_out;
+
+        ArrayList<DataAddress> rollback_nodes = new ArrayList(128);
+        for (Message rm : to_rollback) {
+          DataAddress raddr = (DataAddress) rm.param(0);
+          rollback_nodes.add(raddr);
+        }
+        // Create the rollback message,
+        MessageStream rollback_msg = new MessageStream(16);
+        rollback_msg.addMessage("rollbackNodes");
+        rollback_msg.addDataAddressArr(rollback_nodes.toArray(
+                             new DataAddress[rollback_nodes.size()]));
+        rollback_msg.closeMessage();
+
+        // Send it to the block server,
+        ProcessResult msg_in =
+                connector.connectBlockServer(blocks_addr).process(
+                                                         rollback_msg);
+        network_comm_count.incrementAndGet();
+        for (Message rbm : msg_in) {
+          // If rollback generated an error we throw the error now
+          // because this likely is a serious network error.
+          if (rbm.isError()) {
+
+            log.log(Level.SEVERE, "'internalPerformTreeWrite' command failed: {0}",
+                                  m.getErrorMessage());
+            log.log(Level.SEVERE, m.getExternalThrowable().getStackTrace());
+
+            throw new NetworkWriteException(
+                  "Write failed (rollback failed): " + rbm.getErrorMessage());
           }
         }
 
-        // If we succeeded without an error, add to the log
-        success_process.add(address);
-        success_process.add(message_out);
+      }
+
+      // Retry,
+      if (try_count > 0) {
+        return internalPerformTreeWrite(sequence, try_count - 1);
+      }
+      // Otherwise we fail the write
+      else {
 
+        log.log(Level.WARNING, "'internalPerformTreeWrite' command failed: {0}",
+                               m.getErrorMessage());
+        log.log(Level.WARNING, m.getExternalThrowable().getStackTrace());
+
+        throw new NetworkWriteException(m.getErrorMessage());
       }
     }
 
@@ -1771,6 +2127,91 @@ interface_loop:
 
   }
 
+  /**
+   * The write of a block's nodes to one of the block servers that stores the
+   * block.
+   */
+  private class ReplicaWrite implements Callable<ProcessResult> {
+
+    private final BlockId block_id;
+    private final ServiceAddress address;
+    private final MessageStream message_out;
+
+    /**
+     * The result of the write when it was processed on the calling thread.
+     */
+    private ProcessResult result;
+
+    /**
+     * The result of the write when it was submitted to the write executor.
+     */
+    private Future<ProcessResult> future_result;
+
+    ReplicaWrite(BlockId block_id, ServiceAddress address,
+                 MessageStream message_out) {
+      this.block_id = block_id;
+      this.address = address;
+      this.message_out = message_out;
+    }
+
+    @Override
+    public ProcessResult call() {
+      return connector.connectBlockServer(address).process(message_out);
+    }
+
+    /**
+     * Submits the write to the write executor, or processes it on the
+     * calling thread if the executor can't take it.
+     */
+    void submit() {
+      try {
+        future_result = write_executor.submit(this);
+      }
+      catch (RejectedExecutionException e) {
+        process();
+      }
+    }
+
+    /**
+     * Processes the write on the calling thread.
+     */
+    void process() {
+      result = call();
+    }
+
+    /**
+     * Waits for the write to complete and returns the first error message
+     * of the result, or null if the write succeeded.
+     */
+    Message getError() {
+      if (future_result != null) {
+        try {
+          result = future_result.get();
+        }
+        catch (InterruptedException e) {
+          throw new Error("Interrupted", e);
+        }
+        catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+      for (Message m : result) {
+        if (m.isError()) {
+          return m;
+        }
+      }
+      return null;
+    }
+
+  }
+
   /**
    * Performs the sequence of node write operations described by the given
    * TreeWriteSequence object. This is used to flush a complete tree write
@@ -18,6 +18,8 @@
 package com.mckoi.network;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,6 +29,9 @@ import java.util.logging.Logger;
  * attempted operation, this object is notified of the failure. This tracker
  * will then actively poll the service in the background until it is
  * determined to be available again.
+ * <p>
+ * This object also tracks the observed response latency of services, so
+ * clients can prefer the services that are currently responding fastest.
  *
  * @author Tobias Downer
  */
@@ -76,6 +81,11 @@ public final class ServiceStatusTracker {
    */
   private final ArrayList<ServiceStatusListener> listeners;
 
+  /**
+   * The observed latency of services, keyed by service address.
+   */
+  private final HashMap<ServiceAddress, LatencyStats> latency_map;
+
   /**
    * The logger.
    */
@@ -88,6 +98,7 @@ public final class ServiceStatusTracker {
   public ServiceStatusTracker(NetworkConnector network) {
     this.monitored_servers = new ArrayList(128);
     this.listeners = new ArrayList(8);
+    this.latency_map = new HashMap<>();
 
     this.heartbeat_thread =
                    new HeartbeatThread(network, monitored_servers, listeners);
@@ -232,6 +243,152 @@ public final class ServiceStatusTracker {
 
 
 
+  /**
+   * Records the time it took the service at the given address to respond to
+   * a request, in nanoseconds.
+   */
+  public void recordLatency(ServiceAddress address, long latency_nanos) {
+    LatencyStats stats;
+    synchronized (latency_map) {
+      stats = latency_map.get(address);
+      if (stats == null) {
+        stats = new LatencyStats();
+        latency_map.put(address, stats);
+      }
+    }
+    stats.addSample(latency_nanos);
+  }
+
+  /**
+   * Returns the exponentially weighted moving average of the latency of the
+   * service at the given address in nanoseconds, or -1 if there are no
+   * recent samples for the service.
+   */
+  public long getLatencyEstimate(ServiceAddress address) {
+    LatencyStats stats;
+    synchronized (latency_map) {
+      stats = latency_map.get(address);
+    }
+    return (stats == null) ? -1 : stats.getAverage();
+  }
+
+  /**
+   * Returns the given percentile (between 0 and 1) of the recent latency
+   * samples of the service at the given address in nanoseconds, or -1 if
+   * there are not enough recent samples for the service.
+   */
+  public long getLatencyPercentile(ServiceAddress address, double percentile) {
+    LatencyStats stats;
+    synchronized (latency_map) {
+      stats = latency_map.get(address);
+    }
+    return (stats == null) ? -1 : stats.getPercentile(percentile);
+  }
+
+  /**
+   * The recent latency samples of a service.
+   */
+  private static class LatencyStats {
+
+    /**
+     * The number of recent samples kept for the percentiles.
+     */
+    private static final int SAMPLE_COUNT = 128;
+
+    /**
+     * The minimum number of samples needed for a percentile.
+     */
+    private static final int MIN_PERCENTILE_SAMPLES = 16;
+
+    /**
+     * The weight of a new sample in the moving average.
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * The time in milliseconds after the last sample when the samples are
+     * considered stale. This makes sure a service that was slow is tried
+     * again some time later.
+     */
+    private static final long STALE_TIME = 60 * 1000;
+
+    private final long[] samples = new long[SAMPLE_COUNT];
+
+    /**
+     * The number of samples in the array, up to SAMPLE_COUNT.
+     */
+    private int sample_count = 0;
+
+    /**
+     * The position in the array of the next sample.
+     */
+    private int sample_cursor = 0;
+
+    /**
+     * The number of samples added since the samples were last sorted.
+     */
+    private int unsorted_count = 0;
+
+    private double average;
+    private long last_sample_time;
+
+    /**
+     * The sorted samples, or null if they must be sorted again.
+     */
+    private long[] sorted_samples;
+
+    synchronized void addSample(long latency) {
+      long time_now = System.currentTimeMillis();
+      if (sample_count > 0 && last_sample_time + STALE_TIME < time_now) {
+        sample_count = 0;
+        sample_cursor = 0;
+        unsorted_count = 0;
+        sorted_samples = null;
+      }
+      if (sample_count == 0) {
+        average = latency;
+      }
+      else {
+        average += EWMA_WEIGHT * (latency - average);
+      }
+      samples[sample_cursor] = latency;
+      sample_cursor = (sample_cursor + 1) % SAMPLE_COUNT;
+      if (sample_count < SAMPLE_COUNT) {
+        ++sample_count;
+      }
+      last_sample_time = time_now;
+      // The samples are sorted again after every 8 new samples,
+      ++unsorted_count;
+      if (unsorted_count == 8) {
+        unsorted_count = 0;
+        sorted_samples = null;
+      }
+    }
+
+    private boolean isStale() {
+      return sample_count == 0 ||
+             last_sample_time + STALE_TIME < System.currentTimeMillis();
+    }
+
+    synchronized long getAverage() {
+      return isStale() ? -1 : (long) average;
+    }
+
+    synchronized long getPercentile(double percentile) {
+      if (isStale() || sample_count < MIN_PERCENTILE_SAMPLES) {
+        return -1;
+      }
+      if (sorted_samples == null) {
+        sorted_samples = Arrays.copyOf(samples, sample_count);
+        Arrays.sort(sorted_samples);
+      }
+      int i = (int) (percentile * sorted_samples.length);
+      return sorted_samples[Math.max(0,
+                                Math.min(i, sorted_samples.length - 1))];
+    }
+
+  }
+
   /**
    * The service being tracked.
    */
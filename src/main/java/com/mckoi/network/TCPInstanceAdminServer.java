@@ -21,14 +21,20 @@ import com.mckoi.util.AnalyticsHistory;
 import java.io.*;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -90,6 +96,28 @@ public class TCPInstanceAdminServer implements Runnable {
    */
   private final ExecutorService thread_pool;
 
+  /**
+   * The number of NIO selector threads, or 0 if connections use blocking
+   * I/O with a thread for each connection.
+   */
+  private final int nio_selector_threads;
+
+  /**
+   * The number of NIO worker threads for each service.
+   */
+  private final int nio_worker_threads;
+
+  /**
+   * The maximum number of requests of a service that may be queued or being
+   * processed with NIO connections.
+   */
+  private final int nio_service_queue_limit;
+
+  /**
+   * The NIO connection server, or null if connections use blocking I/O.
+   */
+  private NIOConnectionServer nio_server;
+
   /**
    * The base path to which stores data related to information stored by this
    * service.
@@ -338,6 +366,40 @@ public class TCPInstanceAdminServer implements Runnable {
     // The thread pool for servicing client requests,
     thread_pool = Executors.newCachedThreadPool();
 
+    // The connection I/O mode,
+    val = node_properties.getProperty("connection_io", "blocking").trim();
+    if (val.equals("nio")) {
+      int processors = Runtime.getRuntime().availableProcessors();
+      nio_selector_threads = Integer.parseInt(node_properties.getProperty(
+              "nio_selector_threads",
+              Integer.toString(Math.max(1, processors / 4))).trim());
+      nio_worker_threads = Integer.parseInt(node_properties.getProperty(
+              "nio_worker_threads",
+              Integer.toString(Math.max(8, processors * 2))).trim());
+      nio_service_queue_limit = Integer.parseInt(node_properties.getProperty(
+              "nio_service_queue_limit", "512").trim());
+      if (nio_selector_threads < 1 || nio_worker_threads < 1 ||
+          nio_service_queue_limit < 1) {
+        String err_msg = "The nio_* properties must be greater than 0";
+        log.log(Level.SEVERE, err_msg);
+        throw new RuntimeException(err_msg);
+      }
+      log.log(Level.CONFIG,
+              "NIO connections with {0} selector threads, {1} worker threads",
+              new Object[] { nio_selector_threads, nio_worker_threads });
+    }
+    else if (val.equals("blocking")) {
+      nio_selector_threads = 0;
+      nio_worker_threads = 0;
+      nio_service_queue_limit = 0;
+    }
+    else {
+      String err_msg = MessageFormat.format(
+                  "Unknown ''connection_io'' property value: {0}", val);
+      log.log(Level.SEVERE, err_msg);
+      throw new RuntimeException(err_msg);
+    }
+
     // Load the config file,
     config_file.load();
 
@@ -597,7 +659,23 @@ public class TCPInstanceAdminServer implements Runnable {
                                 ((2 * 59) * 1000) + second_mix);
 
       try {
-        socket = new ServerSocket(port, 150, bind_interface);
+        if (nio_selector_threads > 0) {
+          // The sockets accepted from a channel's server socket have a
+          // channel for the NIO connection server,
+          socket = ServerSocketChannel.open().socket();
+          socket.bind(new InetSocketAddress(bind_interface, port), 150);
+          nio_server = new NIOConnectionServer(password_string,
+                  nio_selector_threads, nio_worker_threads,
+                  nio_service_queue_limit);
+          nio_server.start();
+        }
+        else {
+          // Blocking connections use a plain socket. The streams of a
+          // channel's socket share a lock for reads and writes before JDK
+          // 13, which would stall the replies of a pipelined connection
+          // while its thread waits for the next request,
+          socket = new ServerSocket(port, 150, bind_interface);
+        }
         socket.setSoTimeout(0);
         int cur_receive_buf_size = socket.getReceiveBufferSize();
         if (cur_receive_buf_size < 256 * 1024) {
@@ -662,8 +740,13 @@ public class TCPInstanceAdminServer implements Runnable {
               config_file.isIPAllowed(ip_addr)) {
 
             log.log(Level.INFO, "Connection permitted: {0}", ip_addr);
-            // Dispatch the connection to the thread pool,
-            thread_pool.execute(new Connection(s));
+            // Dispatch the connection to the NIO server or the thread pool,
+            if (nio_server != null) {
+              nio_server.addConnection(new Connection(s));
+            }
+            else {
+              thread_pool.execute(new Connection(s));
+            }
 
           }
           else {
@@ -687,6 +770,9 @@ public class TCPInstanceAdminServer implements Runnable {
         this.timer.cancel();
         // Shut down the thread pool,
         this.thread_pool.shutdown();
+        if (nio_server != null) {
+          nio_server.stop();
+        }
 
         synchronized (connection_list) {
           for (Connection c : connection_list) {
@@ -748,9 +834,11 @@ public class TCPInstanceAdminServer implements Runnable {
   // ----- Inner classes -----
   
   /**
-   * Handles a single socket connection.
+   * Handles a single socket connection. With NIO connections the socket I/O
+   * is done by the NIO connection server, which uses this to process the
+   * messages.
    */
-  private class Connection implements Runnable {
+  class Connection implements Runnable {
 
     private final Random random_generator;
     final Socket s;
@@ -865,6 +953,237 @@ public class TCPInstanceAdminServer implements Runnable {
       return msg_out;
     }
     
+    /**
+     * Dispatches a message to the service with the given destination code and
+     * returns the reply.
+     */
+    ProcessResult processMessage(char destination,
+                              MessageStream message_stream) throws IOException {
+
+      ProcessResult message_out;
+
+      // For analytics
+      long benchmark_start = System.currentTimeMillis();
+
+      // Destined for the administration module,
+      if (destination == 'a') {
+        message_out = processAdminCommand(message_stream);
+      }
+      // For a block server in this JVM
+      else if (destination == 'b') {
+        if (block_server == null) {
+          message_out = noServiceError("Block");
+        }
+        else {
+          message_out = block_server.getProcessor().process(message_stream);
+        }
+
+      }
+      // For a manager server in this JVM
+      else if (destination == 'm') {
+        if (manager_server == null) {
+          message_out = noServiceError("Manager");
+        }
+        else {
+          message_out = manager_server.getProcessor().process(message_stream);
+        }
+      }
+      // For a root server in this JVM
+      else if (destination == 'r') {
+        if (root_server == null) {
+          message_out = noServiceError("Root");
+        }
+        else {
+          message_out = root_server.getProcessor().process(message_stream);
+        }
+      }
+      else {
+        throw new IOException("Unknown destination: " + destination);
+      }
+
+      // Update the stats
+      long benchmark_end = System.currentTimeMillis();
+      long time_took = benchmark_end - benchmark_start;
+      analytics.addEvent(benchmark_end, time_took);
+
+      return message_out;
+    }
+
+    /**
+     * Processes a bulk block transfer request ('t'). The request message is
+     * 'receiveBlock' with the block id, the file type, the size of the file
+     * and its CRC32 checksum. When the block service is ready to receive the
+     * block a reply is sent, after which the sender writes the content of the
+     * file. The content is read from the given channel into the block file,
+     * and a second reply is sent once the checksum has been checked and the
+     * block added. The connection is closed after the transfer.
+     */
+    void processBlockTransfer(MessageStream message_stream,
+                      ReadableByteChannel in, DataOutputStream dout,
+                      HashMap<String, String> dictionary) throws IOException {
+
+      LocalFileSystemBlockServer block_service = block_server;
+      if (block_service == null) {
+        noServiceError("Block").writeTo(dout, dictionary);
+        dout.flush();
+        return;
+      }
+
+      BlockId block_id;
+      int file_type;
+      long size;
+      long checksum;
+      File f;
+      MessageStream msg_out = new MessageStream(16);
+      try {
+        Message m = message_stream.iterator().next();
+        if (!m.getName().equals("receiveBlock")) {
+          throw new RuntimeException("Unknown command: " + m.getName());
+        }
+        block_id = (BlockId) m.param(0);
+        file_type = (Integer) m.param(1);
+        size = (Long) m.param(2);
+        checksum = (Long) m.param(3);
+        f = block_service.startBlockReceive(block_id, file_type);
+      }
+      catch (RuntimeException e) {
+        log.log(Level.SEVERE, "Exception during process", e);
+        msg_out.addMessage("E");
+        msg_out.addExternalThrowable(new ExternalThrowable(e));
+        msg_out.closeMessage();
+        msg_out.writeTo(dout, dictionary);
+        dout.flush();
+        return;
+      }
+
+      // Ready for the file,
+      msg_out.addMessage("R");
+      msg_out.addInteger(1);
+      msg_out.closeMessage();
+      msg_out.writeTo(dout, dictionary);
+      dout.flush();
+
+      msg_out = new MessageStream(16);
+      try {
+        block_service.receiveBlockFile(block_id, file_type, f,
+                                       in, size, checksum);
+        msg_out.addMessage("R");
+        msg_out.addInteger(1);
+        msg_out.closeMessage();
+      }
+      catch (RuntimeException e) {
+        log.log(Level.SEVERE, "Exception during process", e);
+        msg_out.addMessage("E");
+        msg_out.addExternalThrowable(new ExternalThrowable(e));
+        msg_out.closeMessage();
+      }
+      msg_out.writeTo(dout, dictionary);
+      dout.flush();
+    }
+
+    /**
+     * The command loop of the pipelined protocol. Each request frame is the
+     * destination code, a request id and the message stream. Requests are
+     * read in order on this thread and processed on the thread pool, and
+     * each reply is written as the request id followed by the message stream
+     * as soon as it is ready, so replies may be out of order. Each direction
+     * has its own message dictionary.
+     * <p>
+     * At most MAX_PIPELINED_REQUESTS requests of the connection are processed
+     * at once. When the limit is reached no more requests are read until one
+     * of them has a reply, so TCP flow control pushes back on the client.
+     */
+    private void runPipelined(DataInputStream din, final DataOutputStream dout)
+                                                           throws IOException {
+
+      final HashMap<String, String> request_dictionary = new HashMap<>();
+      final HashMap<String, String> reply_dictionary = new HashMap<>();
+      final Semaphore in_flight = new Semaphore(MAX_PIPELINED_REQUESTS);
+
+      while (true) {
+        // Read the command destination,
+        final char destination = din.readChar();
+        // Exit thread command,
+        if (destination == 'e') {
+          return;
+        }
+        if (destination != 'a' && destination != 'b' &&
+            destination != 'm' && destination != 'r') {
+          throw new IOException("Unknown destination: " + destination);
+        }
+        final int request_id = din.readInt();
+        // Read the message stream object
+        final MessageStream message_stream =
+                               MessageStream.readFrom(din, request_dictionary);
+
+        // Wait until fewer than the maximum number of requests are being
+        // processed,
+        try {
+          in_flight.acquire();
+        }
+        catch (InterruptedException e) {
+          throw new Error("Interrupted", e);
+        }
+
+        // Process the request on the thread pool,
+        try {
+          thread_pool.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                ProcessResult message_out =
+                                 processMessage(destination, message_stream);
+                // Write and flush the reply,
+                synchronized (dout) {
+                  dout.writeInt(request_id);
+                  ((MessageStream) message_out).writeTo(
+                                                    dout, reply_dictionary);
+                  dout.flush();
+                }
+              }
+              catch (IOException e) {
+                // The connection failed, so close it. This ends the command
+                // loop.
+                log.log(Level.FINE, "IO Error writing pipelined reply", e);
+                closeSocket();
+              }
+              // The client can't be sent a reply for this request, so close
+              // the connection,
+              catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Exception on node worker", e);
+                closeSocket();
+                throw e;
+              }
+              catch (Error e) {
+                log.log(Level.SEVERE, "Error on node worker", e);
+                closeSocket();
+                throw e;
+              }
+              finally {
+                in_flight.release();
+              }
+            }
+          });
+        }
+        catch (RejectedExecutionException e) {
+          // The service is shutting down,
+          return;
+        }
+      }
+    }
+
+    /**
+     * Closes the socket of this connection, ignoring errors.
+     */
+    private void closeSocket() {
+      try {
+        s.close();
+      }
+      catch (IOException e) {
+        // Ignore
+      }
+    }
+
     /**
      * The connection process loop.
      */
@@ -928,51 +1247,30 @@ public class TCPInstanceAdminServer implements Runnable {
           MessageStream message_stream =
                                MessageStream.readFrom(din, message_dictionary);
 
-          ProcessResult message_out;
+          // A bulk block transfer, after which the connection is closed.
+          // The file is read through the input stream, so only the sender
+          // of a blocking connection avoids the copy through the heap,
+          if (destination == 't') {
+            processBlockTransfer(message_stream, Channels.newChannel(din),
+                                 dout, message_dictionary);
+            return;
+          }
 
-          // For analytics
-          long benchmark_start = System.currentTimeMillis();
+          // Switch to the pipelined protocol,
+          if (destination == 'p') {
+            MessageStream msg_out = new MessageStream(16);
+            msg_out.addMessage("R");
+            msg_out.addLong(TCPNetworkConnector.PIPELINED_PROTOCOL_VERSION);
+            msg_out.closeMessage();
+            msg_out.writeTo(dout, message_dictionary);
+            dout.flush();
 
-          // Destined for the administration module,
-          if (destination == 'a') {
-            message_out = processAdminCommand(message_stream);
-          }
-          // For a block server in this JVM
-          else if (destination == 'b') {
-            if (block_server == null) {
-              message_out = noServiceError("Block");
-            }
-            else {
-              message_out = block_server.getProcessor().process(message_stream);
-            }
-              
-          }
-          // For a manager server in this JVM
-          else if (destination == 'm') {
-            if (manager_server == null) {
-              message_out = noServiceError("Manager");
-            }
-            else {
-              message_out = manager_server.getProcessor().process(message_stream);
-            }
-          }
-          // For a root server in this JVM
-          else if (destination == 'r') {
-            if (root_server == null) {
-              message_out = noServiceError("Root");
-            }
-            else {
-              message_out = root_server.getProcessor().process(message_stream);
-            }
-          }
-          else {
-            throw new IOException("Unknown destination: " + destination);
+            runPipelined(din, dout);
+            return;
           }
 
-          // Update the stats
-          long benchmark_end = System.currentTimeMillis();
-          long time_took = benchmark_end - benchmark_start;
-          analytics.addEvent(benchmark_end, time_took);
+          ProcessResult message_out =
+                                 processMessage(destination, message_stream);
 
           // Write and flush the output message,
           ((MessageStream) message_out).writeTo(dout, message_dictionary);
@@ -1097,6 +1395,12 @@ public class TCPInstanceAdminServer implements Runnable {
 
   // ----- Static vars -----
 
+  /**
+   * The maximum number of requests on a pipelined connection that are
+   * processed at once.
+   */
+  private static final int MAX_PIPELINED_REQUESTS = 32;
+
   /**
    * The run files (denote the servers that are running).
    */
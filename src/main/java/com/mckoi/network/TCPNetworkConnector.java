@@ -20,16 +20,20 @@ package com.mckoi.network;
 import java.io.*;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Level;
@@ -39,12 +43,38 @@ import java.util.logging.Logger;
  * An implementation of NetworkConnector used by a client to connect to nodes
  * in a Mckoi Network over TCP/IP. This implementation provides connection
  * keep-alive like semantics for node communication.
+ * <p>
+ * A single connection is kept with each service address. When the service
+ * supports it, the connection uses the pipelined protocol where each request
+ * is tagged with a request id, so requests from many threads can be in flight
+ * on the connection at once. The replies are read by a thread for the
+ * connection and handed to the waiting callers. If the service does not
+ * support the pipelined protocol, requests on the connection are made one at
+ * a time.
  *
  * @author Tobias Downer
  */
 
 class TCPNetworkConnector implements NetworkConnector {
 
+  /**
+   * The version of the pipelined protocol.
+   */
+  static final long PIPELINED_PROTOCOL_VERSION = 1;
+
+  /**
+   * The time in milliseconds a pipelined request waits for its reply before
+   * the connection is considered failed. This is the same as the socket
+   * timeout of a connection.
+   */
+  private static final int REPLY_TIMEOUT = 30 * 1000;
+
+  /**
+   * The time in milliseconds after which a service that didn't support the
+   * pipelined protocol is asked again, in case it was upgraded.
+   */
+  private static final long UNPIPELINED_RETRY_TIME = 10 * 60 * 1000;
+
   /**
    * The background thread that kills connections that timeout.
    */
@@ -56,6 +86,18 @@ class TCPNetworkConnector implements NetworkConnector {
    */
   private final HashMap<ServiceAddress, TCPConnection> connection_pool;
 
+  /**
+   * The addresses of services that do not support the pipelined protocol,
+   * mapped to the time they were found to not support it.
+   */
+  private final HashMap<ServiceAddress, Long> unpipelined_addresses;
+
+  /**
+   * The addresses of services that do not support the bulk block transfer
+   * protocol.
+   */
+  private final HashSet<ServiceAddress> no_bulk_transfer_addresses;
+
   /**
    * The NetworkInterface that we use to make connections.
    */
@@ -89,6 +131,8 @@ class TCPNetworkConnector implements NetworkConnector {
          security.checkPermission(MckoiNetworkPermission.CREATE_TCP_CONNECTOR);
 
     connection_pool = new HashMap<>();
+    unpipelined_addresses = new HashMap<>();
+    no_bulk_transfer_addresses = new HashSet<>();
     this.password = properties.getNetworkPassword();
     this.network_interface = properties.getOutputNetworkInterface();
 
@@ -114,7 +158,29 @@ class TCPNetworkConnector implements NetworkConnector {
       // If there isn't, establish a connection,
       if (c == null) {
         c = new TCPConnection();
-        c.connect(password, network_interface, address);
+        Long unpipelined_time = unpipelined_addresses.get(address);
+        if (unpipelined_time != null &&
+            unpipelined_time + UNPIPELINED_RETRY_TIME >
+                                                System.currentTimeMillis()) {
+          c.connect(password, network_interface, address, false);
+        }
+        else {
+          try {
+            c.connect(password, network_interface, address, true);
+            unpipelined_addresses.remove(address);
+          }
+          catch (EOFException e) {
+            // The service closed the connection when asked to use the
+            // pipelined protocol, so it's a service that doesn't support it.
+            // Connect again using the original protocol.
+            log.log(Level.INFO,
+                    "Pipelined protocol not supported by {0}", address);
+            c.close();
+            unpipelined_addresses.put(address, System.currentTimeMillis());
+            c = new TCPConnection();
+            c.connect(password, network_interface, address, false);
+          }
+        }
         connection_pool.put(address, c);
       }
       else {
@@ -125,11 +191,15 @@ class TCPNetworkConnector implements NetworkConnector {
   }
 
   /**
-   * Clean the address from the connection cache.
+   * Clean the address from the connection cache if it's the given
+   * connection. The connection may already have been replaced by another
+   * thread.
    */
-  private void invalidateConnection(ServiceAddress address) {
+  private void invalidateConnection(ServiceAddress address, TCPConnection c) {
     synchronized (connection_pool) {
-      connection_pool.remove(address);
+      if (c != null && connection_pool.get(address) == c) {
+        connection_pool.remove(address);
+      }
     }
   }
   
@@ -199,6 +269,90 @@ class TCPNetworkConnector implements NetworkConnector {
 
   // ----- Inner classes -----
 
+  /**
+   * Sends a block file to the block service at the given address with the
+   * bulk block transfer protocol. The transfer has its own connection, and
+   * the content of the file is written to the socket with
+   * FileChannel.transferTo so it isn't copied through the Java heap. The
+   * CRC32 checksum of the file is sent with the request, and the receiver
+   * checks it before adding the block.
+   * <p>
+   * Returns the reply of the receiver, or null if the service doesn't
+   * support the bulk block transfer protocol.
+   */
+  ProcessResult sendBlockFile(ServiceAddress address, BlockId block_id,
+                              int file_type, File f) throws IOException {
+
+    synchronized (connection_pool) {
+      if (no_bulk_transfer_addresses.contains(address)) {
+        return null;
+      }
+    }
+
+    FileInputStream fin = new FileInputStream(f);
+    TCPConnection c = null;
+    try {
+      FileChannel file = fin.getChannel();
+      long size = file.size();
+      long checksum = LocalFileSystemBlockServer.fileChecksum(file, size);
+
+      c = new TCPConnection();
+      c.connect(password, network_interface, address, false, true);
+      DataInputStream din = new DataInputStream(c.in);
+      DataOutputStream dout = new DataOutputStream(c.out);
+
+      MessageStream msg_out = new MessageStream(8);
+      msg_out.addMessage("receiveBlock");
+      msg_out.addBlockId(block_id);
+      msg_out.addInteger(file_type);
+      msg_out.addLong(size);
+      msg_out.addLong(checksum);
+      msg_out.closeMessage();
+      dout.writeChar('t');
+      msg_out.writeTo(dout, c.message_dictionary);
+      dout.flush();
+
+      // The receiver replies when it's ready for the file. A service that
+      // doesn't support the protocol closes the connection,
+      MessageStream msg_in;
+      try {
+        msg_in = MessageStream.readFrom(din, c.message_dictionary);
+      }
+      catch (EOFException e) {
+        synchronized (connection_pool) {
+          no_bulk_transfer_addresses.add(address);
+        }
+        return null;
+      }
+      Iterator<Message> i = msg_in.iterator();
+      while (i.hasNext()) {
+        if (i.next().isError()) {
+          return msg_in;
+        }
+      }
+
+      // Send the content of the file,
+      SocketChannel channel = c.s.getChannel();
+      long pos = 0;
+      while (pos < size) {
+        long count = file.transferTo(pos, size - pos, channel);
+        if (count <= 0) {
+          throw new IOException("Block file changed during transfer");
+        }
+        pos += count;
+      }
+
+      // The reply after the receiver checked the file,
+      return MessageStream.readFrom(din, c.message_dictionary);
+    }
+    finally {
+      if (c != null && c.s != null) {
+        c.close();
+      }
+      fin.close();
+    }
+  }
+
   /**
    * A connection with a node in the network, from this node.
    */
@@ -226,10 +380,44 @@ class TCPNetworkConnector implements NetworkConnector {
     private long last_lock_timestamp;
 
     /**
-     * The message string dictionary.
+     * The message string dictionary. When the connection is pipelined, this
+     * is the dictionary of the request messages.
      */
     private HashMap<String, String> message_dictionary;
 
+    /**
+     * True if this connection uses the pipelined protocol.
+     */
+    private boolean pipelined;
+
+    /**
+     * The message string dictionary of the reply messages when the
+     * connection is pipelined.
+     */
+    private HashMap<String, String> reply_dictionary;
+
+    /**
+     * The id of the next pipelined request.
+     */
+    private int next_request_id;
+
+    /**
+     * The pipelined requests waiting for a reply, keyed by request id.
+     */
+    private final HashMap<Integer, PendingReply> pending_replies =
+                                                             new HashMap<>();
+
+    /**
+     * The exception that failed a pipelined connection, or null if the
+     * connection hasn't failed.
+     */
+    private IOException failure;
+
+    /**
+     * Set when the connection is closed.
+     */
+    private volatile boolean closed;
+
     /**
      * Constructs the connection on the given socket.
      */
@@ -238,8 +426,26 @@ class TCPNetworkConnector implements NetworkConnector {
       last_lock_timestamp = System.currentTimeMillis();
     }
 
+    /**
+     * Connects to the service at the given address. If 'try_pipelined' is
+     * true, the connection asks the service to use the pipelined protocol.
+     * A service that doesn't support the pipelined protocol closes the
+     * connection, in which case an EOFException is thrown.
+     */
+    void connect(String password,
+            final NetworkInterface network_interface, final ServiceAddress addr,
+            boolean try_pipelined) throws IOException {
+      connect(password, network_interface, addr, try_pipelined, false);
+    }
+
+    /**
+     * Connects to the service at the given address. If 'open_channel' is
+     * true, the socket is created from a SocketChannel so the connection can
+     * be written to with FileChannel.transferTo.
+     */
     void connect(String password,
-            final NetworkInterface network_interface, final ServiceAddress addr)
+            final NetworkInterface network_interface, final ServiceAddress addr,
+            boolean try_pipelined, final boolean open_channel)
                                                            throws IOException {
 
       // Creating the socket connection is a privileged operation because it
@@ -292,7 +498,13 @@ class TCPNetworkConnector implements NetworkConnector {
               }
             }
 
-            s = new Socket(iaddr, addr.getPort());
+            if (open_channel) {
+              s = SocketChannel.open(
+                      new InetSocketAddress(iaddr, addr.getPort())).socket();
+            }
+            else {
+              s = new Socket(iaddr, addr.getPort());
+            }
             return null;
           }
         });
@@ -332,11 +544,173 @@ class TCPNetworkConnector implements NetworkConnector {
 
       message_dictionary = new HashMap<>(128);
 
+      if (try_pipelined) {
+        // Ask the service to switch to the pipelined protocol,
+        MessageStream msg_out = new MessageStream(16);
+        msg_out.addMessage("pipeline");
+        msg_out.addLong(PIPELINED_PROTOCOL_VERSION);
+        msg_out.closeMessage();
+        dout.writeChar('p');
+        msg_out.writeTo(dout, message_dictionary);
+        dout.flush();
+
+        MessageStream msg_in = MessageStream.readFrom(din, message_dictionary);
+        Iterator<Message> i = msg_in.iterator();
+        if (!i.hasNext() || !i.next().getName().equals("R")) {
+          throw new IOException("Pipelined protocol negotiation failed");
+        }
+
+        // Each direction has its own dictionary from here,
+        message_dictionary = new HashMap<>(128);
+        reply_dictionary = new HashMap<>(128);
+        pipelined = true;
+
+        // Start the thread that reads the replies,
+        Thread reader = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            readReplies();
+          }
+        }, "Mckoi TCP reply reader " + addr.displayString());
+        reader.setDaemon(true);
+        reader.start();
+      }
+
+    }
+
+    /**
+     * Returns true if this connection uses the pipelined protocol.
+     */
+    boolean isPipelined() {
+      return pipelined;
+    }
+
+    /**
+     * Sends a request on a pipelined connection, and waits for the reply.
+     */
+    MessageStream request(char command_code, MessageStream msg_stream)
+                                                           throws IOException {
+      PendingReply reply = new PendingReply();
+      synchronized (out) {
+        int request_id = next_request_id;
+        ++next_request_id;
+        synchronized (pending_replies) {
+          if (failure != null) {
+            throw failure;
+          }
+          pending_replies.put(request_id, reply);
+        }
+
+        // Write the request,
+        try {
+          DataOutputStream dout = new DataOutputStream(out);
+          dout.writeChar(command_code);
+          dout.writeInt(request_id);
+          msg_stream.writeTo(dout, message_dictionary);
+          dout.flush();
+        }
+        catch (IOException e) {
+          fail(e);
+          throw e;
+        }
+      }
+      // Wait for the reply. A request that waits longer than the reply
+      // timeout fails the connection, as a socket timeout does on a
+      // connection that isn't pipelined,
+      MessageStream msg_result = reply.waitForReply(REPLY_TIMEOUT);
+      if (msg_result == null) {
+        IOException e = new SocketTimeoutException(
+                                    "Timed out waiting for a pipelined reply");
+        fail(e);
+        throw e;
+      }
+      return msg_result;
+    }
+
+    /**
+     * The loop of the reply reader thread of a pipelined connection. Reads
+     * each reply and hands it to the caller waiting for it.
+     */
+    private void readReplies() {
+      DataInputStream din = new DataInputStream(in);
+      try {
+        while (true) {
+          // Read the first byte of the request id. The socket times out
+          // here when the connection is idle, which isn't an error. The
+          // callers time out their own requests.
+          int b;
+          try {
+            b = in.read();
+          }
+          catch (SocketTimeoutException e) {
+            continue;
+          }
+          if (b < 0) {
+            throw new EOFException();
+          }
+          int request_id = (b << 24) |
+                           (din.readUnsignedByte() << 16) |
+                           din.readUnsignedShort();
+          MessageStream msg_result =
+                                MessageStream.readFrom(din, reply_dictionary);
+
+          PendingReply reply;
+          synchronized (pending_replies) {
+            reply = pending_replies.remove(request_id);
+          }
+          if (reply == null) {
+            throw new IOException("Reply for unknown request: " + request_id);
+          }
+          reply.setReply(msg_result);
+        }
+      }
+      catch (IOException e) {
+        if (!closed) {
+          log.log(Level.FINE, "IOException reading pipelined replies", e);
+        }
+        fail(e);
+      }
+    }
+
+    /**
+     * Fails a pipelined connection. Every request waiting for a reply is
+     * given the exception and the socket is closed.
+     */
+    private void fail(IOException e) {
+      ArrayList<PendingReply> to_fail;
+      synchronized (pending_replies) {
+        if (failure == null) {
+          failure = e;
+        }
+        to_fail = new ArrayList<>(pending_replies.values());
+        pending_replies.clear();
+      }
+      for (PendingReply reply : to_fail) {
+        reply.setFailure(e);
+      }
+      try {
+        close();
+      }
+      catch (IOException e2) {
+        // Ignore
+      }
+    }
+
+    /**
+     * Writes the stream close message and closes the connection.
+     */
+    void closeStream() throws IOException {
+      synchronized (out) {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeChar('e');
+        dout.flush();
+      }
+      close();
     }
 
     void close() throws IOException {
+      closed = true;
       s.close();
-      message_dictionary = null;
     }
 
     void addLock() {
@@ -350,6 +724,54 @@ class TCPNetworkConnector implements NetworkConnector {
 
   }
 
+  /**
+   * A request on a pipelined connection that is waiting for its reply.
+   */
+  private static class PendingReply {
+
+    private MessageStream reply;
+    private IOException failure;
+    private boolean done;
+
+    synchronized void setReply(MessageStream reply) {
+      this.reply = reply;
+      done = true;
+      notifyAll();
+    }
+
+    synchronized void setFailure(IOException failure) {
+      this.failure = failure;
+      done = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the reply is received, or throws the exception that failed
+     * the connection. Returns null if there's no reply after the given time
+     * in milliseconds.
+     */
+    synchronized MessageStream waitForReply(long timeout) throws IOException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (!done) {
+        long time_left = deadline - System.currentTimeMillis();
+        if (time_left <= 0) {
+          return null;
+        }
+        try {
+          wait(time_left);
+        }
+        catch (InterruptedException e) {
+          throw new Error("Interrupted", e);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return reply;
+    }
+
+  }
+
   /**
    * A message processor on the given remote address.
    */
@@ -384,33 +806,40 @@ class TCPNetworkConnector implements NetworkConnector {
         // Check if there's a connection in the pool already,
         c = getConnection(address);
 
-        synchronized (c) {
-          DataOutputStream dout = new DataOutputStream(c.out);
-          DataInputStream din = new DataInputStream(c.in);
-
-          // Write the message.
-          dout.writeChar(command_code);
-          msg_stream.writeTo(dout, c.message_dictionary);
-          dout.flush();
+        MessageStream msg_result;
+        // If the connection is pipelined, send the request and wait for the
+        // reply without blocking other requests on the connection,
+        if (c.isPipelined()) {
+          msg_result = c.request(command_code, msg_stream);
+        }
+        else {
+          synchronized (c) {
+            DataOutputStream dout = new DataOutputStream(c.out);
+            DataInputStream din = new DataInputStream(c.in);
 
-          // Fetch the result,
-          MessageStream msg_result =
-                            MessageStream.readFrom(din, c.message_dictionary);
+            // Write the message.
+            dout.writeChar(command_code);
+            msg_stream.writeTo(dout, c.message_dictionary);
+            dout.flush();
 
-          // If there's a test latency,
-          if (introduced_latency > 0) {
-            try {
-              Thread.sleep(introduced_latency);
-            }
-            catch (InterruptedException e) {
-              throw new Error("Interrupted", e);
-            }
+            // Fetch the result,
+            msg_result = MessageStream.readFrom(din, c.message_dictionary);
           }
+        }
 
-          // And return it,
-          return msg_result;
+        // If there's a test latency,
+        if (introduced_latency > 0) {
+          try {
+            Thread.sleep(introduced_latency);
+          }
+          catch (InterruptedException e) {
+            throw new Error("Interrupted", e);
+          }
         }
 
+        // And return it,
+        return msg_result;
+
       }
       catch (IOException e) {
 
@@ -424,7 +853,7 @@ class TCPNetworkConnector implements NetworkConnector {
         // system to create a new socket. The reason for this is because an
         // IOException destroys the communication format.
 
-        invalidateConnection(address);
+        invalidateConnection(address, c);
 
         // If this is a 'connection reset by peer' error, or a socket
         // exception, we retry the command one more time.
@@ -532,12 +961,9 @@ class TCPNetworkConnector implements NetworkConnector {
           // For each connection that timed out,
           for (TCPConnection c : timeout_list) {
 //            System.out.println("KILLING: " + c.s);
-            DataOutputStream dout = new DataOutputStream(c.out);
-            // Write the stream close message, and flush,
+            // Write the stream close message, and close,
             try {
-              dout.writeChar('e');
-              dout.flush();
-              c.s.close();
+              c.closeStream();
             }
             catch (IOException e) {
               log.log(Level.SEVERE, "Failed to dispose timed out connection", e);
@@ -166,23 +166,34 @@ public class SDBTable implements Iterable<SDBRow> {
 
   void prepareForCommit() {
     // Write the transaction log for this table,
+    // Rows that were added and then deleted in this transaction cancel out,
+    // so sort both lists and remove the rows they have in common.
+    long[] adds = toSortedArray(add_row_list);
+    long[] deletes = toSortedArray(delete_row_list);
+    int ai = 0, di = 0;
+    int add_count = 0, delete_count = 0;
+    while (ai < adds.length || di < deletes.length) {
+      if (di == deletes.length ||
+          (ai < adds.length && adds[ai] < deletes[di])) {
+        adds[add_count++] = adds[ai++];
+      }
+      else if (ai == adds.length || deletes[di] < adds[ai]) {
+        deletes[delete_count++] = deletes[di++];
+      }
+      else {
+        ++ai;
+        ++di;
+      }
+    }
+
     DataFile df = getDataFile(getTransactionAddLog());
     df.delete();
     OrderedList64Bit addlist = new OrderedList64Bit(df);
-    for (Long v : add_row_list) {
-      addlist.insertSortKey(v);
-    }
+    addlist.insertAllSorted(Arrays.copyOf(adds, add_count));
     df = getDataFile(getTransactionRemoveLog());
     df.delete();
     OrderedList64Bit deletelist = new OrderedList64Bit(df);
-    for (Long v : delete_row_list) {
-      if (addlist.containsSortKey(v)) {
-        addlist.removeSortKey(v);
-      }
-      else {
-        deletelist.insertSortKey(v);
-      }
-    }
+    deletelist.insertAllSorted(Arrays.copyOf(deletes, delete_count));
     // Set the id gen key
     if (current_id_gen != -1) {
       PropertySet p = getTableProperties();
@@ -190,6 +201,19 @@ public class SDBTable implements Iterable<SDBRow> {
     }
   }
 
+  /**
+   * Returns the values in the list as a sorted long[] array.
+   */
+  private static long[] toSortedArray(List<Long> list) {
+    long[] arr = new long[list.size()];
+    int i = 0;
+    for (Long v : list) {
+      arr[i++] = v;
+    }
+    Arrays.sort(arr);
+    return arr;
+  }
+
   OrderedList64Bit getDeleteSet() {
     DataFile df = getDataFile(getTransactionRemoveLog());
     return new OrderedList64Bit(df);
@@ -305,6 +329,10 @@ public class SDBTable implements Iterable<SDBRow> {
                             from.getDataFile(from.getTransactionRemoveLog()));
       // Adds
       {
+        // The generated ids are ascending, so the new rows are added to the
+        // row set in one pass after the loop.
+        long[] to_rowids = new long[(int) add_events.size()];
+        int n = 0;
         Iterator64Bit i = add_events.iterator();
         while (i.hasNext()) {
           long from_rowid = i.next();
@@ -314,19 +342,23 @@ public class SDBTable implements Iterable<SDBRow> {
           copyDF(from.getDataFile(from.getRowIdKey(from_rowid)),
                  getDataFile(getRowIdKey(to_rowid)));
           // Update indexes,
-          addRowToRowSet(to_rowid);
+          to_rowids[n++] = to_rowid;
           addRowToIndexSet(to_rowid);
           // Add this event to the transaction log,
           addTransactionEvent("insertRow", to_rowid);
         }
+        new OrderedList64Bit(getDataFile(row_index_key))
+                                                .insertAllSorted(to_rowids);
       }
       // Removes
       {
+        // Remove the rows from the row set in one pass,
+        new OrderedList64Bit(getDataFile(row_index_key))
+                                   .removeAllSorted(remove_events.iterator());
         Iterator64Bit i = remove_events.iterator();
         while (i.hasNext()) {
           long from_rowid = i.next();
           // Update indexes,
-          removeRowFromRowSet(from_rowid);
           removeRowFromIndexSet(from_rowid);
 
           // Delete the row data file,
@@ -24,7 +24,11 @@ import com.mckoi.util.UserTerminal;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides an abstract implementation of Store for continuous address space
@@ -43,6 +47,10 @@ import java.util.HashMap;
  * makes no assumptions such as the address space being divided by sectors and
  * therefore does not pad data.  The class does not require the underlying
  * model to support efficient data relocation.
+ * <p>
+ * Small areas are allocated and deleted through a set of allocation arenas
+ * so that concurrent threads do not contend on the store lock for each
+ * area.  See AllocationArena.
  *
  * @author Tobias Downer
  */
@@ -79,6 +87,40 @@ public abstract class AbstractStore implements Store {
    * True if the store was opened dirtily (was not previously closed cleanly).
    */
   private boolean dirty_open;
+
+  /**
+   * The allocation arenas that small areas are allocated from and freed to
+   * without locking the store.  This is an empty array if the store is read
+   * only.
+   */
+  private final AllocationArena[] arenas;
+
+  /**
+   * The allocation arena used by each thread.
+   */
+  private final ThreadLocal<AllocationArena> thread_arena =
+                                         new ThreadLocal<AllocationArena>() {
+    @Override
+    protected AllocationArena initialValue() {
+      long id = Thread.currentThread().getId();
+      return arenas[(int) (id % arenas.length)];
+    }
+  };
+
+  /**
+   * The number of check points in progress that need the allocation arenas
+   * to hold no space.  While this is not zero the arenas are suspended, and
+   * small areas are allocated and freed directly in the store.
+   */
+  private final AtomicInteger arena_suspend_count = new AtomicInteger(0);
+
+  /**
+   * The areas deleted through an arena that have not been reused or freed
+   * in the store.  The header of these areas is still marked as allocated,
+   * so this is used to detect an area that is deleted twice.
+   */
+  private final Set<Long> arena_deleted_areas =
+             Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
   
   // ---------- Statics ----------
 
@@ -113,6 +155,17 @@ public abstract class AbstractStore implements Store {
     }
     wilderness_pointer = -1;
     this.read_only = read_only;
+
+    int arena_count = 0;
+    if (!read_only) {
+      arena_count = Math.min(MAX_ARENA_COUNT,
+                             Runtime.getRuntime().availableProcessors());
+      arena_count = Math.max(1, arena_count);
+    }
+    arenas = new AllocationArena[arena_count];
+    for (int i = 0; i < arena_count; ++i) {
+      arenas[i] = new AllocationArena();
+    }
   }
 
   /**
@@ -227,14 +280,60 @@ public abstract class AbstractStore implements Store {
   /**
    * Closes the store.
    */
-  public synchronized void close() throws IOException {
+  public void close() throws IOException {
 
-    // Mark the file as closed
-    if (!read_only) {
-      writeByteToPT(16, 0);
+    // Give the space held by the allocation arenas back to the store, and
+    // stop them holding space.  This must happen before the store lock is
+    // taken.
+    suspendArenas();
+
+    synchronized (this) {
+      // Mark the file as closed
+      if (!read_only) {
+        writeByteToPT(16, 0);
+      }
+
+      internalClose();
     }
+  }
 
-    internalClose();
+  /**
+   * Suspends the allocation arenas and gives the space they hold back to the
+   * store.  Until the matching call to 'resumeArenas', areas are allocated
+   * and freed directly in the store, so no space is held by an arena.  This
+   * must be called before the store is check pointed, and the arenas resumed
+   * after the check point is recorded, so that the check point does not
+   * record any space held by an arena as allocated.  Calls may be nested.
+   */
+  protected void suspendArenas() throws IOException {
+    arena_suspend_count.incrementAndGet();
+    flushArenas();
+  }
+
+  /**
+   * Resumes the allocation arenas after a call to 'suspendArenas'.
+   */
+  protected void resumeArenas() {
+    arena_suspend_count.decrementAndGet();
+  }
+
+  /**
+   * Frees all the areas that were deleted through an allocation arena, and
+   * the space each arena has reserved for new areas.
+   */
+  private void flushArenas() throws IOException {
+    if (arenas.length == 0) {
+      return;
+    }
+    lockForWrite();
+    try {
+      for (int i = 0; i < arenas.length; ++i) {
+        arenas[i].release(true);
+      }
+    }
+    finally {
+      unlockForWrite();
+    }
   }
 
   /**
@@ -1205,10 +1304,10 @@ public abstract class AbstractStore implements Store {
   }
 
   /**
-   * Allocates a block of memory from the backing area of the given size and
-   * returns a pointer to that area.
+   * Returns the size of the area, including the headers, that is allocated
+   * to store an object of the given size.
    */
-  private long alloc(long size) throws IOException {
+  private static long boundarySize(long size) throws IOException {
 
     // Negative allocations are not allowed
     if (size < 0) {
@@ -1232,7 +1331,36 @@ public abstract class AbstractStore implements Store {
       size = size + (8 - d);
     }
 
-    final long real_alloc_size = size;
+    return size;
+  }
+
+  /**
+   * Returns the size to crop a free area of 'area_size' to when allocating
+   * an area of 'size', where 'max_boundary_size' is the largest size the
+   * allocated area may be grown to.
+   */
+  private static long cropSize(long size, long area_size,
+                               long max_boundary_size) {
+    return Math.max(size, Math.min(area_size, max_boundary_size));
+  }
+
+  /**
+   * Allocates a block of memory from the backing area of the given size and
+   * returns a pointer to that area.
+   */
+  private long alloc(long size) throws IOException {
+    return alloc(size, 0);
+  }
+
+  /**
+   * Allocates a block of memory from the backing area of at least the given
+   * size and returns a pointer to that area.  If the free area found for the
+   * allocation is larger than the size, the allocated area is grown up to
+   * 'max_boundary_size' (including headers) rather than cropped to the size.
+   */
+  private long alloc(long size, long max_boundary_size) throws IOException {
+
+    size = boundarySize(size);
     
     // Search the free bin list for the first bin that matches the given size.
     int bin_chain_index;
@@ -1317,12 +1445,14 @@ public abstract class AbstractStore implements Store {
         expanded_size = expandDataArea(size_to_grow);
       }
       // Coalesc the new area to the given size
-      coalescArea(working_pointer, current_area_size + expanded_size);
+      long area_size = current_area_size + expanded_size;
+      coalescArea(working_pointer, area_size);
       // crop the area
-      cropArea(working_pointer, size);
+      long crop_size = cropSize(size, area_size, max_boundary_size);
+      cropArea(working_pointer, crop_size);
 
       // Add to the total allocated space
-      total_allocated_space += real_alloc_size;
+      total_allocated_space += crop_size;
 
       // Check the pointer is within the first 60 bits
       if (( working_pointer & 0x0F000000000000000L ) != 0) {
@@ -1355,10 +1485,11 @@ public abstract class AbstractStore implements Store {
       reboundArea(free_area_pointer, header_info, true);
 
       // Crop the area to the given size.
-      cropArea(free_area_pointer, size);
+      long crop_size = cropSize(size, header_info[0], max_boundary_size);
+      cropArea(free_area_pointer, crop_size);
       
       // Add to the total allocated space
-      total_allocated_space += real_alloc_size;
+      total_allocated_space += crop_size;
 
       // Check the pointer is within the first 60 bits
       if (( free_area_pointer & 0x0F000000000000000L ) != 0) {
@@ -1455,14 +1586,32 @@ public abstract class AbstractStore implements Store {
   // ---------- Implemented from Store ----------
 
   @Override
-  public synchronized AreaWriter createArea(long size) throws IOException {
-    long pointer = alloc(size);
+  public AreaWriter createArea(long size) throws IOException {
+    long pointer = -1;
+    long boundary_size = boundarySize(size);
+    // Small areas are allocated from the arena of this thread,
+    if (arenas.length > 0 && boundary_size <= MAX_ARENA_AREA_SIZE) {
+      pointer = thread_arena.get().alloc(boundary_size);
+    }
+    // Otherwise, or if the arenas are suspended, allocate in the store
+    if (pointer == -1) {
+      synchronized (this) {
+        pointer = alloc(size);
+      }
+    }
     return new StoreAreaWriter(pointer, size);
   }
 
   @Override
-  public synchronized void deleteArea(long id) throws IOException {
-    free(id);
+  public void deleteArea(long id) throws IOException {
+    if (arenas.length > 0) {
+      if (thread_arena.get().free(id)) {
+        return;
+      }
+    }
+    synchronized (this) {
+      free(id);
+    }
   }
 
   @Override
@@ -1506,6 +1655,204 @@ public abstract class AbstractStore implements Store {
   
   // ---------- Inner classes ----------
 
+  /**
+   * An allocation arena allocates small areas without locking the store.
+   * An arena reserves a large area from the store (a chunk) and allocates
+   * areas by splitting them from the start of the chunk.  The chunk is
+   * marked as allocated in the store, so the store never coalesces a free
+   * area with it and the arena can change the boundaries inside it while
+   * holding only the arena lock.
+   * <p>
+   * Areas deleted through an arena are not freed immediately.  They are kept
+   * in a list for their size and reused by the next allocation of the same
+   * size.  When the lists grow too large the areas are freed in the store in
+   * a single batch in address order so that neighbouring areas coalesce.
+   * <p>
+   * Before the store is check pointed the arenas are suspended and the
+   * deleted areas and the chunks are freed, so a check point never records
+   * space held by an arena.
+   * <p>
+   * Lock order is the arena before the store.  An arena lock must never be
+   * taken while the store lock is held.
+   */
+  private final class AllocationArena {
+
+    /**
+     * A pointer to the area of the chunk that has not been allocated, or -1
+     * if the arena has no chunk.
+     */
+    private long chunk_pointer = -1;
+
+    /**
+     * The size of the area at 'chunk_pointer'.
+     */
+    private long chunk_size = 0;
+
+    /**
+     * The deleted areas waiting to be reused, indexed by (area size / 8).
+     */
+    private final LongList[] deleted_areas =
+                               new LongList[(MAX_ARENA_AREA_SIZE / 8) + 1];
+
+    /**
+     * The total size of the areas in 'deleted_areas'.
+     */
+    private long deleted_size = 0;
+
+    /**
+     * A buffer for reading and writing area boundaries.
+     */
+    private final byte[] arena_buf = new byte[16];
+
+    /**
+     * Allocates an area with the given boundary size and returns a pointer to
+     * it.  Returns -1 if the arenas are suspended, in which case the area
+     * must be allocated in the store.
+     */
+    long alloc(long size) throws IOException {
+      synchronized (this) {
+        // The suspend count is checked while holding the arena lock, so once
+        // 'flushArenas' has released this arena it can't reserve a chunk
+        // until the arenas are resumed.
+        if (arena_suspend_count.get() > 0) {
+          return -1;
+        }
+        // Reuse a deleted area of the same size if there is one,
+        LongList list = deleted_areas[(int) (size / 8)];
+        if (list != null && list.size() > 0) {
+          int last = list.size() - 1;
+          long pointer = list.get(last);
+          list.remove(last);
+          deleted_size -= size;
+          arena_deleted_areas.remove(pointer);
+          return pointer;
+        }
+
+        // If the chunk can't fit the area, reserve a new chunk
+        if (chunk_pointer == -1 || chunk_size < size) {
+          synchronized (AbstractStore.this) {
+            if (chunk_pointer != -1) {
+              AbstractStore.this.free(chunk_pointer);
+              chunk_pointer = -1;
+            }
+            // The chunk is the free area that would be allocated for this
+            // size grown up to the chunk size, so deleted space is reused.
+            chunk_pointer = AbstractStore.this.alloc(size - 16,
+                                                     ARENA_CHUNK_SIZE);
+          }
+          readByteArrayFrom(chunk_pointer, arena_buf, 0, 8);
+          chunk_size = ByteArrayUtil.getLong(arena_buf, 0);
+        }
+
+        long pointer = chunk_pointer;
+        long size_difference = chunk_size - size;
+        // If the left over is too small to be an area, the whole chunk is
+        // allocated.
+        if (size_difference < 32) {
+          chunk_pointer = -1;
+          chunk_size = 0;
+          return pointer;
+        }
+
+        // Split the area from the start of the chunk.  The boundary is
+        // written first so a concurrent free in the store that reads the
+        // end of the chunk always finds a valid (allocated) header.
+        ByteArrayUtil.setLong(size, arena_buf, 0);
+        ByteArrayUtil.setLong(size_difference, arena_buf, 8);
+        writeByteArrayToPT((pointer + size) - 8, arena_buf, 0, 16);
+        writeByteArrayToPT(pointer, arena_buf, 0, 8);
+        writeByteArrayToPT((pointer + chunk_size) - 8, arena_buf, 8, 8);
+
+        chunk_pointer = pointer + size;
+        chunk_size = size_difference;
+        return pointer;
+      }
+    }
+
+    /**
+     * Deletes the area at the given pointer.  Returns false if the area is
+     * too large to be managed by an arena or the arenas are suspended, in
+     * which case the area must be freed in the store.
+     */
+    boolean free(long pointer) throws IOException {
+      synchronized (this) {
+        if (arena_suspend_count.get() > 0) {
+          return false;
+        }
+        // The area is added to the deleted set before the header is checked,
+        // so if another arena is freeing the area in the store it's either
+        // still in the set or its header is marked as unallocated.
+        if (!arena_deleted_areas.add(pointer)) {
+          throw new IOException("Area already marked as unallocated.");
+        }
+        readByteArrayFrom(pointer, arena_buf, 0, 8);
+        long header = ByteArrayUtil.getLong(arena_buf, 0);
+        if ((header & 0x08000000000000000L) != 0) {
+          arena_deleted_areas.remove(pointer);
+          throw new IOException("Area already marked as unallocated.");
+        }
+        if (header > MAX_ARENA_AREA_SIZE) {
+          arena_deleted_areas.remove(pointer);
+          return false;
+        }
+
+        int i = (int) (header / 8);
+        LongList list = deleted_areas[i];
+        if (list == null) {
+          list = new LongList();
+          deleted_areas[i] = list;
+        }
+        list.add(pointer);
+        deleted_size += header;
+
+        if (deleted_size > MAX_ARENA_DELETED_SIZE) {
+          release(false);
+        }
+        return true;
+      }
+    }
+
+    /**
+     * Frees all the deleted areas in the store.  If 'release_chunk' is true
+     * then the chunk is also freed.
+     */
+    void release(boolean release_chunk) throws IOException {
+      synchronized (this) {
+        LongList to_free = new LongList();
+        for (int i = 0; i < deleted_areas.length; ++i) {
+          LongList list = deleted_areas[i];
+          if (list != null) {
+            for (int n = 0; n < list.size(); ++n) {
+              to_free.add(list.get(n));
+            }
+            list.clear();
+          }
+        }
+        deleted_size = 0;
+        // Free in address order so neighbouring areas coalesce as they are
+        // added to the bins.
+        to_free.sort();
+
+        synchronized (AbstractStore.this) {
+          for (int i = 0; i < to_free.size(); ++i) {
+            AbstractStore.this.free(to_free.get(i));
+          }
+          // The areas are now marked as unallocated in the store,
+          for (int i = 0; i < to_free.size(); ++i) {
+            arena_deleted_areas.remove(to_free.get(i));
+          }
+          if (release_chunk && chunk_pointer != -1) {
+            AbstractStore.this.free(chunk_pointer);
+            chunk_pointer = -1;
+            chunk_size = 0;
+          }
+        }
+      }
+    }
+
+  }
+
+
   private class StoreAreaInputStream extends InputStream {
     
     private long pointer;
@@ -1887,5 +2234,26 @@ public abstract class AbstractStore implements Store {
   protected final static int BIN_ENTRIES = BIN_SIZES.length;
   private final static int MAX_BIN_SIZE = BIN_SIZES[BIN_ENTRIES - 1];
 
+  /**
+   * The maximum number of allocation arenas.
+   */
+  private final static int MAX_ARENA_COUNT = 8;
+
+  /**
+   * The size of the chunk an allocation arena reserves from the store.
+   */
+  private final static long ARENA_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The largest area (including headers) allocated by an allocation arena.
+   */
+  private final static int MAX_ARENA_AREA_SIZE = 8192;
+
+  /**
+   * The total size of deleted areas an allocation arena holds before they
+   * are freed in the store.
+   */
+  private final static long MAX_ARENA_DELETED_SIZE = 256 * 1024;
+
 }
 
@@ -0,0 +1,242 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of StoreDataAccessor that uses positional reads and
+ * writes on a FileChannel.  Unlike IOStoreDataAccessor there is no file
+ * pointer to seek, so reads and writes do not take a lock and concurrent
+ * accesses to different parts of the file are passed to the device in
+ * parallel.
+ * <p>
+ * A FileChannel is closed if a thread is interrupted while it is blocked in
+ * an IO operation on the channel.  When this happens the channel is
+ * reopened, so an interrupt only fails the operation of the interrupted
+ * thread.
+ *
+ * @author Tobias Downer
+ */
+
+class ChannelStoreDataAccessor implements StoreDataAccessor {
+
+  /**
+   * A lock when changing the size of the file, or opening and closing it.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * The File object representing the file in the file system.
+   */
+  private final File file;
+
+  /**
+   * The underlying RandomAccessFile containing the data.
+   */
+  private RandomAccessFile data;
+
+  /**
+   * The FileChannel of the above file.
+   */
+  private volatile FileChannel channel;
+
+  /**
+   * The size of the data area.
+   */
+  private volatile long size;
+
+  /**
+   * True if the file is open in read only mode.
+   */
+  private boolean read_only;
+
+  /**
+   * True if the file is open.
+   */
+  private volatile boolean is_open;
+
+  /**
+   * Constructor.
+   */
+  ChannelStoreDataAccessor(File file) {
+    this.file = file;
+    this.is_open = false;
+  }
+
+  /**
+   * Called when an operation found the given channel closed.  If the
+   * accessor is still open and the channel hasn't already been replaced,
+   * the file is opened again.  Returns the current channel.
+   */
+  private FileChannel reopenChannel(FileChannel closed) throws IOException {
+    synchronized (lock) {
+      if (!is_open) {
+        throw new IOException("Store not open.");
+      }
+      if (channel == closed) {
+        data = new RandomAccessFile(file, read_only ? "r" : "rw");
+        channel = data.getChannel();
+      }
+      return channel;
+    }
+  }
+
+  // ---------- Implemented from StoreDataAccessor ----------
+
+  @Override
+  public void open(boolean is_read_only) throws IOException {
+    synchronized (lock) {
+      data = new RandomAccessFile(file, is_read_only ? "r" : "rw");
+      channel = data.getChannel();
+      read_only = is_read_only;
+      size = file.length();
+      is_open = true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      is_open = false;
+      channel = null;
+      data.close();
+      data = null;
+    }
+  }
+
+  @Override
+  public boolean delete() {
+    if (!is_open) {
+      return file.delete();
+    }
+    return false;
+  }
+
+  @Override
+  public boolean exists() {
+    return file.exists();
+  }
+
+  @Override
+  public void read(long position, byte[] buf, int off, int len)
+                                                          throws IOException {
+    // Make sure we don't read past the end
+    len = (int) Math.max(0, Math.min((long) len, size - position));
+    if (len == 0) {
+      return;
+    }
+    FileChannel ch = channel;
+    ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+    while (true) {
+      try {
+        while (bb.hasRemaining()) {
+          int read_count = ch.read(bb, position + (bb.position() - off));
+          if (read_count < 0) {
+            throw new IOException("Unexpected end of file.");
+          }
+        }
+        return;
+      }
+      catch (ClosedByInterruptException e) {
+        reopenChannel(ch);
+        throw e;
+      }
+      catch (ClosedChannelException e) {
+        ch = reopenChannel(ch);
+      }
+    }
+  }
+
+  @Override
+  public void write(long position, byte[] buf, int off, int len)
+                                                          throws IOException {
+    // Make sure we don't write past the end
+    len = (int) Math.max(0, Math.min((long) len, size - position));
+    if (len == 0) {
+      return;
+    }
+    FileChannel ch = channel;
+    ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+    while (true) {
+      try {
+        while (bb.hasRemaining()) {
+          ch.write(bb, position + (bb.position() - off));
+        }
+        return;
+      }
+      catch (ClosedByInterruptException e) {
+        reopenChannel(ch);
+        throw e;
+      }
+      catch (ClosedChannelException e) {
+        ch = reopenChannel(ch);
+      }
+    }
+  }
+
+  @Override
+  public void setSize(long new_size) throws IOException {
+    synchronized (lock) {
+      // If expanding the size of the file,
+      if (new_size > this.size) {
+        // Write a single byte to the end of the file (see the note in
+        // IOStoreDataAccessor about why 'setLength' isn't used to grow the
+        // file).
+        long p = new_size - 1;
+        if (p > 0) {
+          channel.write(ByteBuffer.wrap(new byte[1]), p);
+          this.size = new_size;
+        }
+      }
+      else if (new_size < this.size) {
+        this.size = new_size;
+        channel.truncate(new_size);
+      }
+    }
+  }
+
+  @Override
+  public long getSize() throws IOException {
+    synchronized (lock) {
+      if (is_open) {
+        return size;
+      }
+      else {
+        return file.length();
+      }
+    }
+  }
+
+  @Override
+  public void synch() throws IOException {
+    synchronized (lock) {
+      if (read_only) {
+        return;
+      }
+      channel.force(true);
+    }
+  }
+
+}
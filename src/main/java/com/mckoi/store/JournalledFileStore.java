@@ -102,9 +102,18 @@ public final class JournalledFileStore extends AbstractStore {
   
   @Override
   public void checkPoint() throws InterruptedException, IOException {
-    // We don't flush the log (it's only necessary to flush the log for small
-    // updates such as initialization procedures).
-    buffer_manager.setCheckPoint(false);
+    // Free the space held by the allocation arenas, and keep the arenas from
+    // holding space until the check point is recorded, so the check point
+    // records that space as free.
+    suspendArenas();
+    try {
+      // We don't flush the log (it's only necessary to flush the log for
+      // small updates such as initialization procedures).
+      buffer_manager.setCheckPoint(false);
+    }
+    finally {
+      resumeArenas();
+    }
   }
   
   // ---------- Implemented from AbstractStore ----------
@@ -50,6 +50,22 @@ interface JournalledResource {
    */
   void write(long page_number, byte[] buf, int off, int len) throws IOException;
 
+  /**
+   * Writes a page modification that was made during the given journal epoch.
+   * If the epoch is earlier than the current journal epoch and a fuzzy check
+   * point is in progress, the modification is logged to the journal of the
+   * check point rather than the top log.  Otherwise this is the same as
+   * 'write'.
+   */
+  void write(long page_number, byte[] buf, int off, int len,
+             long epoch) throws IOException;
+
+  /**
+   * Returns the current journal epoch.  The epoch changes each time a fuzzy
+   * check point is started.
+   */
+  long getJournalEpoch();
+
   /**
    * Sets the new size of the resource.  This will add a single entry to the
    * log.
@@ -68,7 +68,7 @@ class JournalledSystem {
   /**
    * The archive of journal files currently pending (JournalFile).
    */
-  private final ArrayList journal_archives;
+  private final ArrayList<JournalFile> journal_archives;
   
   /**
    * The current top journal file.
@@ -91,11 +91,38 @@ class JournalledSystem {
    */
   private final Object top_journal_lock = new Object();
 
+  /**
+   * The journal epoch.  This is incremented each time a fuzzy check point is
+   * started.  Written under 'top_journal_lock'.
+   */
+  private volatile long journal_epoch;
+
+  /**
+   * The journal of the fuzzy check point currently in progress, or null if
+   * there is no fuzzy check point in progress.  Modifications made in an
+   * epoch before 'journal_epoch' are logged to this journal.
+   */
+  private JournalFile check_point_journal;
+
   /**
    * A thread that runs in the background and persists information that is in
    * the journal.
    */
   private JournalingThread journaling_thread;
+
+  /**
+   * The number of threads used to apply the journals during a roll forward
+   * recovery.  If 1, the journals are replayed in order on the thread that
+   * starts the journal system.
+   */
+  private int recovery_thread_count = 1;
+
+  /**
+   * The total number of pages to apply in a parallel recovery, and the
+   * number applied so far.  Used to report progress.
+   */
+  private long recovery_page_total;
+  private long recovery_page_count;
   
   /**
    * A debug log to output information to.
@@ -120,7 +147,7 @@ class JournalledSystem {
     this.sda_factory = sda_factory;
     all_resources = new HashMap();
     journal_number = 0;
-    journal_archives = new ArrayList();
+    journal_archives = new ArrayList<>();
     this.debug = debug;
     this.ENABLE_LOGGING = enable_logging;
   }
@@ -137,6 +164,20 @@ class JournalledSystem {
     return "jnl" + number;
   }
 
+  /**
+   * Sets the number of threads used to apply the journals when recovering
+   * after the system was not shut down cleanly.  If the count is greater
+   * than 1, the journals are scanned first and the final content of each
+   * modified page is applied to the resources in parallel.  This must be set
+   * before the journal system is started.
+   */
+  void setRecoveryThreadCount(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("count < 1");
+    }
+    this.recovery_thread_count = count;
+  }
+
   // Lock used during initialization
   private final Object init_lock = new Object();
   
@@ -209,7 +250,7 @@ class JournalledSystem {
           // Close all the journals
           int sz = journal_archives.size();
           for (int i = 0; i < sz; ++i) {
-            JournalFile jf = (JournalFile) journal_archives.get(i);
+            JournalFile jf = journal_archives.get(i);
             jf.close();
           }
           // Close the top journal
@@ -246,7 +287,7 @@ class JournalledSystem {
   void rollForwardRecover() throws IOException {
         
     // The list of all journal files,
-    ArrayList journal_files_list = new ArrayList();
+    ArrayList<JournalSummary> journal_files_list = new ArrayList<>();
 
     // Scan the journal path for any journal files.
     for (int i = 10; i < 74; ++i) {
@@ -292,16 +333,22 @@ class JournalledSystem {
     // are recovered first.
     Collections.sort(journal_files_list, journal_list_comparator);
 
+    // Apply the journals in parallel if configured to,
+    if (recovery_thread_count > 1 && journal_files_list.size() > 0) {
+      parallelRecover(journal_files_list);
+      return;
+    }
+
     long last_journal_number = -1;
     
     // Persist the journals
     for (int i = 0; i < journal_files_list.size(); ++i) {
-      JournalSummary summary = (JournalSummary) journal_files_list.get(i);
+      JournalSummary summary = journal_files_list.get(i);
       
       // Check the resources for this summary
-      ArrayList res_list = summary.resource_list;
+      ArrayList<String> res_list = summary.resource_list;
       for (int n = 0; n < res_list.size(); ++n) {
-        String resource_name = (String) res_list.get(n);
+        String resource_name = res_list.get(n);
         // This puts the resource into the hash map.
         JournalledResource resource = createResource(resource_name);
       }
@@ -324,7 +371,7 @@ class JournalledSystem {
       
       // Check the resources for this summary and close them
       for (int n = 0; n < res_list.size(); ++n) {
-        String resource_name = (String) res_list.get(n);
+        String resource_name = res_list.get(n);
         AbstractResource resource =
                               (AbstractResource) createResource(resource_name);
         // When we finished, make sure the resource is closed again
@@ -338,12 +385,191 @@ class JournalledSystem {
     
   }
 
-  private Comparator journal_list_comparator = new Comparator() {
+  /**
+   * Recovers the given list of journals (JournalSummary) sorted from oldest
+   * to newest.  The journals are scanned to build the list of changes for
+   * each resource, and the changes are then applied in parallel.  Changes to
+   * the same page are merged so each modified page is written once.  The
+   * final content of a page does not depend on any other page, so the order
+   * pages are written in doesn't matter.  The journals are only deleted
+   * after all the resources are synched, so if the recovery is interrupted
+   * it is simply repeated.
+   */
+  private void parallelRecover(ArrayList<JournalSummary> journal_files_list)
+                                                          throws IOException {
+
+    long start_time = System.currentTimeMillis();
+
+    // The plan for each resource (resource_name -> ResourceRecovery)
+    final HashMap<String, ResourceRecovery> plan_map = new HashMap<>();
+    final ArrayList<ResourceRecovery> plan_list = new ArrayList<>();
+
+    long last_journal_number = -1;
+
+    // Scan the journals from oldest to newest
+    for (int i = 0; i < journal_files_list.size(); ++i) {
+      JournalSummary summary = journal_files_list.get(i);
+
+      // This puts the resources into the hash map.
+      ArrayList<String> res_list = summary.resource_list;
+      for (int n = 0; n < res_list.size(); ++n) {
+        createResource(res_list.get(n));
+      }
+
+      // Assert that we are recovering the journals in the correct order
+      JournalFile jf = summary.journal_file;
+      if (jf.journal_number < last_journal_number) {
+        throw new Error("Assertion failed, sort failed.");
+      }
+      last_journal_number = jf.journal_number;
+
+      if (debug.isInterestedIn(Lvl.INFORMATION)) {
+        debug.write(Lvl.INFORMATION, this, "Scanning: " + jf +
+                                    " (8 .. " + summary.last_checkpoint + ")");
+      }
+
+      jf.scanForRecovery(8, summary.last_checkpoint, plan_map, plan_list);
+    }
+
+    // Group the changes by page and split them into tasks
+    final ArrayList<RecoveryTask> tasks = new ArrayList<>();
+    long page_total = 0;
+    for (int i = 0; i < plan_list.size(); ++i) {
+      page_total += plan_list.get(i).prepare(tasks, 64);
+    }
+    synchronized (this) {
+      recovery_page_total = page_total;
+      recovery_page_count = 0;
+    }
+
+    final int thread_count = Math.max(1,
+                            Math.min(recovery_thread_count, tasks.size()));
+    if (page_total > 0) {
+      debug.write(Lvl.MESSAGE, this, "Recovering " +
+                  journal_files_list.size() + " journal(s): " + page_total +
+                  " page(s) in " + plan_list.size() + " resource(s) using " +
+                  thread_count + " thread(s).");
+    }
+
+    // Delete and size the resources
+    for (int i = 0; i < plan_list.size(); ++i) {
+      plan_list.get(i).begin();
+    }
+
+    // Apply the page changes on a pool of threads
+    final int[] next_task = new int[1];
+    final Throwable[] error = new Throwable[1];
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          RecoveryTask task;
+          synchronized (next_task) {
+            if (error[0] != null || next_task[0] >= tasks.size()) {
+              return;
+            }
+            task = tasks.get(next_task[0]);
+            ++next_task[0];
+          }
+          try {
+            task.plan.applyPages(task.start, task.end);
+          }
+          catch (Throwable e) {
+            synchronized (next_task) {
+              if (error[0] == null) {
+                error[0] = e;
+              }
+            }
+            return;
+          }
+        }
+      }
+    };
+
+    Thread[] threads = new Thread[thread_count];
+    for (int i = 0; i < thread_count; ++i) {
+      threads[i] = new Thread(worker, "Mckoi - Journal Recovery " + i);
+      threads[i].start();
+    }
+    try {
+      for (int i = 0; i < thread_count; ++i) {
+        threads[i].join();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new Error("Interrupted", e);
+    }
+
+    Throwable e = error[0];
+    if (e != null) {
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      }
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+      throw new Error(e.getMessage(), e);
+    }
+
+    // Synch the resources
+    for (int i = 0; i < plan_list.size(); ++i) {
+      plan_list.get(i).finish();
+    }
+
+    // All the changes are applied and synched, so close and delete the
+    // journals.
+    for (int i = 0; i < journal_files_list.size(); ++i) {
+      JournalSummary summary = journal_files_list.get(i);
+      summary.journal_file.closeAndDelete();
+    }
+
+    // Close the resources and notify them of the recovery
+    for (int i = 0; i < journal_files_list.size(); ++i) {
+      JournalSummary summary = journal_files_list.get(i);
+      ArrayList<String> res_list = summary.resource_list;
+      for (int n = 0; n < res_list.size(); ++n) {
+        AbstractResource resource =
+                     (AbstractResource) createResource(res_list.get(n));
+        resource.persistClose();
+        resource.notifyPostRecover();
+      }
+    }
+
+    if (page_total > 0) {
+      debug.write(Lvl.MESSAGE, this, "Recovery complete: " + page_total +
+                  " page(s) in " + (System.currentTimeMillis() - start_time) +
+                  " ms.");
+    }
+
+  }
+
+  /**
+   * Called by a recovery thread after a page has been applied.  Reports the
+   * progress of the recovery every 10 percent.
+   */
+  private void recoveryPageApplied() {
+    long total;
+    long count;
+    synchronized (this) {
+      ++recovery_page_count;
+      total = recovery_page_total;
+      count = recovery_page_count;
+    }
+    long step = Math.max(1, total / 10);
+    if (count % step == 0 && count < total) {
+      debug.write(Lvl.MESSAGE, this, "Recovery progress: " + count + " of " +
+                  total + " page(s) (" + ((count * 100) / total) + "%).");
+    }
+  }
+
+  private Comparator<JournalSummary> journal_list_comparator =
+                                            new Comparator<JournalSummary>() {
     
     @Override
-    public int compare(Object ob1, Object ob2) {
-      JournalSummary js1 = (JournalSummary) ob1;
-      JournalSummary js2 = (JournalSummary) ob2;
+    public int compare(JournalSummary js1, JournalSummary js2) {
 
       long jn1 = js1.journal_file.getJournalNumber();
       long jn2 = js2.journal_file.getJournalNumber();
@@ -466,6 +692,82 @@ class JournalledSystem {
 
   }
   
+  /**
+   * Starts a fuzzy check point.  The top journal becomes the journal of the
+   * check point and a new top journal is created for modifications made
+   * from this point on, and the journal epoch is incremented.  Modifications
+   * of the previous epoch that are written before 'finishCheckPoint' is
+   * called are logged to the check point journal.
+   * <p>
+   * The caller must ensure no writes are in progress when this is called.
+   */
+  void beginCheckPoint() throws IOException {
+    // No Logging
+    if (!ENABLE_LOGGING) {
+      return;
+    }
+    // Return if read-only
+    if (read_only) {
+      return;
+    }
+
+    synchronized (top_journal_lock) {
+      if (check_point_journal != null) {
+        throw new Error("Assertion failed - check point already in progress.");
+      }
+      check_point_journal = topJournal();
+      newTopJournalFile();
+      ++journal_epoch;
+    }
+  }
+
+  /**
+   * Finishes a fuzzy check point started by 'beginCheckPoint'.  This sets
+   * the check point on the check point journal, which contains all the
+   * modifications up to the point 'beginCheckPoint' was called, and passes
+   * the journal on to be persisted.
+   */
+  void finishCheckPoint() throws IOException {
+    // No Logging
+    if (!ENABLE_LOGGING) {
+      return;
+    }
+    // Return if read-only
+    if (read_only) {
+      return;
+    }
+
+    // The check point journal no longer receives changes so the check point
+    // is written (and the journal synched) without holding the top journal
+    // lock.  This way the synch doesn't block writes to the top journal.
+    JournalFile cp_j;
+    synchronized (top_journal_lock) {
+      cp_j = check_point_journal;
+    }
+    cp_j.setCheckPoint();
+    synchronized (top_journal_lock) {
+      journal_archives.add(cp_j);
+      check_point_journal = null;
+    }
+
+    // Notifies the background thread that there is something to persist.
+    // This will block until there are at most 10 journal files open.
+    journaling_thread.persistArchives(10);
+  }
+
+  /**
+   * Returns the journal that modifications made during the given epoch are
+   * logged to.
+   */
+  private JournalFile journalForEpoch(long epoch) {
+    synchronized (top_journal_lock) {
+      if (epoch < journal_epoch && check_point_journal != null) {
+        return check_point_journal;
+      }
+      return top_journal_file;
+    }
+  }
+
   /**
    * Returns the Resource with the given name.
    */
@@ -627,7 +929,7 @@ class JournalledSystem {
         this.journal_number = din.readLong();
         long position = 8;
 
-        ArrayList checkpoint_res_list = new ArrayList();
+        ArrayList<String> checkpoint_res_list = new ArrayList<>();
         
         // Start scan
         while (true) {
@@ -915,6 +1217,120 @@ class JournalledSystem {
 
     }
 
+    /**
+     * Scans the log from the given offset in the file to the check point at
+     * the given end offset, and adds the changes to the plan of each resource
+     * modified (resource_name -> ResourceRecovery).  New plans are added to
+     * the end of 'plan_list'.  This does not change any resources.
+     */
+    void scanForRecovery(final long start, final long end,
+                         HashMap<String, ResourceRecovery> plan_map,
+                         ArrayList<ResourceRecovery> plan_list)
+                                                          throws IOException {
+
+      final DataInputStream din = new DataInputStream(
+                              new BufferedInputStream(data.getInputStream()));
+      try {
+        long count = start;
+        // Skip to the offset
+        while (count > 0) {
+          count -= din.skip(count);
+        }
+
+        // A map from resource id to resource plan for this journal.
+        HashMap<Long, ResourceRecovery> id_plan_map = new HashMap<>();
+
+        boolean finished = false;
+        long position = start;
+
+        while (!finished) {
+          final long entry_position = position;
+          long type = din.readLong();
+          int size = din.readInt();
+          position = position + size + 12;
+
+          if (type == 2) {       // Resource id tag
+            long id = din.readLong();
+            int len = din.readInt();
+            StringBuffer buf = new StringBuffer(len);
+            for (int i = 0; i < len; ++i) {
+              buf.append(din.readChar());
+            }
+            String resource_name = new String(buf);
+
+            ResourceRecovery plan = plan_map.get(resource_name);
+            if (plan == null) {
+              plan = new ResourceRecovery(getResource(resource_name));
+              plan_map.put(resource_name, plan);
+              plan_list.add(plan);
+            }
+            id_plan_map.put(id, plan);
+          }
+          else if (type == 6) {  // Resource delete
+            long id = din.readLong();
+            id_plan_map.get(id).logDelete();
+          }
+          else if (type == 3) {  // Resource size change
+            long id = din.readLong();
+            long new_size = din.readLong();
+            id_plan_map.get(id).logSetSize(new_size);
+          }
+          else if (type == 21 || type == 1) {  // Page modification
+            long id = din.readLong();
+            long page = din.readLong();
+            int page_size;
+            long data_position;
+            if (type == 21) {
+              page_size = din.readInt();
+              data_position = entry_position + 40;
+            }
+            else {
+              // The old format that has no page size.
+              page_size = 8192;
+              data_position = entry_position + 36;
+            }
+            int off = din.readInt();
+            int len = din.readInt();
+
+            id_plan_map.get(id).logPageChange(
+                new RecoveryEntry(this, data_position, page, page_size,
+                                  off, len));
+
+            // Skip the page content
+            int to_skip = len;
+            while (to_skip > 0) {
+              to_skip -= din.skip(to_skip);
+            }
+          }
+          else if (type == 100) { // Checkpoint (end)
+            if (position == end) {
+              finished = true;
+            }
+          }
+          else {
+            throw new Error("Unknown tag type: " + type +
+                            " position = " + position);
+          }
+
+        }  // while (!finished)
+      }
+      finally {
+        din.close();
+      }
+
+    }
+
+    /**
+     * Reads the content of a page modification at the given position in the
+     * journal file.
+     */
+    void readRecoveryData(long position,
+                          byte[] buf, int off, int len) throws IOException {
+      synchronized (this) {
+        data.readFully(position, buf, off, len);
+      }
+    }
+
     /**
      * Writes a resource identifier to the stream for the resource with the
      * given name.
@@ -1235,6 +1651,12 @@ class JournalledSystem {
                                     final int off, int len,
                                     DataInputStream din) throws IOException;
 
+    abstract void persistRead(final long position,
+                              byte[] buf, int off, int len) throws IOException;
+
+    abstract void persistWrite(final long position,
+                               byte[] buf, int off, int len) throws IOException;
+
     abstract void synch() throws IOException;
 
     // Called after a rollForwardRecover to notify the resource to update its
@@ -1259,6 +1681,15 @@ class JournalledSystem {
       return id;
     }
 
+    /**
+     * Writes a page to the top log.
+     */
+    @Override
+    public void write(final long page_number,
+                      byte[] buf, int off, int len) throws IOException {
+      write(page_number, buf, off, len, getJournalEpoch());
+    }
+
 
     @Override
     public String toString() {
@@ -1305,6 +1736,18 @@ class JournalledSystem {
       // No-op
     }
 
+    @Override
+    void persistRead(final long position,
+                     byte[] buf, int off, int len) throws IOException {
+      // No-op
+    }
+
+    @Override
+    void persistWrite(final long position,
+                      byte[] buf, int off, int len) throws IOException {
+      // No-op
+    }
+
     @Override
     public void synch() throws IOException {
       data.synch();
@@ -1350,11 +1793,20 @@ class JournalledSystem {
      */
     @Override
     public void write(final long page_number,
-                      byte[] buf, int off, int len) throws IOException {
+                      byte[] buf, int off, int len,
+                      long epoch) throws IOException {
       long page_position = page_number * page_size;
       data.write(page_position + off, buf, off, len);
     }
 
+    /**
+     * Check points are not logged so the epoch never changes.
+     */
+    @Override
+    public long getJournalEpoch() {
+      return 0;
+    }
+
     /**
      * Sets the size of the resource.
      */
@@ -1543,6 +1995,30 @@ class JournalledSystem {
       data.write(pos + off, buf, 0, len);
     }
 
+    // These may be called concurrently by the recovery threads.
+
+    @Override
+    void persistRead(final long position,
+                     byte[] buf, int off, int len) throws IOException {
+      synchronized (this) {
+        if (!really_open) {
+          persistOpen(false);
+        }
+      }
+      data.read(position, buf, off, len);
+    }
+
+    @Override
+    void persistWrite(final long position,
+                      byte[] buf, int off, int len) throws IOException {
+      synchronized (this) {
+        if (!really_open) {
+          persistOpen(false);
+        }
+      }
+      data.write(position, buf, off, len);
+    }
+
     @Override
     public void synch() throws IOException {
       if (really_open) {
@@ -1555,6 +2031,11 @@ class JournalledSystem {
       data_exists = data.exists();
     }
 
+    @Override
+    public long getJournalEpoch() {
+      return journal_epoch;
+    }
+
     
     // ----------
 
@@ -1684,13 +2165,14 @@ class JournalledSystem {
     }
 
     /**
-     * Writes a page of some previously specified size to the top log.  This
-     * will add a single entry to the log and any 'read' operations after will
-     * contain the written data.
+     * Writes a page of some previously specified size to the log of the given
+     * epoch (see 'journalForEpoch').  This will add a single entry to the log
+     * and any 'read' operations after will contain the written data.
      */
     @Override
     public void write(final long page_number,
-                      byte[] buf, int off, int len) throws IOException {
+                      byte[] buf, int off, int len,
+                      long epoch) throws IOException {
 
       synchronized (journal_map) {
         if (!data_open) {
@@ -1700,8 +2182,8 @@ class JournalledSystem {
         // Make this modification in the log
         JournalEntry journal;
         synchronized (top_journal_lock) {
-          journal = topJournal().logPageModification(name, page_number,
-                                                     buf, off, len);
+          journal = journalForEpoch(epoch).logPageModification(
+                                      name, page_number, buf, off, len);
         }
 
         // This adds the modification to the END of the hash list.  This means
@@ -1835,6 +2317,257 @@ class JournalledSystem {
 
   }
 
+  /**
+   * A page modification found in a journal during a recovery scan.
+   */
+  private static final class RecoveryEntry {
+
+    /**
+     * The journal file and the position of the page content in it.
+     */
+    final JournalFile journal;
+    final long data_position;
+
+    /**
+     * The page number and page size of the modification.
+     */
+    final long page;
+    final int page_size;
+
+    /**
+     * The offset and length of the modification within the page.
+     */
+    final int off;
+    final int len;
+
+    /**
+     * Constructor.
+     */
+    RecoveryEntry(JournalFile journal, long data_position,
+                  long page, int page_size, int off, int len) {
+      this.journal = journal;
+      this.data_position = data_position;
+      this.page = page;
+      this.page_size = page_size;
+      this.off = off;
+      this.len = len;
+    }
+
+  }
+
+  /**
+   * Sorts RecoveryEntry objects by page number.
+   */
+  private static final Comparator<RecoveryEntry> recovery_entry_comparator =
+                                              new Comparator<RecoveryEntry>() {
+    @Override
+    public int compare(RecoveryEntry ob1, RecoveryEntry ob2) {
+      long p1 = ob1.page;
+      long p2 = ob2.page;
+      return p1 < p2 ? -1 : (p1 > p2 ? 1 : 0);
+    }
+  };
+
+  /**
+   * The changes to apply to a resource during a parallel recovery.  Only the
+   * changes made after the last delete of the resource are kept.  The size
+   * changes are made in the order they were logged, before the page changes.
+   */
+  private final class ResourceRecovery {
+
+    /**
+     * The resource.
+     */
+    private final AbstractResource resource;
+
+    /**
+     * True if the resource is deleted before the changes are applied.
+     */
+    private boolean delete = false;
+
+    /**
+     * The sizes set, in the order they were logged.
+     */
+    private final ArrayList<Long> sizes = new ArrayList<>();
+
+    /**
+     * The page modifications, in the order they were logged.
+     */
+    private final ArrayList<RecoveryEntry> entries = new ArrayList<>();
+
+    /**
+     * True if the changes can not be merged by page because they don't all
+     * have the same page size, or a change does not fit in its page.  In
+     * this case the changes are applied in the order they were logged.
+     */
+    private boolean in_order = false;
+
+    /**
+     * The index in 'entries' of the first change on each page, followed by
+     * the size of 'entries'.  Set by 'prepare'.
+     */
+    private int[] page_starts;
+
+    /**
+     * Constructor.
+     */
+    ResourceRecovery(AbstractResource resource) {
+      this.resource = resource;
+    }
+
+    void logDelete() {
+      delete = true;
+      sizes.clear();
+      entries.clear();
+      in_order = false;
+    }
+
+    void logSetSize(long size) {
+      sizes.add(size);
+    }
+
+    void logPageChange(RecoveryEntry entry) {
+      if (entry.off < 0 || entry.off + entry.len > entry.page_size) {
+        in_order = true;
+      }
+      else if (entries.size() > 0 &&
+           entries.get(0).page_size != entry.page_size) {
+        in_order = true;
+      }
+      entries.add(entry);
+    }
+
+    /**
+     * Groups the changes by page and adds the work to apply them to the given
+     * list of tasks.  Each task covers up to 'task_pages'
+     * pages.  Returns the number of page writes that will be made.
+     */
+    long prepare(ArrayList<RecoveryTask> tasks, int task_pages) {
+      final int sz = entries.size();
+      if (in_order) {
+        // The changes must be applied in order so they are a single task
+        page_starts = null;
+        if (sz > 0) {
+          tasks.add(new RecoveryTask(this, 0, sz));
+        }
+        return sz;
+      }
+
+      // This is a stable sort so the changes to each page stay in the order
+      // they were logged.
+      Collections.sort(entries, recovery_entry_comparator);
+      int page_count = 0;
+      int[] starts = new int[sz + 1];
+      for (int i = 0; i < sz; ++i) {
+        long page = entries.get(i).page;
+        if (i == 0 || page != entries.get(i - 1).page) {
+          starts[page_count] = i;
+          ++page_count;
+        }
+      }
+      starts[page_count] = sz;
+      page_starts = starts;
+
+      for (int i = 0; i < page_count; i += task_pages) {
+        tasks.add(new RecoveryTask(this, i,
+                                   Math.min(page_count, i + task_pages)));
+      }
+      return page_count;
+    }
+
+    /**
+     * Deletes and sizes the resource before the page changes are applied.
+     */
+    void begin() throws IOException {
+      if (delete) {
+        resource.persistDelete();
+      }
+      for (long size : sizes) {
+        resource.persistSetSize(size);
+      }
+    }
+
+    /**
+     * Applies the changes to the pages between the given page indexes (or
+     * the given entry indexes if the changes are applied in order).  This
+     * may be called concurrently for different ranges.
+     */
+    void applyPages(int start, int end) throws IOException {
+      if (in_order) {
+        for (int i = start; i < end; ++i) {
+          RecoveryEntry entry = entries.get(i);
+          byte[] buf = new byte[entry.len];
+          entry.journal.readRecoveryData(entry.data_position,
+                                         buf, 0, entry.len);
+          long pos = entry.page * entry.page_size;
+          resource.persistWrite(pos + entry.off, buf, 0, entry.len);
+          recoveryPageApplied();
+        }
+        return;
+      }
+
+      final int page_size = entries.get(0).page_size;
+      final byte[] page_buf = new byte[page_size];
+      for (int p = start; p < end; ++p) {
+        final int first = page_starts[p];
+        final int last = page_starts[p + 1];
+        final long page = entries.get(first).page;
+        // The span of the page covered by the changes
+        int span_start = page_size;
+        int span_end = 0;
+        for (int n = first; n < last; ++n) {
+          RecoveryEntry entry = entries.get(n);
+          span_start = Math.min(span_start, entry.off);
+          span_end = Math.max(span_end, entry.off + entry.len);
+        }
+
+        if (span_end > span_start) {
+          // Read the current content of the span (anything past the end of
+          // the resource reads as 0), apply the changes over it in order,
+          // then write the span.
+          final long page_pos = page * page_size;
+          Arrays.fill(page_buf, span_start, span_end, (byte) 0);
+          resource.persistRead(page_pos + span_start, page_buf,
+                               span_start, span_end - span_start);
+          for (int n = first; n < last; ++n) {
+            RecoveryEntry entry = entries.get(n);
+            entry.journal.readRecoveryData(entry.data_position,
+                                           page_buf, entry.off, entry.len);
+          }
+          resource.persistWrite(page_pos + span_start, page_buf,
+                                span_start, span_end - span_start);
+        }
+        recoveryPageApplied();
+      }
+    }
+
+    /**
+     * Synchronizes the resource after all the changes are applied.
+     */
+    void finish() throws IOException {
+      resource.synch();
+    }
+
+  }
+
+  /**
+   * A range of the page changes of a resource that are applied by one
+   * recovery thread.
+   */
+  private static final class RecoveryTask {
+
+    final ResourceRecovery plan;
+    final int start;
+    final int end;
+
+    RecoveryTask(ResourceRecovery plan, int start, int end) {
+      this.plan = plan;
+      this.start = start;
+      this.end = end;
+    }
+
+  }
+
   /**
    * Summary information about a journal.
    */
@@ -1859,7 +2592,7 @@ class JournalledSystem {
     /**
      * The list of all resource names that this journal 'touches'.
      */
-    ArrayList resource_list = new ArrayList();
+    ArrayList<String> resource_list = new ArrayList<>();
 
     /**
      * Constructor.
@@ -1897,10 +2630,10 @@ class JournalledSystem {
 
         while (!local_finished) {
 
-          ArrayList to_process = null;
+          ArrayList<JournalFile> to_process = null;
           synchronized (top_journal_lock) {
             if (journal_archives.size() > 0) {
-              to_process = new ArrayList();
+              to_process = new ArrayList<>();
               to_process.addAll(journal_archives);
             }
           }
@@ -1920,7 +2653,7 @@ class JournalledSystem {
             // For all journals
             for (int i = 0; i < sz; ++i) {
               // Pick the lowest journal to persist
-              JournalFile jf = (JournalFile) to_process.get(i);
+              JournalFile jf = to_process.get(i);
               try {
                 // Persist the journal
                 jf.persist(8, jf.size());
@@ -20,9 +20,10 @@ package com.mckoi.store;
 import com.mckoi.debug.DebugLogger;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 /**
  * A paged random access buffer manager that caches access between a Store and
@@ -45,26 +46,82 @@ public class LoggingBufferManager {
   private boolean started = false;
 
   /**
-   * A timer that represents the T value in buffer pages.
+   * The number of lock stripes over the page map.  Must be a power of 2.
    */
-  private long current_T;
+  private static final int PAGE_MAP_STRIPES = 64;
 
   /**
-   * The number of pages in this buffer.
+   * The maximum usage count of a page that has only been read.
+   */
+  private static final int MAX_READ_USAGE = 3;
+
+  /**
+   * The maximum usage count of a page that has been written.  This is
+   * larger than MAX_READ_USAGE so written pages survive longer in the cache.
+   */
+  private static final int MAX_WRITE_USAGE = 5;
+
+  /**
+   * The number of pages in this buffer.  Guarded by 'clock_lock'.
    */
   private int current_page_count;
-  
+
+  /**
+   * The number of pages in the hot ring.  Guarded by 'clock_lock'.
+   */
+  private int hot_page_count;
+
+  /**
+   * The largest number of pages the hot ring may hold before its hand
+   * demotes pages to the cold ring.
+   */
+  private final int max_hot_pages;
+
+  /**
+   * The hand of the cold clock ring, or null if the ring is empty.  New
+   * pages enter this ring, and pages are only evicted from this ring.
+   * Guarded by 'clock_lock'.
+   */
+  private BMPage cold_hand;
+
+  /**
+   * The hand of the hot clock ring, or null if the ring is empty.  A page is
+   * promoted to this ring when it is referenced again while in the cold
+   * ring.  Guarded by 'clock_lock'.
+   */
+  private BMPage hot_hand;
+
+  /**
+   * The keys of the pages most recently evicted from the cold ring, oldest
+   * first.  A page fetched again while its key is in this set goes straight
+   * into the hot ring.  Guarded by 'clock_lock'.
+   */
+  private final LinkedHashSet<PageKey> ghost_pages;
+
   /**
-   * The list of all pages.
+   * The largest number of keys in 'ghost_pages'.
    */
-  private ArrayList page_list;
+  private final int max_ghost_pages;
+
+  /**
+   * The lock for the clock rings.  This is only locked when a page is
+   * created or purged, so a cache hit never touches this lock.
+   */
+  private final Object clock_lock = new Object();
   
   /**
    * A hash map of all pages currently in memory keyed by store_id and page
-   * number.
+   * number.  A bucket in the map is guarded by the lock stripe returned by
+   * 'stripeLock'.
    * NOTE: This MUST be final for the 'fetchPage' method to be safe.
    */
   private final BMPage[] page_map;
+
+  /**
+   * The locks that guard the buckets of 'page_map'.  Bucket 'p' is guarded
+   * by 'page_map_locks[p & (PAGE_MAP_STRIPES - 1)]'.
+   */
+  private final Object[] page_map_locks;
   
   /**
    * The JournalledSystem object that handles journalling of all data.
@@ -100,6 +157,63 @@ public class LoggingBufferManager {
    * A mutex for when modifying the write lock information.
    */
   private final Object write_lock = new Object();
+
+  /**
+   * The pool of direct buffers page content is stored in, or null if page
+   * content is stored in byte[] arrays on the heap.
+   */
+  private PageBufferPool direct_buffer_pool = null;
+
+  /**
+   * True if check points are fuzzy (see 'setFuzzyCheckPoint').
+   */
+  private boolean fuzzy_check_point = false;
+
+  /**
+   * A mutex that serializes check points.
+   */
+  private final Object check_point_lock = new Object();
+
+  // ---------- Group commit ----------
+
+  /**
+   * The time, in microseconds, a check point waits for other check point
+   * requests to join it before it starts.  0 means don't wait.
+   */
+  private long group_commit_window = 0;
+
+  /**
+   * The number of check point requests that ends the group commit window
+   * early.
+   */
+  private int group_commit_max_batch = 64;
+
+  /**
+   * The number of check point requests made.  Guarded by 'group_lock'.
+   */
+  private long check_point_requests;
+
+  /**
+   * The number of check point requests that are covered by a completed
+   * check point.  Guarded by 'group_lock'.
+   */
+  private long check_point_requests_covered;
+
+  /**
+   * The number of check points actually performed.  Guarded by 'group_lock'.
+   */
+  private long check_point_count;
+
+  /**
+   * The largest number of requests covered by a single check point.  Guarded
+   * by 'group_lock'.
+   */
+  private long check_point_max_batch;
+
+  /**
+   * A mutex for the group commit information.
+   */
+  private final Object group_lock = new Object();
   
   
 //  /**
@@ -122,15 +236,22 @@ public class LoggingBufferManager {
                        StoreDataAccessorFactory sda_factory,
                        DebugLogger debug, boolean enable_logging) {
     this.max_pages = max_pages;
+    this.max_hot_pages = max_pages - (max_pages / 4);
+    this.max_ghost_pages = max_pages / 2;
+    this.ghost_pages = new LinkedHashSet<>();
     this.page_size = page_size;
 //    this.page_size = 8192;
 
     check_point_in_progress = false;
     write_lock_count = 0;
     
-    current_T = 0;
-    page_list = new ArrayList();
+    cold_hand = null;
+    hot_hand = null;
     page_map = new BMPage[7829];
+    page_map_locks = new Object[PAGE_MAP_STRIPES];
+    for (int i = 0; i < PAGE_MAP_STRIPES; ++i) {
+      page_map_locks[i] = new Object();
+    }
 
     journalled_system = new JournalledSystem(journal_path, read_only,
                                page_size, sda_factory, debug, enable_logging);
@@ -138,22 +259,37 @@ public class LoggingBufferManager {
 
   /**
    * Constructs the manager with a scattering store implementation that
-   * converts the resource to a file in the given path.
+   * converts the resource to a file in the given path.  'accessor_type'
+   * determines how the data in each file slice is accessed.
    */
   public LoggingBufferManager(final File resource_path,
         final File journal_path, final boolean read_only, final int max_pages,
         final int page_size, final String file_ext, final long max_slice_size,
+        final StoreDataAccessorType accessor_type,
         DebugLogger debug, boolean enable_logging) {
     this(journal_path, read_only, max_pages, page_size,
          new StoreDataAccessorFactory() {
       @Override
       public StoreDataAccessor createStoreDataAccessor(String resource_name) {
         return new ScatteringStoreDataAccessor(resource_path, resource_name,
-                                               file_ext, max_slice_size);
+                                     file_ext, max_slice_size, accessor_type);
       }
     }, debug, enable_logging);
   }
 
+  /**
+   * Constructs the manager with a scattering store implementation that
+   * converts the resource to a file in the given path.
+   */
+  public LoggingBufferManager(final File resource_path,
+        final File journal_path, final boolean read_only, final int max_pages,
+        final int page_size, final String file_ext, final long max_slice_size,
+        DebugLogger debug, boolean enable_logging) {
+    this(resource_path, journal_path, read_only, max_pages, page_size,
+         file_ext, max_slice_size, StoreDataAccessorType.IO,
+         debug, enable_logging);
+  }
+
   /**
    * Starts the buffer manager.
    */
@@ -162,6 +298,116 @@ public class LoggingBufferManager {
     started = true;
   }
 
+  /**
+   * Sets the number of threads used to apply the journals when the system is
+   * started after it was not shut down cleanly.  If greater than 1, the
+   * journals are scanned and the final content of each changed page is
+   * written to the resources in parallel, and the progress is reported to
+   * the debug log.  This must be set before the buffer manager is started.
+   */
+  public void setRecoveryThreadCount(int count) {
+    if (started) {
+      throw new IllegalStateException("Buffer manager is started");
+    }
+    journalled_system.setRecoveryThreadCount(count);
+  }
+
+  /**
+   * Sets whether check points are fuzzy.  When a fuzzy check point is set,
+   * writers are only blocked while the journal is switched over to a new
+   * journal file.  The pages changed before the check point are then flushed
+   * to the journal of the check point while writers continue.  A page that
+   * is written to before it is flushed is flushed by the writer before the
+   * change is made.  This must be set before the buffer manager is started.
+   * <p>
+   * Fuzzy check points create a new journal file for each check point.
+   */
+  public void setFuzzyCheckPoint(boolean status) {
+    if (started) {
+      throw new IllegalStateException("Buffer manager is started");
+    }
+    this.fuzzy_check_point = status;
+  }
+
+  /**
+   * Sets whether the content of pages is stored in direct buffers outside
+   * the Java heap.  When true, page content is kept in slabs of direct
+   * memory that are pooled and reused, so the heap used by the buffer
+   * manager does not depend on the maximum number of pages.  This must be
+   * set before the buffer manager is started.
+   */
+  public void setDirectPageBuffers(boolean status) {
+    if (started) {
+      throw new IllegalStateException("Buffer manager is started");
+    }
+    if (status) {
+      // Allocate direct memory in slabs of around 1MB
+      int pages_per_slab = Math.max(1, (1024 * 1024) / page_size);
+      direct_buffer_pool = new PageBufferPool(page_size, pages_per_slab);
+    }
+    else {
+      direct_buffer_pool = null;
+    }
+  }
+
+  /**
+   * Returns the number of bytes of direct memory allocated for page
+   * content, or 0 if page content is stored on the heap.
+   */
+  public long getDirectPageBufferSize() {
+    PageBufferPool pool = direct_buffer_pool;
+    return pool == null ? 0 : pool.getAllocatedSize();
+  }
+
+  /**
+   * Sets the group commit parameters for check points.  A check point
+   * covers all the check point requests that were made before it started,
+   * so when many threads request a check point at the same time only one
+   * check point (and one journal synch) is performed for the group.  The
+   * thread that performs a check point waits up to 'window_micros'
+   * microseconds for other requests to join, or until 'max_batch' requests
+   * are pending.  A window of 0 disables the wait.
+   */
+  public void setGroupCommit(long window_micros, int max_batch) {
+    if (window_micros < 0 || max_batch < 1) {
+      throw new IllegalArgumentException();
+    }
+    synchronized (group_lock) {
+      this.group_commit_window = window_micros;
+      this.group_commit_max_batch = max_batch;
+    }
+  }
+
+  /**
+   * Returns the total number of check points requested through
+   * 'setCheckPoint'.
+   */
+  public long getCheckPointRequestCount() {
+    synchronized (group_lock) {
+      return check_point_requests;
+    }
+  }
+
+  /**
+   * Returns the number of check points that were actually performed.  This
+   * is lower than the request count when requests are grouped.
+   */
+  public long getCheckPointCount() {
+    synchronized (group_lock) {
+      return check_point_count;
+    }
+  }
+
+  /**
+   * Returns the largest number of check point requests that were covered by
+   * a single check point.
+   */
+  public long getCheckPointMaxBatchSize() {
+    synchronized (group_lock) {
+      return check_point_max_batch;
+    }
+  }
+
   /**
    * Stops the buffer manager.
    */
@@ -221,6 +467,78 @@ public class LoggingBufferManager {
   public void setCheckPoint(boolean flush_journals)
                                      throws IOException, InterruptedException {
 
+    // Register this request with the group
+    final long ticket;
+    synchronized (group_lock) {
+      ++check_point_requests;
+      ticket = check_point_requests;
+      group_lock.notifyAll();
+    }
+
+    synchronized (check_point_lock) {
+      // If a check point that started after this request was made completed
+      // while we waited, the changes before this request are already in the
+      // log so there's nothing to do.
+      if (!flush_journals) {
+        synchronized (group_lock) {
+          if (check_point_requests_covered >= ticket) {
+            return;
+          }
+        }
+      }
+
+      // Wait for other requests to join the group
+      waitForGroup();
+      final long covered;
+      synchronized (group_lock) {
+        covered = check_point_requests;
+      }
+
+      if (fuzzy_check_point) {
+        setFuzzyCheckPoint();
+      }
+      else {
+        setBlockingCheckPoint(flush_journals);
+      }
+
+      synchronized (group_lock) {
+        long batch_size = covered - check_point_requests_covered;
+        check_point_requests_covered = covered;
+        ++check_point_count;
+        check_point_max_batch = Math.max(check_point_max_batch, batch_size);
+      }
+    }
+
+  }
+
+  /**
+   * Waits until the group commit window has passed, or the number of pending
+   * check point requests reaches the maximum batch size.
+   */
+  private void waitForGroup() throws InterruptedException {
+    synchronized (group_lock) {
+      if (group_commit_window <= 0) {
+        return;
+      }
+      final long deadline = System.nanoTime() + (group_commit_window * 1000);
+      while (check_point_requests - check_point_requests_covered <
+                                                     group_commit_max_batch) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          break;
+        }
+        group_lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+      }
+    }
+  }
+
+  /**
+   * Sets a check point that blocks writers while all the pages are flushed
+   * out to the log.
+   */
+  private void setBlockingCheckPoint(boolean flush_journals)
+                                     throws IOException, InterruptedException {
+
     // Wait until the writes have finished, and then set the
     // 'check_point_in_progress' boolean.
     synchronized (write_lock) {
@@ -232,9 +550,9 @@ public class LoggingBufferManager {
     
     try {
 //      System.out.println("SET CHECKPOINT");
-      synchronized (page_map) {
-        // Flush all the pages out to the log.
-        for (int i = 0; i < page_map.length; ++i) {
+      // Flush all the pages out to the log.
+      for (int i = 0; i < page_map.length; ++i) {
+        synchronized (stripeLock(i)) {
           BMPage page = page_map[i];
           BMPage prev = null;
 
@@ -281,76 +599,228 @@ public class LoggingBufferManager {
 
 
   /**
-   * Called when a new page is created.
+   * Sets a fuzzy check point in the log.  This waits until the current
+   * writes have finished and then blocks writers only while a new journal
+   * epoch is started.  All pages with changes from the previous epoch are
+   * then flushed to the check point journal while writers continue, and the
+   * check point journal is closed with a check point.
    */
-  private void pageCreated(final BMPage page) throws IOException {
-//    synchronized (T_lock) {
+  private void setFuzzyCheckPoint()
+                                     throws IOException, InterruptedException {
 
-      if (PARANOID_CHECKS) {
-        int i = page_list.indexOf(page);
-        if (i != -1) {
-          BMPage f = (BMPage) page_list.get(i);
-          if (f == page) {
-            throw new Error("Same page added multiple times.");
+    // Wait until the writes have finished, and then set the
+    // 'check_point_in_progress' boolean.
+    synchronized (write_lock) {
+      while (write_lock_count > 0) {
+        write_lock.wait();
+      }
+      check_point_in_progress = true;
+    }
+
+    try {
+      journalled_system.beginCheckPoint();
+    }
+    finally {
+      // Writers may continue from here
+      synchronized (write_lock) {
+        check_point_in_progress = false;
+        write_lock.notifyAll();
+      }
+    }
+
+    // Flush the pages of the previous epoch out to the check point log.
+    ArrayList<BMPage> pages = new ArrayList<>();
+    for (int i = 0; i < page_map.length; ++i) {
+      pages.clear();
+      synchronized (stripeLock(i)) {
+        BMPage page = page_map[i];
+        BMPage prev = null;
+
+        while (page != null) {
+          boolean deleted_hash = false;
+          synchronized (page) {
+            // Remove this page if it is no longer in use
+            if (page.notInUse()) {
+              deleted_hash = true;
+              if (prev == null) {
+                page_map[i] = page.hash_next;
+              }
+              else {
+                prev.hash_next = page.hash_next;
+              }
+            }
+            else {
+              pages.add(page);
+            }
           }
-          if (f != null) {
-            throw new Error("Duplicate pages.");
+          // Go to next page in hash chain
+          if (!deleted_hash) {
+            prev = page;
           }
+          page = page.hash_next;
+        }
+      }
+
+      // The pages are flushed outside the stripe lock so page fetches are
+      // not blocked by the IO.  If a page was disposed in the meantime its
+      // changes were already flushed.
+      for (BMPage page : pages) {
+        synchronized (page) {
+          page.advanceEpoch();
         }
       }
+    }
+
+    journalled_system.finishCheckPoint();
+
+  }
+
+  /**
+   * Inserts the page into the clock ring with the given hand, just behind
+   * the hand so it is the last page the hand will visit.  Returns the new
+   * hand of the ring.
+   */
+  private static BMPage ringInsert(BMPage hand, BMPage page) {
+    if (hand == null) {
+      page.clock_next = page;
+      page.clock_prev = page;
+      return page;
+    }
+    BMPage behind = hand.clock_prev;
+    page.clock_prev = behind;
+    page.clock_next = hand;
+    behind.clock_next = page;
+    hand.clock_prev = page;
+    return hand;
+  }
 
-      page.t = current_T;
-      ++current_T;
+  /**
+   * Unlinks the page from the clock ring it is in.  Returns the page after
+   * it in the ring, or null if the ring is now empty.
+   */
+  private static BMPage ringRemove(BMPage page) {
+    BMPage next = page.clock_next;
+    page.clock_prev.clock_next = next;
+    next.clock_prev = page.clock_prev;
+    page.clock_next = null;
+    page.clock_prev = null;
+    return (next == page) ? null : next;
+  }
+
+  /**
+   * Called when a new page is created.  The page is added to the cold clock
+   * ring just behind the hand.  Returns an array of pages that were purged
+   * from the cache and must be disposed by the caller, or null if no pages
+   * were purged.  The purged pages are disposed outside of any page map
+   * lock.
+   */
+  private BMPage[] pageCreated(final BMPage page) throws IOException {
+    synchronized (clock_lock) {
+
+      if (PARANOID_CHECKS) {
+        if (page.clock_next != null) {
+          throw new Error("Same page added multiple times.");
+        }
+      }
 
+      page.usage = 0;
+      if (ghost_pages.remove(new PageKey(page.getID(), page.page))) {
+        // The page was evicted from the cold ring recently, so this fetch
+        // is a second reference and the page goes in the hot ring.
+        page.usage = 1;
+        hot_hand = ringInsert(hot_hand, page);
+        ++hot_page_count;
+      }
+      else {
+        cold_hand = ringInsert(cold_hand, page);
+      }
       ++current_page_count;
-      page_list.add(page);
-
-      // Below is the page purge algorithm.  If the maximum number of pages
-      // has been created we sort the page list weighting each page by time
-      // since last accessed and total number of accesses and clear the bottom
-      // 20% of this list.
-
-      // Check if we should purge old pages and purge some if we do...
-      if (current_page_count > max_pages) {
-        // Purge 20% of the cache
-        // Sort the pages by the current formula,
-        //  ( 1 / page_access_count ) * (current_t - page_t)
-        // Further, if the page has written data then we multiply by 0.75.
-        // This scales down page writes so they have a better chance of
-        // surviving in the cache than page writes.
-        Object[] pages = page_list.toArray();
-        Arrays.sort(pages, PAGE_CACHE_COMPARATOR);
-
-        int purge_size = Math.max((int) (pages.length * 0.20f), 2);
-        for (int i = 0; i < purge_size; ++i) {
-          BMPage dpage = (BMPage) pages[pages.length - (i + 1)];
-          synchronized (dpage) {
-            dpage.dispose();
+
+      // Below is the page purge algorithm.  The cache is split into a cold
+      // and a hot clock ring, in the manner of 2Q and CLOCK-Pro.  A new page
+      // enters the cold ring with a usage count of 0, and the usage count
+      // is incremented each time the page is referenced.  When the cold hand
+      // reaches a page that was referenced again since it was created, the
+      // page is promoted to the hot ring.  Otherwise the page is evicted.
+      // So a scan that touches each page once only churns the cold ring and
+      // doesn't displace the working set in the hot ring.  The keys of the
+      // pages recently evicted from the cold ring are remembered, and a page
+      // fetched again while its key is remembered goes in the hot ring.
+      // This promotes pages that are referenced again after a longer
+      // interval than they stay in the cold ring.
+      //
+      // The hot ring is a generalized CLOCK.  When the hot ring holds more
+      // than 'max_hot_pages' pages, its hand decrements the usage count of
+      // each page it passes and demotes the first page it finds with a
+      // usage count of 0 to the cold ring, where it must be referenced again
+      // to stay in the cache.  A write counts as a reference, so a written
+      // page is always promoted, and written pages may accumulate a larger
+      // usage count than read pages so they survive longer in the hot ring.
+
+      if (current_page_count <= max_pages) {
+        return null;
+      }
+
+      BMPage[] purged = new BMPage[current_page_count - max_pages];
+      int i = 0;
+      while (i < purged.length) {
+        if (hot_page_count > max_hot_pages || cold_hand == null) {
+          BMPage hot_page = hot_hand;
+          if (hot_page.usage > 0) {
+            --hot_page.usage;
+            hot_hand = hot_page.clock_next;
+          }
+          else {
+            // Demote the page to the cold ring
+            hot_hand = ringRemove(hot_page);
+            --hot_page_count;
+            cold_hand = ringInsert(cold_hand, hot_page);
           }
         }
-
-        // Remove all the elements from page_list and set it with the sorted
-        // list (minus the elements we removed).
-        page_list.clear();
-        for (int i = 0; i < pages.length - purge_size; ++i) {
-          page_list.add(pages[i]);
+        else {
+          BMPage cold_page = cold_hand;
+          cold_hand = ringRemove(cold_page);
+          if (cold_page.usage > 0) {
+            // Referenced again so promote the page to the hot ring
+            hot_hand = ringInsert(hot_hand, cold_page);
+            ++hot_page_count;
+          }
+          else {
+            --current_page_count;
+            purged[i] = cold_page;
+            ++i;
+            ghost_pages.add(new PageKey(cold_page.getID(), cold_page.page));
+            if (ghost_pages.size() > max_ghost_pages) {
+              Iterator<PageKey> it = ghost_pages.iterator();
+              it.next();
+              it.remove();
+            }
+          }
         }
-
-        current_page_count -= purge_size;
-      
       }
-//    }
+
+      return purged;
+    }
   }
   
   /**
-   * Called when a page is accessed.
+   * Called when a page is accessed.  This must be called while the page is
+   * locked.
    */
-  private void pageAccessed(BMPage page) {
-//    synchronized (T_lock) {
-      page.t = current_T;
-      ++current_T;
-      ++page.access_count;
-//    }
+  private static void pageAccessed(BMPage page) {
+    if (page.usage < MAX_READ_USAGE) {
+      ++page.usage;
+    }
+  }
+
+  /**
+   * Called when a page is written to.  This must be called while the page is
+   * locked.
+   */
+  private static void pageWritten(BMPage page) {
+    if (page.usage < MAX_WRITE_USAGE) {
+      ++page.usage;
+    }
   }
   
   /**
@@ -360,11 +830,21 @@ public class LoggingBufferManager {
     return (int) id + 20 + (int) page_number; 
 //    return (int) ((id << 6) + (page_number * ((id + 25) << 2)));
   }
+
+  /**
+   * Returns the lock that guards the given bucket of 'page_map'.
+   */
+  private Object stripeLock(int bucket) {
+    return page_map_locks[bucket & (PAGE_MAP_STRIPES - 1)];
+  }
   
   /**
    * Fetches and returns a page from a store.  Pages may be cached.  If the
    * page is not available in the cache then a new BMPage object is created
    * for the page requested.
+   * <p>
+   * Only the lock stripe of the hash bucket the page is in is held during
+   * the look up, so fetches of pages in different stripes do not contend.
    */
   private BMPage fetchPage(JournalledResource data,
                            final long page_number) throws IOException {
@@ -375,10 +855,11 @@ public class LoggingBufferManager {
     boolean new_page = false;
     BMPage page;
 
-    synchronized (page_map) {
-      // Generate the hash code for this page.
-      final int p = (calcHashCode(id, page_number) & 0x07FFFFFFF) %
+    // Generate the hash code for this page.
+    final int p = (calcHashCode(id, page_number) & 0x07FFFFFFF) %
                                                              page_map.length;
+
+    synchronized (stripeLock(p)) {
       // Search for this page in the hash
       page = page_map[p];
       while (page != null && !page.isPage(id, page_number)) {
@@ -388,7 +869,8 @@ public class LoggingBufferManager {
 
       // Page isn't found so create it and add to the cache
       if (page == null) {
-        page = new BMPage(data, page_number, page_size);
+        page = new BMPage(data, page_number, page_size,
+                          direct_buffer_pool);
         // Add this page to the map
         page.hash_next = page_map[p];
         page_map[p] = page;
@@ -412,18 +894,28 @@ public class LoggingBufferManager {
         }
         // Add a reference for this fetch
         page.referenceAdd();
+        if (!new_page) {
+          pageAccessed(page);
+        }
       }
 
-      // Note, this has to happen inside the page_map synchronization to
-      // ensure no concurrency problems
-      // If the page is new,
-      if (new_page) {
-        pageCreated(page);
-      }
-      else {
-        pageAccessed(page);
-      }
+    }
 
+    // If the page is new, add it to the clock ring.  This may purge pages
+    // from the cache, which are disposed here outside the stripe lock.
+    // Note that a purged page may be fetched concurrently before it is
+    // disposed, in which case the reference added by the fetch keeps it
+    // alive.
+    if (new_page) {
+      BMPage[] purged = pageCreated(page);
+      if (purged != null) {
+        for (int i = 0; i < purged.length; ++i) {
+          BMPage dpage = purged[i];
+          synchronized (dpage) {
+            dpage.dispose();
+          }
+        }
+      }
     }
 
     // Return the page.
@@ -519,6 +1011,7 @@ public class LoggingBufferManager {
       try {
         page.initialize();
         page.write((int) (position % page_size), (byte) b);
+        pageWritten(page);
       }
       finally {
         page.dispose();
@@ -547,6 +1040,7 @@ public class LoggingBufferManager {
       try {
         page.initialize();
         page.write(start_offset, buf, off, to_write);
+        pageWritten(page);
       }
       finally {
         page.dispose();
@@ -565,6 +1059,7 @@ public class LoggingBufferManager {
         try {
           page.initialize();
           page.write(0, buf, off, to_write);
+          pageWritten(page);
         }
         finally {
           page.dispose();
@@ -662,11 +1157,23 @@ public class LoggingBufferManager {
     private final int page_size;
     
 
+    /**
+     * The pool that direct page buffers are allocated from, or null if the
+     * page content is stored in 'buffer'.
+     */
+    private final PageBufferPool pool;
+
     /**
      * The buffer that contains the data for this page.
      */
     private byte[] buffer;
 
+    /**
+     * The direct buffer that contains the data for this page when 'pool' is
+     * not null.
+     */
+    private ByteBuffer direct;
+
     /**
      * True if this page is initialized.
      */
@@ -680,15 +1187,18 @@ public class LoggingBufferManager {
 
 
     /**
-     * The time this page was last accessed.  This value is reset each time
-     * the page is requested.
+     * The next and previous pages in the clock ring, or null if the page is
+     * not in the ring.  Guarded by 'clock_lock'.
      */
-    long t;
+    BMPage clock_next;
+    BMPage clock_prev;
 
     /**
-     * The number of times this page has been accessed since it was created.
+     * The usage count of this page.  This is incremented when the page is
+     * accessed (under the page lock) and decremented by the clock hand
+     * (under 'clock_lock').  A lost update between the two is harmless.
      */
-    int access_count;
+    int usage;
 
 
     /**
@@ -706,12 +1216,19 @@ public class LoggingBufferManager {
      */
     private int reference_count;
 
+    /**
+     * The journal epoch the changes to the buffer of this page were made in.
+     */
+    private long epoch;
+
 
     /**
      * Constructs the page.
      */
-    BMPage(JournalledResource data, long page, int page_size) {
+    BMPage(JournalledResource data, long page, int page_size,
+           PageBufferPool pool) {
       this.data = data;
+      this.pool = pool;
       this.data_id = data.getID();
       this.page = page;
       this.reference_count = 0;
@@ -729,8 +1246,7 @@ public class LoggingBufferManager {
                         reference_count + " )");
       }
       this.initialized = false;
-      this.t = 0;
-      this.access_count = 0;
+      this.usage = 0;
     }
     
     /**
@@ -795,9 +1311,16 @@ public class LoggingBufferManager {
     void flush() throws IOException {
       if (initialized) {
         if (last_write_position > -1) {
+          int len = last_write_position - first_write_position;
+          byte[] buf = buffer;
+          if (pool != null) {
+            // Stage the changed part of the direct buffer
+            buf = pool.getScratch();
+            direct.position(first_write_position);
+            direct.get(buf, first_write_position, len);
+          }
           // Write to the store data.
-          data.write(page, buffer, first_write_position,
-                     last_write_position - first_write_position);
+          data.write(page, buf, first_write_position, len, epoch);
 //          System.out.println(data.getClass());
 //          System.out.println("FLUSH " + data + " off = " + first_write_position +
 //                             " len = " + (last_write_position - first_write_position));
@@ -817,14 +1340,25 @@ public class LoggingBufferManager {
 
         try {
 
-          // Create the buffer to contain the page in memory
-          buffer = new byte[page_size];
-          // Read the page.  This will either read the page from the backing
-          // store or from a log.
-          readPageContent(page, buffer, 0);
+          // The epoch of any changes made to the page
+          epoch = data.getJournalEpoch();
+          if (pool == null) {
+            // Create the buffer to contain the page in memory
+            buffer = new byte[page_size];
+            // Read the page.  This will either read the page from the
+            // backing store or from a log.
+            readPageContent(page, buffer, 0);
+          }
+          else {
+            // Read the page into a staging buffer, then copy it into a
+            // direct buffer from the pool.
+            byte[] buf = pool.getScratch();
+            readPageContent(page, buf, 0);
+            direct = pool.allocate();
+            direct.put(buf, 0, page_size);
+          }
           initialized = true;
 
-//          access_count = 0;
           first_write_position = Integer.MAX_VALUE;
           last_write_position = -1;
 
@@ -859,6 +1393,10 @@ public class LoggingBufferManager {
           initialized = false;
           // Clear the buffer from memory.
           buffer = null;
+          if (direct != null) {
+            pool.free(direct);
+            direct = null;
+          }
 
         }
         else {
@@ -879,6 +1417,9 @@ public class LoggingBufferManager {
      * Reads a single byte from the cached page from memory.
      */
     byte read(int pos) {
+      if (pool != null) {
+        return direct.get(pos);
+      }
       return buffer[pos];
     }
 
@@ -886,26 +1427,57 @@ public class LoggingBufferManager {
      * Reads a part of this page into the cached page from memory.
      */
     void read(int pos, byte[] buf, int off, int len) {
+      if (pool != null) {
+        direct.position(pos);
+        direct.get(buf, off, len);
+        return;
+      }
       System.arraycopy(buffer, pos, buf, off, len);
     }
 
+    /**
+     * Moves this page to the current journal epoch.  If the page has changes
+     * from an earlier epoch (a fuzzy check point is in progress) then the
+     * changes are flushed first so they are logged in the check point.
+     */
+    void advanceEpoch() throws IOException {
+      if (initialized) {
+        long cur_epoch = data.getJournalEpoch();
+        if (epoch != cur_epoch) {
+          flush();
+          epoch = cur_epoch;
+        }
+      }
+    }
+
     /**
      * Writes a single byte to the page in memory.
      */
-    void write(int pos, byte v) {
+    void write(int pos, byte v) throws IOException {
+      advanceEpoch();
       first_write_position = Math.min(pos, first_write_position);
       last_write_position = Math.max(pos + 1, last_write_position);
 
+      if (pool != null) {
+        direct.put(pos, v);
+        return;
+      }
       buffer[pos] = v;
     }
 
     /**
      * Writes to the given part of the page in memory.
      */
-    void write(int pos, byte[] buf, int off, int len) {
+    void write(int pos, byte[] buf, int off, int len) throws IOException {
+      advanceEpoch();
       first_write_position = Math.min(pos, first_write_position);
       last_write_position = Math.max(pos + len, last_write_position);
 
+      if (pool != null) {
+        direct.position(pos);
+        direct.put(buf, off, len);
+        return;
+      }
       System.arraycopy(buf, off, buffer, pos, len);
     }
 
@@ -917,6 +1489,32 @@ public class LoggingBufferManager {
     
   }
 
+  /**
+   * The key of a page that was evicted from the cache.
+   */
+  private static class PageKey {
+
+    private final long id;
+    private final long page;
+
+    PageKey(long id, long page) {
+      this.id = id;
+      this.page = page;
+    }
+
+    @Override
+    public boolean equals(Object ob) {
+      PageKey dest_key = (PageKey) ob;
+      return id == dest_key.id && page == dest_key.page;
+    }
+
+    @Override
+    public int hashCode() {
+      return calcHashCode(id, page);
+    }
+
+  }
+
   /**
    * A data resource that is being buffered.
    */
@@ -956,41 +1554,6 @@ public class LoggingBufferManager {
 
   }
 
-  /**
-   * A Comparator used to sort cache entries.
-   */
-  private final Comparator PAGE_CACHE_COMPARATOR = new Comparator() {
-
-    /**
-     * The calculation for finding the 'weight' of a page in the cache.  A
-     * heavier page is sorted lower and is therefore cleared from the cache
-     * faster.
-     */
-    private float pageEnumValue(BMPage page) {
-      // We fix the access counter so it can not exceed 10000 accesses.  I'm
-      // a little unsure if we should put this constant in the equation but it
-      // ensures that some old but highly accessed page will not stay in the
-      // cache forever.
-      final long bounded_page_count = Math.min(page.access_count, 10000);
-      final float v = (1f / bounded_page_count) * ( current_T - page.t );
-      return v;
-    }
-
-    @Override
-    public int compare(Object ob1, Object ob2) {
-      float v1 = pageEnumValue((BMPage) ob1);
-      float v2 = pageEnumValue((BMPage) ob2);
-      if (v1 > v2) {
-        return 1;
-      }
-      else if (v1 < v2) {
-        return -1;
-      }
-      return 0;
-    }
-
-  };
-
   /**
    * A factory interface for creating StoreDataAccessor objects from resource
    * names.
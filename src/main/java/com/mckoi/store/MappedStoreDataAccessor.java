@@ -0,0 +1,439 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An implementation of StoreDataAccessor that maps the underlying file into
+ * memory using the NIO API.  The file is mapped as a series of fixed size
+ * segments so that the mapping can be extended as the file grows without
+ * having to remap the entire file.  Only the last segment of the file may be
+ * partially mapped, and it is remapped when the size of the file changes.
+ * <p>
+ * Reads and writes are served directly from the mapped memory so a read of
+ * a page that is in the OS page cache does not need a system call.  Reads
+ * and writes do not take a lock.
+ * <p>
+ * A read or write in progress may still be using a segment that was
+ * replaced when the size changed, so replaced segments are only unmapped,
+ * and a smaller file is only truncated, when no reads or writes are in
+ * progress.  Otherwise they are released by a later size change or when the
+ * file is closed.
+ *
+ * @author Tobias Downer
+ */
+
+class MappedStoreDataAccessor implements StoreDataAccessor {
+
+  /**
+   * The default size of a mapped segment (32MB).
+   */
+  static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+  /**
+   * A lock when changing the size or mapped segments of the file.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * The File object representing the file in the file system.
+   */
+  private final File file;
+
+  /**
+   * The size of each mapped segment.
+   */
+  private final int segment_size;
+
+  /**
+   * The underlying RandomAccessFile containing the data.
+   */
+  private RandomAccessFile data;
+
+  /**
+   * The FileChannel of the above file that is used to map the segments.
+   */
+  private FileChannel channel;
+
+  /**
+   * The mapped segments of the file.  This array is replaced (never
+   * modified) when the segments are remapped so a reader can access it
+   * without a lock.
+   */
+  private volatile MappedByteBuffer[] segments;
+
+  /**
+   * The size of the data area.  The segments map exactly this size.
+   */
+  private volatile long size;
+
+  /**
+   * The length of the file, which is larger than the size of the data area
+   * if the file has not yet been truncated after the size was reduced.
+   */
+  private long file_length;
+
+  /**
+   * The segments that were replaced and have not been unmapped yet.
+   */
+  private final ArrayList<MappedByteBuffer> retired_segments =
+                                                           new ArrayList<>();
+
+  /**
+   * The number of reads and writes in progress.
+   */
+  private final AtomicInteger access_count = new AtomicInteger(0);
+
+  /**
+   * True if the file is open in read only mode.
+   */
+  private boolean read_only;
+
+  /**
+   * True if the file is open.
+   */
+  private boolean is_open;
+
+  /**
+   * Constructs the accessor with the given mapped segment size.
+   */
+  MappedStoreDataAccessor(File file, int segment_size) {
+    if (segment_size <= 0) {
+      throw new IllegalArgumentException("segment_size <= 0");
+    }
+    this.file = file;
+    this.segment_size = segment_size;
+    this.segments = new MappedByteBuffer[0];
+    this.is_open = false;
+  }
+
+  /**
+   * Constructor.
+   */
+  MappedStoreDataAccessor(File file) {
+    this(file, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Maps the segments of the file from the given segment index up to the
+   * given size, and sets 'segments' to the new array.  Segments before
+   * 'start_seg' are retained from the current mapping, and the segments
+   * that are replaced are retired.
+   */
+  private void remapFrom(int start_seg, long map_size) throws IOException {
+    final int seg_count =
+                    (int) ((map_size + (segment_size - 1)) / segment_size);
+    MappedByteBuffer[] cur_segments = segments;
+    MappedByteBuffer[] new_segments = new MappedByteBuffer[seg_count];
+    int copy_count = Math.min(start_seg, cur_segments.length);
+    copy_count = Math.min(copy_count, seg_count);
+    System.arraycopy(cur_segments, 0, new_segments, 0, copy_count);
+
+    FileChannel.MapMode mode = read_only ? FileChannel.MapMode.READ_ONLY :
+                                           FileChannel.MapMode.READ_WRITE;
+    for (int i = copy_count; i < seg_count; ++i) {
+      long seg_start = ((long) i) * segment_size;
+      long seg_len = Math.min((long) segment_size, map_size - seg_start);
+      new_segments[i] = channel.map(mode, seg_start, seg_len);
+    }
+    segments = new_segments;
+    for (int i = copy_count; i < cur_segments.length; ++i) {
+      retired_segments.add(cur_segments[i]);
+    }
+  }
+
+  /**
+   * Unmaps the retired segments and truncates the file to the size of the
+   * data area, if no reads or writes are in progress.  Must be called after
+   * 'segments' and 'size' are updated.  A read or write that starts after
+   * this check uses the current segments, which are within the size.
+   */
+  private void releaseRetired() throws IOException {
+    if (access_count.get() != 0) {
+      return;
+    }
+    for (MappedByteBuffer segment : retired_segments) {
+      unmap(segment);
+    }
+    retired_segments.clear();
+    if (file_length > size && !read_only) {
+      data.setLength(size);
+      file_length = size;
+    }
+  }
+
+  /**
+   * Returns the segment index of the last segment, or 0 if the data area is
+   * empty.  The last segment is the only segment that may be partially
+   * mapped.
+   */
+  private int lastSegmentIndex() {
+    return (int) (Math.max(0, size - 1) / segment_size);
+  }
+
+  // ---------- Implemented from StoreDataAccessor ----------
+
+  @Override
+  public void open(boolean is_read_only) throws IOException {
+    synchronized (lock) {
+      data = new RandomAccessFile(file, is_read_only ? "r" : "rw");
+      channel = data.getChannel();
+      read_only = is_read_only;
+      size = file.length();
+      file_length = size;
+      segments = new MappedByteBuffer[0];
+      remapFrom(0, size);
+      is_open = true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      remapFrom(0, 0);
+      // Reads and writes that start now see no segments, so this only waits
+      // for the ones in progress to finish,
+      while (access_count.get() != 0) {
+        Thread.yield();
+      }
+      releaseRetired();
+      channel = null;
+      data.close();
+      data = null;
+      is_open = false;
+    }
+  }
+
+  @Override
+  public boolean delete() {
+    if (!is_open) {
+      return file.delete();
+    }
+    return false;
+  }
+
+  @Override
+  public boolean exists() {
+    return file.exists();
+  }
+
+  @Override
+  public void read(long position, byte[] buf, int off, int len)
+                                                          throws IOException {
+    access_count.incrementAndGet();
+    try {
+      // Make sure we don't read past the end
+      final MappedByteBuffer[] segs = segments;
+      len = Math.max(0, (int) Math.min((long) len, size - position));
+      while (len > 0) {
+        int seg_i = (int) (position / segment_size);
+        int seg_p = (int) (position % segment_size);
+        // The segment may be out of range if the size changed concurrently
+        if (seg_i >= segs.length) {
+          return;
+        }
+        ByteBuffer bb = segs[seg_i].duplicate();
+        int to_read = Math.min(len, bb.limit() - seg_p);
+        if (to_read <= 0) {
+          return;
+        }
+        bb.position(seg_p);
+        bb.get(buf, off, to_read);
+
+        position += to_read;
+        off += to_read;
+        len -= to_read;
+      }
+    }
+    finally {
+      access_count.decrementAndGet();
+    }
+  }
+
+  @Override
+  public void write(long position, byte[] buf, int off, int len)
+                                                          throws IOException {
+    access_count.incrementAndGet();
+    try {
+      // Make sure we don't write past the end
+      len = Math.max(0, (int) Math.min((long) len, size - position));
+      putSegments(segments, position, buf, off, len);
+    }
+    finally {
+      access_count.decrementAndGet();
+    }
+  }
+
+  /**
+   * Copies the bytes into the given segments at the given position.  Bytes
+   * past the end of the segments are not written.
+   */
+  private void putSegments(MappedByteBuffer[] segs, long position,
+                           byte[] buf, int off, int len) {
+    while (len > 0) {
+      int seg_i = (int) (position / segment_size);
+      int seg_p = (int) (position % segment_size);
+      if (seg_i >= segs.length) {
+        return;
+      }
+      ByteBuffer bb = segs[seg_i].duplicate();
+      int to_write = Math.min(len, bb.limit() - seg_p);
+      if (to_write <= 0) {
+        return;
+      }
+      bb.position(seg_p);
+      bb.put(buf, off, to_write);
+
+      position += to_write;
+      off += to_write;
+      len -= to_write;
+    }
+  }
+
+  @Override
+  public void setSize(long new_size) throws IOException {
+    synchronized (lock) {
+      final long cur_size = this.size;
+      // If expanding the size of the file,
+      if (new_size > cur_size) {
+        // Write a single byte to the end of the file (see the note in
+        // IOStoreDataAccessor about why 'setLength' isn't used to grow the
+        // file).
+        final long old_file_length = file_length;
+        if (new_size > old_file_length) {
+          channel.write(ByteBuffer.wrap(new byte[1]), new_size - 1);
+          file_length = new_size;
+        }
+        // The last segment is partially mapped so it must be remapped.
+        remapFrom(lastSegmentIndex(), new_size);
+        // If the file wasn't truncated after the size was reduced, clear the
+        // old content that is now inside the data area again,
+        long clear_end = Math.min(new_size, old_file_length);
+        if (clear_end > cur_size) {
+          byte[] zeros = new byte[(int) Math.min(65536, clear_end - cur_size)];
+          for (long p = cur_size; p < clear_end; p += zeros.length) {
+            int len = (int) Math.min(zeros.length, clear_end - p);
+            putSegments(segments, p, zeros, 0, len);
+          }
+        }
+        this.size = new_size;
+        releaseRetired();
+      }
+      // If reducing the size, drop the mapped segments past the new end.
+      // The file is truncated when the dropped segments are no longer in
+      // use.
+      else if (new_size < cur_size) {
+        this.size = new_size;
+        remapFrom(lastSegmentIndex(), new_size);
+        releaseRetired();
+      }
+    }
+  }
+
+  @Override
+  public long getSize() throws IOException {
+    synchronized (lock) {
+      if (is_open) {
+        return size;
+      }
+      else {
+        return file.length();
+      }
+    }
+  }
+
+  @Override
+  public void synch() throws IOException {
+    synchronized (lock) {
+      if (read_only) {
+        return;
+      }
+      // Force the content of the mapped segments to the device
+      MappedByteBuffer[] segs = segments;
+      for (int i = 0; i < segs.length; ++i) {
+        segs[i].force();
+      }
+      // And the file metadata
+      channel.force(true);
+    }
+  }
+
+  // ---------- Unmapping ----------
+
+  /**
+   * The 'sun.misc.Unsafe' instance and its 'invokeCleaner' method used to
+   * unmap a buffer on Java 9 and later, or null if not available.
+   */
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invoke_cleaner = null;
+    try {
+      Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+      invoke_cleaner =
+                  unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+      Field f = unsafe_class.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      unsafe = f.get(null);
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      // Not available on this JVM
+      invoke_cleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invoke_cleaner;
+  }
+
+  /**
+   * Unmaps the buffer.  The buffer must not be accessed after this is
+   * called.  If the JVM provides no way to unmap a buffer, the mapping is
+   * released when the buffer is garbage collected.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      }
+      else {
+        // Before Java 9 the buffer has a cleaner,
+        Method cleaner_method = buffer.getClass().getMethod("cleaner");
+        cleaner_method.setAccessible(true);
+        Object cleaner = cleaner_method.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      // Released when garbage collected
+    }
+  }
+
+}
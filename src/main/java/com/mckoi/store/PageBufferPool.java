@@ -0,0 +1,132 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A pool of page sized buffers that are allocated outside the Java heap.
+ * Direct memory is allocated in slabs of several pages, and each slab is
+ * sliced into page buffers.  A page buffer is returned to the pool when it
+ * is no longer needed and is reused by the next allocation.  Slabs are never
+ * released, so the off heap memory used by the pool is bounded by the
+ * maximum number of page buffers in use at once.
+ *
+ * @author Tobias Downer
+ */
+
+final class PageBufferPool {
+
+  /**
+   * The size of each page buffer.
+   */
+  private final int page_size;
+
+  /**
+   * The number of page buffers in each slab.
+   */
+  private final int pages_per_slab;
+
+  /**
+   * The page buffers that are free to be allocated.
+   */
+  private final ArrayList<ByteBuffer> free_list;
+
+  /**
+   * The total number of slabs allocated.
+   */
+  private int slab_count;
+
+  /**
+   * A page sized byte[] array for each thread that is used to stage data
+   * that moves between a page buffer and a resource.
+   */
+  private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[page_size];
+    }
+  };
+
+  /**
+   * Constructs the pool.
+   */
+  PageBufferPool(int page_size, int pages_per_slab) {
+    this.page_size = page_size;
+    this.pages_per_slab = Math.max(1, pages_per_slab);
+    this.free_list = new ArrayList<>();
+    this.slab_count = 0;
+  }
+
+  /**
+   * Allocates a new slab and adds its page buffers to the free list.
+   */
+  private void allocateSlab() {
+    ByteBuffer slab =
+                ByteBuffer.allocateDirect(page_size * pages_per_slab);
+    for (int i = 0; i < pages_per_slab; ++i) {
+      slab.limit((i + 1) * page_size);
+      slab.position(i * page_size);
+      free_list.add(slab.slice());
+    }
+    ++slab_count;
+  }
+
+  /**
+   * Returns a page buffer from the pool.  The content of the buffer is
+   * undefined.
+   */
+  ByteBuffer allocate() {
+    synchronized (free_list) {
+      if (free_list.isEmpty()) {
+        allocateSlab();
+      }
+      ByteBuffer bb = free_list.remove(free_list.size() - 1);
+      bb.clear();
+      return bb;
+    }
+  }
+
+  /**
+   * Returns a page buffer to the pool.
+   */
+  void free(ByteBuffer bb) {
+    synchronized (free_list) {
+      free_list.add(bb);
+    }
+  }
+
+  /**
+   * Returns a page sized byte[] array owned by the current thread.
+   */
+  byte[] getScratch() {
+    return scratch.get();
+  }
+
+  /**
+   * Returns the total number of bytes of direct memory allocated by this
+   * pool.
+   */
+  long getAllocatedSize() {
+    synchronized (free_list) {
+      return ((long) slab_count) * pages_per_slab * page_size;
+    }
+  }
+
+}
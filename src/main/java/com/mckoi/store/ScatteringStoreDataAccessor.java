@@ -55,6 +55,11 @@ public class ScatteringStoreDataAccessor implements StoreDataAccessor {
    * The maximum size a file slice can grow too before a new slice is created.
    */
   private final long max_slice_size;
+
+  /**
+   * The type of StoreDataAccessor used to access each slice.
+   */
+  private final StoreDataAccessorType slice_type;
   
   /**
    * The list of RandomAccessFile objects for each file that represents a
@@ -80,15 +85,27 @@ public class ScatteringStoreDataAccessor implements StoreDataAccessor {
 
 
   /**
-   * Constructs the store data accessor.
+   * Constructs the store data accessor where each slice is accessed with
+   * the given type of accessor.
    */
   public ScatteringStoreDataAccessor(File path, String file_name,
-                                     String first_ext, long max_slice_size) {
+                                     String first_ext, long max_slice_size,
+                                     StoreDataAccessorType slice_type) {
     slice_list = new ArrayList();
     this.path = path;
     this.file_name = file_name;
     this.first_ext = first_ext;
     this.max_slice_size = max_slice_size;
+    this.slice_type = slice_type;
+  }
+
+  /**
+   * Constructs the store data accessor.
+   */
+  public ScatteringStoreDataAccessor(File path, String file_name,
+                                     String first_ext, long max_slice_size) {
+    this(path, file_name, first_ext, max_slice_size,
+         StoreDataAccessorType.IO);
   }
 
   /**
@@ -182,8 +199,7 @@ public class ScatteringStoreDataAccessor implements StoreDataAccessor {
    * Creates a StoreDataAccessor object for accessing a given slice.
    */
   private StoreDataAccessor createSliceDataAccessor(File file) {
-    // Currently we only support an IOStoreDataAccessor object.
-    return new IOStoreDataAccessor(file);
+    return slice_type.createAccessor(file);
   }
 
   /**
@@ -0,0 +1,64 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import java.io.File;
+
+/**
+ * The method used to access the data in the files of a file system store.
+ * This selects the StoreDataAccessor implementation used for each file slice
+ * of a ScatteringStoreDataAccessor.
+ *
+ * @author Tobias Downer
+ */
+
+public enum StoreDataAccessorType {
+
+  /**
+   * Accesses the file through a RandomAccessFile (IOStoreDataAccessor).
+   */
+  IO,
+
+  /**
+   * Maps the file into memory (MappedStoreDataAccessor).  Reads of pages
+   * that are in the OS page cache do not need a system call.
+   */
+  MAPPED,
+
+  /**
+   * Accesses the file with positional reads and writes on a FileChannel
+   * (ChannelStoreDataAccessor).  Concurrent reads and writes are not
+   * serialized on a file pointer.
+   */
+  CHANNEL;
+
+  /**
+   * Returns the StoreDataAccessor of this type for the given file.
+   */
+  StoreDataAccessor createAccessor(File file) {
+    switch (this) {
+      case MAPPED:
+        return new MappedStoreDataAccessor(file);
+      case CHANNEL:
+        return new ChannelStoreDataAccessor(file);
+      default:
+        return new IOStoreDataAccessor(file);
+    }
+  }
+
+}
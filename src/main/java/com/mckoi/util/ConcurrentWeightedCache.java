@@ -0,0 +1,700 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.util;
+
+import java.util.HashMap;
+
+/**
+ * A cache of Objects that is safe for concurrent use and is bounded by the
+ * total weight of the entries rather than the number of entries.  Unlike
+ * Cache, the caller does not need to synchronize on this object.
+ * <p>
+ * The cache is split into a number of segments by the hash code of the key
+ * and each segment has its own lock, so operations on keys in different
+ * segments do not contend.  The weight of an entry is determined by the
+ * 'weigh' method, which should be overridden (by default each entry has a
+ * weight of 1).
+ * <p>
+ * Each segment uses a W-TinyLFU replacement policy.  New entries go into a
+ * small LRU window.  An entry leaving the window is only admitted to the
+ * main area of the cache if it has been accessed more frequently than the
+ * entries it would displace, where the access frequency of each key is
+ * estimated by a small count-min sketch that is periodically aged.  The main
+ * area is a segmented LRU, so an entry must be hit again after admission
+ * before it is protected.  This means a scan over many keys that are each
+ * accessed once does not flush the working set from the cache.
+ *
+ * @author Tobias Downer
+ */
+
+public class ConcurrentWeightedCache {
+
+  /**
+   * The maximum number of segments.
+   */
+  private static final int MAX_SEGMENT_COUNT = 16;
+
+  /**
+   * The minimum weight of a segment when the number of segments is chosen.
+   */
+  private static final long MIN_SEGMENT_WEIGHT = 64 * 1024;
+
+  /**
+   * The queues an entry may be in.
+   */
+  private static final byte WINDOW = 1;
+  private static final byte PROBATION = 2;
+  private static final byte PROTECTED = 3;
+
+  /**
+   * The segments.
+   */
+  private final Segment[] segments;
+
+  /**
+   * The number of bits to shift a hash right to find its segment.
+   */
+  private final int segment_shift;
+
+  /**
+   * Constructs the cache.
+   *
+   * @param max_weight the maximum total weight of the entries in the cache.
+   * @param expected_count an estimate of the number of entries in the cache
+   *   when it is full, used to size the frequency sketch.
+   */
+  public ConcurrentWeightedCache(long max_weight, int expected_count) {
+    if (max_weight <= 0) {
+      throw new IllegalArgumentException("max_weight <= 0");
+    }
+
+    // Pick a power of two number of segments that scales with the number of
+    // processors, but is small enough that each segment can hold a
+    // reasonable number of entries.
+    int target = Math.min(MAX_SEGMENT_COUNT,
+                          Runtime.getRuntime().availableProcessors() * 2);
+    int seg_count = 1;
+    int shift = 32;
+    while (seg_count < target &&
+           (max_weight / (seg_count * 2)) >= MIN_SEGMENT_WEIGHT) {
+      seg_count *= 2;
+      --shift;
+    }
+    this.segment_shift = shift;
+
+    segments = new Segment[seg_count];
+    long seg_weight = max_weight / seg_count;
+    int seg_expected = Math.max(1, expected_count / seg_count);
+    for (int i = 0; i < seg_count; ++i) {
+      segments[i] = new Segment(seg_weight, seg_expected);
+    }
+  }
+
+  /**
+   * Returns the weight of the given entry.  The weight of an entry must not
+   * change while it is in the cache.  By default every entry has a weight of
+   * 1, so the maximum weight of the cache is the maximum number of entries.
+   */
+  protected long weigh(Object key, Object value) {
+    return 1;
+  }
+
+  /**
+   * Spreads the bits of the given hash code.
+   */
+  private static int spread(int h) {
+    h ^= (h >>> 16);
+    h *= 0x45D9F3B;
+    h ^= (h >>> 16);
+    return h;
+  }
+
+  /**
+   * Returns the segment for the given hash.
+   */
+  private Segment segmentFor(int hash) {
+    if (segment_shift == 32) {
+      return segments[0];
+    }
+    return segments[hash >>> segment_shift];
+  }
+
+  /**
+   * Returns the object in the cache with the given key, or null if it isn't
+   * in the cache.
+   */
+  public Object get(Object key) {
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).get(key, hash);
+  }
+
+  /**
+   * Puts an object into the cache with the given key, replacing any object
+   * with the same key.  The object is not stored if its weight is larger
+   * than the maximum weight of a segment.  The cache may evict this or
+   * other entries to make room.
+   */
+  public void put(Object key, Object value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    int hash = spread(key.hashCode());
+    long weight = weigh(key, value);
+    if (weight < 0) {
+      throw new IllegalStateException("Negative weight");
+    }
+    segmentFor(hash).put(key, value, hash, weight);
+  }
+
+  /**
+   * Removes the entry with the given key from the cache, and returns the
+   * object that was removed or null if there was no entry with the key.
+   */
+  public Object remove(Object key) {
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).remove(key);
+  }
+
+  /**
+   * Removes all the entries from the cache.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * Returns the number of entries in the cache.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the total weight of the entries in the cache.
+   */
+  public long getWeight() {
+    long weight = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        weight += segment.totalWeight();
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * Returns the number of 'get' operations that found an entry.
+   */
+  public long getHitCount() {
+    long count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.hit_count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of 'get' operations that didn't find an entry.
+   */
+  public long getMissCount() {
+    long count = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        count += segment.miss_count;
+      }
+    }
+    return count;
+  }
+
+  // ---------- Inner classes ----------
+
+  /**
+   * An entry in the cache.  An entry is in one of the three LRU queues of
+   * its segment.
+   */
+  private static final class Entry {
+
+    Object key;
+    Object value;
+    int hash;
+    long weight;
+    byte queue;
+
+    Entry previous;
+    Entry next;
+
+  }
+
+  /**
+   * A circular doubly linked LRU queue of entries with a sentinel.  The
+   * most recently used entry is at the head and the least recently used is
+   * at the tail.
+   */
+  private static final class Queue {
+
+    private final Entry sentinel;
+
+    /**
+     * The total weight of the entries in the queue.
+     */
+    long weight;
+
+    Queue() {
+      sentinel = new Entry();
+      sentinel.previous = sentinel;
+      sentinel.next = sentinel;
+      weight = 0;
+    }
+
+    boolean isEmpty() {
+      return sentinel.next == sentinel;
+    }
+
+    Entry tail() {
+      return isEmpty() ? null : sentinel.previous;
+    }
+
+    /**
+     * Returns the entry before the given entry towards the head, or null if
+     * the entry is the head.
+     */
+    Entry previousOf(Entry e) {
+      return e.previous == sentinel ? null : e.previous;
+    }
+
+    void addToHead(Entry e) {
+      e.previous = sentinel;
+      e.next = sentinel.next;
+      sentinel.next.previous = e;
+      sentinel.next = e;
+      weight += e.weight;
+    }
+
+    void unlink(Entry e) {
+      e.previous.next = e.next;
+      e.next.previous = e.previous;
+      e.previous = null;
+      e.next = null;
+      weight -= e.weight;
+    }
+
+    void moveToHead(Entry e) {
+      if (sentinel.next != e) {
+        e.previous.next = e.next;
+        e.next.previous = e.previous;
+        e.previous = sentinel;
+        e.next = sentinel.next;
+        sentinel.next.previous = e;
+        sentinel.next = e;
+      }
+    }
+
+    void clear() {
+      sentinel.previous = sentinel;
+      sentinel.next = sentinel;
+      weight = 0;
+    }
+
+  }
+
+  /**
+   * A count-min sketch of the frequency that hash codes are accessed, with
+   * 4 bit counters.  When the number of increments reaches the sample size,
+   * all the counters are halved so the frequencies favour recent accesses.
+   */
+  private static final class FrequencySketch {
+
+    private static final int[] SEEDS = new int[] {
+      0x97CB3127, 0xB8F3F8B3, 0xC2B2AE35, 0x85EBCA6B
+    };
+
+    /**
+     * The counters, 4 rows of 'width' bytes.  Each byte holds two 4 bit
+     * counters.
+     */
+    private final byte[] table;
+
+    /**
+     * The mask of the counter index within a row.
+     */
+    private final int counter_mask;
+
+    /**
+     * The number of counters in a row.
+     */
+    private final int width;
+
+    /**
+     * The number of increments before the counters are halved, and the
+     * current count.
+     */
+    private final int sample_size;
+    private int sample_count;
+
+    FrequencySketch(int expected_count) {
+      int w = 16;
+      while (w < expected_count && w < (1 << 24)) {
+        w <<= 1;
+      }
+      width = w;
+      counter_mask = w - 1;
+      table = new byte[(w / 2) * SEEDS.length];
+      sample_size = w * 10;
+      sample_count = 0;
+    }
+
+    /**
+     * Returns the index of the counter of the hash in the given row.
+     */
+    private int counterIndex(int hash, int row) {
+      int h = hash * SEEDS[row];
+      h ^= (h >>> 17);
+      return (row * width) + (h & counter_mask);
+    }
+
+    private int getCounter(int c) {
+      int b = table[c >> 1];
+      return ((c & 1) == 0) ? (b & 0x0F) : ((b >> 4) & 0x0F);
+    }
+
+    private void setCounter(int c, int v) {
+      int i = c >> 1;
+      int b = table[i];
+      if ((c & 1) == 0) {
+        b = (b & 0x0F0) | v;
+      }
+      else {
+        b = (b & 0x0F) | (v << 4);
+      }
+      table[i] = (byte) b;
+    }
+
+    /**
+     * Returns the estimated frequency of the hash (0 to 15).
+     */
+    int frequency(int hash) {
+      int freq = 15;
+      for (int row = 0; row < SEEDS.length; ++row) {
+        freq = Math.min(freq, getCounter(counterIndex(hash, row)));
+      }
+      return freq;
+    }
+
+    /**
+     * Increments the frequency of the hash.
+     */
+    void increment(int hash) {
+      boolean added = false;
+      for (int row = 0; row < SEEDS.length; ++row) {
+        int c = counterIndex(hash, row);
+        int v = getCounter(c);
+        if (v < 15) {
+          setCounter(c, v + 1);
+          added = true;
+        }
+      }
+      if (added) {
+        ++sample_count;
+        if (sample_count >= sample_size) {
+          age();
+        }
+      }
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    private void age() {
+      for (int i = 0; i < table.length; ++i) {
+        int b = table[i];
+        int low = (b & 0x0F) >> 1;
+        int high = ((b >> 4) & 0x0F) >> 1;
+        table[i] = (byte) (low | (high << 4));
+      }
+      sample_count = sample_count / 2;
+    }
+
+  }
+
+  /**
+   * A segment of the cache.  All access to a segment is synchronized on the
+   * segment object.
+   */
+  private static final class Segment {
+
+    /**
+     * The map of key to Entry.
+     */
+    final HashMap<Object, Entry> map;
+
+    /**
+     * The LRU window, and the probation and protected areas of the main
+     * segmented LRU.
+     */
+    private final Queue window;
+    private final Queue probation;
+    private final Queue protected_queue;
+
+    /**
+     * The maximum weight of the segment, the window and the protected area.
+     */
+    private final long max_weight;
+    private final long window_max;
+    private final long protected_max;
+
+    /**
+     * The access frequency sketch.
+     */
+    private final FrequencySketch sketch;
+
+    /**
+     * Hit and miss statistics.
+     */
+    long hit_count;
+    long miss_count;
+
+    Segment(long max_weight, int expected_count) {
+      this.map = new HashMap<>();
+      this.window = new Queue();
+      this.probation = new Queue();
+      this.protected_queue = new Queue();
+      this.max_weight = max_weight;
+      // The window is 1% of the segment and 80% of the rest is protected
+      this.window_max = Math.max(1, max_weight / 100);
+      this.protected_max = ((max_weight - window_max) * 80) / 100;
+      this.sketch = new FrequencySketch(expected_count);
+    }
+
+    long totalWeight() {
+      return window.weight + probation.weight + protected_queue.weight;
+    }
+
+    /**
+     * Returns the queue with the given id.
+     */
+    private Queue queueOf(Entry e) {
+      if (e.queue == WINDOW) {
+        return window;
+      }
+      else if (e.queue == PROBATION) {
+        return probation;
+      }
+      else {
+        return protected_queue;
+      }
+    }
+
+    synchronized Object get(Object key, int hash) {
+      sketch.increment(hash);
+      Entry e = map.get(key);
+      if (e == null) {
+        ++miss_count;
+        return null;
+      }
+      ++hit_count;
+      onAccess(e);
+      return e.value;
+    }
+
+    synchronized void put(Object key, Object value, int hash, long weight) {
+      Entry e = map.get(key);
+      if (weight > max_weight) {
+        // Too large to cache, so make sure there's no old entry for the key
+        if (e != null) {
+          removeEntry(e);
+        }
+        return;
+      }
+
+      if (e != null) {
+        // Replace the value of the existing entry
+        Queue q = queueOf(e);
+        q.weight += (weight - e.weight);
+        e.weight = weight;
+        e.value = value;
+        onAccess(e);
+      }
+      else {
+        sketch.increment(hash);
+        e = new Entry();
+        e.key = key;
+        e.value = value;
+        e.hash = hash;
+        e.weight = weight;
+        e.queue = WINDOW;
+        window.addToHead(e);
+        map.put(key, e);
+      }
+      evict();
+    }
+
+    synchronized Object remove(Object key) {
+      Entry e = map.get(key);
+      if (e == null) {
+        return null;
+      }
+      Object value = e.value;
+      removeEntry(e);
+      return value;
+    }
+
+    synchronized void clear() {
+      map.clear();
+      window.clear();
+      probation.clear();
+      protected_queue.clear();
+    }
+
+    /**
+     * Unlinks the entry from its queue and removes it from the map.
+     */
+    private void removeEntry(Entry e) {
+      queueOf(e).unlink(e);
+      map.remove(e.key);
+      e.key = null;
+      e.value = null;
+    }
+
+    /**
+     * Updates the position of an entry that was accessed.
+     */
+    private void onAccess(Entry e) {
+      if (e.queue == WINDOW) {
+        window.moveToHead(e);
+      }
+      else if (e.queue == PROBATION) {
+        // A hit in probation promotes the entry to the protected area
+        probation.unlink(e);
+        e.queue = PROTECTED;
+        protected_queue.addToHead(e);
+        // Demote the least recently used protected entries if the protected
+        // area is too large.
+        while (protected_queue.weight > protected_max) {
+          Entry demote = protected_queue.tail();
+          if (demote == e) {
+            break;
+          }
+          protected_queue.unlink(demote);
+          demote.queue = PROBATION;
+          probation.addToHead(demote);
+        }
+      }
+      else {
+        protected_queue.moveToHead(e);
+      }
+    }
+
+    /**
+     * Moves entries out of the window while it is too large, and evicts
+     * entries so that the segment is within its maximum weight.
+     */
+    private void evict() {
+      while (window.weight > window_max) {
+        Entry candidate = window.tail();
+        window.unlink(candidate);
+        admit(candidate);
+      }
+      // The window may hold more than its share if an existing entry grew
+      while (totalWeight() > max_weight) {
+        Entry victim = mainVictim();
+        if (victim == null) {
+          victim = window.tail();
+        }
+        removeEntry(victim);
+      }
+    }
+
+    /**
+     * Returns the entry in the main area that would be evicted next, or null
+     * if the main area is empty.
+     */
+    private Entry mainVictim() {
+      Entry victim = probation.tail();
+      if (victim == null) {
+        victim = protected_queue.tail();
+      }
+      return victim;
+    }
+
+    /**
+     * Decides if an entry leaving the window is admitted to the main area.
+     * The candidate is admitted if there is room, or if it's more frequently
+     * accessed than every entry that would be evicted to make room.  The
+     * victims are only evicted once the candidate is known to be admitted.
+     * The candidate has already been unlinked from the window.
+     */
+    private void admit(Entry candidate) {
+      long room = max_weight - window.weight;
+      long excess =
+          probation.weight + protected_queue.weight + candidate.weight - room;
+      if (excess > 0) {
+        // Walk the victims in the order they would be evicted and compare
+        // the candidate against each,
+        int candidate_freq = sketch.frequency(candidate.hash);
+        Queue q = probation;
+        Entry victim = probation.tail();
+        while (excess > 0) {
+          if (victim == null) {
+            if (q == probation) {
+              q = protected_queue;
+              victim = protected_queue.tail();
+              continue;
+            }
+            // The main area can't make room for the candidate
+            reject(candidate);
+            return;
+          }
+          if (candidate_freq <= sketch.frequency(victim.hash)) {
+            reject(candidate);
+            return;
+          }
+          excess -= victim.weight;
+          victim = q.previousOf(victim);
+        }
+        // The candidate wins, so evict the victims
+        while (probation.weight + protected_queue.weight + candidate.weight >
+               room) {
+          removeEntry(mainVictim());
+        }
+      }
+      candidate.queue = PROBATION;
+      probation.addToHead(candidate);
+    }
+
+    /**
+     * Removes a candidate that was not admitted to the main area.
+     */
+    private void reject(Entry candidate) {
+      map.remove(candidate.key);
+      candidate.key = null;
+      candidate.value = null;
+    }
+
+  }
+
+}
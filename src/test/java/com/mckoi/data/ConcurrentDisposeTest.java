@@ -0,0 +1,126 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.data;
+
+import com.mckoi.store.HeapStore;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that versions disposed by many threads at once are all reclaimed,
+ * with old versions reclaimed by the disposing threads and by the
+ * background reclaimer.
+ *
+ * @author Tobias Downer
+ */
+public class ConcurrentDisposeTest {
+
+  private static final Key DATA_KEY = new Key((short) 0, 0, 1);
+
+  private StoreBackedTreeSystem tree_system;
+
+  @Before
+  public void setUp() throws IOException {
+    tree_system = new StoreBackedTreeSystem(new HeapStore(),
+                                  16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+  }
+
+  /**
+   * Runs threads that commit changes, and threads that only read, all
+   * disposing their transactions at the same time.  Returns the number of
+   * versions committed.
+   */
+  private int concurrentDisposes() throws Exception {
+    final Object commit_lock = new Object();
+    final AtomicInteger commit_count = new AtomicInteger(0);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; ++i) {
+      final boolean writer = (i % 2) == 0;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int n = 0; n < 400; ++n) {
+              KeyObjectTransaction t;
+              if (writer) {
+                // Commits must be made on the latest version,
+                synchronized (commit_lock) {
+                  t = tree_system.createTransaction();
+                  DataFile df = t.getDataFile(DATA_KEY, 'w');
+                  df.position(df.size());
+                  df.putLong(n);
+                  tree_system.commit(t);
+                  commit_count.incrementAndGet();
+                }
+              }
+              else {
+                t = tree_system.createTransaction();
+                t.getDataFile(DATA_KEY, 'r').size();
+              }
+              tree_system.dispose(t);
+            }
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    return commit_count.get();
+  }
+
+  /**
+   * Disposes a transaction on the latest version, which reclaims any old
+   * versions still in the reclaim queue.
+   */
+  private void disposeLatest() {
+    tree_system.dispose(tree_system.createTransaction());
+  }
+
+  @Test
+  public void reclaimOnDispose() throws Exception {
+    int commit_count = concurrentDisposes();
+    disposeLatest();
+    assertEquals(0, tree_system.getReclaimBacklog());
+    assertEquals(commit_count, tree_system.getReclaimedVersionCount());
+  }
+
+  @Test
+  public void backgroundReclaim() throws Exception {
+    tree_system.setBackgroundReclaim(true);
+    int commit_count = concurrentDisposes();
+    tree_system.setBackgroundReclaim(false);
+    disposeLatest();
+    assertEquals(0, tree_system.getReclaimBacklog());
+    assertEquals(commit_count, tree_system.getReclaimedVersionCount());
+  }
+
+}
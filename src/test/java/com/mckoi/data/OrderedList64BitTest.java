@@ -0,0 +1,287 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.data;
+
+import com.mckoi.store.HeapStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bulk sorted operations of OrderedList64Bit against a sorted
+ * List of values.
+ *
+ * @author Tobias Downer
+ */
+public class OrderedList64BitTest {
+
+  private static final Key LIST_KEY = new Key((short) 0, 0, 1);
+  private static final Key OTHER_KEY = new Key((short) 0, 0, 2);
+
+  private KeyObjectTransaction transaction;
+
+  @Before
+  public void setUp() throws IOException {
+    StoreBackedTreeSystem tree_system = new StoreBackedTreeSystem(
+            new HeapStore(), 16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+    transaction = tree_system.createTransaction();
+  }
+
+  /**
+   * Returns a list in the transaction with the given values inserted.
+   */
+  private OrderedList64Bit createList(Key key, List<Long> values) {
+    OrderedList64Bit list =
+                    new OrderedList64Bit(transaction.getDataFile(key, 'w'));
+    for (long v : values) {
+      list.insertSortKey(v);
+    }
+    return list;
+  }
+
+  private static void assertContent(List<Long> expected,
+                                    OrderedList64Bit list) {
+    assertEquals(expected.size(), list.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals((long) expected.get(i), list.get(i));
+    }
+  }
+
+  private static long[] toArray(List<Long> values) {
+    long[] arr = new long[values.size()];
+    for (int i = 0; i < arr.length; ++i) {
+      arr[i] = values.get(i);
+    }
+    return arr;
+  }
+
+  /**
+   * Returns a sorted list of 'count' random values less than 'bound'.  The
+   * values may repeat.
+   */
+  private static List<Long> randomValues(Random r, int count, int bound) {
+    List<Long> values = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      values.add((long) r.nextInt(bound));
+    }
+    Collections.sort(values);
+    return values;
+  }
+
+  /**
+   * Returns a random sorted sublist of the values.
+   */
+  private static List<Long> randomSubList(Random r, List<Long> values) {
+    List<Long> sub = new ArrayList<>();
+    for (long v : values) {
+      if (r.nextInt(3) == 0) {
+        sub.add(v);
+      }
+    }
+    return sub;
+  }
+
+  @Test
+  public void insertAllSorted() {
+    Random r = new Random(3);
+    List<Long> expected = new ArrayList<>();
+    OrderedList64Bit list = createList(LIST_KEY, expected);
+
+    // Into an empty list, an empty insert, then ranges before, after and
+    // interleaved with the values in the list, with duplicates,
+    list.insertAllSorted(new long[0]);
+    assertContent(expected, list);
+    for (int n = 0; n < 40; ++n) {
+      int base = (n % 4) * 500;
+      List<Long> values = randomValues(r, r.nextInt(300), 1000);
+      for (int i = 0; i < values.size(); ++i) {
+        values.set(i, values.get(i) + base);
+      }
+      list.insertAllSorted(toArray(values));
+      expected.addAll(values);
+      Collections.sort(expected);
+      assertContent(expected, list);
+    }
+
+    // The iterator form,
+    List<Long> values = randomValues(r, 200, 4000);
+    list.insertAllSorted(createList(OTHER_KEY, values).iterator());
+    expected.addAll(values);
+    Collections.sort(expected);
+    assertContent(expected, list);
+  }
+
+  @Test
+  public void removeAllSorted() {
+    Random r = new Random(5);
+    List<Long> expected = randomValues(r, 3000, 2000);
+    OrderedList64Bit list = createList(LIST_KEY, expected);
+
+    list.removeAllSorted(new long[0]);
+    assertContent(expected, list);
+    while (!expected.isEmpty()) {
+      // A random sublist of the values, which may contain duplicates,
+      List<Long> values = randomSubList(r, expected);
+      list.removeAllSorted(toArray(values));
+      for (long v : values) {
+        expected.remove(v);
+      }
+      assertContent(expected, list);
+      if (values.isEmpty()) {
+        list.removeAllSorted(toArray(expected));
+        expected.clear();
+        assertContent(expected, list);
+      }
+    }
+  }
+
+  /**
+   * A remove of a value not in the list, or of a value more times than it
+   * is in the list, generates an exception and doesn't change the list.
+   */
+  @Test
+  public void removeAbsentValues() {
+    List<Long> expected = new ArrayList<>();
+    Collections.addAll(expected, 10L, 20L, 20L, 30L);
+    OrderedList64Bit list = createList(LIST_KEY, expected);
+
+    long[][] bad_removes = {
+      { 10, 15 }, { 5, 10 }, { 10, 20, 20, 20 }, { 40 }, { 10, 30, 31 }
+    };
+    for (long[] values : bad_removes) {
+      try {
+        list.removeAllSorted(values);
+        fail("Absent value removed");
+      }
+      catch (RuntimeException e) {
+        // Expected,
+      }
+      assertContent(expected, list);
+    }
+
+    // Empty list,
+    OrderedList64Bit empty = createList(OTHER_KEY, new ArrayList<Long>());
+    try {
+      empty.removeAllSorted(new long[] { 1 });
+      fail("Absent value removed");
+    }
+    catch (RuntimeException e) {
+      // Expected,
+    }
+    assertEquals(0, empty.size());
+  }
+
+  /**
+   * Values not in ascending order generate an exception and don't change
+   * the list.
+   */
+  @Test
+  public void unsortedValues() {
+    List<Long> expected = new ArrayList<>();
+    Collections.addAll(expected, 10L, 20L, 30L);
+    OrderedList64Bit list = createList(LIST_KEY, expected);
+    long[] unsorted = { 5, 25, 15, 35 };
+
+    try {
+      list.insertAllSorted(unsorted);
+      fail("Unsorted values inserted");
+    }
+    catch (RuntimeException e) {
+      // Expected,
+    }
+    assertContent(expected, list);
+
+    try {
+      list.removeAllSorted(new long[] { 20, 10 });
+      fail("Unsorted values removed");
+    }
+    catch (RuntimeException e) {
+      // Expected,
+    }
+    assertContent(expected, list);
+  }
+
+  @Test
+  public void union() {
+    Random r = new Random(7);
+    for (int n = 0; n < 20; ++n) {
+      transaction.getDataFile(LIST_KEY, 'w').delete();
+      transaction.getDataFile(OTHER_KEY, 'w').delete();
+      // Sets, where one or both may be empty,
+      TreeSet<Long> set = new TreeSet<>(randomValues(r, (n % 5) * 100, 800));
+      TreeSet<Long> other = new TreeSet<>(randomValues(r, (n / 5) * 100, 800));
+      OrderedList64Bit list = createList(LIST_KEY, new ArrayList<>(set));
+      OrderedList64Bit other_list =
+                              createList(OTHER_KEY, new ArrayList<>(other));
+
+      int size_before = set.size();
+      set.addAll(other);
+      assertEquals(set.size() - size_before, list.union(other_list));
+      assertContent(new ArrayList<>(set), list);
+      // The other list is not changed,
+      assertContent(new ArrayList<>(other), other_list);
+    }
+  }
+
+  /**
+   * A union with a list that has repeated values inserts each new value
+   * once.
+   */
+  @Test
+  public void unionDuplicates() {
+    List<Long> values = new ArrayList<>();
+    Collections.addAll(values, 1L, 5L, 9L);
+    OrderedList64Bit list = createList(LIST_KEY, values);
+    List<Long> other = new ArrayList<>();
+    Collections.addAll(other, 0L, 0L, 5L, 5L, 7L, 7L, 7L, 12L);
+    assertEquals(3, list.union(createList(OTHER_KEY, other)));
+    List<Long> expected = new ArrayList<>();
+    Collections.addAll(expected, 0L, 1L, 5L, 7L, 9L, 12L);
+    assertContent(expected, list);
+  }
+
+  @Test
+  public void difference() {
+    Random r = new Random(9);
+    for (int n = 0; n < 20; ++n) {
+      transaction.getDataFile(LIST_KEY, 'w').delete();
+      transaction.getDataFile(OTHER_KEY, 'w').delete();
+      // The list may have repeated values, which are all removed, and the
+      // other list has values not in the list,
+      List<Long> values = randomValues(r, (n % 5) * 100, 400);
+      List<Long> other = randomValues(r, (n / 5) * 100, 400);
+      OrderedList64Bit list = createList(LIST_KEY, values);
+      OrderedList64Bit other_list = createList(OTHER_KEY, other);
+
+      List<Long> expected = new ArrayList<>(values);
+      expected.removeAll(other);
+      assertEquals(values.size() - expected.size(),
+                   list.difference(other_list));
+      assertContent(expected, list);
+      assertContent(other, other_list);
+    }
+  }
+
+}
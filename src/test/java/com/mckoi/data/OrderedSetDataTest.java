@@ -0,0 +1,266 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.data;
+
+import com.mckoi.store.HeapStore;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests OrderedSetData against a TreeSet, in the indexed format and in the
+ * original format without an index.
+ *
+ * @author Tobias Downer
+ */
+public class OrderedSetDataTest {
+
+  private static final Key SET_KEY = new Key((short) 0, 0, 1);
+
+  private StoreBackedTreeSystem tree_system;
+
+  @Before
+  public void setUp() throws IOException {
+    tree_system = new StoreBackedTreeSystem(new HeapStore(),
+                                  16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+  }
+
+  /**
+   * Returns a random value.  Some values contain the 0x0FFF8 sequence that
+   * is escaped in the encoding, and the lengths are both odd and even.
+   */
+  private static JavaByteArray randomValue(Random r) {
+    byte[] buf = new byte[r.nextInt(24)];
+    for (int i = 0; i < buf.length; ++i) {
+      if (r.nextInt(8) == 0 && i + 1 < buf.length) {
+        buf[i] = (byte) 0x0FF;
+        buf[i + 1] = (byte) 0x0F8;
+        ++i;
+      }
+      else {
+        buf[i] = (byte) r.nextInt(4);
+      }
+    }
+    return new JavaByteArray(buf);
+  }
+
+  /**
+   * Writes the values to the data file in the original format of the set,
+   * which has no element count or index.
+   */
+  private static void writeOriginalFormat(DataFile data,
+                 SortedSet<JavaByteArray> values) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    for (int n = 0; n < 8; ++n) {
+      bout.write((int) (0x0BE0220FL >> ((7 - n) * 8)));
+    }
+    for (JavaByteArray value : values) {
+      int len = value.length();
+      bout.write(0);
+      bout.write(0);
+      int i = 0;
+      for (; i + 1 < len; i += 2) {
+        byte b1 = value.getByteAt(i);
+        byte b2 = value.getByteAt(i + 1);
+        bout.write(b1);
+        bout.write(b2);
+        // The 0x0FFF8 sequence is written twice
+        if (b1 == (byte) 0x0FF && b2 == (byte) 0x0F8) {
+          bout.write(b1);
+          bout.write(b2);
+        }
+      }
+      if (i == len) {
+        bout.write(0x00);
+        bout.write(0x01);
+      }
+      else {
+        bout.write(value.getByteAt(i));
+        bout.write(0x00);
+      }
+      bout.write(0x0FF);
+      bout.write(0x0F8);
+    }
+    byte[] buf = bout.toByteArray();
+    data.setSize(buf.length);
+    data.position(0);
+    data.put(buf);
+  }
+
+  private static long magic(DataFile data) {
+    data.position(0);
+    return data.getLong();
+  }
+
+  /**
+   * Asserts the set contains the same values as the expected set.
+   */
+  private static void assertSameSet(TreeSet<JavaByteArray> expected,
+                                    OrderedSetData set) {
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected.isEmpty(), set.isEmpty());
+    Iterator<ByteArray> it = set.iterator();
+    for (JavaByteArray value : expected) {
+      assertTrue(it.hasNext());
+      assertEquals(value, it.next());
+    }
+    assertFalse(it.hasNext());
+    if (!expected.isEmpty()) {
+      assertEquals(expected.first(), set.first());
+      assertEquals(expected.last(), set.last());
+    }
+    for (JavaByteArray value : expected) {
+      assertTrue(set.contains(value));
+    }
+
+    // The sizes of subsets
+    ArrayList<JavaByteArray> list = new ArrayList<>(expected);
+    Random r = new Random(3);
+    for (int i = 0; i < 20 && list.size() > 1; ++i) {
+      JavaByteArray v1 = list.get(r.nextInt(list.size()));
+      JavaByteArray v2 = list.get(r.nextInt(list.size()));
+      if (v1.compareTo(v2) > 0) {
+        JavaByteArray t = v1;
+        v1 = v2;
+        v2 = t;
+      }
+      assertEquals(expected.subSet(v1, v2).size(),
+                   set.subSet(v1, v2).size());
+      assertEquals(expected.headSet(v2).size(), set.headSet(v2).size());
+      // The upper bound is not the last element of a subset
+      if (!expected.subSet(v1, v2).isEmpty()) {
+        assertEquals(expected.subSet(v1, v2).last(),
+                     set.subSet(v1, v2).last());
+        assertEquals(expected.headSet(v2).last(), set.headSet(v2).last());
+      }
+      assertEquals(expected.tailSet(v1).size(), set.tailSet(v1).size());
+    }
+  }
+
+  /**
+   * Values added and removed are read back the same, before and after the
+   * set is committed.
+   */
+  @Test
+  public void roundTrip() {
+    Random r = new Random(1);
+    TreeSet<JavaByteArray> expected = new TreeSet<>();
+
+    KeyObjectTransaction t = tree_system.createTransaction();
+    OrderedSetData set = new OrderedSetData(t.getDataFile(SET_KEY, 'w'));
+    assertSameSet(expected, set);
+    for (int i = 0; i < 3000; ++i) {
+      JavaByteArray value = randomValue(r);
+      assertEquals(expected.add(value), set.add(value));
+    }
+    assertSameSet(expected, set);
+    for (int i = 0; i < 1000; ++i) {
+      JavaByteArray value = randomValue(r);
+      assertEquals(expected.remove(value), set.remove(value));
+    }
+    assertSameSet(expected, set);
+    assertEquals(0x0BE0221FL, magic(t.getDataFile(SET_KEY, 'r')));
+    tree_system.commit(t);
+    tree_system.dispose(t);
+
+    t = tree_system.createTransaction();
+    set = new OrderedSetData(t.getDataFile(SET_KEY, 'w'));
+    assertSameSet(expected, set);
+
+    // Removing every value empties the set
+    for (JavaByteArray value : new ArrayList<>(expected)) {
+      assertTrue(set.remove(value));
+    }
+    assertSameSet(new TreeSet<JavaByteArray>(), set);
+    tree_system.dispose(t);
+  }
+
+  /**
+   * Runs of changes at different ends of the set, which move the shift of
+   * the index back and forth.
+   */
+  @Test
+  public void runsOfChanges() {
+    Random r = new Random(4);
+    TreeSet<JavaByteArray> expected = new TreeSet<>();
+    KeyObjectTransaction t = tree_system.createTransaction();
+    OrderedSetData set = new OrderedSetData(t.getDataFile(SET_KEY, 'w'));
+    for (int run = 0; run < 40; ++run) {
+      byte prefix = (byte) ((run % 3 == 0) ? 0 : (run % 3 == 1) ? 2 : 1);
+      boolean add = (r.nextInt(4) != 0);
+      for (int i = 0; i < 150; ++i) {
+        JavaByteArray random_value = randomValue(r);
+        byte[] prefixed = new byte[random_value.length() + 1];
+        prefixed[0] = prefix;
+        for (int n = 0; n < random_value.length(); ++n) {
+          prefixed[n + 1] = random_value.getByteAt(n);
+        }
+        JavaByteArray value = new JavaByteArray(prefixed);
+        if (add) {
+          assertEquals(expected.add(value), set.add(value));
+        }
+        else {
+          assertEquals(expected.remove(value), set.remove(value));
+        }
+      }
+      assertSameSet(expected, set);
+    }
+    tree_system.dispose(t);
+  }
+
+  /**
+   * A set in the original format is read the same, and is converted to the
+   * indexed format when it is changed.
+   */
+  @Test
+  public void originalFormat() throws IOException {
+    Random r = new Random(2);
+    TreeSet<JavaByteArray> expected = new TreeSet<>();
+    for (int i = 0; i < 2000; ++i) {
+      expected.add(randomValue(r));
+    }
+
+    KeyObjectTransaction t = tree_system.createTransaction();
+    DataFile data = t.getDataFile(SET_KEY, 'w');
+    writeOriginalFormat(data, expected);
+    OrderedSetData set = new OrderedSetData(data);
+    assertSameSet(expected, set);
+    assertEquals(0x0BE0220FL, magic(data));
+
+    // The first change converts the set,
+    JavaByteArray value = randomValue(r);
+    assertEquals(expected.add(value), set.add(value));
+    assertEquals(0x0BE0221FL, magic(data));
+    assertSameSet(expected, set);
+    for (int i = 0; i < 500; ++i) {
+      value = randomValue(r);
+      assertEquals(expected.remove(value), set.remove(value));
+    }
+    assertSameSet(expected, set);
+    tree_system.dispose(t);
+  }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.data;
+
+import com.mckoi.store.HeapStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests OrderedSetString against a TreeSet, in the indexed format and in
+ * the original format without an index.
+ *
+ * @author Tobias Downer
+ */
+public class OrderedSetStringTest {
+
+  private static final Key SET_KEY = new Key((short) 0, 0, 1);
+
+  private StoreBackedTreeSystem tree_system;
+
+  @Before
+  public void setUp() throws IOException {
+    tree_system = new StoreBackedTreeSystem(new HeapStore(),
+                                  16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+  }
+
+  /**
+   * Returns a random string, that may be empty.
+   */
+  private static String randomString(Random r) {
+    StringBuilder b = new StringBuilder();
+    int len = r.nextInt(12);
+    for (int i = 0; i < len; ++i) {
+      if (r.nextInt(10) == 0) {
+        b.append((char) (0x0100 + r.nextInt(0x0FE00)));
+      }
+      else {
+        b.append((char) ('a' + r.nextInt(4)));
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Writes the strings to the data file in the original format of the set,
+   * which has no element count or index.
+   */
+  private static void writeOriginalFormat(DataFile data,
+                            SortedSet<String> values) throws IOException {
+    long size = 8;
+    for (String value : values) {
+      size += ((long) value.length() * 2) + 2;
+    }
+    data.setSize(size);
+    data.position(0);
+    data.putLong(0x0BE0110F);
+    for (String value : values) {
+      for (int i = 0; i < value.length(); ++i) {
+        data.putChar(value.charAt(i));
+      }
+      data.putChar((char) 0x0FFFF);
+    }
+  }
+
+  private static long magic(DataFile data) {
+    data.position(0);
+    return data.getLong();
+  }
+
+  /**
+   * Asserts the set contains the same strings as the expected set.
+   */
+  private static void assertSameSet(TreeSet<String> expected,
+                                    OrderedSetString set) {
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected.isEmpty(), set.isEmpty());
+    Iterator<String> it = set.iterator();
+    for (String value : expected) {
+      assertTrue(it.hasNext());
+      assertEquals(value, it.next());
+    }
+    assertFalse(it.hasNext());
+    if (!expected.isEmpty()) {
+      assertEquals(expected.first(), set.first());
+      assertEquals(expected.last(), set.last());
+    }
+    for (String value : expected) {
+      assertTrue(set.contains(value));
+    }
+
+    // The sizes of subsets
+    ArrayList<String> list = new ArrayList<>(expected);
+    Random r = new Random(3);
+    for (int i = 0; i < 20 && list.size() > 1; ++i) {
+      String v1 = list.get(r.nextInt(list.size()));
+      String v2 = list.get(r.nextInt(list.size()));
+      if (v1.compareTo(v2) > 0) {
+        String t = v1;
+        v1 = v2;
+        v2 = t;
+      }
+      assertEquals(expected.subSet(v1, v2).size(),
+                   set.subSet(v1, v2).size());
+      assertEquals(expected.headSet(v2).size(), set.headSet(v2).size());
+      // The upper bound is not the last element of a subset
+      if (!expected.subSet(v1, v2).isEmpty()) {
+        assertEquals(expected.subSet(v1, v2).last(),
+                     set.subSet(v1, v2).last());
+        assertEquals(expected.headSet(v2).last(), set.headSet(v2).last());
+      }
+      assertEquals(expected.tailSet(v1).size(), set.tailSet(v1).size());
+    }
+  }
+
+  /**
+   * Strings added and removed are read back the same, before and after the
+   * set is committed.
+   */
+  @Test
+  public void roundTrip() {
+    Random r = new Random(1);
+    TreeSet<String> expected = new TreeSet<>();
+
+    KeyObjectTransaction t = tree_system.createTransaction();
+    OrderedSetString set = new OrderedSetString(t.getDataFile(SET_KEY, 'w'));
+    assertSameSet(expected, set);
+    for (int i = 0; i < 3000; ++i) {
+      String value = randomString(r);
+      assertEquals(expected.add(value), set.add(value));
+    }
+    assertSameSet(expected, set);
+    for (int i = 0; i < 1000; ++i) {
+      String value = randomString(r);
+      assertEquals(expected.remove(value), set.remove(value));
+    }
+    assertSameSet(expected, set);
+    assertEquals(0x0BE0111FL, magic(t.getDataFile(SET_KEY, 'r')));
+    tree_system.commit(t);
+    tree_system.dispose(t);
+
+    t = tree_system.createTransaction();
+    set = new OrderedSetString(t.getDataFile(SET_KEY, 'w'));
+    assertSameSet(expected, set);
+
+    // Removing every string empties the set
+    for (String value : new ArrayList<>(expected)) {
+      assertTrue(set.remove(value));
+    }
+    assertSameSet(new TreeSet<String>(), set);
+    tree_system.dispose(t);
+  }
+
+  /**
+   * Runs of changes at different ends of the set, which move the shift of
+   * the index back and forth.
+   */
+  @Test
+  public void runsOfChanges() {
+    Random r = new Random(4);
+    TreeSet<String> expected = new TreeSet<>();
+    KeyObjectTransaction t = tree_system.createTransaction();
+    OrderedSetString set = new OrderedSetString(t.getDataFile(SET_KEY, 'w'));
+    for (int run = 0; run < 40; ++run) {
+      String prefix = (run % 3 == 0) ? "a" : (run % 3 == 1) ? "c" : "b";
+      boolean add = (r.nextInt(4) != 0);
+      for (int i = 0; i < 150; ++i) {
+        String value = prefix + randomString(r);
+        if (add) {
+          assertEquals(expected.add(value), set.add(value));
+        }
+        else {
+          assertEquals(expected.remove(value), set.remove(value));
+        }
+      }
+      assertSameSet(expected, set);
+    }
+    tree_system.dispose(t);
+  }
+
+  /**
+   * A set in the original format is read the same, and is converted to the
+   * indexed format when it is changed.
+   */
+  @Test
+  public void originalFormat() throws IOException {
+    Random r = new Random(2);
+    TreeSet<String> expected = new TreeSet<>();
+    for (int i = 0; i < 2000; ++i) {
+      expected.add(randomString(r));
+    }
+
+    KeyObjectTransaction t = tree_system.createTransaction();
+    DataFile data = t.getDataFile(SET_KEY, 'w');
+    writeOriginalFormat(data, expected);
+    OrderedSetString set = new OrderedSetString(data);
+    assertSameSet(expected, set);
+    assertEquals(0x0BE0110FL, magic(data));
+
+    // The first change converts the set,
+    String value = randomString(r);
+    assertEquals(expected.add(value), set.add(value));
+    assertEquals(0x0BE0111FL, magic(data));
+    assertSameSet(expected, set);
+    for (int i = 0; i < 500; ++i) {
+      value = randomString(r);
+      assertEquals(expected.remove(value), set.remove(value));
+    }
+    assertSameSet(expected, set);
+    tree_system.dispose(t);
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bulk block transfer of a block file to an instance server
+ * running a block service, with blocking IO and with NIO connections.  The
+ * received file must have the same content as the file that was sent.
+ *
+ * @author Tobias Downer
+ */
+public class BlockTransferTest {
+
+  private static final String PASSWORD = "testpass";
+
+  private File path;
+  private InetAddress local_address;
+  private int port;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+    local_address = InetAddress.getByName("127.0.0.1");
+    try (ServerSocket s = new ServerSocket(0, 1, local_address)) {
+      port = s.getLocalPort();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    PipelinedConnectionTest.deleteDirectory(path);
+  }
+
+  /**
+   * Starts a server with a block service, sends a block file to it, and
+   * checks the block file the service stored.
+   */
+  private void transferBlock(String connection_io) throws Exception {
+    TCPInstanceAdminServer server = PipelinedConnectionTest.startServer(
+                                  path, local_address, port, connection_io);
+    TCPNetworkConnector connector =
+                 new TCPNetworkConnector(new TCPConnectorValues(PASSWORD, null));
+    try {
+      ServiceAddress address = new ServiceAddress(local_address, port);
+      MessageStream msg_out = new MessageStream(8);
+      msg_out.addMessage("start");
+      msg_out.addString("block_server");
+      msg_out.closeMessage();
+      PipelinedConnectionTest.assertReply(
+            connector.connectInstanceAdmin(address).process(msg_out)
+                                                  .iterator().next());
+
+      // A file larger than the socket buffers,
+      byte[] content = new byte[3 * 1024 * 1024 + 17];
+      new Random(1).nextBytes(content);
+      File f = new File(path, "send_block");
+      Files.write(f.toPath(), content);
+
+      BlockId block_id = new BlockId(0, 5);
+      ProcessResult result =
+                         connector.sendBlockFile(address, block_id, 1, f);
+      assertNotNull(result);
+      PipelinedConnectionTest.assertReply(result.iterator().next());
+
+      File block_f = new File(path, "node/block/0X0000000000000005");
+      assertTrue(Arrays.equals(content, Files.readAllBytes(block_f.toPath())));
+    }
+    finally {
+      connector.stop();
+      PipelinedConnectionTest.stopServer(server);
+    }
+  }
+
+  @Test
+  public void blockingTransfer() throws Exception {
+    transferBlock("blocking");
+  }
+
+  @Test
+  public void nioTransfer() throws Exception {
+    transferBlock("nio");
+  }
+
+}
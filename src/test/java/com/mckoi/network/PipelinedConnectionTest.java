@@ -0,0 +1,343 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that many threads can have requests in flight on one connection to
+ * an instance server, and that each thread gets the reply to its own
+ * request.  Also tests that a client falls back to the original protocol
+ * when the service doesn't support the pipelined protocol.  The server is
+ * tested with both blocking IO and NIO connections.
+ *
+ * @author Tobias Downer
+ */
+public class PipelinedConnectionTest {
+
+  private static final String PASSWORD = "testpass";
+
+  private File path;
+  private InetAddress local_address;
+  private int port;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+    local_address = InetAddress.getByName("127.0.0.1");
+    try (ServerSocket s = new ServerSocket(0, 1, local_address)) {
+      port = s.getLocalPort();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    deleteDirectory(path);
+  }
+
+  static void deleteDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) {
+          deleteDirectory(f);
+        }
+        else {
+          f.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Starts an instance server with its node directory in the given path,
+   * on the given local address and port with the given 'connection_io'
+   * mode, and waits until it accepts connections.
+   */
+  static TCPInstanceAdminServer startServer(File path,
+                        InetAddress local_address, int port,
+                        String connection_io) throws IOException {
+    File net_conf = new File(path, "network.conf");
+    try (Writer w = new FileWriter(net_conf)) {
+      w.write("connect_whitelist=127.0.0.1\n");
+      w.write("network_nodelist=127.0.0.1:" + port + "\n");
+    }
+    Properties node_properties = new Properties();
+    node_properties.setProperty("network_password", PASSWORD);
+    node_properties.setProperty("node_directory",
+                                new File(path, "node").getPath());
+    node_properties.setProperty("connection_io", connection_io);
+    node_properties.setProperty("log_level", "off");
+
+    TCPInstanceAdminServer server = new TCPInstanceAdminServer(
+                                NetworkConfigResource.getNetConfig(net_conf),
+                                local_address, port, node_properties);
+    new Thread(server).start();
+    server.waitUntilStarted();
+    return server;
+  }
+
+  static void stopServer(TCPInstanceAdminServer server) {
+    server.close();
+    server.waitUntilStopped();
+  }
+
+  /**
+   * Asserts the message is a reply and not an error.
+   */
+  static void assertReply(Message m) {
+    if (m.isError()) {
+      fail(m.getErrorMessage());
+    }
+    assertEquals("R", m.getName());
+  }
+
+  /**
+   * Returns true if there's a reply reader thread for the address, which a
+   * connection only has when it uses the pipelined protocol.
+   */
+  private static boolean hasReplyReader(ServiceAddress address) {
+    String name = "Mckoi TCP reply reader " + address.displayString();
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends 'report' and 'reportStats' requests from several threads at once,
+   * and checks each reply has the form of the request that was sent.  The
+   * two replies have different arguments, so a reply given to the wrong
+   * thread is detected.
+   */
+  private void concurrentRequests(final MessageProcessor processor)
+                                                              throws Exception {
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    // More threads than the requests a server processes at once for a
+    // pipelined connection,
+    Thread[] threads = new Thread[48];
+    for (int i = 0; i < threads.length; ++i) {
+      final int thread_num = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int n = 0; n < 100; ++n) {
+              boolean stats = ((n + thread_num) % 2) == 0;
+              MessageStream msg_out = new MessageStream(8);
+              msg_out.addMessage(stats ? "reportStats" : "report");
+              msg_out.closeMessage();
+
+              Iterator<Message> it =
+                        ((MessageStream) processor.process(msg_out)).iterator();
+              Message m = it.next();
+              assertReply(m);
+              if (stats) {
+                assertTrue(m.param(0) instanceof long[]);
+              }
+              else {
+                assertTrue(m.param(0) instanceof String);
+                assertEquals(7, m.count());
+              }
+              assertFalse(it.hasNext());
+            }
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+
+  /**
+   * Concurrent requests on a pipelined connection to a server using
+   * blocking IO.
+   */
+  @Test
+  public void blockingPipelined() throws Exception {
+    TCPInstanceAdminServer server = startServer(path, local_address, port, "blocking");
+    TCPNetworkConnector connector =
+                 new TCPNetworkConnector(new TCPConnectorValues(PASSWORD, null));
+    try {
+      ServiceAddress address = new ServiceAddress(local_address, port);
+      concurrentRequests(connector.connectInstanceAdmin(address));
+      assertTrue(hasReplyReader(address));
+    }
+    finally {
+      connector.stop();
+      stopServer(server);
+    }
+  }
+
+  /**
+   * Concurrent requests on a pipelined connection to a server using NIO.
+   */
+  @Test
+  public void nioPipelined() throws Exception {
+    TCPInstanceAdminServer server = startServer(path, local_address, port, "nio");
+    TCPNetworkConnector connector =
+                 new TCPNetworkConnector(new TCPConnectorValues(PASSWORD, null));
+    try {
+      ServiceAddress address = new ServiceAddress(local_address, port);
+      concurrentRequests(connector.connectInstanceAdmin(address));
+      assertTrue(hasReplyReader(address));
+    }
+    finally {
+      connector.stop();
+      stopServer(server);
+    }
+  }
+
+  /**
+   * A service that only speaks the original protocol closes the connection
+   * on the 'p' request.  The client reconnects with the original protocol,
+   * and doesn't ask to pipeline the address again.
+   */
+  @Test
+  public void legacyFallback() throws Exception {
+    final List<Character> destinations =
+                       Collections.synchronizedList(new ArrayList<Character>());
+    final List<Socket> accepted =
+                       Collections.synchronizedList(new ArrayList<Socket>());
+    final ServerSocket server_socket = new ServerSocket(port, 50, local_address);
+    Thread server = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            try (Socket s = server_socket.accept()) {
+              accepted.add(s);
+              serveLegacy(s, destinations);
+            }
+            catch (IOException e) {
+              if (server_socket.isClosed()) {
+                return;
+              }
+            }
+          }
+        }
+        catch (Throwable e) {
+          e.printStackTrace(System.err);
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+
+    TCPNetworkConnector connector =
+                 new TCPNetworkConnector(new TCPConnectorValues(PASSWORD, null));
+    try {
+      ServiceAddress address = new ServiceAddress(local_address, port);
+      MessageProcessor processor = connector.connectInstanceAdmin(address);
+      for (int i = 0; i < 3; ++i) {
+        MessageStream msg_out = new MessageStream(8);
+        msg_out.addMessage("report");
+        msg_out.closeMessage();
+        Message m = ((MessageStream) processor.process(msg_out)).iterator().next();
+        assertReply(m);
+        assertEquals(Long.valueOf(i), m.param(0));
+      }
+      assertFalse(hasReplyReader(address));
+    }
+    finally {
+      connector.stop();
+      // The connector keeps its connection open, so the sockets are closed
+      // here to end the server thread,
+      server_socket.close();
+      for (Socket s : accepted) {
+        s.close();
+      }
+      server.join();
+    }
+    assertEquals(Arrays.asList('p', 'a', 'a', 'a'), destinations);
+  }
+
+  /**
+   * Serves one connection with the original protocol.  An unknown
+   * destination closes the connection, and each admin request is replied
+   * to with the number of requests served on the connection.
+   */
+  private static void serveLegacy(Socket s, List<Character> destinations)
+                                                          throws IOException {
+    DataInputStream din =
+                new DataInputStream(new BufferedInputStream(s.getInputStream()));
+    DataOutputStream dout =
+           new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+    dout.writeLong(0x0123456789L);
+    dout.flush();
+    assertEquals(0x0123456789L, din.readLong());
+    short sz = din.readShort();
+    for (int i = 0; i < sz; ++i) {
+      din.readChar();
+    }
+
+    HashMap<String, String> message_dictionary = new HashMap<>(128);
+    long served = 0;
+    while (true) {
+      char destination = din.readChar();
+      MessageStream.readFrom(din, message_dictionary);
+      destinations.add(destination);
+      if (destination != 'a') {
+        return;
+      }
+      MessageStream msg_out = new MessageStream(8);
+      msg_out.addMessage("R");
+      msg_out.addLong(served);
+      msg_out.closeMessage();
+      msg_out.writeTo(dout, message_dictionary);
+      dout.flush();
+      ++served;
+    }
+  }
+
+}
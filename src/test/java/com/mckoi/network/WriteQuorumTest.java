@@ -0,0 +1,328 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.network;
+
+import com.mckoi.data.NodeReference;
+import com.mckoi.data.TreeLeaf;
+import com.mckoi.data.TreeWriteSequence;
+import com.mckoi.store.AreaWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests tree writes to a block with three replicas when some of the block
+ * servers fail the write.  The manager and block servers are simulated by
+ * a connector that answers the messages the tree system sends.
+ *
+ * @author Tobias Downer
+ */
+public class WriteQuorumTest {
+
+  private static final BlockId BLOCK_ID = new BlockId(0, 10);
+
+  private ServiceAddress manager;
+  private ServiceAddress[] block_servers;
+
+  /**
+   * The block servers that fail writes.
+   */
+  private final Set<ServiceAddress> failing =
+                      Collections.synchronizedSet(new HashSet<ServiceAddress>());
+
+  /**
+   * The block servers that were written to, and sent a rollback.
+   */
+  private final List<ServiceAddress> written =
+                  Collections.synchronizedList(new ArrayList<ServiceAddress>());
+  private final List<ServiceAddress> rolled_back =
+                  Collections.synchronizedList(new ArrayList<ServiceAddress>());
+
+  private NetworkConnector connector;
+  private ServiceStatusTracker tracker;
+  private NetworkTreeSystem tree_system;
+
+  @Before
+  public void setUp() throws Exception {
+    InetAddress local_address = InetAddress.getByName("127.0.0.1");
+    manager = new ServiceAddress(local_address, 3500);
+    block_servers = new ServiceAddress[] {
+      new ServiceAddress(local_address, 3501),
+      new ServiceAddress(local_address, 3502),
+      new ServiceAddress(local_address, 3503)
+    };
+    connector = new FakeConnector();
+    tracker = new ServiceStatusTracker(connector);
+    tree_system = new NetworkTreeSystem(connector,
+              new ServiceAddress[] { manager }, new HeapLocalNetworkCache(),
+              tracker);
+  }
+
+  @After
+  public void tearDown() {
+    tree_system.stop();
+    tracker.stop();
+  }
+
+  /**
+   * Writes a single leaf node.
+   */
+  private NodeReference[] writeLeaf() throws Exception {
+    TreeWriteSequence sequence = new TreeWriteSequence();
+    sequence.sequenceNodeWrite(new TestLeaf(new byte[] { 1, 2, 3, 4 }));
+    return tree_system.performTreeWrite(sequence);
+  }
+
+  /**
+   * Without a quorum, a write succeeds when all the replicas are written.
+   */
+  @Test
+  public void allReplicas() throws Exception {
+    NodeReference[] refs = writeLeaf();
+    assertEquals(1, refs.length);
+    assertEquals(3, written.size());
+    assertTrue(rolled_back.isEmpty());
+  }
+
+  /**
+   * Without a quorum, a write fails when any replica fails, and the writes
+   * to the other replicas are rolled back.
+   */
+  @Test
+  public void allReplicasFailure() throws Exception {
+    failing.add(block_servers[1]);
+    try {
+      writeLeaf();
+      fail("Write succeeded without all the replicas");
+    }
+    catch (NetworkWriteException e) {
+      // Expected,
+    }
+    assertFalse(rolled_back.isEmpty());
+    assertFalse(rolled_back.contains(block_servers[1]));
+    assertEquals(written.size(), rolled_back.size());
+  }
+
+  /**
+   * With a quorum of 2, a write succeeds when one replica fails, and the
+   * writes to the other replicas are kept.
+   */
+  @Test
+  public void quorumSuccess() throws Exception {
+    tree_system.setWriteQuorum(2);
+    failing.add(block_servers[2]);
+    NodeReference[] refs = writeLeaf();
+    assertEquals(1, refs.length);
+    assertEquals(2, written.size());
+    assertFalse(written.contains(block_servers[2]));
+    assertTrue(rolled_back.isEmpty());
+  }
+
+  /**
+   * With a quorum of 2, a write fails when two replicas fail, and the write
+   * to the other replica is rolled back.
+   */
+  @Test
+  public void quorumFailure() throws Exception {
+    tree_system.setWriteQuorum(2);
+    failing.add(block_servers[0]);
+    failing.add(block_servers[2]);
+    try {
+      writeLeaf();
+      fail("Write succeeded without the quorum");
+    }
+    catch (NetworkWriteException e) {
+      // Expected,
+    }
+    assertFalse(rolled_back.isEmpty());
+    for (ServiceAddress address : rolled_back) {
+      assertEquals(block_servers[1], address);
+    }
+    assertEquals(written.size(), rolled_back.size());
+  }
+
+  /**
+   * A write to a stopped tree system is processed on the calling thread.
+   */
+  @Test
+  public void stoppedWrite() throws Exception {
+    tree_system.stop();
+    writeLeaf();
+    assertEquals(3, written.size());
+  }
+
+  // ----- Inner classes -----
+
+  /**
+   * A leaf node on the heap.
+   */
+  private static class TestLeaf extends TreeLeaf {
+
+    private final byte[] data;
+
+    TestLeaf(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public NodeReference getReference() {
+      return NodeReference.createInMemoryNode(-1);
+    }
+
+    @Override
+    public int getSize() {
+      return data.length;
+    }
+
+    @Override
+    public int getCapacity() {
+      return data.length;
+    }
+
+    @Override
+    public void get(int position, byte[] buf, int off, int len) {
+      System.arraycopy(data, position, buf, off, len);
+    }
+
+    @Override
+    public byte get(int position) {
+      return data[position];
+    }
+
+    @Override
+    public void writeDataTo(AreaWriter area) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shift(int position, int offset) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void put(int position, byte[] buf, int off, int len) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setSize(int size) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getHeapSizeEstimate() {
+      return data.length + 64;
+    }
+
+  }
+
+  /**
+   * A connector that answers as a manager server that allocates all the
+   * nodes in one block with three replicas, and as the block servers of
+   * the replicas.
+   */
+  private class FakeConnector implements NetworkConnector {
+
+    private int data_id = 0;
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public MessageProcessor connectInstanceAdmin(ServiceAddress address) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MessageProcessor connectRootServer(ServiceAddress address) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MessageProcessor connectManagerServer(ServiceAddress address) {
+      return new MessageProcessor() {
+        @Override
+        public ProcessResult process(MessageStream msg_stream) {
+          MessageStream msg_out = new MessageStream(16);
+          for (Message m : msg_stream) {
+            String cmd = m.getName();
+            msg_out.addMessage("R");
+            if (cmd.equals("allocateNode")) {
+              synchronized (FakeConnector.this) {
+                msg_out.addDataAddress(new DataAddress(BLOCK_ID, data_id));
+                ++data_id;
+              }
+            }
+            else if (cmd.equals("getServerList")) {
+              msg_out.addInteger(block_servers.length);
+              for (ServiceAddress block_server : block_servers) {
+                msg_out.addServiceAddress(block_server);
+                msg_out.addString("UP");
+              }
+            }
+            else {
+              msg_out.addInteger(1);
+            }
+            msg_out.closeMessage();
+          }
+          return msg_out;
+        }
+      };
+    }
+
+    @Override
+    public MessageProcessor connectBlockServer(final ServiceAddress address) {
+      return new MessageProcessor() {
+        @Override
+        public ProcessResult process(MessageStream msg_stream) {
+          MessageStream msg_out = new MessageStream(16);
+          for (Message m : msg_stream) {
+            String cmd = m.getName();
+            if (cmd.equals("writeToBlock") && failing.contains(address)) {
+              msg_out.addMessage("E");
+              msg_out.addExternalThrowable(new ExternalThrowable(
+                                 new RuntimeException("Write failed")));
+              msg_out.closeMessage();
+              continue;
+            }
+            if (cmd.equals("writeToBlock")) {
+              written.add(address);
+            }
+            else if (cmd.equals("rollbackNodes")) {
+              rolled_back.add(address);
+            }
+            msg_out.addMessage("R");
+            msg_out.addInteger(1);
+            msg_out.closeMessage();
+          }
+          return msg_out;
+        }
+      };
+    }
+
+  }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.sdb;
+
+import com.mckoi.data.Iterator64Bit;
+import com.mckoi.data.OrderedList64Bit;
+import com.mckoi.data.StoreBackedTreeSystem;
+import com.mckoi.store.HeapStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the transaction logs an SDBTable writes for a commit, and the merge
+ * of the row changes of one table version into another.  The transactions
+ * are made directly on a tree system in memory.
+ *
+ * @author Tobias Downer
+ */
+public class SDBTableTest {
+
+  private static final String TABLE = "test";
+  private static final String COLUMN = "value";
+
+  private StoreBackedTreeSystem tree_system;
+
+  @Before
+  public void setUp() throws IOException {
+    tree_system = new StoreBackedTreeSystem(new HeapStore(),
+                                  16, 4010, 14 * 1024 * 1024, 2 * 1024 * 1024);
+    tree_system.create();
+
+    // A table with 20 rows, 'b0' to 'b19',
+    SDBTransaction t = createTransaction();
+    t.createTable(TABLE);
+    SDBTable table = t.getTable(TABLE);
+    table.addColumn(COLUMN);
+    table.addIndex(COLUMN);
+    for (int i = 0; i < 20; ++i) {
+      insertRow(table, "b" + i);
+    }
+    table.prepareForCommit();
+    tree_system.commit(t.getKeyObjectTransaction());
+  }
+
+  private SDBTransaction createTransaction() {
+    return new SDBTransaction(null, null, tree_system.createTransaction());
+  }
+
+  private static void insertRow(SDBTable table, String value) {
+    table.insert();
+    table.setValue(COLUMN, value);
+    table.complete();
+  }
+
+  /**
+   * Returns the row with the given value.
+   */
+  private static SDBRow findRow(SDBTable table, String value) {
+    for (SDBRow row : table) {
+      if (value.equals(row.getValue(COLUMN))) {
+        return row;
+      }
+    }
+    throw new AssertionError("Row not found: " + value);
+  }
+
+  private static List<Long> toList(OrderedList64Bit list) {
+    List<Long> values = new ArrayList<>();
+    Iterator64Bit i = list.iterator();
+    while (i.hasNext()) {
+      values.add(i.next());
+    }
+    return values;
+  }
+
+  /**
+   * Checks the table has the rows with the given values, in ascending
+   * rowid order and in the index.
+   */
+  private static void assertRows(SDBTable table, TreeSet<String> expected) {
+    assertEquals(expected.size(), table.getRowCount());
+    TreeSet<String> values = new TreeSet<>();
+    long last_rowid = -1;
+    for (SDBRow row : table) {
+      assertTrue(row.getRowIdValue() > last_rowid);
+      last_rowid = row.getRowIdValue();
+      values.add(row.getValue(COLUMN));
+    }
+    assertEquals(expected, values);
+    List<String> index_values = new ArrayList<>();
+    for (SDBRow row : table.getIndex(COLUMN)) {
+      index_values.add(row.getValue(COLUMN));
+    }
+    assertEquals(new ArrayList<>(expected), index_values);
+  }
+
+  /**
+   * The logs written by 'prepareForCommit' have the rows inserted and the
+   * rows deleted, without the rows that were both inserted and deleted in
+   * the transaction.
+   */
+  @Test
+  public void prepareForCommit() {
+    SDBTransaction t = createTransaction();
+    SDBTable table = t.getTable(TABLE);
+    List<Long> expected_adds = new ArrayList<>();
+    List<Long> expected_deletes = new ArrayList<>();
+
+    // Deletes of committed rows, not in order,
+    for (int i : new int[] { 7, 2, 15 }) {
+      SDBRow row = findRow(table, "b" + i);
+      expected_deletes.add(row.getRowIdValue());
+      table.delete(row);
+    }
+    // Inserts, some of which are then deleted or updated,
+    for (int i = 0; i < 10; ++i) {
+      insertRow(table, "n" + i);
+    }
+    for (int i : new int[] { 8, 1, 4 }) {
+      table.delete(findRow(table, "n" + i));
+    }
+    table.update(findRow(table, "n3"));
+    table.setValue(COLUMN, "u3");
+    table.complete();
+    // An update of a committed row,
+    SDBRow row = findRow(table, "b11");
+    expected_deletes.add(row.getRowIdValue());
+    table.update(row);
+    table.setValue(COLUMN, "u11");
+    table.complete();
+
+    for (String v : new String[] {
+                        "n0", "n2", "n5", "n6", "n7", "n9", "u3", "u11" }) {
+      expected_adds.add(findRow(table, v).getRowIdValue());
+    }
+    Collections.sort(expected_adds);
+    Collections.sort(expected_deletes);
+
+    table.prepareForCommit();
+    assertEquals(expected_adds, toList(table.getAddSet()));
+    assertEquals(expected_deletes, toList(table.getDeleteSet()));
+
+    // A transaction with no row changes has empty logs,
+    SDBTransaction t2 = createTransaction();
+    SDBTable table2 = t2.getTable(TABLE);
+    table2.prepareForCommit();
+    assertEquals(0, table2.getAddSet().size());
+    assertEquals(0, table2.getDeleteSet().size());
+  }
+
+  /**
+   * The row changes of a transaction are merged into a table version that
+   * has other changes made since the base of the transaction.
+   */
+  @Test
+  public void mergeHistoricChanges() {
+    // The transaction being merged,
+    SDBTransaction from = createTransaction();
+    SDBTable from_table = from.getTable(TABLE);
+    for (int i = 0; i < 5; ++i) {
+      from_table.delete(findRow(from_table, "b" + (i * 3)));
+      insertRow(from_table, "f" + i);
+    }
+    from_table.prepareForCommit();
+
+    // The latest version of the table, with other inserts and a delete,
+    SDBTransaction dest = createTransaction();
+    SDBTable dest_table = dest.getTable(TABLE);
+    for (int i = 0; i < 3; ++i) {
+      insertRow(dest_table, "d" + i);
+    }
+    dest_table.delete(findRow(dest_table, "b1"));
+    dest_table.prepareForCommit();
+
+    dest_table.mergeFrom(from_table, false, true);
+
+    TreeSet<String> expected = new TreeSet<>();
+    for (int i = 0; i < 20; ++i) {
+      if (i != 1 && (i % 3 != 0 || i / 3 >= 5)) {
+        expected.add("b" + i);
+      }
+    }
+    for (int i = 0; i < 5; ++i) {
+      expected.add("f" + i);
+    }
+    for (int i = 0; i < 3; ++i) {
+      expected.add("d" + i);
+    }
+    assertRows(dest_table, expected);
+
+    // The logs of the merged table have all the changes,
+    assertEquals(8, dest_table.getAddSet().size());
+    assertEquals(6, dest_table.getDeleteSet().size());
+  }
+
+  /**
+   * A merge of a transaction that deleted a row that is no longer in the
+   * table generates an exception.
+   */
+  @Test
+  public void mergeDeletedRow() {
+    SDBTransaction from = createTransaction();
+    SDBTable from_table = from.getTable(TABLE);
+    from_table.delete(findRow(from_table, "b4"));
+    from_table.prepareForCommit();
+
+    SDBTransaction dest = createTransaction();
+    SDBTable dest_table = dest.getTable(TABLE);
+    dest_table.delete(findRow(dest_table, "b4"));
+    dest_table.prepareForCommit();
+
+    try {
+      dest_table.mergeFrom(from_table, false, true);
+      fail("Merged a delete of a deleted row");
+    }
+    catch (RuntimeException e) {
+      // Expected,
+    }
+  }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import com.mckoi.util.LongList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that space held by the allocation arenas is never recorded as
+ * allocated by a check point.  After a crash the store is recovered to its
+ * last check point, and every allocated area must be an area that was live
+ * when the check point was taken.
+ *
+ * @author Tobias Downer
+ */
+public class AllocationArenaTest {
+
+  /**
+   * The marker written at the start of a live area.
+   */
+  private static final long LIVE = 0x04C4956454C4956L;
+
+  /**
+   * The marker written over a live area before it is deleted.
+   */
+  private static final long DEAD = 0x0444541444445414L;
+
+  private File path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    FuzzyCheckPointTest.deleteDirectory(path);
+  }
+
+  /**
+   * Creates a small area that starts with the live marker.
+   */
+  private static long createLiveArea(Store store, int size)
+                                                          throws IOException {
+    AreaWriter writer = store.createArea(size);
+    writer.putLong(LIVE);
+    for (int i = 8; i < size; ++i) {
+      writer.put((byte) 0);
+    }
+    writer.finish();
+    return writer.getID();
+  }
+
+  /**
+   * Marks an area as dead and deletes it.
+   */
+  private static void deleteLiveArea(Store store, long id)
+                                                          throws IOException {
+    MutableArea area = store.getMutableArea(id);
+    area.putLong(DEAD);
+    area.checkOut();
+    store.deleteArea(id);
+  }
+
+  /**
+   * Reopens the store after a crash, and checks that every allocated area
+   * starts with the live marker.  Returns the set of allocated areas.
+   */
+  private HashSet<Long> checkRecoveredAreas() throws IOException {
+    LoggingBufferManager buffer_manager =
+                          FuzzyCheckPointTest.startBufferManager(path, true);
+    JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+    HashSet<Long> allocated = new HashSet<>();
+    try {
+      LongList areas = store.getAllAreas();
+      for (int i = 0; i < areas.size(); ++i) {
+        long id = areas.get(i);
+        assertEquals("Leaked area " + id, LIVE, store.getArea(id).getLong());
+        allocated.add(id);
+      }
+    }
+    finally {
+      store.close();
+      buffer_manager.stop();
+    }
+    return allocated;
+  }
+
+  /**
+   * Areas deleted through an arena and the chunk reserved by the arena are
+   * free after the check point is recovered.
+   */
+  @Test
+  public void checkPointFreesArenaSpace() throws Exception {
+    LoggingBufferManager buffer_manager =
+                          FuzzyCheckPointTest.startBufferManager(path, true);
+    JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    HashSet<Long> live = new HashSet<>();
+    store.lockForWrite();
+    try {
+      ArrayList<Long> created = new ArrayList<>();
+      for (int i = 0; i < 500; ++i) {
+        created.add(createLiveArea(store, 24 + ((i % 20) * 8)));
+      }
+      for (int i = 0; i < created.size(); ++i) {
+        if ((i % 3) == 0) {
+          deleteLiveArea(store, created.get(i));
+        }
+        else {
+          live.add(created.get(i));
+        }
+      }
+    }
+    finally {
+      store.unlockForWrite();
+    }
+    store.checkPoint();
+
+    // Crash,
+    buffer_manager.stop();
+
+    assertEquals(live, checkRecoveredAreas());
+  }
+
+  /**
+   * Deletes the area and checks the delete fails.
+   */
+  private static void assertDeleteFails(Store store, long id) {
+    try {
+      store.deleteArea(id);
+      fail("Area " + id + " deleted twice");
+    }
+    catch (IOException e) {
+      // Expected,
+    }
+  }
+
+  /**
+   * Deleting an area twice fails when the first delete is held by an arena,
+   * from the same thread and from another thread, and after the arena
+   * released the area to the store.  An area reused by an allocation can
+   * be deleted again.
+   */
+  @Test
+  public void doubleDeleteDetected() throws Exception {
+    LoggingBufferManager buffer_manager =
+                          FuzzyCheckPointTest.startBufferManager(path, true);
+    final JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+    store.lockForWrite();
+    try {
+      long id1 = createLiveArea(store, 64);
+      createLiveArea(store, 64);
+      store.deleteArea(id1);
+      assertDeleteFails(store, id1);
+
+      final long id2 = createLiveArea(store, 64);
+      assertEquals(id1, id2);
+      store.deleteArea(id2);
+      final AtomicReference<Throwable> error = new AtomicReference<>();
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            assertDeleteFails(store, id2);
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      t.start();
+      t.join();
+      assertNull(error.get());
+    }
+    finally {
+      store.unlockForWrite();
+    }
+
+    long id3;
+    store.lockForWrite();
+    try {
+      id3 = createLiveArea(store, 96);
+      store.deleteArea(id3);
+    }
+    finally {
+      store.unlockForWrite();
+    }
+    // The check point frees the deleted areas in the store,
+    store.checkPoint();
+    store.lockForWrite();
+    try {
+      assertDeleteFails(store, id3);
+    }
+    finally {
+      store.unlockForWrite();
+    }
+    store.close();
+    buffer_manager.stop();
+  }
+
+  /**
+   * Check points taken while writers allocate and delete small areas do not
+   * record space held by an arena as allocated.
+   */
+  @Test
+  public void checkPointWhileAllocating() throws Exception {
+    final LoggingBufferManager buffer_manager =
+                          FuzzyCheckPointTest.startBufferManager(path, true);
+    final JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] writers = new Thread[4];
+    for (int i = 0; i < writers.length; ++i) {
+      final Random r = new Random(i);
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            ArrayList<Long> created = new ArrayList<>();
+            while (!stop.get()) {
+              store.lockForWrite();
+              try {
+                if (created.size() < 200 || r.nextInt(2) == 0) {
+                  created.add(createLiveArea(store, 8 + r.nextInt(2000)));
+                }
+                else {
+                  int n = r.nextInt(created.size());
+                  deleteLiveArea(store, created.remove(n));
+                }
+              }
+              finally {
+                store.unlockForWrite();
+              }
+            }
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      writers[i].start();
+    }
+
+    for (int i = 0; i < 50; ++i) {
+      Thread.sleep(5);
+      store.checkPoint();
+    }
+    stop.set(true);
+    for (Thread t : writers) {
+      t.join();
+    }
+    assertNull(error.get());
+
+    // Crash,
+    buffer_manager.stop();
+
+    checkRecoveredAreas();
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import com.mckoi.debug.DefaultDebugLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a store recovers to the state of its last fuzzy check point
+ * after a crash.  A crash is simulated by stopping the buffer manager without
+ * closing the store, which leaves the journals to be recovered up to their
+ * last check point when the store is opened again.
+ *
+ * @author Tobias Downer
+ */
+public class FuzzyCheckPointTest {
+
+  /**
+   * The page size and page count are small so that pages are flushed to the
+   * journal between check points.
+   */
+  private static final int PAGE_SIZE = 1024;
+  private static final int MAX_PAGES = 32;
+
+  private File path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    deleteDirectory(path);
+  }
+
+  static void deleteDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) {
+          deleteDirectory(f);
+        }
+        else {
+          f.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  static LoggingBufferManager startBufferManager(File path, boolean fuzzy)
+                                                          throws IOException {
+    DefaultDebugLogger logger = new DefaultDebugLogger();
+    logger.setDebugLevel(255);
+    LoggingBufferManager buffer_manager = new LoggingBufferManager(
+              path, path, false, MAX_PAGES, PAGE_SIZE, "koi",
+              16 * 1024 * 1024, logger, true);
+    buffer_manager.setFuzzyCheckPoint(fuzzy);
+    buffer_manager.start();
+    return buffer_manager;
+  }
+
+  /**
+   * Creates an area filled with the given value.
+   */
+  private static long createArea(Store store, int size, byte value)
+                                                          throws IOException {
+    AreaWriter writer = store.createArea(size);
+    for (int i = 0; i < size; ++i) {
+      writer.put(value);
+    }
+    writer.finish();
+    return writer.getID();
+  }
+
+  /**
+   * Fills the first 'size' bytes of an existing area with the given value.
+   */
+  private static void fillArea(Store store, long id, int size, byte value)
+                                                          throws IOException {
+    MutableArea area = store.getMutableArea(id);
+    for (int i = 0; i < size; ++i) {
+      area.put(value);
+    }
+    area.checkOut();
+  }
+
+  private static void assertAreaFilled(Store store, long id, int size,
+                                       byte value) throws IOException {
+    Area area = store.getArea(id);
+    for (int i = 0; i < size; ++i) {
+      assertEquals("Area " + id + " at " + i, value, area.get());
+    }
+  }
+
+  /**
+   * Changes made after the last check point are lost in a crash, and the
+   * changes before it are recovered.
+   */
+  @Test
+  public void crashRecoversLastCheckPoint() throws Exception {
+    LoggingBufferManager buffer_manager = startBufferManager(path, true);
+    JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    long[] areas = new long[200];
+    store.lockForWrite();
+    try {
+      for (int i = 0; i < areas.length; ++i) {
+        areas[i] = createArea(store, 100, (byte) i);
+      }
+    }
+    finally {
+      store.unlockForWrite();
+    }
+    store.checkPoint();
+
+    // Changes that are not check pointed,
+    store.lockForWrite();
+    try {
+      for (int i = 0; i < areas.length; ++i) {
+        fillArea(store, areas[i], 100, (byte) (i + 1));
+      }
+      for (int i = 0; i < 100; ++i) {
+        createArea(store, 300, (byte) 0x07F);
+      }
+    }
+    finally {
+      store.unlockForWrite();
+    }
+
+    // Crash,
+    buffer_manager.stop();
+
+    buffer_manager = startBufferManager(path, true);
+    store = new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+    assertFalse(store.lastCloseClean());
+    for (int i = 0; i < areas.length; ++i) {
+      assertAreaFilled(store, areas[i], 100, (byte) i);
+    }
+    assertEquals(areas.length, store.getAllAreas().size());
+    store.close();
+    buffer_manager.stop();
+  }
+
+  /**
+   * Check points taken while other threads write never record half of a
+   * write.  Each writer changes two areas on different pages to the same
+   * value under one write lock, and after the crash the two areas of each
+   * writer must still be equal.
+   */
+  @Test
+  public void checkPointWhileWriting() throws Exception {
+    final LoggingBufferManager buffer_manager =
+                                            startBufferManager(path, true);
+    final JournalledFileStore store =
+                          new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    final int writer_count = 4;
+    final long[][] areas = new long[writer_count][2];
+    store.lockForWrite();
+    try {
+      for (int i = 0; i < writer_count; ++i) {
+        areas[i][0] = createArea(store, 64, (byte) 0);
+        // Keeps the areas of a writer on different pages
+        createArea(store, PAGE_SIZE * 3, (byte) 0);
+        areas[i][1] = createArea(store, 64, (byte) 0);
+      }
+    }
+    finally {
+      store.unlockForWrite();
+    }
+    store.checkPoint();
+
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] writers = new Thread[writer_count];
+    for (int i = 0; i < writer_count; ++i) {
+      final long[] writer_areas = areas[i];
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            byte value = 0;
+            while (!stop.get()) {
+              ++value;
+              store.lockForWrite();
+              try {
+                fillArea(store, writer_areas[0], 64, value);
+                fillArea(store, writer_areas[1], 64, value);
+              }
+              finally {
+                store.unlockForWrite();
+              }
+            }
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      writers[i].start();
+    }
+
+    for (int i = 0; i < 40; ++i) {
+      Thread.sleep(5);
+      store.checkPoint();
+    }
+    stop.set(true);
+    for (Thread t : writers) {
+      t.join();
+    }
+    assertNull(error.get());
+
+    // Crash,
+    buffer_manager.stop();
+
+    LoggingBufferManager buffer_manager2 = startBufferManager(path, true);
+    JournalledFileStore store2 =
+                        new JournalledFileStore("data", buffer_manager2, false);
+    store2.open();
+    for (int i = 0; i < writer_count; ++i) {
+      byte value = store2.getArea(areas[i][0]).get();
+      assertAreaFilled(store2, areas[i][0], 64, value);
+      assertAreaFilled(store2, areas[i][1], 64, value);
+    }
+    store2.close();
+    buffer_manager2.stop();
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests MappedStoreDataAccessor against a byte array, with a small segment
+ * size so size changes cross segment boundaries.
+ *
+ * @author Tobias Downer
+ */
+public class MappedStoreDataAccessorTest {
+
+  private static final int SEGMENT_SIZE = 64;
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("mckoi_test", ".koi");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  /**
+   * Asserts the content of the accessor is the first 'size' bytes of the
+   * expected array.
+   */
+  private static void assertContent(StoreDataAccessor accessor,
+                                    byte[] expected, int size)
+                                                          throws IOException {
+    assertEquals(size, accessor.getSize());
+    byte[] buf = new byte[size + 16];
+    accessor.read(0, buf, 0, buf.length);
+    assertTrue(Arrays.equals(Arrays.copyOf(expected, size),
+                             Arrays.copyOf(buf, size)));
+  }
+
+  /**
+   * Every size from 0 up to several segments, and back down.
+   */
+  @Test
+  public void everySize() throws IOException {
+    MappedStoreDataAccessor accessor =
+                               new MappedStoreDataAccessor(file, SEGMENT_SIZE);
+    accessor.open(false);
+    byte[] expected = new byte[SEGMENT_SIZE * 4];
+    for (int size = 1; size <= expected.length; ++size) {
+      accessor.setSize(size);
+      expected[size - 1] = (byte) size;
+      accessor.write(size - 1, expected, size - 1, 1);
+      assertContent(accessor, expected, size);
+    }
+    for (int size = expected.length - 1; size >= 0; --size) {
+      accessor.setSize(size);
+      assertEquals(size, accessor.getSize());
+      assertContent(accessor, expected, size);
+    }
+    accessor.close();
+    assertEquals(0, file.length());
+  }
+
+  /**
+   * Random size changes and writes.  Bytes inside the data area again after
+   * the size was reduced are zero, and the file has the size of the data
+   * area after it's closed.
+   */
+  @Test
+  public void randomSizeChanges() throws IOException {
+    MappedStoreDataAccessor accessor =
+                               new MappedStoreDataAccessor(file, SEGMENT_SIZE);
+    accessor.open(false);
+    Random r = new Random(7);
+    byte[] expected = new byte[SEGMENT_SIZE * 6];
+    int size = 0;
+    for (int i = 0; i < 500; ++i) {
+      int new_size = r.nextInt(expected.length + 1);
+      accessor.setSize(new_size);
+      if (new_size < size) {
+        Arrays.fill(expected, new_size, size, (byte) 0);
+      }
+      size = new_size;
+      if (size > 0) {
+        int pos = r.nextInt(size);
+        int len = r.nextInt(size - pos + 1);
+        byte[] buf = new byte[len];
+        r.nextBytes(buf);
+        accessor.write(pos, buf, 0, len);
+        System.arraycopy(buf, 0, expected, pos, len);
+      }
+      assertContent(accessor, expected, size);
+    }
+    accessor.close();
+    assertEquals(size, file.length());
+
+    accessor = new MappedStoreDataAccessor(file, SEGMENT_SIZE);
+    accessor.open(true);
+    assertContent(accessor, expected, size);
+    accessor.close();
+  }
+
+}
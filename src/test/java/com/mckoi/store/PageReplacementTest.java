@@ -0,0 +1,157 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import com.mckoi.debug.DefaultDebugLogger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a scan over a resource doesn't displace the pages of the
+ * working set from the buffer manager cache.  Page reads that miss the
+ * cache are counted by the store data accessor of the resource.
+ *
+ * @author Tobias Downer
+ */
+public class PageReplacementTest {
+
+  private static final int PAGE_SIZE = 1024;
+  private static final int MAX_PAGES = 64;
+  private static final int RESOURCE_PAGES = 2048;
+
+  private File path;
+
+  /**
+   * The number of reads from the resource data.
+   */
+  private final AtomicInteger read_count = new AtomicInteger(0);
+
+  private LoggingBufferManager buffer_manager;
+  private JournalledResource resource;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+
+    byte[] content = new byte[RESOURCE_PAGES * PAGE_SIZE];
+    for (int i = 0; i < content.length; i += PAGE_SIZE) {
+      content[i] = (byte) (i / PAGE_SIZE);
+    }
+    Files.write(new File(path, "data").toPath(), content);
+
+    DefaultDebugLogger logger = new DefaultDebugLogger();
+    logger.setDebugLevel(255);
+    buffer_manager = new LoggingBufferManager(path, false, MAX_PAGES, PAGE_SIZE,
+        new LoggingBufferManager.StoreDataAccessorFactory() {
+      @Override
+      public StoreDataAccessor createStoreDataAccessor(String resource_name) {
+        return new CountingAccessor(new File(path, resource_name));
+      }
+    }, logger, true);
+    buffer_manager.start();
+    resource = buffer_manager.createResource("data");
+    resource.open(false);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    resource.close();
+    buffer_manager.stop();
+    FuzzyCheckPointTest.deleteDirectory(path);
+  }
+
+  /**
+   * Reads the first byte of each page in the range and checks it.
+   */
+  private void readPages(int start, int end) throws IOException {
+    for (int i = start; i < end; ++i) {
+      assertEquals(i & 0x0FF,
+               buffer_manager.readByteFrom(resource, (long) i * PAGE_SIZE));
+    }
+  }
+
+  /**
+   * A hot set referenced twice stays in the cache through a scan of many
+   * times the cache size that references each page once.
+   */
+  @Test
+  public void scanKeepsHotSet() throws IOException {
+    final int hot_pages = MAX_PAGES / 4;
+    readPages(0, hot_pages);
+    readPages(0, hot_pages);
+
+    // Scan the rest of the resource, which is many times the cache size,
+    readPages(hot_pages, RESOURCE_PAGES);
+
+    read_count.set(0);
+    readPages(0, hot_pages);
+    assertEquals(0, read_count.get());
+  }
+
+  /**
+   * A new hot set that is referenced repeatedly replaces the old hot set in
+   * the cache.
+   */
+  @Test
+  public void newHotSetReplacesOld() throws IOException {
+    final int hot_pages = (MAX_PAGES * 3) / 4;
+    readPages(0, hot_pages);
+    readPages(0, hot_pages);
+    for (int i = 0; i < 4; ++i) {
+      readPages(hot_pages, hot_pages * 2);
+    }
+
+    read_count.set(0);
+    readPages(hot_pages, hot_pages * 2);
+    // The new hot set is in the cache,
+    assertTrue(read_count.get() < hot_pages / 4);
+    read_count.set(0);
+    readPages(0, hot_pages);
+    // and the old hot set was evicted,
+    assertTrue(read_count.get() > (hot_pages * 3) / 4);
+  }
+
+  // ----- Inner classes -----
+
+  /**
+   * A file accessor that counts the reads of its data.
+   */
+  private class CountingAccessor extends IOStoreDataAccessor {
+
+    CountingAccessor(File file) {
+      super(file);
+    }
+
+    @Override
+    public void read(long position, byte[] buf, int off, int len)
+                                                          throws IOException {
+      read_count.incrementAndGet();
+      super.read(position, buf, off, len);
+    }
+
+  }
+
+}
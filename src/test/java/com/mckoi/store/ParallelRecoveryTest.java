@@ -0,0 +1,276 @@
+/*
+ * Mckoi Software ( http://www.mckoi.com/ )
+ * Copyright (C) 2000 - 2015  Diehl and Associates, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mckoi.store;
+
+import com.mckoi.debug.DefaultDebugLogger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a parallel journal recovery produces the same resources as the
+ * serial recovery of the same journals.  A crash is simulated by copying the
+ * journal path after a check point, before the journals are persisted.  The
+ * copies are then recovered by a buffer manager started with one recovery
+ * thread and with several.
+ *
+ * @author Tobias Downer
+ */
+public class ParallelRecoveryTest {
+
+  private static final int PAGE_SIZE = 1024;
+
+  private File path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = File.createTempFile("mckoi_test", "");
+    path.delete();
+    path.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    FuzzyCheckPointTest.deleteDirectory(path);
+  }
+
+  private static LoggingBufferManager startBufferManager(File path,
+                                  int recovery_threads) throws IOException {
+    DefaultDebugLogger logger = new DefaultDebugLogger();
+    logger.setDebugLevel(255);
+    LoggingBufferManager buffer_manager = new LoggingBufferManager(
+              path, path, false, 256, PAGE_SIZE, "koi",
+              16 * 1024 * 1024, logger, true);
+    buffer_manager.setRecoveryThreadCount(recovery_threads);
+    buffer_manager.start();
+    return buffer_manager;
+  }
+
+  /**
+   * Copies the files in a directory, except the lock file.
+   */
+  private static void copyDirectory(File src, File dst) throws IOException {
+    dst.mkdir();
+    for (File f : src.listFiles()) {
+      if (!f.getName().equals("lock.m")) {
+        Files.copy(f.toPath(), new File(dst, f.getName()).toPath());
+      }
+    }
+  }
+
+  /**
+   * Asserts the two directories contain the same files with the same
+   * content, except the lock file.
+   */
+  private static void assertSameFiles(File dir1, File dir2)
+                                                          throws IOException {
+    String[] names1 = dir1.list();
+    String[] names2 = dir2.list();
+    Arrays.sort(names1);
+    Arrays.sort(names2);
+    assertEquals(Arrays.asList(names1), Arrays.asList(names2));
+    for (String name : names1) {
+      if (!name.equals("lock.m")) {
+        byte[] b1 = Files.readAllBytes(new File(dir1, name).toPath());
+        byte[] b2 = Files.readAllBytes(new File(dir2, name).toPath());
+        assertTrue("File " + name + " differs", Arrays.equals(b1, b2));
+      }
+    }
+  }
+
+  /**
+   * Writes the given value over a random range of each area.
+   */
+  private static void modifyAreas(Store store, long[] areas, Random r)
+                                                          throws IOException {
+    for (long id : areas) {
+      MutableArea area = store.getMutableArea(id);
+      int size = area.capacity();
+      int pos = r.nextInt(size);
+      int len = Math.min(size - pos, r.nextInt(PAGE_SIZE * 2));
+      area.position(pos);
+      for (int i = 0; i < len; ++i) {
+        area.put((byte) r.nextInt());
+      }
+      area.checkOut();
+    }
+  }
+
+  /**
+   * Creates areas of random sizes.  Some areas span several pages.
+   */
+  private static long[] createAreas(Store store, int count, Random r)
+                                                          throws IOException {
+    long[] areas = new long[count];
+    for (int i = 0; i < count; ++i) {
+      int size = 16 + r.nextInt(PAGE_SIZE * 3);
+      AreaWriter writer = store.createArea(size);
+      for (int n = 0; n < size; ++n) {
+        writer.put((byte) n);
+      }
+      writer.finish();
+      areas[i] = writer.getID();
+    }
+    return areas;
+  }
+
+  /**
+   * The same journal recovered serially and in parallel produces the same
+   * files, and the same files as a clean stop.
+   */
+  @Test
+  public void parallelMatchesSerial() throws Exception {
+    File data_path = new File(path, "data");
+    data_path.mkdir();
+    LoggingBufferManager buffer_manager = startBufferManager(data_path, 1);
+
+    JournalledFileStore store1 =
+                      new JournalledFileStore("data1", buffer_manager, false);
+    JournalledFileStore store2 =
+                      new JournalledFileStore("data2", buffer_manager, false);
+    store1.open();
+    store2.open();
+
+    // Several check points that change the same pages many times, in two
+    // resources.
+    Random r = new Random(20);
+    long[] areas1 = createAreas(store1, 12, r);
+    long[] areas2 = createAreas(store2, 12, r);
+    store1.checkPoint();
+    for (int i = 0; i < 6; ++i) {
+      modifyAreas(store1, areas1, r);
+      modifyAreas(store2, areas2, r);
+      if ((i % 2) == 0) {
+        createAreas(store1, 2, r);
+      }
+      store1.checkPoint();
+    }
+
+    // The journal path is copied while the check pointed changes are only
+    // in the journal,
+    File serial_path = new File(path, "serial");
+    File parallel_path = new File(path, "parallel");
+    copyDirectory(data_path, serial_path);
+    copyDirectory(data_path, parallel_path);
+
+    // Changes after the last check point are not recovered,
+    modifyAreas(store1, areas1, r);
+    buffer_manager.stop();
+
+    LoggingBufferManager serial_manager = startBufferManager(serial_path, 1);
+    serial_manager.stop();
+    LoggingBufferManager parallel_manager =
+                                      startBufferManager(parallel_path, 4);
+    parallel_manager.stop();
+
+    assertSameFiles(serial_path, parallel_path);
+    assertSameFiles(data_path, parallel_path);
+  }
+
+  /**
+   * Size changes that shrink a resource are recovered in parallel the same
+   * as serially.
+   */
+  @Test
+  public void parallelSizeChanges() throws Exception {
+    File data_path = new File(path, "data");
+    data_path.mkdir();
+    LoggingBufferManager buffer_manager = startBufferManager(data_path, 1);
+    JournalledFileStore store =
+                      new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+    createAreas(store, 4, new Random(4));
+
+    JournalledResource resource = buffer_manager.createResource("sized");
+    resource.open(false);
+    byte[] buf = new byte[PAGE_SIZE];
+    Arrays.fill(buf, (byte) 7);
+    resource.setSize(PAGE_SIZE * 4);
+    resource.write(3, buf, 0, PAGE_SIZE);
+    resource.setSize(PAGE_SIZE * 2);
+    resource.write(1, buf, 0, PAGE_SIZE);
+    resource.setSize(PAGE_SIZE * 3);
+    store.checkPoint();
+
+    File serial_path = new File(path, "serial");
+    File parallel_path = new File(path, "parallel");
+    copyDirectory(data_path, serial_path);
+    copyDirectory(data_path, parallel_path);
+    store.close();
+    buffer_manager.stop();
+
+    LoggingBufferManager serial_manager = startBufferManager(serial_path, 1);
+    serial_manager.stop();
+    LoggingBufferManager parallel_manager =
+                                      startBufferManager(parallel_path, 4);
+    parallel_manager.stop();
+
+    assertSameFiles(serial_path, parallel_path);
+  }
+
+  /**
+   * A store recovered in parallel, with the pages of the resource split
+   * between threads, opens and reads the check pointed content.
+   */
+  @Test
+  public void parallelRecoveredStoreOpens() throws Exception {
+    File data_path = new File(path, "data");
+    data_path.mkdir();
+    LoggingBufferManager buffer_manager = startBufferManager(data_path, 1);
+    JournalledFileStore store =
+                      new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+
+    long[] areas = new long[500];
+    for (int i = 0; i < areas.length; ++i) {
+      AreaWriter writer = store.createArea(300);
+      for (int n = 0; n < 300; ++n) {
+        writer.put((byte) i);
+      }
+      writer.finish();
+      areas[i] = writer.getID();
+    }
+    store.checkPoint();
+
+    File recover_path = new File(path, "recover");
+    copyDirectory(data_path, recover_path);
+    store.close();
+    buffer_manager.stop();
+
+    buffer_manager = startBufferManager(recover_path, 4);
+    store = new JournalledFileStore("data", buffer_manager, false);
+    store.open();
+    assertFalse(store.lastCloseClean());
+    assertEquals(areas.length, store.getAllAreas().size());
+    for (int i = 0; i < areas.length; ++i) {
+      Area area = store.getArea(areas[i]);
+      for (int n = 0; n < 300; ++n) {
+        assertEquals((byte) i, area.get());
+      }
+    }
+    store.close();
+    buffer_manager.stop();
+  }
+
+}